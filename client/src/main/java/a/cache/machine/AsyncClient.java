@@ -0,0 +1,293 @@
+package a.cache.machine;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pipelining client, any number of requests can be in flight on its single
+ * connection.
+ * <p>
+ * Callers encode their command and append it to a pending buffer, a writer
+ * thread sends everything that piled up since its last write in one go, so
+ * concurrent requests share flushes. The server answers in order, a reader
+ * thread completes the oldest outstanding future with each reply it reads.
+ * <p>
+ * Futures complete on the reader thread, callbacks that block should use the
+ * {@code *Async} variants of {@link CompletableFuture}. Closing the client
+ * fails every request still waiting for its reply.
+ */
+public class AsyncClient implements IAsyncClient<String, String>, AutoCloseable {
+
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+    // Futures of the requests sent, in the order their replies will arrive
+    private final Queue<CompletableFuture<Object>> inFlight;
+    // Guards the pending buffer and keeps it in the same order as inFlight
+    private final ReentrantLock lock;
+    private final Condition hasOutput;
+    private ByteArrayOutputStream pending;
+    private ByteArrayOutputStream sending;
+    private final ByteArrayOutputStream line;
+    private boolean closed;
+
+    public AsyncClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        input = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+        output = socket.getOutputStream();
+        inFlight = new ConcurrentLinkedQueue<>();
+        lock = new ReentrantLock();
+        hasOutput = lock.newCondition();
+        pending = new ByteArrayOutputStream(8 * 1024);
+        sending = new ByteArrayOutputStream(8 * 1024);
+        line = new ByteArrayOutputStream(64);
+        start(this::writeLoop, "async-client-writer");
+        start(this::readLoop, "async-client-reader");
+    }
+
+    private static void start(Runnable loop, String name) {
+        Thread thread = new Thread(loop, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public CompletableFuture<String> ping() {
+        return send("PING").thenApply(String.class::cast);
+    }
+
+    @Override
+    public CompletableFuture<String> put(String key, String value) {
+        return send("SET", key, value).thenApply(String.class::cast);
+    }
+
+    @Override
+    public CompletableFuture<String> get(String key) {
+        return send("GET", key).thenApply(String.class::cast);
+    }
+
+    @Override
+    public CompletableFuture<String> remove(String key) {
+        return send("DEL", key).thenApply(String.class::cast);
+    }
+
+    @Override
+    public CompletableFuture<List<String>> getAll(List<String> keys) {
+        String[] args = new String[keys.size() + 1];
+        args[0] = "MGET";
+        for (int i = 0; i < keys.size(); i++) {
+            args[i + 1] = keys.get(i);
+        }
+        return send(args).thenApply(reply -> {
+            if (!(reply instanceof List)) {
+                throw new IllegalStateException("Unexpected reply to MGET: " + reply);
+            }
+            List<String> values = new ArrayList<>();
+            for (Object value : (List<?>) reply) {
+                values.add((String) value);
+            }
+            return values;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> putAll(Map<String, String> entries) {
+        return send(toArgs("MSET", entries)).thenApply(String.class::cast);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> putAllIfAbsent(Map<String, String> entries) {
+        return send(toArgs("MSETNX", entries)).thenApply(":1"::equals);
+    }
+
+    private static String[] toArgs(String command, Map<String, String> entries) {
+        String[] args = new String[entries.size() * 2 + 1];
+        args[0] = command;
+        int i = 1;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            args[i++] = entry.getKey();
+            args[i++] = entry.getValue();
+        }
+        return args;
+    }
+
+    /** Number of requests waiting for their reply. */
+    public int inFlight() {
+        return inFlight.size();
+    }
+
+    private CompletableFuture<Object> send(String... args) {
+        CompletableFuture<Object> reply = new CompletableFuture<>();
+        // Encoded outside the lock, only the append is serialized
+        byte[] command = encode(args);
+        lock.lock();
+        try {
+            if (closed) {
+                reply.completeExceptionally(new IOException("Client is closed"));
+                return reply;
+            }
+            pending.write(command, 0, command.length);
+            inFlight.add(reply);
+            hasOutput.signal();
+        } finally {
+            lock.unlock();
+        }
+        return reply;
+    }
+
+    private static byte[] encode(String... args) {
+        ByteArrayOutputStream command = new ByteArrayOutputStream(64);
+        writeAscii(command, "*" + args.length + "\r\n");
+        for (String arg : args) {
+            byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+            // Length of the argument in bytes, the server reads bulk strings by it
+            writeAscii(command, "$" + bytes.length + "\r\n");
+            command.write(bytes, 0, bytes.length);
+            writeAscii(command, "\r\n");
+        }
+        return command.toByteArray();
+    }
+
+    private static void writeAscii(ByteArrayOutputStream out, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                ByteArrayOutputStream batch;
+                lock.lock();
+                try {
+                    while (pending.size() == 0 && !closed) {
+                        hasOutput.await();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    // Swap buffers, callers keep appending while the batch is sent
+                    batch = pending;
+                    pending = sending;
+                    sending = batch;
+                } finally {
+                    lock.unlock();
+                }
+                batch.writeTo(output);
+                output.flush();
+                batch.reset();
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(new IOException("Writer interrupted", e));
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (true) {
+                Object reply = readReply();
+                CompletableFuture<Object> request = inFlight.poll();
+                if (request == null) {
+                    throw new IOException("Reply without a request: " + reply);
+                }
+                request.complete(reply);
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            // A malformed header, the stream cannot be trusted after it
+            fail(new IOException("Malformed reply: " + e.getLocalizedMessage(), e));
+        }
+    }
+
+    // Bulk strings become strings or null, arrays lists, anything else the
+    // reply line as the blocking client returns it, e.g. +OK, :1 or -ERR ...
+    private Object readReply() throws IOException {
+        String header = readLine();
+        if (header.isEmpty()) {
+            return header;
+        }
+        switch (header.charAt(0)) {
+            case '$': {
+                int length = Integer.parseInt(header.substring(1));
+                if (length < 0) {
+                    return null;
+                }
+                byte[] value = input.readNBytes(length);
+                if (value.length < length || input.read() != '\r' || input.read() != '\n') {
+                    throw new EOFException("Truncated bulk string");
+                }
+                return new String(value, StandardCharsets.UTF_8);
+            }
+            case '*': {
+                int count = Integer.parseInt(header.substring(1));
+                if (count < 0) {
+                    return null;
+                }
+                List<Object> elements = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    elements.add(readReply());
+                }
+                return elements;
+            }
+            default:
+                return header;
+        }
+    }
+
+    private String readLine() throws IOException {
+        line.reset();
+        int b;
+        while ((b = input.read()) != '\r') {
+            if (b < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+            line.write(b);
+        }
+        if (input.read() != '\n') {
+            throw new IOException("Malformed reply line");
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    // Stops both loops and fails every request that is still waiting
+    private void fail(IOException cause) {
+        lock.lock();
+        try {
+            closed = true;
+            hasOutput.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already failing
+        }
+        CompletableFuture<Object> request;
+        while ((request = inFlight.poll()) != null) {
+            request.completeExceptionally(cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        fail(new IOException("Client is closed"));
+    }
+}
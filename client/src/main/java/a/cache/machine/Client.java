@@ -6,6 +6,10 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public class Client implements IClient<String, String> {
 
@@ -15,23 +19,31 @@ public class Client implements IClient<String, String> {
 
     public Client(String host, int port) throws IOException {
         socket = new Socket(host, port);
-        reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
     }
 
     private String sendCommand(String... args) throws IOException {
+        writeCommand(args);
+        return readReply();
+    }
+
+    private void writeCommand(String... args) throws IOException {
         // Build the RESP command
         StringBuilder command = new StringBuilder();
         command.append("*").append(args.length).append("\r\n"); // Number of arguments
         for (String arg : args) {
-            command.append("$").append(arg.length()).append("\r\n"); // Length of the argument
+            // Length of the argument in bytes, the server reads bulk strings by it
+            command.append("$").append(arg.getBytes(StandardCharsets.UTF_8).length).append("\r\n");
             command.append(arg).append("\r\n"); // The argument itself
         }
     
         // Send the command to the server
         writer.write(command.toString());
         writer.flush();
-    
+    }
+
+    private String readReply() throws IOException {
         // Read the response from the server
         String response = reader.readLine();
         if (response != null && response.startsWith("$")) {
@@ -88,14 +100,60 @@ public class Client implements IClient<String, String> {
     }
 
     @Override
-    public void clear() {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'clear'");
+    public List<String> getAll(List<String> keys) throws Exception {
+        String[] args = new String[keys.size() + 1];
+        args[0] = "MGET";
+        for (int i = 0; i < keys.size(); i++) {
+            args[i + 1] = keys.get(i);
+        }
+        writeCommand(args);
+        String header = reader.readLine();
+        if (header == null || !header.startsWith("*")) {
+            throw new IOException("Unexpected reply to MGET: " + header);
+        }
+        int count = Integer.parseInt(header.substring(1));
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readReply());
+        }
+        return values;
+    }
+
+    @Override
+    public String putAll(Map<String, String> entries) throws Exception {
+        return sendCommand(toArgs("MSET", entries));
     }
 
     @Override
-    public int size() {
-        // TODO Auto-generated method stub
-        throw new UnsupportedOperationException("Unimplemented method 'size'");
+    public boolean putAllIfAbsent(Map<String, String> entries) throws Exception {
+        return ":1".equals(sendCommand(toArgs("MSETNX", entries)));
+    }
+
+    private static String[] toArgs(String command, Map<String, String> entries) {
+        String[] args = new String[entries.size() * 2 + 1];
+        args[0] = command;
+        int i = 1;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            args[i++] = entry.getKey();
+            args[i++] = entry.getValue();
+        }
+        return args;
+    }
+
+    @Override
+    public void clear() throws Exception {
+        String reply = sendCommand("FLUSHALL");
+        if (!"+OK".equals(reply)) {
+            throw new IOException("Unexpected reply to FLUSHALL: " + reply);
+        }
+    }
+
+    @Override
+    public int size() throws Exception {
+        String reply = sendCommand("DBSIZE");
+        if (reply == null || !reply.startsWith(":")) {
+            throw new IOException("Unexpected reply to DBSIZE: " + reply);
+        }
+        return Integer.parseInt(reply.substring(1));
     }
 }
\ No newline at end of file
@@ -0,0 +1,321 @@
+package a.cache.machine;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe pool of {@link Client} connections to one server.
+ * <p>
+ * At most {@code maxTotal} connections are open at a time, a borrower waits
+ * up to {@code borrowTimeoutMillis} for one to come back before giving up.
+ * Returned connections are kept for reuse up to {@code maxIdle}, the rest
+ * are closed; {@code minIdle} connections are opened up front and replaced
+ * when one is dropped. A connection that sat idle for longer than
+ * {@code validateAfterIdleMillis} is checked with {@link Client#ping()}
+ * before it is handed out, dead ones are replaced transparently.
+ * <p>
+ * The pool is itself an {@link IClient}: every call borrows a connection,
+ * runs the command and returns it, dropping the connection if the command
+ * failed.
+ */
+public class ClientPool implements IClient<String, String>, AutoCloseable {
+    public static final int DEFAULT_MIN_IDLE = 0;
+    public static final int DEFAULT_MAX_IDLE = 8;
+    public static final int DEFAULT_MAX_TOTAL = 8;
+    public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 5_000;
+    public static final long DEFAULT_VALIDATE_AFTER_IDLE_MILLIS = 1_000;
+
+    private final String host;
+    private final int port;
+    private final int minIdle;
+    private final int maxIdle;
+    private final int maxTotal;
+    private final long borrowTimeoutMillis;
+    private final long validateAfterIdleMillis;
+    // Most recently returned first, so the warmest connections are reused
+    private final Deque<Idle> idle;
+    private final ReentrantLock lock;
+    private final Condition returned;
+    private int total;
+    private boolean closed;
+
+    /** Called with a borrowed connection by {@link #execute(Call)}. */
+    public interface Call<T> {
+        T call(Client client) throws Exception;
+    }
+
+    public ClientPool(String host, int port) {
+        this(host, port, DEFAULT_MIN_IDLE, DEFAULT_MAX_IDLE, DEFAULT_MAX_TOTAL, DEFAULT_BORROW_TIMEOUT_MILLIS,
+                DEFAULT_VALIDATE_AFTER_IDLE_MILLIS);
+    }
+
+    public ClientPool(String host, int port, int minIdle, int maxIdle, int maxTotal, long borrowTimeoutMillis,
+            long validateAfterIdleMillis) {
+        if (maxTotal <= 0 || minIdle < 0 || minIdle > maxIdle || maxIdle > maxTotal) {
+            throw new IllegalArgumentException("Expected 0 <= minIdle <= maxIdle <= maxTotal and maxTotal > 0");
+        }
+        this.host = host;
+        this.port = port;
+        this.minIdle = minIdle;
+        this.maxIdle = maxIdle;
+        this.maxTotal = maxTotal;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+        this.idle = new ArrayDeque<>();
+        this.lock = new ReentrantLock();
+        this.returned = lock.newCondition();
+        fillMinIdle();
+    }
+
+    /**
+     * Hands out an idle connection or opens a new one, waiting for a
+     * connection to be returned while {@code maxTotal} are in use.
+     *
+     * @throws TimeoutException if none became available within the borrow timeout
+     */
+    public Client borrow() throws IOException, InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+        while (true) {
+            Idle candidate = null;
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new IOException("Pool is closed");
+                    }
+                    candidate = idle.pollFirst();
+                    if (candidate != null || total < maxTotal) {
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new TimeoutException("No connection to " + endpoint() + " available within "
+                                + borrowTimeoutMillis + " ms");
+                    }
+                    returned.awaitNanos(remaining);
+                }
+                if (candidate == null) {
+                    // Reserve the slot, the connection is opened outside the lock
+                    total++;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (candidate == null) {
+                return open();
+            }
+            if (isAlive(candidate)) {
+                return candidate.client;
+            }
+            // Dead while idle, drop it and try the next one
+            discard(candidate.client);
+        }
+    }
+
+    /** Gives a healthy connection back to the pool. */
+    public void release(Client client) {
+        lock.lock();
+        try {
+            if (!closed && idle.size() < maxIdle) {
+                idle.addFirst(new Idle(client, System.nanoTime()));
+                returned.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        discard(client);
+    }
+
+    /** Closes a connection that failed instead of giving it back. */
+    public void invalidate(Client client) {
+        discard(client);
+        fillMinIdle();
+    }
+
+    /** Runs {@code call} on a borrowed connection, which is dropped if the call throws. */
+    public <T> T execute(Call<T> call) throws Exception {
+        Client client = borrow();
+        T result;
+        try {
+            result = call.call(client);
+        } catch (Exception e) {
+            invalidate(client);
+            throw e;
+        }
+        release(client);
+        return result;
+    }
+
+    private boolean isAlive(Idle candidate) {
+        if (System.nanoTime() - candidate.since < TimeUnit.MILLISECONDS.toNanos(validateAfterIdleMillis)) {
+            return true;
+        }
+        try {
+            return "+PONG".equals(candidate.client.ping());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private Client open() throws IOException {
+        try {
+            return new Client(host, port);
+        } catch (IOException | RuntimeException e) {
+            lock.lock();
+            try {
+                total--;
+                returned.signal();
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+    }
+
+    private void discard(Client client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // Being dropped anyway
+        }
+        lock.lock();
+        try {
+            total--;
+            // A slot is free, a waiting borrower can open a new connection
+            returned.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Best effort, a server that is down is retried on the next borrow
+    private void fillMinIdle() {
+        while (true) {
+            lock.lock();
+            try {
+                if (closed || idle.size() >= minIdle || total >= maxTotal) {
+                    return;
+                }
+                total++;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                release(open());
+            } catch (IOException | RuntimeException e) {
+                return;
+            }
+        }
+    }
+
+    public String endpoint() {
+        return host + ":" + port;
+    }
+
+    /** Connections currently open, borrowed or idle. */
+    public int totalCount() {
+        lock.lock();
+        try {
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int idleCount() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Closes the idle connections, borrowed ones are closed when they come back. */
+    @Override
+    public void close() {
+        Deque<Idle> closing;
+        lock.lock();
+        try {
+            closed = true;
+            closing = new ArrayDeque<>(idle);
+            idle.clear();
+            returned.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Idle connection : closing) {
+            discard(connection.client);
+        }
+    }
+
+    public String ping() throws Exception {
+        return execute(Client::ping);
+    }
+
+    @Override
+    public String put(String key, String value) throws Exception {
+        return execute(client -> client.put(key, value));
+    }
+
+    @Override
+    public String get(String key) throws Exception {
+        return execute(client -> client.get(key));
+    }
+
+    @Override
+    public String remove(String key) throws Exception {
+        return execute(client -> client.remove(key));
+    }
+
+    @Override
+    public List<String> getAll(List<String> keys) throws Exception {
+        return execute(client -> client.getAll(keys));
+    }
+
+    @Override
+    public String putAll(Map<String, String> entries) throws Exception {
+        return execute(client -> client.putAll(entries));
+    }
+
+    @Override
+    public boolean putAllIfAbsent(Map<String, String> entries) throws Exception {
+        return execute(client -> client.putAllIfAbsent(entries));
+    }
+
+    @Override
+    public void clear() throws Exception {
+        execute(client -> {
+            client.clear();
+            return null;
+        });
+    }
+
+    @Override
+    public int size() throws Exception {
+        return execute(Client::size);
+    }
+
+    @Override
+    public String toString() {
+        return endpoint();
+    }
+
+    private static final class Idle {
+        final Client client;
+        final long since;
+
+        Idle(Client client, long since) {
+            this.client = client;
+            this.since = since;
+        }
+    }
+}
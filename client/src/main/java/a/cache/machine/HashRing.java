@@ -0,0 +1,78 @@
+package a.cache.machine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring that maps keys to nodes.
+ * <p>
+ * Every node is placed on the ring at {@code virtualNodes} points derived
+ * from its name, a key belongs to the first point at or after its own hash.
+ * The many points even out the share of keys each node gets, and adding or
+ * removing a node only moves the keys between its points and their
+ * neighbours, about {@code 1/n} of them.
+ * <p>
+ * Not thread-safe; build the ring once and share it read only.
+ */
+public class HashRing<T> {
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final int virtualNodes;
+    private final TreeMap<Long, T> ring;
+
+    public HashRing(Collection<? extends T> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public HashRing(Collection<? extends T> nodes, int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Virtual node count must be positive");
+        }
+        this.virtualNodes = virtualNodes;
+        this.ring = new TreeMap<>();
+        for (T node : nodes) {
+            add(node);
+        }
+    }
+
+    /** Places a node on the ring, its points are derived from its {@code toString()}. */
+    public void add(T node) {
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    public void remove(T node) {
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.remove(hash(node + "#" + i), node);
+        }
+    }
+
+    /** Node owning the key, null if the ring is empty. */
+    public T nodeFor(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, T> owner = ring.ceilingEntry(hash(key));
+        // Past the last point, wrap around to the first
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    static long hash(String key) {
+        // 64-bit FNV-1a over the UTF-8 bytes, the key as the server sees it
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        // FNV alone clusters similar keys, finish with the murmur3 mixer
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
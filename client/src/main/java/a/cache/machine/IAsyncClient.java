@@ -0,0 +1,21 @@
+package a.cache.machine;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking counterpart of {@link IClient}. Every call returns as soon as
+ * the request is queued, its future completes with the same result the
+ * blocking call would return.
+ */
+public interface IAsyncClient<K, V> {
+    CompletableFuture<V> put(K key, V value);
+    CompletableFuture<V> get(K key);
+    CompletableFuture<V> remove(K key);
+    /** Values of the keys in the same order, null for keys that are not cached. */
+    CompletableFuture<List<V>> getAll(List<K> keys);
+    CompletableFuture<V> putAll(Map<K, V> entries);
+    /** Stores all entries only if none of the keys exists yet. */
+    CompletableFuture<Boolean> putAllIfAbsent(Map<K, V> entries);
+}
@@ -1,9 +1,18 @@
 package a.cache.machine;
 
+import java.util.List;
+import java.util.Map;
+
 public interface IClient<K, V> {
     V put(K key, V value) throws Exception;
     V get(K key) throws Exception;
     V remove(K key) throws Exception;
-    void clear();
-    int size();
+    /** Values of the keys in the same order, null for keys that are not cached. */
+    List<V> getAll(List<K> keys) throws Exception;
+    V putAll(Map<K, V> entries) throws Exception;
+    /** Stores all entries only if none of the keys exists yet. */
+    boolean putAllIfAbsent(Map<K, V> entries) throws Exception;
+    void clear() throws Exception;
+    /** Number of keys, summed over the servers holding them. */
+    int size() throws Exception;
 }
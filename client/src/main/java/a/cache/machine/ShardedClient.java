@@ -0,0 +1,137 @@
+package a.cache.machine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spreads keys over several servers without a proxy. Each key is routed
+ * through a {@link HashRing} to the {@link ClientPool} of one endpoint, so a
+ * key always lives on the same server and adding a server moves only a
+ * fraction of the keys.
+ * <p>
+ * Multi-key commands are split per server: {@link #getAll(List)} and
+ * {@link #putAll(Map)} send one MGET or MSET to every server involved.
+ * {@link #putAllIfAbsent(Map)} is only atomic on a single server, so like
+ * Redis Cluster it refuses keys that belong to different servers.
+ */
+public class ShardedClient implements IClient<String, String>, AutoCloseable {
+
+    private final List<ClientPool> pools;
+    private final HashRing<ClientPool> ring;
+
+    public ShardedClient(List<ClientPool> pools) {
+        this(pools, HashRing.DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ShardedClient(List<ClientPool> pools, int virtualNodes) {
+        if (pools.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is required");
+        }
+        this.pools = new ArrayList<>(pools);
+        // Pools are placed on the ring by their endpoint, host:port
+        this.ring = new HashRing<>(pools, virtualNodes);
+    }
+
+    /** Pool of the server that owns the key. */
+    public ClientPool poolFor(String key) {
+        return ring.nodeFor(key);
+    }
+
+    @Override
+    public String put(String key, String value) throws Exception {
+        return poolFor(key).put(key, value);
+    }
+
+    @Override
+    public String get(String key) throws Exception {
+        return poolFor(key).get(key);
+    }
+
+    @Override
+    public String remove(String key) throws Exception {
+        return poolFor(key).remove(key);
+    }
+
+    @Override
+    public List<String> getAll(List<String> keys) throws Exception {
+        Map<ClientPool, List<Integer>> positions = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            positions.computeIfAbsent(poolFor(keys.get(i)), pool -> new ArrayList<>()).add(i);
+        }
+        String[] values = new String[keys.size()];
+        for (Map.Entry<ClientPool, List<Integer>> shard : positions.entrySet()) {
+            List<String> shardKeys = new ArrayList<>(shard.getValue().size());
+            for (int position : shard.getValue()) {
+                shardKeys.add(keys.get(position));
+            }
+            List<String> shardValues = shard.getKey().getAll(shardKeys);
+            // Put every value back where its key was asked for
+            for (int i = 0; i < shardValues.size(); i++) {
+                values[shard.getValue().get(i)] = shardValues.get(i);
+            }
+        }
+        return Arrays.asList(values);
+    }
+
+    /** Not atomic across servers, a failure may leave some of them written. */
+    @Override
+    public String putAll(Map<String, String> entries) throws Exception {
+        String reply = "+OK";
+        for (Map.Entry<ClientPool, Map<String, String>> shard : split(entries).entrySet()) {
+            String shardReply = shard.getKey().putAll(shard.getValue());
+            if (!"+OK".equals(shardReply)) {
+                reply = shardReply;
+            }
+        }
+        return reply;
+    }
+
+    @Override
+    public boolean putAllIfAbsent(Map<String, String> entries) throws Exception {
+        Map<ClientPool, Map<String, String>> shards = split(entries);
+        if (shards.size() > 1) {
+            throw new IllegalArgumentException("Keys of MSETNX belong to different servers: " + shards.keySet());
+        }
+        if (shards.isEmpty()) {
+            return true;
+        }
+        Map.Entry<ClientPool, Map<String, String>> shard = shards.entrySet().iterator().next();
+        return shard.getKey().putAllIfAbsent(shard.getValue());
+    }
+
+    private Map<ClientPool, Map<String, String>> split(Map<String, String> entries) {
+        Map<ClientPool, Map<String, String>> shards = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            shards.computeIfAbsent(poolFor(entry.getKey()), pool -> new LinkedHashMap<>())
+                    .put(entry.getKey(), entry.getValue());
+        }
+        return shards;
+    }
+
+    /** Flushes every server, not atomic across them. */
+    @Override
+    public void clear() throws Exception {
+        for (ClientPool pool : pools) {
+            pool.clear();
+        }
+    }
+
+    @Override
+    public int size() throws Exception {
+        int size = 0;
+        for (ClientPool pool : pools) {
+            size += pool.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void close() {
+        for (ClientPool pool : pools) {
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package a.cache.machine;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import a.cache.machine.engine.LRUCache;
+
+public class AsyncClientTest {
+
+    private NioRESPServer server;
+    private AsyncClient client;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        server = start();
+        client = new AsyncClient("localhost", server.getPort());
+    }
+
+    // Budget for everything the tests write, a server with the shipped config evicts most of it
+    private static NioRESPServer start() throws InterruptedException {
+        NioRESPServer server = new NioRESPServer(new LRUCache<>(4 * 1024 * 1024), 0, 2);
+        Thread thread = new Thread(server::start);
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getPort() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return server;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        client.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void testPing() {
+        assertEquals("+PONG", client.ping().join(), "PING command should return +PONG");
+    }
+
+    @Test
+    public void testSetAndGet() {
+        CompletableFuture<String> set = client.put("asyncKey", "ключ-значение");
+        CompletableFuture<String> get = client.get("asyncKey");
+
+        assertEquals("+OK", set.join(), "SET command should return +OK");
+        assertEquals("ключ-значение", get.join(), "GET sent right after SET should see its value");
+        assertNull(client.get("nonExistentKey").join());
+    }
+
+    @Test
+    public void testPipelinedRepliesMatchTheirRequests() {
+        List<CompletableFuture<String>> puts = new ArrayList<>();
+        List<CompletableFuture<String>> gets = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            puts.add(client.put("pipelined" + i, "value" + i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            gets.add(client.get("pipelined" + i));
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("+OK", puts.get(i).join());
+            assertEquals("value" + i, gets.get(i).join());
+        }
+        assertEquals(0, client.inFlight());
+    }
+
+    @Test
+    public void testConcurrentCallers() throws Exception {
+        Thread[] threads = new Thread[8];
+        List<CompletableFuture<String>> replies = new ArrayList<>();
+        for (int t = 0; t < threads.length; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    String key = "concurrent" + thread + ":" + i;
+                    client.put(key, key);
+                    CompletableFuture<String> reply = client.get(key);
+                    synchronized (replies) {
+                        replies.add(reply.thenApply(value -> key.equals(value) ? "match" : value));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (CompletableFuture<String> reply : replies) {
+            assertEquals("match", reply.join());
+        }
+    }
+
+    @Test
+    public void testDel() {
+        client.put("asyncKeyToDelete", "value");
+
+        assertEquals(":1", client.remove("asyncKeyToDelete").join());
+        assertEquals(":0", client.remove("asyncKeyToDelete").join());
+    }
+
+    @Test
+    public void testMsetAndMget() {
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("asyncMultiKey1", "value1");
+        entries.put("asyncMultiKey2", "value2");
+        assertEquals("+OK", client.putAll(entries).join());
+
+        assertEquals(Arrays.asList("value1", null, "value2"),
+                client.getAll(Arrays.asList("asyncMultiKey1", "nonExistentKey", "asyncMultiKey2")).join());
+    }
+
+    @Test
+    public void testMsetnx() {
+        client.remove("asyncNxKey1");
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("asyncNxKey1", "value1");
+
+        assertTrue(client.putAllIfAbsent(entries).join());
+        assertFalse(client.putAllIfAbsent(entries).join());
+    }
+
+    @Test
+    public void testRequestsFailAfterClose() {
+        client.close();
+
+        CompletionException failure = assertThrows(CompletionException.class, () -> client.get("asyncKey").join());
+        assertTrue(failure.getCause() instanceof java.io.IOException);
+    }
+
+    @Test
+    public void testMalformedReplyFailsPendingRequests() throws Exception {
+        try (ServerSocket fake = new ServerSocket(0)) {
+            Thread thread = new Thread(() -> {
+                try (Socket socket = fake.accept()) {
+                    OutputStream output = socket.getOutputStream();
+                    output.write("$abc\r\n".getBytes(StandardCharsets.US_ASCII));
+                    output.flush();
+                    socket.getInputStream().read();
+                    Thread.sleep(5000);
+                } catch (IOException | InterruptedException e) {
+                    // The client hung up
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+
+            try (AsyncClient broken = new AsyncClient("localhost", fake.getLocalPort())) {
+                CompletionException failure = assertThrows(CompletionException.class,
+                        () -> broken.get("key").orTimeout(5, TimeUnit.SECONDS).join());
+                assertTrue(failure.getCause() instanceof IOException, failure.getCause().toString());
+                assertThrows(CompletionException.class, () -> broken.get("key").orTimeout(5, TimeUnit.SECONDS).join());
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package a.cache.machine;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import a.cache.machine.engine.LRUCache;
+
+public class ClientPoolTest {
+
+    private NioRESPServer server;
+    private int port;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        server = start();
+        port = server.getPort();
+    }
+
+    // Budget for everything the tests write, a server with the shipped config evicts most of it
+    private static NioRESPServer start() throws InterruptedException {
+        NioRESPServer server = new NioRESPServer(new LRUCache<>(4 * 1024 * 1024), 0, 2);
+        Thread thread = new Thread(server::start);
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getPort() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return server;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Test
+    public void testPrefillsAndReusesConnections() throws Exception {
+        try (ClientPool pool = new ClientPool("localhost", port, 2, 4, 4, 1_000, 1_000)) {
+            assertEquals(2, pool.idleCount());
+
+            Client first = pool.borrow();
+            pool.release(first);
+            assertSame(first, pool.borrow(), "the most recently returned connection is reused");
+            assertEquals(2, pool.totalCount());
+        }
+    }
+
+    @Test
+    public void testBorrowTimesOutWhenExhausted() throws Exception {
+        try (ClientPool pool = new ClientPool("localhost", port, 0, 1, 1, 100, 1_000)) {
+            Client only = pool.borrow();
+
+            assertThrows(TimeoutException.class, pool::borrow);
+            pool.release(only);
+            assertSame(only, pool.borrow());
+        }
+    }
+
+    @Test
+    public void testDeadIdleConnectionIsReplaced() throws Exception {
+        // Validates every idle connection before handing it out
+        try (ClientPool pool = new ClientPool("localhost", port, 0, 1, 1, 1_000, 0)) {
+            Client dead = pool.borrow();
+            dead.close();
+            pool.release(dead);
+
+            Client replacement = pool.borrow();
+            assertNotSame(dead, replacement);
+            assertEquals("+PONG", replacement.ping());
+            assertEquals(1, pool.totalCount());
+        }
+    }
+
+    @Test
+    public void testExtraConnectionsAboveMaxIdleAreClosed() throws Exception {
+        try (ClientPool pool = new ClientPool("localhost", port, 0, 1, 3, 1_000, 1_000)) {
+            Client a = pool.borrow();
+            Client b = pool.borrow();
+            pool.release(a);
+            pool.release(b);
+
+            assertEquals(1, pool.idleCount());
+            assertEquals(1, pool.totalCount());
+        }
+    }
+
+    @Test
+    public void testConcurrentCommands() throws Exception {
+        try (ClientPool pool = new ClientPool("localhost", port, 0, 4, 4, 5_000, 1_000)) {
+            AtomicInteger mismatches = new AtomicInteger();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 16; t++) {
+                int thread = t;
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 100; i++) {
+                            String key = "pooled" + thread + ":" + i;
+                            pool.put(key, key);
+                            if (!key.equals(pool.get(key))) {
+                                mismatches.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        mismatches.incrementAndGet();
+                    }
+                }));
+            }
+            threads.forEach(Thread::start);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertEquals(0, mismatches.get());
+            assertTrue(pool.totalCount() <= 4);
+            assertEquals(1600, pool.size());
+            pool.clear();
+            assertEquals(0, pool.size());
+        }
+    }
+}
@@ -2,6 +2,10 @@ package a.cache.machine;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 public class ClientTest {
@@ -52,4 +56,29 @@ public class ClientTest {
         String response = client.remove( "nonExistentKey");
         assertEquals(":0", response, "DEL command should return :0 for a non-existent key");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testMsetAndMget() throws Exception {
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("multiKey1", "value1");
+        entries.put("multiKey2", "value2");
+        assertEquals("+OK", client.putAll(entries), "MSET command should return +OK");
+
+        assertEquals(Arrays.asList("value1", null, "value2"),
+                client.getAll(Arrays.asList("multiKey1", "nonExistentKey", "multiKey2")),
+                "MGET command should return the values in order, null for missing keys");
+    }
+
+    @Test
+    public void testMsetnx() throws Exception {
+        client.remove("nxKey1");
+        client.remove("nxKey2");
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("nxKey1", "value1");
+        entries.put("nxKey2", "value2");
+        assertTrue(client.putAllIfAbsent(entries), "MSETNX should set keys that do not exist");
+        entries.put("nxKey3", "value3");
+        assertFalse(client.putAllIfAbsent(entries), "MSETNX should not set anything if one key exists");
+        assertNull(client.get("nxKey3"));
+    }
+}
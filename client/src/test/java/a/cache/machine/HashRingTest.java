@@ -0,0 +1,66 @@
+package a.cache.machine;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class HashRingTest {
+
+    @Test
+    public void testKeysAreSpreadEvenly() {
+        HashRing<String> ring = new HashRing<>(Arrays.asList("node-a:6379", "node-b:6379", "node-c:6379"));
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 30_000; i++) {
+            counts.merge(ring.nodeFor("key:" + i), 1, Integer::sum);
+        }
+
+        assertEquals(3, counts.size());
+        for (int count : counts.values()) {
+            // 10000 each with perfect balance
+            assertTrue(count > 8_000 && count < 12_000, "unbalanced: " + counts);
+        }
+    }
+
+    @Test
+    public void testAddingANodeMovesAboutItsShare() {
+        List<String> nodes = Arrays.asList("node-a:6379", "node-b:6379", "node-c:6379");
+        HashRing<String> before = new HashRing<>(nodes);
+        HashRing<String> after = new HashRing<>(nodes);
+        after.add("node-d:6379");
+
+        int moved = 0;
+        for (int i = 0; i < 20_000; i++) {
+            String owner = after.nodeFor("key:" + i);
+            if (!owner.equals(before.nodeFor("key:" + i))) {
+                assertEquals("node-d:6379", owner, "keys only move to the new node");
+                moved++;
+            }
+        }
+        // A quarter of the keys with perfect balance
+        assertTrue(moved > 3_500 && moved < 6_500, moved + " keys moved");
+    }
+
+    @Test
+    public void testRemovingANodeRestoresTheRing() {
+        List<String> nodes = Arrays.asList("node-a:6379", "node-b:6379");
+        HashRing<String> ring = new HashRing<>(nodes);
+        HashRing<String> grown = new HashRing<>(nodes);
+        grown.add("node-c:6379");
+        grown.remove("node-c:6379");
+
+        for (int i = 0; i < 1_000; i++) {
+            assertEquals(ring.nodeFor("key:" + i), grown.nodeFor("key:" + i));
+        }
+    }
+
+    @Test
+    public void testEmptyRingAndInvalidArguments() {
+        assertNull(new HashRing<String>(Arrays.asList()).nodeFor("key"));
+        assertThrows(IllegalArgumentException.class, () -> new HashRing<>(Arrays.asList("node"), 0));
+    }
+}
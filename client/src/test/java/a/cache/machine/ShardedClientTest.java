@@ -0,0 +1,86 @@
+package a.cache.machine;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import a.cache.machine.engine.LRUCache;
+
+public class ShardedClientTest {
+
+    private NioRESPServer first;
+    private NioRESPServer second;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        first = start();
+        second = start();
+    }
+
+    private static NioRESPServer start() throws InterruptedException {
+        NioRESPServer server = new NioRESPServer(new LRUCache<>(4 * 1024 * 1024), 0, 2);
+        Thread thread = new Thread(server::start);
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getPort() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return server;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        first.shutdown();
+        second.shutdown();
+    }
+
+    private ShardedClient newClient() {
+        return new ShardedClient(Arrays.asList(
+                new ClientPool("localhost", first.getPort()), new ClientPool("localhost", second.getPort())));
+    }
+
+    @Test
+    public void testSplitsMultiKeyCommands() throws Exception {
+        try (ShardedClient sharded = newClient()) {
+            Map<String, String> entries = new LinkedHashMap<>();
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                entries.put("sharded" + i, "value" + i);
+                keys.add("sharded" + i);
+            }
+            assertEquals("+OK", sharded.putAll(entries));
+
+            keys.add(5, "nonExistentKey");
+            List<String> values = new ArrayList<>(sharded.getAll(keys));
+            assertNull(values.get(5));
+            values.remove(5);
+            assertEquals(new ArrayList<>(entries.values()), values);
+            assertEquals("value3", sharded.get("sharded3"));
+            assertThrows(IllegalArgumentException.class, () -> sharded.putAllIfAbsent(entries));
+        }
+    }
+
+    @Test
+    public void testClearAndSizeCoverEveryShard() throws Exception {
+        try (ShardedClient sharded = newClient()) {
+            for (int i = 0; i < 20; i++) {
+                sharded.put("sharded" + i, "value" + i);
+            }
+            assertEquals(20, sharded.size());
+            assertTrue(sharded.poolFor("sharded0").size() < 20, "keys are spread over both servers");
+
+            sharded.clear();
+            assertEquals(0, sharded.size());
+            assertNull(sharded.get("sharded0"));
+        }
+    }
+}
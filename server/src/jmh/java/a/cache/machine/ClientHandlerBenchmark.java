@@ -0,0 +1,100 @@
+package a.cache.machine;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import a.cache.machine.engine.ByteKey;
+import a.cache.machine.engine.ICache;
+import a.cache.machine.engine.LRUCache;
+import a.cache.machine.engine.weigher.StringWeigher;
+
+/**
+ * Request parsing and command execution without any socket in the way:
+ * {@code parse} reads one RESP command from a buffer, {@code execute} runs an
+ * already parsed one, {@code parseAndExecute} does both. Replies go to a
+ * reused buffer that is cleared after every invocation, like a connection
+ * does once they are sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientHandlerBenchmark {
+
+    @Param({ "GET", "SET", "DEL" })
+    public String command;
+
+    @Param({ "16", "1024" })
+    public int valueSize;
+
+    private CommandProcessor processor;
+    private RespParser parser;
+    private RespWriter writer;
+    private ByteBuffer request;
+    private RespCommand parsed;
+
+    @Setup
+    public void setUp() throws Exception {
+        ICache<ByteKey, byte[]> cache = new LRUCache<>(64 * 1024 * 1024, new StringWeigher());
+        String value = "v".repeat(valueSize);
+        cache.put(ByteKey.of("key:1"), value.getBytes(StandardCharsets.UTF_8));
+        processor = new CommandProcessor(cache);
+        parser = new RespParser();
+        writer = new RespWriter(ClientHandler.INITIAL_BUFFER_SIZE);
+        String[] args;
+        switch (command) {
+            case "GET":
+                args = new String[] { "GET", "key:1" };
+                break;
+            case "SET":
+                args = new String[] { "SET", "key:1", value };
+                break;
+            default:
+                // Deleting a missing key keeps every invocation the same
+                args = new String[] { "DEL", "key:2" };
+        }
+        StringBuilder resp = new StringBuilder("*").append(args.length).append("\r\n");
+        for (String arg : args) {
+            resp.append('$').append(arg.length()).append("\r\n").append(arg).append("\r\n");
+        }
+        request = ByteBuffer.wrap(resp.toString().getBytes(StandardCharsets.UTF_8));
+        parsed = new RespParser().parse(request.duplicate());
+    }
+
+    @Benchmark
+    public RespCommand parse() throws ProtocolException {
+        return parser.parse(request.rewind());
+    }
+
+    @Benchmark
+    public int execute() {
+        processor.process(parsed, writer);
+        int written = writer.pending();
+        writer.buffer().clear();
+        return written;
+    }
+
+    @Benchmark
+    public int parseAndExecute() throws ProtocolException {
+        processor.process(parser.parse(request.rewind()), writer);
+        int written = writer.pending();
+        writer.buffer().clear();
+        return written;
+    }
+}
@@ -0,0 +1,134 @@
+package a.cache.machine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import a.cache.machine.engine.ByteKey;
+import a.cache.machine.engine.ICache;
+import a.cache.machine.engine.LRUCache;
+import a.cache.machine.engine.weigher.StringWeigher;
+
+/**
+ * Serves many connections at once with each way of running them: the
+ * blocking server on platform or on virtual threads, and the NIO server.
+ * <p>
+ * {@code idleConnections} are opened and left silent for the whole trial,
+ * they only cost the server threads and buffers. Every operation sends a
+ * PING on each of the {@code activeConnections} and then waits for all the
+ * replies, so the server has that many requests in flight at once. Both
+ * ends of every connection live in this JVM, the open file limit
+ * ({@code ulimit -n}) has to allow twice the connection count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionScalingBenchmark {
+    private static final byte[] PING = "*1\r\n$4\r\nPING\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final int PONG_LENGTH = "+PONG\r\n".length();
+
+    @Param({ "platform", "virtual", "nio" })
+    public String mode;
+
+    @Param({ "0", "2000" })
+    public int idleConnections;
+
+    @Param({ "100", "1000" })
+    public int activeConnections;
+
+    private RESPServer blockingServer;
+    private NioRESPServer nioServer;
+    private final List<Socket> idle = new ArrayList<>();
+    private Socket[] active;
+    private final byte[] reply = new byte[PONG_LENGTH];
+
+    @Setup
+    public void setUp() throws Exception {
+        ICache<ByteKey, byte[]> cache = new LRUCache<>(64 * 1024 * 1024, new StringWeigher());
+        Runnable start;
+        switch (mode) {
+            case "platform":
+            case "virtual":
+                blockingServer = new RESPServer(cache, 0, mode.equals("virtual"));
+                start = blockingServer::start;
+                break;
+            case "nio":
+                nioServer = new NioRESPServer(cache, 0, Runtime.getRuntime().availableProcessors());
+                start = nioServer::start;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode '" + mode + "'");
+        }
+        Thread serverThread = new Thread(start, "resp-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        int port = awaitPort();
+        for (int i = 0; i < idleConnections; i++) {
+            idle.add(new Socket("localhost", port));
+        }
+        active = new Socket[activeConnections];
+        for (int i = 0; i < activeConnections; i++) {
+            active[i] = new Socket("localhost", port);
+            active[i].setTcpNoDelay(true);
+        }
+    }
+
+    private int awaitPort() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            int port = blockingServer != null ? blockingServer.getPort() : nioServer.getPort();
+            if (port != 0) {
+                return port;
+            }
+            Thread.sleep(50);
+        }
+        throw new IllegalStateException("Server did not start");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (Socket socket : active) {
+            socket.close();
+        }
+        for (Socket socket : idle) {
+            socket.close();
+        }
+        if (blockingServer != null) {
+            blockingServer.shutdown();
+        } else {
+            nioServer.shutdown();
+        }
+    }
+
+    @Benchmark
+    public int pingAll() throws IOException {
+        for (Socket socket : active) {
+            socket.getOutputStream().write(PING);
+        }
+        int received = 0;
+        for (Socket socket : active) {
+            InputStream input = socket.getInputStream();
+            received += input.readNBytes(reply, 0, PONG_LENGTH);
+        }
+        return received;
+    }
+}
@@ -0,0 +1,129 @@
+package a.cache.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import a.cache.machine.engine.ByteKey;
+import a.cache.machine.engine.ICache;
+import a.cache.machine.engine.LRUCache;
+import a.cache.machine.engine.weigher.StringWeigher;
+
+/**
+ * Pipelined GETs over loopback TCP. Every invocation writes {@code depth}
+ * commands in one go and then reads all the replies, so the score is round
+ * trips per second; the {@code commands} counter reports the same run in
+ * commands per second, which is what pipelining is meant to raise.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+    private static final String VALUE = "value-0123456789";
+
+    @Param({ "blocking", "nio" })
+    public String transport;
+
+    @Param({ "1", "16", "128" })
+    public int depth;
+
+    private RESPServer blockingServer;
+    private NioRESPServer nioServer;
+    private int port;
+
+    @Setup
+    public void startServer() throws Exception {
+        ICache<ByteKey, byte[]> cache = new LRUCache<>(64 * 1024 * 1024, new StringWeigher());
+        cache.put(ByteKey.of("key:1"), VALUE.getBytes(StandardCharsets.UTF_8));
+        Runnable start;
+        if (transport.equals("nio")) {
+            nioServer = new NioRESPServer(cache, 0, 1);
+            start = nioServer::start;
+        } else {
+            blockingServer = new RESPServer(cache, 0);
+            start = blockingServer::start;
+        }
+        Thread serverThread = new Thread(start, "resp-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        for (int attempt = 0; port == 0; attempt++) {
+            if (attempt == 100) {
+                throw new IllegalStateException("Server did not start");
+            }
+            Thread.sleep(50);
+            port = nioServer != null ? nioServer.getPort() : blockingServer.getPort();
+        }
+    }
+
+    @TearDown
+    public void stopServer() {
+        if (nioServer != null) {
+            nioServer.shutdown();
+        } else {
+            blockingServer.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Connection {
+        private Socket socket;
+        private InputStream input;
+        private byte[] pipeline;
+        private byte[] replies;
+        public long commands;
+
+        @Setup(Level.Trial)
+        public void connect(PipelineBenchmark benchmark) throws IOException {
+            socket = new Socket("localhost", benchmark.port);
+            socket.setTcpNoDelay(true);
+            input = socket.getInputStream();
+            ByteArrayOutputStream requests = new ByteArrayOutputStream();
+            byte[] get = "*2\r\n$3\r\nGET\r\n$5\r\nkey:1\r\n".getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < benchmark.depth; i++) {
+                requests.write(get);
+            }
+            pipeline = requests.toByteArray();
+            replies = new byte[("$" + VALUE.length() + "\r\n" + VALUE + "\r\n").length() * benchmark.depth];
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            commands = 0;
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public int roundTrip(Connection connection) throws IOException {
+        connection.socket.getOutputStream().write(connection.pipeline);
+        int read = connection.input.readNBytes(connection.replies, 0, connection.replies.length);
+        connection.commands += depth;
+        return read;
+    }
+}
@@ -0,0 +1,123 @@
+package a.cache.machine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import a.cache.machine.engine.ByteKey;
+import a.cache.machine.engine.ICache;
+import a.cache.machine.engine.LRUCache;
+import a.cache.machine.engine.weigher.StringWeigher;
+
+/**
+ * Full request/response round trips over loopback TCP against an in-process
+ * {@link RESPServer}, one connection per benchmark thread. Raise the number
+ * of connections with {@code -Pjmh.threads}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RESPServerBenchmark {
+
+    @Param({ "16379" })
+    public int port;
+
+    private RESPServer server;
+
+    @Setup
+    public void startServer() throws Exception {
+        ICache<ByteKey, byte[]> cache = new LRUCache<>(64 * 1024 * 1024, new StringWeigher());
+        cache.put(ByteKey.of("key:1"), "value-0123456789".getBytes(StandardCharsets.UTF_8));
+        server = new RESPServer(cache, port);
+        Thread serverThread = new Thread(server::start, "resp-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        // Wait until the server accepts connections
+        for (int attempt = 0; ; attempt++) {
+            try (Socket probe = new Socket("localhost", port)) {
+                return;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @TearDown
+    public void stopServer() {
+        server.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Connection {
+        private static final byte[] PING = "*1\r\n$4\r\nPING\r\n".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] GET = "*2\r\n$3\r\nGET\r\n$5\r\nkey:1\r\n".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] SET = "*3\r\n$3\r\nSET\r\n$5\r\nkey:2\r\n$5\r\nvalue\r\n"
+                .getBytes(StandardCharsets.UTF_8);
+
+        Socket socket;
+        OutputStream output;
+        BufferedReader input;
+
+        @Setup(Level.Trial)
+        public void connect(RESPServerBenchmark server) throws IOException {
+            socket = new Socket("localhost", server.port);
+            socket.setTcpNoDelay(true);
+            output = socket.getOutputStream();
+            input = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        String roundTrip(byte[] request) throws IOException {
+            output.write(request);
+            output.flush();
+            String line = input.readLine();
+            if (line.startsWith("$") && !line.equals("$-1")) {
+                return input.readLine();
+            }
+            return line;
+        }
+    }
+
+    @Benchmark
+    public String ping(Connection connection) throws IOException {
+        return connection.roundTrip(Connection.PING);
+    }
+
+    @Benchmark
+    public String get(Connection connection) throws IOException {
+        return connection.roundTrip(Connection.GET);
+    }
+
+    @Benchmark
+    public String set(Connection connection) throws IOException {
+        return connection.roundTrip(Connection.SET);
+    }
+}
@@ -0,0 +1,131 @@
+package a.cache.machine.engine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import a.cache.machine.engine.weigher.StringWeigher;
+
+/**
+ * Get, put and a 90/10 get/put mix against every engine, with uniform and
+ * Zipfian keys. The cache holds about half of the key space, so there is
+ * eviction work and the distribution decides the hit ratio.
+ * Keys and values are {@link ByteKey}s and byte arrays, as the RESP server
+ * stores them.
+ * <p>
+ * Thread count comes from JMH, e.g.
+ * {@code ./gradlew :server:jmh -Pjmh.includes=CacheEngineBenchmark -Pjmh.threads=8}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheEngineBenchmark {
+    static final int KEYS = 1 << 16;
+    private static final int SEQUENCE = 1 << 16;
+    private static final byte[] VALUE = "value-0123456789".getBytes(StandardCharsets.UTF_8);
+
+    @Param({ "lru", "segmented-lru", "lfu", "tinylfu", "offheap-lru", "compact" })
+    public String engine;
+
+    @Param({ "UNIFORM", "ZIPFIAN" })
+    public KeyDistribution distribution;
+
+    ICache<ByteKey, byte[]> cache;
+    ByteKey[] keys;
+
+    @Setup
+    public void setUp() throws CacheException {
+        keys = new ByteKey[KEYS];
+        StringWeigher weigher = new StringWeigher();
+        long weight = 0;
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = ByteKey.of("key:" + i);
+            weight += weigher.weigh(keys[i], VALUE);
+        }
+        if (engine.equals("compact")) {
+            // Charged per entry on top of the bytes, hold as many entries as the others
+            weight += (long) KEYS * CompactByteCache.ENTRY_OVERHEAD;
+        }
+        cache = create(engine, weight / 2);
+        for (ByteKey key : keys) {
+            cache.put(key, VALUE);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws CacheException {
+        cache.clear();
+    }
+
+    static ICache<ByteKey, byte[]> create(String engine, long capacity) {
+        switch (engine) {
+            case "lru":
+                return new LRUCache<>((int) capacity, new StringWeigher());
+            case "segmented-lru":
+                return new SegmentedLRUCache<>(capacity, SegmentedLRUCache.DEFAULT_SEGMENTS, new StringWeigher());
+            case "lfu":
+                return new ConcurrentLFUCache<>(capacity, ConcurrentLFUCache.DEFAULT_SEGMENTS, new StringWeigher());
+            case "tinylfu":
+                return new TinyLfuCache<>(capacity, new StringWeigher());
+            case "offheap-lru":
+                return new OffHeapLRUCache<>(capacity);
+            case "compact":
+                return new CompactByteCache(capacity);
+            default:
+                throw new IllegalArgumentException("Unknown cache engine '" + engine + "'");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Keys {
+        int[] indexes;
+        int cursor;
+
+        @Setup(Level.Trial)
+        public void setUp(CacheEngineBenchmark benchmark, ThreadParams thread) {
+            // Every thread walks its own sequence from the same distribution
+            indexes = benchmark.distribution.indexes(KEYS, SEQUENCE, 31L * thread.getThreadIndex() + 7);
+        }
+
+        ByteKey next(ByteKey[] keys) {
+            return keys[indexes[cursor++ & (SEQUENCE - 1)]];
+        }
+    }
+
+    @Benchmark
+    public Object get(Keys keys) throws CacheException {
+        return cache.get(keys.next(this.keys));
+    }
+
+    @Benchmark
+    public Object put(Keys keys) throws CacheException {
+        return cache.put(keys.next(this.keys), VALUE);
+    }
+
+    @Benchmark
+    public Object mixed(Keys keys) throws CacheException {
+        ByteKey key = keys.next(this.keys);
+        // The sequence position picks the operation, one put in ten
+        if (keys.cursor % 10 == 0) {
+            return cache.put(key, VALUE);
+        }
+        return cache.get(key);
+    }
+}
@@ -0,0 +1,49 @@
+package a.cache.machine.engine;
+
+import java.util.Random;
+
+/**
+ * Precomputed key index sequences, so benchmarks pay for an array read per
+ * operation instead of random number generation or string building.
+ */
+public enum KeyDistribution {
+    UNIFORM,
+    /** Zipf with exponent 0.99, the YCSB default: a few keys get most of the traffic. */
+    ZIPFIAN;
+
+    private static final double ZIPF_EXPONENT = 0.99;
+
+    /** {@code length} key indexes in {@code [0, keyCount)}, {@code length} must be a power of two. */
+    public int[] indexes(int keyCount, int length, long seed) {
+        Random random = new Random(seed);
+        int[] indexes = new int[length];
+        if (this == UNIFORM) {
+            for (int i = 0; i < length; i++) {
+                indexes[i] = random.nextInt(keyCount);
+            }
+            return indexes;
+        }
+        double[] cumulative = new double[keyCount];
+        double sum = 0;
+        for (int i = 0; i < keyCount; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < length; i++) {
+            double target = random.nextDouble() * sum;
+            int low = 0;
+            int high = keyCount - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (cumulative[middle] < target) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            // Scatter the hot ranks over the key space, hashes of neighbours differ anyway
+            indexes[i] = (int) ((low * 0x9E3779B1L) % keyCount);
+        }
+        return indexes;
+    }
+}
@@ -0,0 +1,84 @@
+package a.cache.machine.engine;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 95% GET / 5% SET against {@link LRUCache} and against the monitor guarded
+ * access ordered {@link LinkedHashMap} it used to be, to show what the lossy
+ * read buffers buy under concurrent reads.
+ * <p>
+ * Run with {@code ./gradlew :server:jmh -Pjmh.includes=LRUCacheReadBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class LRUCacheReadBenchmark {
+    private static final int KEYS = 1 << 14;
+    private static final int MASK = KEYS - 1;
+
+    @Param({ "read-buffers", "synchronized" })
+    public String impl;
+
+    private LRUCache<String, Object> cache;
+    private Map<String, Object> baseline;
+    private String[] keys;
+
+    @Setup
+    public void setUp() {
+        keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+        }
+        // Every key fits, the benchmark measures access order upkeep, not eviction
+        if (impl.equals("read-buffers")) {
+            cache = new LRUCache<>(KEYS * 2, (key, value) -> 1);
+            for (String key : keys) {
+                cache.put(key, "value");
+            }
+        } else {
+            baseline = Collections.synchronizedMap(new LinkedHashMap<String, Object>(KEYS * 2, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                    return size() > KEYS * 2;
+                }
+            });
+            for (String key : keys) {
+                baseline.put(key, "value");
+            }
+        }
+    }
+
+    @Benchmark
+    public Object readMostly() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String key = keys[random.nextInt() & MASK];
+        boolean write = random.nextInt(100) < 5;
+        if (cache != null) {
+            return write ? cache.put(key, "value") : cache.get(key);
+        }
+        return write ? baseline.put(key, "value") : baseline.get(key);
+    }
+}
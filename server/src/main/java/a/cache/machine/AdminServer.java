@@ -2,7 +2,9 @@ package a.cache.machine;
 
 import com.sun.net.httpserver.HttpServer;
 
+import a.cache.machine.engine.CacheMetrics;
 import a.cache.machine.engine.ICache;
+import a.cache.machine.engine.LatencyHistogram;
 
 import com.sun.net.httpserver.HttpHandler;
 import com.mitchellbosecke.pebble.PebbleEngine;
@@ -13,7 +15,10 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringWriter;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -22,10 +27,16 @@ import org.slf4j.LoggerFactory;
 public class AdminServer {
     private static final Logger logger = LoggerFactory.getLogger(AdminServer.class);
     private final int PORT;
-    private final ICache<String, Object> cache;
+    private final ICache<?, ?> cache;
+    private final ConnectionLimits limits;
 
-    public AdminServer(ICache<String, Object> cache, int port) {
+    public AdminServer(ICache<?, ?> cache, int port) {
+        this(cache, new ConnectionLimits(), port);
+    }
+
+    public AdminServer(ICache<?, ?> cache, ConnectionLimits limits, int port) {
         this.cache = cache;
+        this.limits = limits;
         this.PORT = port;
     }
 
@@ -33,7 +44,7 @@ public class AdminServer {
         HttpServer server;
         try {
             server = HttpServer.create(new InetSocketAddress(PORT), 0);
-            server.createContext("/admin", new TemplateHandler(cache));
+            server.createContext("/admin", new TemplateHandler(cache, limits));
             server.setExecutor(null);
             server.start();
             logger.info("HTTP server is running on port " + PORT);
@@ -45,12 +56,14 @@ public class AdminServer {
 
 class TemplateHandler implements HttpHandler {
     private final PebbleEngine engine;
-    private final ICache<String, Object> cache;
+    private final ICache<?, ?> cache;
+    private final ConnectionLimits limits;
     private static final Logger logger = LoggerFactory.getLogger(AdminServer.class);
 
-    public TemplateHandler(ICache<String, Object> cache) {
+    public TemplateHandler(ICache<?, ?> cache, ConnectionLimits limits) {
         this.engine = new PebbleEngine.Builder().build();
         this.cache = cache;
+        this.limits = limits;
     }
 
     @Override
@@ -60,9 +73,30 @@ class TemplateHandler implements HttpHandler {
 
         Map<String, Object> context = new HashMap<>();
         context.put("message", "Cache metrics");
-        context.put("hits", cache.getMetrics().getHits());
-        context.put("misses", cache.getMetrics().getMisses());
-        context.put("evictions", cache.getMetrics().getEvictions());
+        CacheMetrics metrics = cache.getMetrics();
+        context.put("hits", metrics.getHits());
+        context.put("misses", metrics.getMisses());
+        context.put("evictions", metrics.getEvictions());
+        context.put("evictedBytes", metrics.getEvictedBytes());
+        context.put("expirations", metrics.getExpirations());
+        context.put("puts", metrics.getPuts());
+        context.put("removes", metrics.getRemoves());
+        context.put("loadTimeMillis", metrics.getLoadTimeNanos() / 1_000_000);
+        context.put("snapshots", metrics.getSnapshots());
+        context.put("lastSnapshotMillis", metrics.getLastSnapshotNanos() / 1_000_000);
+        context.put("lastSnapshotStallMicros", metrics.getLastSnapshotStallNanos() / 1000);
+        context.put("spills", metrics.getSpills());
+        context.put("promotions", metrics.getPromotions());
+        Map<String, List<String>> latencies = new LinkedHashMap<>();
+        latencies.put("GET", latencies(metrics.getGetLatency()));
+        latencies.put("PUT", latencies(metrics.getPutLatency()));
+        latencies.put("REMOVE", latencies(metrics.getRemoveLatency()));
+        context.put("latencies", latencies);
+        context.put("clients", limits.getConnectedClients());
+        context.put("maxClients", limits.maxClients());
+        context.put("connectionBufferBytes", limits.getBufferBytes());
+        context.put("rejectedClients", limits.getRejectedClients());
+        context.put("limitDisconnects", limits.getLimitDisconnects());
 
         StringWriter writer = new StringWriter();
         compiledTemplate.evaluate(writer, context);
@@ -73,4 +107,13 @@ class TemplateHandler implements HttpHandler {
         os.write(response.getBytes());
         os.close();
     }
+
+    // p50, p99 and p99.9 in microseconds
+    private static List<String> latencies(LatencyHistogram histogram) {
+        List<String> result = new ArrayList<>();
+        for (long nanos : histogram.percentiles(50, 99, 99.9)) {
+            result.add(String.format("%.1f", nanos / 1000.0));
+        }
+        return result;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,598 @@
+package a.cache.machine;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import a.cache.machine.engine.ByteKey;
+import a.cache.machine.engine.CacheException;
+import a.cache.machine.engine.ICache;
+
+/**
+ * Append-only log of the commands that changed the cache, replayed at
+ * startup so a restart or a crash does not leave the cache cold.
+ * <p>
+ * A write command is applied and encoded into a pending buffer while it
+ * holds the log's lock, so commands are logged in the order they were
+ * applied. A dedicated writer thread swaps the buffer out and writes
+ * everything that piled up meanwhile with a single write, and with
+ * {@link Fsync#ALWAYS} a single fsync: one group commit for all commands of
+ * all connections that arrived during the previous one. Threads that must
+ * not block, like the event loops of {@link NioRESPServer}, hold their
+ * replies back instead of waiting in {@link #awaitSync(long)}: they check
+ * {@link #isSynced(long)} and are called back after each group commit.
+ * Relative
+ * expirations are logged as absolute deadlines and MSETNX as the MSET it
+ * turned into, so every logged command sets a state and replaying it again
+ * on a later state does no harm.
+ * <p>
+ * Once the file has grown past {@code rewriteMinSize} and to twice its size
+ * after the last rewrite, it is rewritten in the background: a thread
+ * writes one SET per cached entry to a temporary file while commands keep
+ * going to the old file and are also collected on the side. The writer
+ * thread then appends what was collected and renames the new file over the
+ * old one.
+ */
+public class AppendOnlyLog implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(AppendOnlyLog.class);
+
+    public static final long DEFAULT_REWRITE_MIN_SIZE = 64L * 1024 * 1024;
+    private static final long SYNC_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int BUFFER_SIZE = RespWriter.HIGH_WATER_MARK;
+    private static final byte[][] NO_ARGUMENTS = new byte[0][];
+    private static final byte[] SET = "SET".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PXAT = "PXAT".getBytes(StandardCharsets.US_ASCII);
+
+    /** When the log is forced to disk. */
+    public enum Fsync {
+        /** After every group commit, before the commands in it are answered. */
+        ALWAYS,
+        /** At most once a second, a crash loses up to a second of writes. */
+        EVERYSEC,
+        /** Never, the operating system decides when the file reaches the disk. */
+        NO;
+
+        public static Fsync parse(String name) {
+            switch (name) {
+                case "always":
+                    return ALWAYS;
+                case "everysec":
+                    return EVERYSEC;
+                case "no":
+                    return NO;
+                default:
+                    throw new IllegalArgumentException("Unknown fsync policy '" + name + "'");
+            }
+        }
+    }
+
+    private final Path path;
+    private final Fsync fsync;
+    private final long rewriteMinSize;
+    private final ReentrantLock lock;
+    // Something for the writer thread to do: commands, a finished rewrite or a stop
+    private final Condition work;
+    private final Condition synced;
+    private final List<Runnable> syncListeners;
+    // Guarded by lock
+    private RespWriter pending;
+    // Commands logged while a rewrite is running, null otherwise
+    private RespWriter rewriteBuffer;
+    private Path rewritten;
+    private long appendedBytes;
+    // Written under lock, also read without it by isSynced
+    private volatile long syncedBytes;
+    private volatile IOException failure;
+    private boolean running;
+    // Size the log has to double from before the next rewrite
+    private long rewriteBaseSize;
+    // Owned by the writer thread
+    private RespWriter writing;
+    private FileChannel channel;
+    private volatile long size;
+    private volatile long rewrites;
+    private volatile long failedRewrites;
+    private ICache<ByteKey, byte[]> cache;
+    private Thread writer;
+
+    public AppendOnlyLog(Path path, Fsync fsync) {
+        this(path, fsync, DEFAULT_REWRITE_MIN_SIZE);
+    }
+
+    public AppendOnlyLog(Path path, Fsync fsync, long rewriteMinSize) {
+        this.path = path;
+        this.fsync = fsync;
+        this.rewriteMinSize = rewriteMinSize;
+        this.lock = new ReentrantLock();
+        this.work = lock.newCondition();
+        this.synced = lock.newCondition();
+        this.syncListeners = new CopyOnWriteArrayList<>();
+        this.pending = new RespWriter(BUFFER_SIZE);
+        this.writing = new RespWriter(BUFFER_SIZE);
+    }
+
+    /**
+     * Applies the logged commands to the cache, to be called before
+     * {@link #start(ICache)}. A command cut off by a crash at the end of the
+     * file is dropped and the file truncated after the last complete one.
+     *
+     * @return the number of commands replayed
+     * @throws IOException if the file cannot be read or is not a valid log
+     */
+    public long replay(ICache<ByteKey, byte[]> cache) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        // Not logged again while they are replayed
+        CommandProcessor processor = new CommandProcessor(cache);
+        RespParser parser = new RespParser();
+        RespWriter replies = new RespWriter(BUFFER_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long commands = 0;
+        long errors = 0;
+        long complete = 0;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            while (true) {
+                int read = file.read(buffer);
+                buffer.flip();
+                int from = buffer.position();
+                RespCommand command;
+                try {
+                    while ((command = parser.parse(buffer)) != null) {
+                        processor.process(command, replies);
+                        if (replies.buffer().get(0) == '-') {
+                            errors++;
+                        }
+                        replies.buffer().clear();
+                        commands++;
+                    }
+                } catch (ProtocolException e) {
+                    throw new IOException("Append-only log " + path + " is corrupt after offset " + complete, e);
+                }
+                complete += buffer.position() - from;
+                buffer.compact();
+                if (read < 0) {
+                    break;
+                }
+                if (!buffer.hasRemaining()) {
+                    // A command larger than the buffer, make room for the rest of it
+                    ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    buffer = grown.put(buffer);
+                }
+            }
+            if (buffer.position() > 0) {
+                logger.warn("Append-only log " + path + " ends with an incomplete command, truncating "
+                        + buffer.position() + " bytes");
+                file.truncate(complete);
+            }
+        }
+        if (errors > 0) {
+            logger.warn(errors + " commands of the append-only log failed during replay");
+        }
+        logger.info("Replayed " + commands + " commands from " + path + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return commands;
+    }
+
+    /** Opens the log for appending and starts the writer thread, the cache is what a rewrite snapshots. */
+    public void start(ICache<ByteKey, byte[]> cache) throws IOException {
+        this.cache = cache;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.size = channel.size();
+        lock.lock();
+        try {
+            rewriteBaseSize = size;
+            running = true;
+        } finally {
+            lock.unlock();
+        }
+        writer = new Thread(this::writeLoop, "aof-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Taken around a write command and its logging, so the log has commands
+     * in the order they were applied.
+     *
+     * @throws CacheException if the log failed or is closed, the command must not be applied then
+     */
+    void lock() throws CacheException {
+        lock.lock();
+        if (failure != null) {
+            lock.unlock();
+            throw new CacheException("Append-only log is not writable: " + failure.getLocalizedMessage(), failure);
+        }
+        if (!running) {
+            lock.unlock();
+            throw new CacheException("Append-only log is closed");
+        }
+    }
+
+    /** @return the bytes logged so far, to pass to {@link #awaitSync(long)} */
+    long unlock() {
+        long appended = appendedBytes;
+        lock.unlock();
+        return appended;
+    }
+
+    /** Logs a command as it was received, called between {@link #lock()} and {@link #unlock()}. */
+    void append(RespCommand args) {
+        append(null, args, args.size(), NO_ARGUMENTS);
+    }
+
+    /**
+     * Logs the first {@code count} arguments of a command, under another
+     * name unless {@code name} is null, followed by {@code extra} arguments.
+     */
+    void append(byte[] name, RespCommand args, int count, byte[]... extra) {
+        int start = pending.pending();
+        pending.arrayHeader(count + extra.length);
+        if (name != null) {
+            pending.bulk(name);
+        } else {
+            pending.bulk(args, 0);
+        }
+        for (int i = 1; i < count; i++) {
+            pending.bulk(args, i);
+        }
+        for (byte[] argument : extra) {
+            pending.bulk(argument);
+        }
+        int length = pending.pending() - start;
+        if (rewriteBuffer != null) {
+            rewriteBuffer.raw(pending.buffer().array(), start, length);
+        }
+        appendedBytes += length;
+        work.signal();
+    }
+
+    /** With {@link Fsync#ALWAYS}, waits until the log is on disk up to {@code position}. */
+    void awaitSync(long position) throws CacheException {
+        if (fsync != Fsync.ALWAYS) {
+            return;
+        }
+        lock.lock();
+        try {
+            // The writer's last batch after a close covers everything logged before it
+            while (syncedBytes < position && failure == null) {
+                synced.awaitUninterruptibly();
+            }
+            if (syncedBytes < position) {
+                throw new CacheException("Append-only log could not be synced");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Like {@link #awaitSync(long)} without waiting, for threads that hold
+     * the reply back instead.
+     *
+     * @return whether the log is on disk up to {@code position}
+     * @throws CacheException if the log failed before it got there
+     */
+    boolean isSynced(long position) throws CacheException {
+        if (fsync != Fsync.ALWAYS || syncedBytes >= position) {
+            return true;
+        }
+        if (failure != null) {
+            throw new CacheException("Append-only log could not be synced");
+        }
+        return false;
+    }
+
+    /**
+     * Runs {@code listener} on the writer thread whenever the log was
+     * synced further or failed. It must not block, the next group commit
+     * waits for it.
+     */
+    void addSyncListener(Runnable listener) {
+        syncListeners.add(listener);
+    }
+
+    void removeSyncListener(Runnable listener) {
+        syncListeners.remove(listener);
+    }
+
+    // Called by the writer thread after syncedBytes or failure changed
+    private void notifySynced() {
+        for (Runnable listener : syncListeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Starts a background rewrite unless one is running already.
+     *
+     * @return false if a rewrite is running or the log is not started
+     */
+    public boolean rewrite() {
+        lock.lock();
+        try {
+            if (rewriteBuffer != null || !running) {
+                return false;
+            }
+            beginRewrite();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        long lastSync = System.nanoTime();
+        boolean unsynced = false;
+        try {
+            while (true) {
+                long target;
+                boolean stop;
+                lock.lock();
+                try {
+                    awaitWork(unsynced, lastSync);
+                    if (rewritten != null) {
+                        replaceWithRewritten();
+                        unsynced = false;
+                        lastSync = System.nanoTime();
+                        notifySynced();
+                        continue;
+                    }
+                    RespWriter batch = pending;
+                    pending = writing;
+                    writing = batch;
+                    target = appendedBytes;
+                    stop = !running;
+                } finally {
+                    lock.unlock();
+                }
+
+                if (writing.pending() > 0) {
+                    size += write(writing, channel);
+                    unsynced = true;
+                }
+                writing.shrink();
+                if (unsynced && (stop || fsync == Fsync.ALWAYS
+                        || fsync == Fsync.EVERYSEC && System.nanoTime() - lastSync >= SYNC_INTERVAL_NANOS)) {
+                    channel.force(false);
+                    unsynced = false;
+                    lastSync = System.nanoTime();
+                }
+
+                lock.lock();
+                try {
+                    syncedBytes = target;
+                    synced.signalAll();
+                    if (rewriteBuffer == null && size >= rewriteMinSize && size >= 2 * rewriteBaseSize && !stop) {
+                        beginRewrite();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                notifySynced();
+                if (stop) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to write the append-only log " + path, e);
+            lock.lock();
+            try {
+                failure = e;
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            notifySynced();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close the append-only log: " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    // Waits with the lock held for commands, a finished rewrite, a stop or the once a second sync
+    private void awaitWork(boolean unsynced, long lastSync) throws InterruptedException {
+        while (running && pending.pending() == 0 && rewritten == null) {
+            if (unsynced && fsync == Fsync.EVERYSEC) {
+                long wait = SYNC_INTERVAL_NANOS - (System.nanoTime() - lastSync);
+                if (wait <= 0) {
+                    return;
+                }
+                work.awaitNanos(wait);
+            } else {
+                work.await();
+            }
+        }
+    }
+
+    private void beginRewrite() {
+        rewriteBuffer = new RespWriter(BUFFER_SIZE);
+        Thread thread = new Thread(this::writeSnapshot, "aof-rewrite");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Runs on the rewrite thread, commands logged meanwhile are collected in rewriteBuffer
+    private void writeSnapshot() {
+        long start = System.nanoTime();
+        Path temp = path.resolveSibling(path.getFileName() + ".rewrite");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            RespWriter records = new RespWriter(BUFFER_SIZE);
+            cache.forEach((key, value) -> {
+                try {
+                    long ttl = cache.ttl(key);
+                    if (ttl == ICache.NO_KEY) {
+                        return;
+                    }
+                    records.arrayHeader(ttl == ICache.NO_EXPIRY ? 3 : 5);
+                    records.bulk(SET);
+                    records.bulk(key.toByteArray());
+                    records.bulk(value);
+                    if (ttl != ICache.NO_EXPIRY) {
+                        records.bulk(PXAT);
+                        records.bulk(Long.toString(System.currentTimeMillis() + ttl));
+                    }
+                    if (records.pending() >= BUFFER_SIZE) {
+                        write(records, out);
+                    }
+                } catch (IOException | CacheException e) {
+                    throw new SnapshotFailure(e);
+                }
+            });
+            write(records, out);
+            // Most of what was logged meanwhile is copied here, the rest by the writer thread
+            RespWriter collected;
+            lock.lock();
+            try {
+                collected = rewriteBuffer;
+                rewriteBuffer = new RespWriter(BUFFER_SIZE);
+            } finally {
+                lock.unlock();
+            }
+            write(collected, out);
+            out.force(true);
+        } catch (IOException | CacheException | SnapshotFailure e) {
+            logger.error("Failed to rewrite the append-only log " + path, e);
+            abandonRewrite(temp);
+            return;
+        }
+        logger.info("Append-only log snapshot written in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        lock.lock();
+        try {
+            rewritten = temp;
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called by the writer thread with the lock held and no batch in flight
+    private void replaceWithRewritten() throws IOException {
+        try (FileChannel out = FileChannel.open(rewritten, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            write(rewriteBuffer, out);
+            out.force(true);
+            Files.move(rewritten, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // The old file is still complete, keep appending to it
+            logger.error("Failed to replace the append-only log " + path, e);
+            abandonRewrite(rewritten);
+            return;
+        }
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = channel.size();
+        rewriteBaseSize = size;
+        // Whatever was still pending went into the new file as well
+        pending.buffer().clear();
+        syncedBytes = appendedBytes;
+        synced.signalAll();
+        rewriteBuffer = null;
+        rewritten = null;
+        rewrites++;
+        logger.info("Append-only log rewritten, " + size + " bytes");
+    }
+
+    private void abandonRewrite(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            logger.debug("Failed to delete " + temp + ": " + e.getLocalizedMessage());
+        }
+        lock.lock();
+        try {
+            rewriteBuffer = null;
+            rewritten = null;
+            // Retried once the log doubles again, not after the next batch
+            rewriteBaseSize = size;
+            failedRewrites++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long write(RespWriter records, FileChannel out) throws IOException {
+        ByteBuffer buffer = records.buffer();
+        buffer.flip();
+        long written = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+        return written;
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public Fsync fsync() {
+        return fsync;
+    }
+
+    /** Size of the log file in bytes, as far as the writer thread wrote it. */
+    public long size() {
+        return size;
+    }
+
+    /** Number of rewrites completed since the log was started. */
+    public long rewrites() {
+        return rewrites;
+    }
+
+    /** Number of rewrites that failed, the log keeps growing until one succeeds. */
+    public long failedRewrites() {
+        return failedRewrites;
+    }
+
+    /** Writes and syncs what is pending and stops the writer thread. */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            running = false;
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Carries a checked exception out of the snapshot's forEach action
+    private static final class SnapshotFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SnapshotFailure(Exception cause) {
+            super(cause);
+        }
+    }
+}
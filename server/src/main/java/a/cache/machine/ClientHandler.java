@@ -1,67 +1,105 @@
 package a.cache.machine;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.net.ProtocolException;
 import java.net.Socket;
-
-import a.cache.machine.engine.CacheException;
-import a.cache.machine.engine.ICache;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-class ClientHandler extends Thread {
+/**
+ * Serves one connection of the blocking {@link RESPServer}. Reads whatever
+ * the socket has into a reusable buffer, runs every complete command in it
+ * and sends the replies together, so a pipelined batch costs one write
+ * instead of one per command. Replies are sent early once they reach
+ * {@link RespWriter#HIGH_WATER_MARK}. Buffers are capped and accounted by
+ * the server's {@link ConnectionLimits}, which already admitted the client.
+ */
+class ClientHandler implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(ClientHandler.class);
+    static final int INITIAL_BUFFER_SIZE = 16 * 1024;
     private Socket socket;
-    private ICache<String, Object> dataStore; // In-memory data store
-
-    public ClientHandler(Socket socket, ICache<String, Object> cache) {
+    private final CommandProcessor processor;
+    private final RespParser parser;
+    private final RespWriter writer;
+    private final ConnectionLimits limits;
+    // Kept in write mode (filling) between reads
+    private ByteBuffer buffer;
+    // Buffer bytes this connection added to the limits' accounting
+    private long accounted;
+
+    public ClientHandler(Socket socket, CommandProcessor processor, ConnectionLimits limits) {
         this.socket = socket;
-        this.dataStore = cache;
+        this.processor = processor;
+        this.parser = new RespParser();
+        this.limits = limits;
+        this.writer = new RespWriter(INITIAL_BUFFER_SIZE, limits.maxOutputBuffer());
+        this.buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.accounted = limits.account(0, buffer.capacity() + writer.capacity());
     }
 
+    @Override
     public void run() {
         try (InputStream input = socket.getInputStream();
              OutputStream output = socket.getOutputStream()) {
 
-            BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(output));
-
             while (true) {
-                String respLine = reader.readLine();
-                if (respLine == null) {
+                int read = input.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if (read < 0) {
                     logger.info("Client disconnected");
                     break;
                 }
+                buffer.position(buffer.position() + read);
 
-                logger.debug("Received: " + respLine);
-
-                // Parse the RESP command
-                if (respLine.startsWith("*")) {
-                    int numArgs = Integer.parseInt(respLine.substring(1));
-                    String[] args = new String[numArgs];
-                    for (int i = 0; i < numArgs; i++) {
-                        String argLengthLine = reader.readLine(); // Read the length of the argument
-                        String arg = reader.readLine(); // Read the argument itself
-                        args[i] = arg;
+                // Process every complete command
+                buffer.flip();
+                try {
+                    processAll(output);
+                } catch (ProtocolException ex) {
+                    writer.error("ERR Protocol error: " + ex.getMessage());
+                    writer.writeTo(output);
+                    break;
+                } catch (BufferOverflowException ex) {
+                    logger.warn("Closing client, a reply exceeded the output buffer limit of "
+                            + limits.maxOutputBuffer() + " bytes");
+                    limits.limitExceeded();
+                    break;
+                }
+                buffer.compact();
+                if (!buffer.hasRemaining()) {
+                    if (buffer.capacity() >= limits.maxInputBuffer()) {
+                        logger.warn("Closing client, a command exceeded the input buffer limit of "
+                                + limits.maxInputBuffer() + " bytes");
+                        limits.limitExceeded();
+                        writer.error("ERR Protocol error: query buffer limit of " + limits.maxInputBuffer()
+                                + " bytes exceeded");
+                        writer.writeTo(output);
+                        break;
                     }
+                    // A single command larger than the buffer, make room for the rest of it
+                    ByteBuffer grown = ByteBuffer.allocate((int) Math.min(limits.maxInputBuffer(), buffer.capacity() * 2L));
+                    buffer.flip();
+                    buffer = grown.put(buffer);
+                } else if (buffer.position() == 0 && buffer.capacity() > INITIAL_BUFFER_SIZE) {
+                    // The large command is done, give its buffer back
+                    buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+                }
 
-                    // Process the command
-                    String response = processCommand(args);
-
-                    // Send RESP response
-                    writer.write(response);
-                    writer.flush();
+                // Send RESP responses, unless more of the pipeline is already waiting
+                if (input.available() == 0) {
+                    writer.writeTo(output);
+                    writer.shrink();
                 }
+                accounted = limits.account(accounted, buffer.capacity() + writer.capacity());
             }
         } catch (IOException ex) {
             logger.error(ex.getLocalizedMessage());
         } finally {
+            limits.release(accounted);
             try {
                 socket.close();
             } catch (IOException ex) {
@@ -70,61 +108,13 @@ class ClientHandler extends Thread {
         }
     }
 
-    private String processCommand(String[] args) {
-        if (args.length == 0) {
-            return "-ERR No command provided\r\n";
-        }
-
-        String command = args[0].toUpperCase();
-
-        switch (command) {
-            case "PING":
-                return "+PONG\r\n";
-
-            case "SET":
-                if (args.length < 3) {
-                    return "-ERR Wrong number of arguments for 'SET'\r\n";
-                }
-                try {
-                    dataStore.put(args[1], args[2]);
-                } catch (CacheException e) {
-                    return "-ERR " + e.getLocalizedMessage() + "\r\n";
-                }
-                return "+OK\r\n";
-
-            case "GET":
-                if (args.length < 2) {
-                    return "-ERR Wrong number of arguments for 'GET'\r\n";
-                }
-                Object value;
-                try {
-                    value = dataStore.get(args[1]);
-                } catch (CacheException e) {
-                    return "-ERR " + e.getLocalizedMessage() + "\r\n";
-                }
-                if (value == null) {
-                    return "$-1\r\n"; // Null bulk string
-                }
-                return "$" + ((String) value).length() + "\r\n" + value + "\r\n";
-
-            case "DEL":
-                if (args.length < 2) {
-                    return "-ERR Wrong number of arguments for 'DEL'\r\n";
-                }
-                int deletedKeys = 0;
-                for (int i = 1; i < args.length; i++) {
-                    try {
-                        if (dataStore.remove(args[i]) != null) {
-                            deletedKeys++;
-                        }
-                    } catch (CacheException e) {
-                        return "-ERR " + e.getLocalizedMessage() + "\r\n";
-                    }
-                }
-                return ":" + deletedKeys + "\r\n"; // Integer response
-
-            default:
-                return "-ERR Unknown command '" + command + "'\r\n";
+    private void processAll(OutputStream output) throws IOException {
+        RespCommand command;
+        while ((command = parser.parse(buffer)) != null) {
+            processor.process(command, writer);
+            if (writer.pending() >= RespWriter.HIGH_WATER_MARK) {
+                writer.writeTo(output);
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,424 @@
+package a.cache.machine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import a.cache.machine.engine.ByteKey;
+import a.cache.machine.engine.CacheException;
+import a.cache.machine.engine.ICache;
+import a.cache.machine.engine.SliceLookup;
+
+/**
+ * Executes parsed RESP commands against the cache and encodes the reply.
+ * Shared by every transport, holds no per-connection state.
+ * <p>
+ * Command names are matched on the raw bytes. Keys are copied into
+ * {@link ByteKey}s, SET stores the value as the {@code byte[]} it arrived as
+ * and GET writes stored bytes back unchanged, so nothing is ever decoded.
+ * If the cache supports {@link SliceLookup}, GET looks the key up in the
+ * input buffer and a hit allocates nothing at all. The multi-key
+ * commands go through the cache's bulk operations, which take its lock once
+ * per batch.
+ * <p>
+ * With an {@link AppendOnlyLog}, write commands are applied and logged
+ * under the log's lock, which serializes writes but not reads.
+ * {@link #process} then waits for the log to be synced as its fsync policy
+ * requires; {@link #processDeferred} leaves that to transports that must not
+ * block, which hold the reply back until {@link #isSynced(long)}. With a
+ * {@link SnapshotSaver}, SAVE and BGSAVE write snapshots of the cache.
+ */
+class CommandProcessor {
+    private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PONG = "+PONG\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BACKGROUND_SAVING = "+Background saving started\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    // SET options, matched like command names
+    private static final byte[] EX = { 'E', 'X' };
+    private static final byte[] PX = { 'P', 'X' };
+    private static final byte[] PXAT = { 'P', 'X', 'A', 'T' };
+    // Names commands are logged under when they differ from the received ones
+    private static final byte[] MSET = { 'M', 'S', 'E', 'T' };
+    private static final byte[] PEXPIREAT = { 'P', 'E', 'X', 'P', 'I', 'R', 'E', 'A', 'T' };
+
+    private final ICache<ByteKey, byte[]> dataStore; // In-memory data store
+    private final SliceLookup<byte[]> slices; // Null if the cache cannot look up slices
+    private final AppendOnlyLog log; // Null if writes are not logged
+    private final SnapshotSaver saver; // Null if snapshots are disabled
+
+    private enum Command {
+        PING(false), SET(true), GET(false), MGET(false), MSET(true), MSETNX(true), DEL(true), EXPIRE(true),
+        PEXPIRE(true), PEXPIREAT(true), TTL(false), PTTL(false), PERSIST(true), DBSIZE(false), FLUSHALL(true),
+        SAVE(false), BGSAVE(false), LASTSAVE(false);
+
+        private static final Command[] ALL = values();
+        private final byte[] name = name().getBytes(StandardCharsets.US_ASCII);
+        private final boolean write;
+
+        Command(boolean write) {
+            this.write = write;
+        }
+
+        static Command of(RespCommand command) {
+            for (Command candidate : ALL) {
+                if (command.equalsIgnoreCase(0, candidate.name)) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+    }
+
+    CommandProcessor(ICache<ByteKey, byte[]> cache) {
+        this(cache, null);
+    }
+
+    CommandProcessor(ICache<ByteKey, byte[]> cache, AppendOnlyLog log) {
+        this(cache, log, null);
+    }
+
+    CommandProcessor(ICache<ByteKey, byte[]> cache, AppendOnlyLog log, SnapshotSaver saver) {
+        this.dataStore = cache;
+        this.slices = cache instanceof SliceLookup ? slices(cache) : null;
+        this.log = log;
+        this.saver = saver;
+    }
+
+    /** Runs a command, blocking until the log has it on disk if its fsync policy says so. */
+    void process(RespCommand args, RespWriter reply) {
+        long position = processDeferred(args, reply);
+        if (position > 0) {
+            try {
+                log.awaitSync(position);
+            } catch (CacheException e) {
+                reply.error("ERR " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs a command without waiting for the log. The reply may only be
+     * sent once {@link #isSynced(long)} holds for the returned position.
+     *
+     * @return the log position the reply waits for, 0 if none
+     */
+    long processDeferred(RespCommand args, RespWriter reply) {
+        if (args.size() == 0) {
+            reply.error("ERR No command provided");
+            return 0;
+        }
+
+        Command command = Command.of(args);
+        if (command == null) {
+            reply.error("ERR Unknown command '" + args.string(0).toUpperCase() + "'");
+            return 0;
+        }
+
+        try {
+            if (log != null && command.write) {
+                return executeLogged(command, args, reply);
+            }
+            execute(command, args, reply);
+        } catch (CacheException e) {
+            reply.error("ERR " + e.getLocalizedMessage());
+        }
+        return 0;
+    }
+
+    /**
+     * @return whether replies waiting for {@code position} may be sent
+     * @throws CacheException if the log failed before it was synced that far
+     */
+    boolean isSynced(long position) throws CacheException {
+        return log == null || log.isSynced(position);
+    }
+
+    /** Called after each sync of the log, if there is one. */
+    void addSyncListener(Runnable listener) {
+        if (log != null) {
+            log.addSyncListener(listener);
+        }
+    }
+
+    void removeSyncListener(Runnable listener) {
+        if (log != null) {
+            log.removeSyncListener(listener);
+        }
+    }
+
+    // Returns the log position after the command
+    private long executeLogged(Command command, RespCommand args, RespWriter reply) throws CacheException {
+        long position;
+        log.lock();
+        try {
+            execute(command, args, reply);
+        } finally {
+            position = log.unlock();
+        }
+        return position;
+    }
+
+    private void execute(Command command, RespCommand args, RespWriter reply) throws CacheException {
+        switch (command) {
+            case PING:
+                reply.raw(PONG);
+                return;
+
+            case SET:
+                if (args.size() < 3) {
+                    reply.error("ERR Wrong number of arguments for 'SET'");
+                    return;
+                }
+                long ttlMillis = ICache.NO_EXPIRY;
+                if (args.size() == 5) {
+                    boolean seconds = args.equalsIgnoreCase(3, EX);
+                    boolean deadline = args.equalsIgnoreCase(3, PXAT);
+                    if (!seconds && !deadline && !args.equalsIgnoreCase(3, PX)) {
+                        reply.error("ERR syntax error");
+                        return;
+                    }
+                    try {
+                        ttlMillis = args.parseLong(4);
+                    } catch (NumberFormatException e) {
+                        reply.error("ERR value is not an integer or out of range");
+                        return;
+                    }
+                    if (ttlMillis <= 0) {
+                        reply.error("ERR invalid expire time in 'set' command");
+                        return;
+                    }
+                    try {
+                        ttlMillis = toTtlMillis(ttlMillis, seconds, deadline);
+                    } catch (ArithmeticException e) {
+                        reply.error("ERR invalid expire time in 'set' command");
+                        return;
+                    }
+                } else if (args.size() != 3) {
+                    reply.error("ERR syntax error");
+                    return;
+                }
+                if (args.size() == 3) {
+                    dataStore.put(args.key(1), args.bytes(2));
+                    if (log != null) {
+                        log.append(args);
+                    }
+                } else {
+                    if (ttlMillis > 0) {
+                        dataStore.put(args.key(1), args.bytes(2), ttlMillis);
+                    } else {
+                        // A deadline that has passed already, set and expired at once
+                        dataStore.remove(args.key(1));
+                    }
+                    if (log != null) {
+                        log.append(null, args, 3, PXAT, deadline(ttlMillis));
+                    }
+                }
+                reply.raw(OK);
+                return;
+
+            case GET:
+                if (args.size() < 2) {
+                    reply.error("ERR Wrong number of arguments for 'GET'");
+                    return;
+                }
+                byte[] array = args.array();
+                if (slices != null && array != null) {
+                    writeValue(slices.get(array, args.offset(1), args.length(1)), reply);
+                } else {
+                    writeValue(dataStore.get(args.key(1)), reply);
+                }
+                return;
+
+            case MGET:
+                if (args.size() < 2) {
+                    reply.error("ERR Wrong number of arguments for 'MGET'");
+                    return;
+                }
+                List<ByteKey> keys = new ArrayList<>(args.size() - 1);
+                for (int i = 1; i < args.size(); i++) {
+                    keys.add(args.key(i));
+                }
+                Map<ByteKey, byte[]> found = dataStore.getAll(keys);
+                reply.arrayHeader(keys.size());
+                for (ByteKey key : keys) {
+                    writeValue(found.get(key), reply);
+                }
+                return;
+
+            case MSET:
+            case MSETNX:
+                if (args.size() < 3 || args.size() % 2 == 0) {
+                    reply.error("ERR Wrong number of arguments for '" + command + "'");
+                    return;
+                }
+                // A key given twice keeps its last value
+                Map<ByteKey, byte[]> entries = new LinkedHashMap<>();
+                for (int i = 1; i < args.size(); i += 2) {
+                    entries.put(args.key(i), args.bytes(i + 1));
+                }
+                if (command == Command.MSET) {
+                    dataStore.putAll(entries);
+                    reply.raw(OK);
+                } else if (dataStore.putAllIfAbsent(entries)) {
+                    reply.integer(1);
+                } else {
+                    reply.integer(0);
+                    return;
+                }
+                if (log != null) {
+                    log.append(MSET, args, args.size());
+                }
+                return;
+
+            case DEL:
+                if (args.size() < 2) {
+                    reply.error("ERR Wrong number of arguments for 'DEL'");
+                    return;
+                }
+                int deletedKeys = 0;
+                for (int i = 1; i < args.size(); i++) {
+                    if (dataStore.remove(args.key(i)) != null) {
+                        deletedKeys++;
+                    }
+                }
+                if (deletedKeys > 0 && log != null) {
+                    log.append(args);
+                }
+                reply.integer(deletedKeys); // Integer response
+                return;
+
+            case EXPIRE:
+            case PEXPIRE:
+            case PEXPIREAT:
+                if (args.size() != 3) {
+                    reply.error("ERR Wrong number of arguments for '" + command + "'");
+                    return;
+                }
+                long ttl;
+                try {
+                    ttl = args.parseLong(2);
+                } catch (NumberFormatException e) {
+                    reply.error("ERR value is not an integer or out of range");
+                    return;
+                }
+                try {
+                    ttl = toTtlMillis(ttl, command == Command.EXPIRE, command == Command.PEXPIREAT);
+                } catch (ArithmeticException e) {
+                    reply.error("ERR invalid expire time in '" + command.name().toLowerCase() + "' command");
+                    return;
+                }
+                boolean updated = dataStore.expire(args.key(1), ttl);
+                if (updated && log != null) {
+                    log.append(PEXPIREAT, args, 2, deadline(ttl));
+                }
+                reply.integer(updated ? 1 : 0);
+                return;
+
+            case TTL:
+            case PTTL:
+                if (args.size() != 2) {
+                    reply.error("ERR Wrong number of arguments for '" + command + "'");
+                    return;
+                }
+                long remaining = dataStore.ttl(args.key(1));
+                if (remaining >= 0 && command == Command.TTL) {
+                    // Round to the nearest second like Redis does
+                    remaining = (remaining + 500) / 1000;
+                }
+                reply.integer(remaining);
+                return;
+
+            case PERSIST:
+                if (args.size() != 2) {
+                    reply.error("ERR Wrong number of arguments for 'PERSIST'");
+                    return;
+                }
+                boolean persisted = dataStore.persist(args.key(1));
+                if (persisted && log != null) {
+                    log.append(args);
+                }
+                reply.integer(persisted ? 1 : 0);
+                return;
+
+            case DBSIZE:
+                if (args.size() != 1) {
+                    reply.error("ERR Wrong number of arguments for 'DBSIZE'");
+                    return;
+                }
+                reply.integer(dataStore.size());
+                return;
+
+            case FLUSHALL:
+                if (args.size() != 1) {
+                    reply.error("ERR Wrong number of arguments for 'FLUSHALL'");
+                    return;
+                }
+                dataStore.clear();
+                if (log != null) {
+                    log.append(args);
+                }
+                reply.raw(OK);
+                return;
+
+            case SAVE:
+            case BGSAVE:
+            case LASTSAVE:
+                if (args.size() != 1) {
+                    reply.error("ERR Wrong number of arguments for '" + command + "'");
+                    return;
+                }
+                if (saver == null) {
+                    reply.error("ERR Snapshots are disabled");
+                    return;
+                }
+                if (command == Command.SAVE) {
+                    saver.save();
+                    reply.raw(OK);
+                } else if (command == Command.BGSAVE) {
+                    if (saver.backgroundSave()) {
+                        reply.raw(BACKGROUND_SAVING);
+                    } else {
+                        reply.error("ERR Background save already in progress");
+                    }
+                } else {
+                    reply.integer(saver.lastSaveMillis() / 1000);
+                }
+                return;
+        }
+    }
+
+    // Milliseconds from now, throws ArithmeticException if the time to live or
+    // the deadline it is logged as does not fit a long
+    private static long toTtlMillis(long time, boolean seconds, boolean deadline) {
+        long now = System.currentTimeMillis();
+        long ttlMillis = time;
+        if (seconds) {
+            ttlMillis = Math.multiplyExact(time, 1000);
+        } else if (deadline) {
+            ttlMillis = Math.subtractExact(time, now);
+        }
+        Math.addExact(now, ttlMillis);
+        return ttlMillis;
+    }
+
+    // Relative times to live are logged as absolute deadlines, so a replay expires keys when they would have
+    private static byte[] deadline(long ttlMillis) {
+        return Long.toString(System.currentTimeMillis() + ttlMillis).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SliceLookup<byte[]> slices(ICache<ByteKey, byte[]> cache) {
+        // Values are byte[] on both sides, the cache's value type is the lookup's
+        return (SliceLookup<byte[]>) cache;
+    }
+
+    private static void writeValue(byte[] value, RespWriter reply) {
+        if (value == null) {
+            reply.nullBulk();
+        } else {
+            reply.bulk(value);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package a.cache.machine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits shared by all connections of a server, and the accounting they are
+ * checked against.
+ * <p>
+ * A connection beyond {@code maxClients} is refused with an error as soon as
+ * it is accepted. Each connection's input buffer may grow up to
+ * {@code maxInputBuffer} bytes to hold one large command, and its output
+ * buffer up to {@code maxOutputBuffer} bytes for one large reply; a client
+ * that needs more is disconnected. The bytes of all connection buffers are
+ * added up, so the memory spent on clients can be read next to the memory
+ * spent on cached data.
+ */
+public final class ConnectionLimits {
+    public static final int DEFAULT_MAX_CLIENTS = 10_000;
+    public static final int DEFAULT_MAX_INPUT_BUFFER = 1024 * 1024 * 1024;
+    public static final int DEFAULT_MAX_OUTPUT_BUFFER = 64 * 1024 * 1024;
+    static final byte[] MAX_CLIENTS_REACHED = "-ERR max number of clients reached\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private final int maxClients;
+    private final int maxInputBuffer;
+    private final int maxOutputBuffer;
+    private final AtomicInteger clients;
+    private final AtomicLong bufferBytes;
+    private final LongAdder rejectedClients;
+    private final LongAdder limitDisconnects;
+
+    public ConnectionLimits() {
+        this(DEFAULT_MAX_CLIENTS, DEFAULT_MAX_INPUT_BUFFER, DEFAULT_MAX_OUTPUT_BUFFER);
+    }
+
+    public ConnectionLimits(int maxClients, int maxInputBuffer, int maxOutputBuffer) {
+        if (maxClients <= 0) {
+            throw new IllegalArgumentException("Max clients must be positive");
+        }
+        if (maxInputBuffer < NioRESPServer.INITIAL_BUFFER_SIZE || maxOutputBuffer < RespWriter.HIGH_WATER_MARK) {
+            throw new IllegalArgumentException("Buffer limits must hold at least the initial input buffer of "
+                    + NioRESPServer.INITIAL_BUFFER_SIZE + " bytes and " + RespWriter.HIGH_WATER_MARK
+                    + " bytes of output");
+        }
+        this.maxClients = maxClients;
+        this.maxInputBuffer = maxInputBuffer;
+        this.maxOutputBuffer = maxOutputBuffer;
+        this.clients = new AtomicInteger();
+        this.bufferBytes = new AtomicLong();
+        this.rejectedClients = new LongAdder();
+        this.limitDisconnects = new LongAdder();
+    }
+
+    /** Counts a new connection in, false if that would exceed {@code maxClients}. */
+    boolean tryAdmit() {
+        while (true) {
+            int current = clients.get();
+            if (current >= maxClients) {
+                rejectedClients.increment();
+                return false;
+            }
+            if (clients.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /** Counts a closed connection out together with the buffer bytes it had accounted. */
+    void release(long accountedBytes) {
+        bufferBytes.addAndGet(-accountedBytes);
+        clients.decrementAndGet();
+    }
+
+    /**
+     * Accounts a connection's buffers after they may have grown or shrunk.
+     *
+     * @return the new size, to be passed in as {@code accountedBytes} next time
+     */
+    long account(long accountedBytes, long currentBytes) {
+        if (currentBytes != accountedBytes) {
+            bufferBytes.addAndGet(currentBytes - accountedBytes);
+        }
+        return currentBytes;
+    }
+
+    void limitExceeded() {
+        limitDisconnects.increment();
+    }
+
+    public int maxClients() {
+        return maxClients;
+    }
+
+    public int maxInputBuffer() {
+        return maxInputBuffer;
+    }
+
+    public int maxOutputBuffer() {
+        return maxOutputBuffer;
+    }
+
+    public int getConnectedClients() {
+        return clients.get();
+    }
+
+    /** Bytes held by the input and output buffers of all connections. */
+    public long getBufferBytes() {
+        return bufferBytes.get();
+    }
+
+    public long getRejectedClients() {
+        return rejectedClients.sum();
+    }
+
+    /** Clients disconnected because a command or reply exceeded its buffer limit. */
+    public long getLimitDisconnects() {
+        return limitDisconnects.sum();
+    }
+}
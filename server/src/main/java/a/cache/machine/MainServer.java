@@ -1,16 +1,31 @@
 package a.cache.machine;
 
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Properties;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import a.cache.machine.engine.ByteKey;
+import a.cache.machine.engine.CacheException;
+import a.cache.machine.engine.CompactByteCache;
+import a.cache.machine.engine.ConcurrentLFUCache;
+import a.cache.machine.engine.DiskTier;
+import a.cache.machine.engine.ExpiringCache;
 import a.cache.machine.engine.ICache;
 import a.cache.machine.engine.ICacheEventListener;
 import a.cache.machine.engine.LRUCache;
+import a.cache.machine.engine.OffHeapLRUCache;
+import a.cache.machine.engine.SegmentedLRUCache;
+import a.cache.machine.engine.TieredCache;
+import a.cache.machine.engine.TinyLfuCache;
+import a.cache.machine.engine.Weigher;
+import a.cache.machine.engine.weigher.SerializedWeigher;
 public class MainServer {
     private static final Logger logger = LoggerFactory.getLogger(MainServer.class);
+    private static final long SHUTDOWN_WAIT_MILLIS = 5000;
     public static void main(String[] args) {
 
         ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
@@ -20,7 +35,13 @@ public class MainServer {
             int maxCacheSizeInBytes = Integer.parseInt(appProps.getProperty("server.maxSizeInBytes"));
             int port = Integer.parseInt(appProps.getProperty("server.port"));
             int adminPort = Integer.parseInt(appProps.getProperty("server.admin.port"));
-            ICache<String, Object> cache = new LRUCache<>(maxCacheSizeInBytes);
+            // Read by every CacheEventDispatcher the engines create
+            copyToSystemProperty(appProps, "server.events.bufferSize", "cache.events.bufferSize");
+            copyToSystemProperty(appProps, "server.events.overflow", "cache.events.overflow");
+            copyToSystemProperty(appProps, "server.events.sampleRate", "cache.events.sampleRate");
+            // Expiry wraps the tier, so expired keys leave disk too
+            ICache<ByteKey, byte[]> cache = new ExpiringCache<>(
+                    createTieredCache(appProps, createCache(appProps, maxCacheSizeInBytes)));
 
             try {
                 String listeners[] = appProps.getProperty("server.listeners").split(",");
@@ -35,13 +56,26 @@ public class MainServer {
                 logger.error("Failed to load listeners: " + e.getLocalizedMessage(), e);
             }
 
-            Thread respServerThread = new Thread(() -> {
-                RESPServer respServer = new RESPServer(cache, port);
-                respServer.start();
-            });
+            // The file the engines' own shutdown() writes, so both persist to one place
+            SnapshotSaver saver = new SnapshotSaver(cache,
+                    Paths.get(appProps.getProperty("server.snapshot.file", "cache.dat")));
+            AppendOnlyLog log = createAppendOnlyLog(appProps);
+            if (log == null) {
+                // The log has every write the snapshot has, so it takes precedence
+                logger.info("Loaded " + saver.load() + " entries from " + saver.path());
+            } else {
+                // Replayed before clients connect
+                log.replay(cache);
+                log.start(cache);
+            }
+
+            ConnectionLimits limits = createConnectionLimits(appProps);
+            RespServerThread respServerThread = createRespServerThread(appProps, cache, port, limits, log, saver);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(respServerThread, log, saver),
+                    "server-shutdown"));
 
             Thread adminServerThread = new Thread(() -> {
-                AdminServer adminServer = new AdminServer(cache, adminPort);
+                AdminServer adminServer = new AdminServer(cache, limits, adminPort);
                 adminServer.start();
             });
 
@@ -52,4 +86,154 @@ public class MainServer {
             logger.error(e.getLocalizedMessage(),e);
         }            
     }
+
+    // Stops taking commands, then flushes the log or, without one, saves the
+    // snapshot that is loaded on the next start
+    private static void shutdown(RespServerThread respServerThread, AppendOnlyLog log, SnapshotSaver saver) {
+        respServerThread.shutdown();
+        try {
+            respServerThread.join(SHUTDOWN_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (log != null) {
+            log.close();
+            return;
+        }
+        try {
+            saver.save();
+        } catch (CacheException e) {
+            logger.error("Failed to save snapshot on shutdown: " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    private static AppendOnlyLog createAppendOnlyLog(Properties appProps) {
+        if (!Boolean.parseBoolean(appProps.getProperty("server.aof.enabled", "false"))) {
+            return null;
+        }
+        Path file = Paths.get(appProps.getProperty("server.aof.file", "appendonly.aof"));
+        AppendOnlyLog.Fsync fsync = AppendOnlyLog.Fsync.parse(appProps.getProperty("server.aof.fsync", "everysec"));
+        long rewriteMinSize = Long.parseLong(appProps.getProperty("server.aof.rewriteMinSize",
+                String.valueOf(AppendOnlyLog.DEFAULT_REWRITE_MIN_SIZE)));
+        return new AppendOnlyLog(file, fsync, rewriteMinSize);
+    }
+
+    private static ICache<ByteKey, byte[]> createTieredCache(Properties appProps, ICache<ByteKey, byte[]> cache)
+            throws CacheException {
+        if (!Boolean.parseBoolean(appProps.getProperty("server.tier.enabled", "false"))) {
+            return cache;
+        }
+        Path directory = Paths.get(appProps.getProperty("server.tier.directory", "tier"));
+        long maxSizeInBytes = Long.parseLong(appProps.getProperty("server.tier.maxSizeInBytes"));
+        int segmentSize = Integer.parseInt(appProps.getProperty("server.tier.segmentSize",
+                String.valueOf(DiskTier.DEFAULT_SEGMENT_SIZE)));
+        logger.info("Spilling evicted entries to a disk tier of " + maxSizeInBytes + " bytes in " + directory);
+        DiskTier tier = new DiskTier(directory, maxSizeInBytes, segmentSize, DiskTier.DEFAULT_COMPACTION_MILLIS);
+        return new TieredCache<>(cache, tier);
+    }
+
+    private static ConnectionLimits createConnectionLimits(Properties appProps) {
+        int maxClients = Integer.parseInt(appProps.getProperty("server.maxClients",
+                String.valueOf(ConnectionLimits.DEFAULT_MAX_CLIENTS)));
+        int maxInputBuffer = Integer.parseInt(appProps.getProperty("server.client.maxInputBuffer",
+                String.valueOf(ConnectionLimits.DEFAULT_MAX_INPUT_BUFFER)));
+        int maxOutputBuffer = Integer.parseInt(appProps.getProperty("server.client.maxOutputBuffer",
+                String.valueOf(ConnectionLimits.DEFAULT_MAX_OUTPUT_BUFFER)));
+        return new ConnectionLimits(maxClients, maxInputBuffer, maxOutputBuffer);
+    }
+
+    private static RespServerThread createRespServerThread(Properties appProps, ICache<ByteKey, byte[]> cache,
+            int port, ConnectionLimits limits, AppendOnlyLog log, SnapshotSaver saver) {
+        String transport = appProps.getProperty("server.transport", "nio");
+        switch (transport) {
+            case "nio":
+                int eventLoops = Integer.parseInt(appProps.getProperty("server.eventLoops",
+                        String.valueOf(Runtime.getRuntime().availableProcessors())));
+                NioRESPServer nioServer = new NioRESPServer(cache, port, eventLoops, limits, log, saver);
+                return new RespServerThread(nioServer::start, nioServer::shutdown);
+            case "blocking":
+                boolean virtualThreads = parseThreads(appProps.getProperty("server.threads", "platform"));
+                RESPServer server = new RESPServer(cache, port, virtualThreads, limits, log, saver);
+                return new RespServerThread(server::start, server::shutdown);
+            default:
+                throw new IllegalArgumentException("Unknown transport '" + transport + "'");
+        }
+    }
+
+    private static boolean parseThreads(String threads) {
+        switch (threads) {
+            case "virtual":
+                return true;
+            case "platform":
+                return false;
+            default:
+                throw new IllegalArgumentException("Unknown thread kind '" + threads + "'");
+        }
+    }
+
+    private static ICache<ByteKey, byte[]> createCache(Properties appProps, int maxCacheSizeInBytes)
+            throws ReflectiveOperationException {
+        Weigher<Object, Object> weigher = createWeigher(appProps);
+        String engine = appProps.getProperty("server.engine", "lru");
+        switch (engine) {
+            case "segmented-lru":
+                int segments = Integer.parseInt(appProps.getProperty("server.segments",
+                        String.valueOf(SegmentedLRUCache.DEFAULT_SEGMENTS)));
+                logger.info("Using segmented LRU engine with " + segments + " segments");
+                return new SegmentedLRUCache<>(maxCacheSizeInBytes, segments, weigher);
+            case "lfu":
+                int lfuSegments = Integer.parseInt(appProps.getProperty("server.segments",
+                        String.valueOf(ConcurrentLFUCache.DEFAULT_SEGMENTS)));
+                logger.info("Using concurrent LFU engine with " + lfuSegments + " segments");
+                return new ConcurrentLFUCache<>(maxCacheSizeInBytes, lfuSegments, weigher);
+            case "compact":
+                int compactSegments = Integer.parseInt(appProps.getProperty("server.segments",
+                        String.valueOf(CompactByteCache.DEFAULT_SEGMENTS)));
+                logger.info("Using compact byte engine with " + compactSegments + " segments");
+                return new CompactByteCache(maxCacheSizeInBytes, compactSegments);
+            case "tinylfu":
+                logger.info("Using W-TinyLFU engine");
+                return new TinyLfuCache<>(maxCacheSizeInBytes, weigher);
+            case "offheap-lru":
+                logger.info("Using off-heap LRU engine");
+                return new OffHeapLRUCache<>(maxCacheSizeInBytes);
+            case "lru":
+                logger.info("Using LRU engine");
+                return new LRUCache<>(maxCacheSizeInBytes, weigher);
+            default:
+                throw new IllegalArgumentException("Unknown cache engine '" + engine + "'");
+        }
+    }
+
+    private static void copyToSystemProperty(Properties appProps, String name, String systemName) {
+        String value = appProps.getProperty(name);
+        if (value != null) {
+            System.setProperty(systemName, value.trim());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Weigher<Object, Object> createWeigher(Properties appProps) throws ReflectiveOperationException {
+        String weigher = appProps.getProperty("server.weigher", SerializedWeigher.class.getName());
+        Object weigherInstance = Class.forName(weigher).getConstructor().newInstance();
+        if (!(weigherInstance instanceof Weigher)) {
+            throw new IllegalArgumentException(weigher + " is not a " + Weigher.class.getName());
+        }
+        logger.info("Weighing entries with " + weigher);
+        return (Weigher<Object, Object>) weigherInstance;
+    }
+
+    // Runs either transport, which the shutdown hook stops before the final save
+    private static final class RespServerThread extends Thread {
+        private final Runnable stop;
+
+        RespServerThread(Runnable start, Runnable stop) {
+            super(start, "resp-server");
+            this.stop = stop;
+        }
+
+        void shutdown() {
+            stop.run();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,457 @@
+package a.cache.machine;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import a.cache.machine.engine.ByteKey;
+import a.cache.machine.engine.CacheException;
+import a.cache.machine.engine.ICache;
+
+/**
+ * Non-blocking RESP server.
+ * <p>
+ * The thread calling {@link #start()} accepts connections and hands them out
+ * round robin to a fixed number of event loops. Each loop owns a
+ * {@link Selector} and serves all of its connections on one thread: it reads
+ * into the connection's input buffer, runs every complete command found
+ * there and writes the replies from the connection's output buffer, waiting
+ * for the socket to become writable again if the client reads slowly. A
+ * pipelined batch is answered with a single write, or one per
+ * {@link RespWriter#HIGH_WATER_MARK} bytes of replies. The number of threads
+ * no longer depends on the number of clients.
+ * <p>
+ * A loop never waits for the {@link AppendOnlyLog}. With
+ * {@link AppendOnlyLog.Fsync#ALWAYS} it runs the whole batch, remembers the
+ * last log position the replies depend on and holds them back until the log
+ * is synced that far. The log's writer thread wakes the loop after each
+ * group commit, and before selecting again the loop sends what is synced,
+ * like Redis does before it sleeps.
+ * <p>
+ * Connections are admitted and their buffers capped and accounted by
+ * {@link ConnectionLimits}.
+ */
+public class NioRESPServer {
+    private static final Logger logger = LoggerFactory.getLogger(NioRESPServer.class);
+    static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    private final int port;
+    private final CommandProcessor processor;
+    private final EventLoop[] eventLoops;
+    private final ConnectionLimits limits;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile int boundPort;
+    private volatile boolean running = true;
+
+    public NioRESPServer(ICache<ByteKey, byte[]> cache, int port, int eventLoopCount) {
+        this(cache, port, eventLoopCount, new ConnectionLimits());
+    }
+
+    public NioRESPServer(ICache<ByteKey, byte[]> cache, int port, int eventLoopCount, ConnectionLimits limits) {
+        this(cache, port, eventLoopCount, limits, null);
+    }
+
+    /** Logs write commands to {@code log} unless it is null, the log must be started. */
+    public NioRESPServer(ICache<ByteKey, byte[]> cache, int port, int eventLoopCount, ConnectionLimits limits,
+            AppendOnlyLog log) {
+        this(cache, port, eventLoopCount, limits, log, null);
+    }
+
+    /** Also serves SAVE and BGSAVE with {@code saver} unless it is null. */
+    public NioRESPServer(ICache<ByteKey, byte[]> cache, int port, int eventLoopCount, ConnectionLimits limits,
+            AppendOnlyLog log, SnapshotSaver saver) {
+        if (eventLoopCount <= 0) {
+            throw new IllegalArgumentException("Event loop count must be positive");
+        }
+        this.port = port;
+        this.processor = new CommandProcessor(cache, log, saver);
+        this.eventLoops = new EventLoop[eventLoopCount];
+        this.limits = limits;
+    }
+
+    public void start() {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            channel.bind(new InetSocketAddress(port));
+            serverChannel = channel;
+            boundPort = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(processor, limits);
+                Thread thread = new Thread(eventLoops[i], "resp-loop-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            logger.info(RESPServer.getGreeting() + boundPort + " with " + eventLoops.length + " event loops");
+            int next = 0;
+            while (running) {
+                SocketChannel client = channel.accept();
+                if (!limits.tryAdmit()) {
+                    refuse(client);
+                    continue;
+                }
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+                eventLoops[next].register(client);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (ClosedChannelException e) {
+            // shutdown() closed the channel to stop accepting
+        } catch (IOException e) {
+            logger.error(e.getLocalizedMessage(), e);
+        } finally {
+            for (EventLoop eventLoop : eventLoops) {
+                if (eventLoop != null) {
+                    eventLoop.shutdown();
+                }
+            }
+        }
+        logger.info(".... Server stopped ....");
+    }
+
+    // Still in blocking mode, the error is short enough for a single write
+    private void refuse(SocketChannel client) {
+        logger.warn("Refusing client, " + limits.maxClients() + " clients are connected");
+        try (client) {
+            client.write(ByteBuffer.wrap(ConnectionLimits.MAX_CLIENTS_REACHED));
+        } catch (IOException e) {
+            logger.debug("Failed to refuse client: " + e.getLocalizedMessage());
+        }
+    }
+
+    /** Port the server listens on, 0 until it is bound. Useful when started on port 0. */
+    public int getPort() {
+        return boundPort;
+    }
+
+    public void shutdown() {
+        logger.info(".... Shutting down server ....");
+        running = false;
+        ServerSocketChannel channel = serverChannel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error(e.getLocalizedMessage(), e);
+            }
+        }
+    }
+
+    private static final class EventLoop implements Runnable {
+        private final CommandProcessor processor;
+        private final ConnectionLimits limits;
+        private final Selector selector;
+        private final Queue<SocketChannel> pending;
+        // Connections holding replies back for the log, owned by the loop thread
+        private final Queue<Connection> unsynced;
+        private final Runnable onSync;
+        // Whether unsynced has connections, read by the log's writer thread
+        private volatile boolean awaitingSync;
+        private volatile boolean running = true;
+
+        EventLoop(CommandProcessor processor, ConnectionLimits limits) throws IOException {
+            this.processor = processor;
+            this.limits = limits;
+            this.selector = Selector.open();
+            this.pending = new ConcurrentLinkedQueue<>();
+            this.unsynced = new ArrayDeque<>();
+            this.onSync = this::synced;
+        }
+
+        // Called from the accepting thread, the loop does the registration itself
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        // Called by a connection before it checks the log, so a sync right
+        // after the check still wakes the loop. sendSynced clears it again.
+        void expectSync() {
+            awaitingSync = true;
+        }
+
+        // Called by a connection whose replies wait for the log
+        void awaitSync(Connection connection) {
+            unsynced.add(connection);
+        }
+
+        // Called by the log's writer thread after a sync
+        private void synced() {
+            if (awaitingSync) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            processor.addSyncListener(onSync);
+            try {
+                while (running) {
+                    selector.select();
+                    registerPending();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            logger.debug("Closing connection: " + e.getLocalizedMessage());
+                            connection.close();
+                        } catch (RuntimeException e) {
+                            // Keep the loop alive for its other connections
+                            logger.error(e.getLocalizedMessage(), e);
+                            connection.close();
+                        }
+                    }
+                    sendSynced();
+                }
+            } catch (IOException e) {
+                logger.error(e.getLocalizedMessage(), e);
+            } finally {
+                processor.removeSyncListener(onSync);
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.error(e.getLocalizedMessage(), e);
+                }
+            }
+        }
+
+        // Sends the replies the log has caught up with. Runs after every
+        // select, which a sync wakes up while connections are waiting.
+        private void sendSynced() {
+            for (int i = unsynced.size(); i > 0; i--) {
+                Connection connection = unsynced.poll();
+                try {
+                    // Adds itself again if it is still not synced
+                    connection.onSynced();
+                } catch (IOException e) {
+                    logger.debug("Closing connection: " + e.getLocalizedMessage());
+                    connection.close();
+                } catch (RuntimeException e) {
+                    logger.error(e.getLocalizedMessage(), e);
+                    connection.close();
+                }
+            }
+            awaitingSync = !unsynced.isEmpty();
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pending.poll()) != null) {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(channel, key, this));
+                    logger.info("Client connected");
+                } catch (ClosedChannelException e) {
+                    // Client went away before it was registered
+                    limits.release(0);
+                }
+            }
+        }
+    }
+
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final EventLoop loop;
+        private final CommandProcessor processor;
+        private final ConnectionLimits limits;
+        private final RespParser parser;
+        private final RespWriter output;
+        // Kept in write mode (filling) between events
+        private ByteBuffer input;
+        // Buffer bytes this connection added to the limits' accounting
+        private long accounted;
+        // Log position the replies in output wait for, 0 if none
+        private long syncPosition;
+        private boolean awaitingSync;
+        private boolean closed;
+
+        Connection(SocketChannel channel, SelectionKey key, EventLoop loop) {
+            this.channel = channel;
+            this.key = key;
+            this.loop = loop;
+            this.processor = loop.processor;
+            this.limits = loop.limits;
+            this.parser = new RespParser();
+            this.output = new RespWriter(INITIAL_BUFFER_SIZE, limits.maxOutputBuffer());
+            this.input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            this.accounted = limits.account(0, input.capacity() + output.capacity());
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(input) < 0) {
+                logger.info("Client disconnected");
+                close();
+                return;
+            }
+            processInput();
+        }
+
+        void onWritable() throws IOException {
+            flush();
+            if (output.pending() < RespWriter.HIGH_WATER_MARK) {
+                // Caught up, carry on with the commands left in the input buffer
+                processInput();
+            }
+        }
+
+        void onSynced() throws IOException {
+            awaitingSync = false;
+            if (!closed) {
+                onWritable();
+            }
+        }
+
+        // Runs every complete command in the input buffer, replies are
+        // appended and sent together. Stops at the high-water mark if the
+        // socket cannot take the replies, the rest waits for OP_WRITE.
+        private void processInput() throws IOException {
+            input.flip();
+            boolean blocked = false;
+            try {
+                RespCommand command;
+                while ((command = parser.parse(input)) != null) {
+                    syncPosition = Math.max(syncPosition, processor.processDeferred(command, output));
+                    if (output.pending() >= RespWriter.HIGH_WATER_MARK && !flush()) {
+                        blocked = true;
+                        break;
+                    }
+                }
+            } catch (ProtocolException e) {
+                output.error("ERR Protocol error: " + e.getMessage());
+                flush();
+                close();
+                return;
+            } catch (BufferOverflowException e) {
+                logger.warn("Closing client, a reply exceeded the output buffer limit of "
+                        + limits.maxOutputBuffer() + " bytes");
+                limits.limitExceeded();
+                close();
+                return;
+            }
+            input.compact();
+            if (blocked) {
+                account();
+                return;
+            }
+            if (!input.hasRemaining()) {
+                if (input.capacity() >= limits.maxInputBuffer()) {
+                    logger.warn("Closing client, a command exceeded the input buffer limit of "
+                            + limits.maxInputBuffer() + " bytes");
+                    limits.limitExceeded();
+                    output.error("ERR Protocol error: query buffer limit of " + limits.maxInputBuffer()
+                            + " bytes exceeded");
+                    flush();
+                    close();
+                    return;
+                }
+                // A single command larger than the buffer, make room for the rest of it
+                ByteBuffer grown = ByteBuffer.allocate((int) Math.min(limits.maxInputBuffer(), input.capacity() * 2L));
+                input.flip();
+                input = grown.put(input);
+            } else if (input.position() == 0 && input.capacity() > INITIAL_BUFFER_SIZE) {
+                // The large command is done, give its buffer back
+                input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            }
+            flush();
+            account();
+        }
+
+        private void account() {
+            accounted = limits.account(accounted, input.capacity() + output.capacity());
+        }
+
+        /**
+         * Writes what the socket takes. While replies are left over the
+         * connection waits for OP_WRITE, and stops reading while they are
+         * above the high-water mark, so a client that pipelines without
+         * reading its replies cannot make the server buffer without limit.
+         * Replies that wait for the log are not written until the loop finds
+         * it synced; reading goes on meanwhile up to the high-water mark.
+         *
+         * @return true if the output went below the high-water mark
+         */
+        private boolean flush() throws IOException {
+            if (syncPosition > 0) {
+                loop.expectSync();
+                if (!synced()) {
+                    boolean below = output.pending() < RespWriter.HIGH_WATER_MARK;
+                    key.interestOps(below ? SelectionKey.OP_READ : 0);
+                    if (!awaitingSync) {
+                        awaitingSync = true;
+                        loop.awaitSync(this);
+                    }
+                    return below;
+                }
+                syncPosition = 0;
+            }
+            ByteBuffer pending = output.buffer();
+            pending.flip();
+            channel.write(pending);
+            pending.compact();
+            int remaining = pending.position();
+            if (remaining == 0) {
+                output.shrink();
+                key.interestOps(SelectionKey.OP_READ);
+            } else if (remaining < RespWriter.HIGH_WATER_MARK) {
+                // Socket buffer is full, continue once the client has read some
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            return remaining < RespWriter.HIGH_WATER_MARK;
+        }
+
+        private boolean synced() throws IOException {
+            try {
+                return processor.isSynced(syncPosition);
+            } catch (CacheException e) {
+                // The held replies cannot be confirmed, the client finds out by the closed connection
+                throw new IOException(e.getLocalizedMessage(), e);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            limits.release(accounted);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error(e.getLocalizedMessage(), e);
+            }
+        }
+    }
+}
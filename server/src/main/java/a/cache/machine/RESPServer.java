@@ -3,34 +3,85 @@ package a.cache.machine;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import a.cache.machine.engine.ByteKey;
 import a.cache.machine.engine.ICache;
 
+/**
+ * Blocking RESP server with one thread per connection.
+ * <p>
+ * Connections run on platform threads by default. With virtual threads a
+ * client blocked reading its socket only parks its virtual thread, so
+ * thousands of mostly idle connections cost little more than their
+ * buffers; the engines lock with {@link java.util.concurrent.locks.ReentrantLock}
+ * so waiting on them does not pin the carrier threads either.
+ */
 public class RESPServer {
     private static final Logger logger = LoggerFactory.getLogger(RESPServer.class);
-    private static boolean running = true;
+    private volatile boolean running = true;
     private final int PORT;
-    private final ICache<String, Object> cache;
+    private final CommandProcessor processor;
+    private final boolean virtualThreads;
+    private final ConnectionLimits limits;
+    private volatile ServerSocket serverSocket;
+    private volatile int boundPort;
 
     public static String getGreeting() {
         return "RESP Server is listening on port ";
     }
 
-    public RESPServer(ICache<String, Object> cache, int port) {
-        this.cache = cache;
+    public RESPServer(ICache<ByteKey, byte[]> cache, int port) {
+        this(cache, port, false);
+    }
+
+    public RESPServer(ICache<ByteKey, byte[]> cache, int port, boolean virtualThreads) {
+        this(cache, port, virtualThreads, new ConnectionLimits());
+    }
+
+    public RESPServer(ICache<ByteKey, byte[]> cache, int port, boolean virtualThreads, ConnectionLimits limits) {
+        this(cache, port, virtualThreads, limits, null);
+    }
+
+    /** Logs write commands to {@code log} unless it is null, the log must be started. */
+    public RESPServer(ICache<ByteKey, byte[]> cache, int port, boolean virtualThreads, ConnectionLimits limits,
+            AppendOnlyLog log) {
+        this(cache, port, virtualThreads, limits, log, null);
+    }
+
+    /** Also serves SAVE and BGSAVE with {@code saver} unless it is null. */
+    public RESPServer(ICache<ByteKey, byte[]> cache, int port, boolean virtualThreads, ConnectionLimits limits,
+            AppendOnlyLog log, SnapshotSaver saver) {
+        this.processor = new CommandProcessor(cache, log, saver);
         this.PORT = port;
+        this.virtualThreads = virtualThreads;
+        this.limits = limits;
     }
 
     public void start() {
+        Thread.Builder threads = virtualThreads
+                ? Thread.ofVirtual().name("resp-client-", 0)
+                : Thread.ofPlatform().name("resp-client-", 0);
         try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            logger.info(getGreeting() + PORT);
+            this.serverSocket = serverSocket;
+            boundPort = serverSocket.getLocalPort();
+            logger.info(getGreeting() + boundPort + (virtualThreads ? " using virtual threads" : ""));
             while (running) {
                 Socket socket = serverSocket.accept();
+                if (!limits.tryAdmit()) {
+                    refuse(socket);
+                    continue;
+                }
                 logger.info("Client connected");
-                new ClientHandler(socket, cache).start();
+                threads.start(new ClientHandler(socket, processor, limits));
+            }
+        } catch (SocketException ex) {
+            // shutdown() closed the socket to stop accepting
+            if (running) {
+                logger.error(ex.getLocalizedMessage(), ex);
             }
         } catch (IOException ex) {
             logger.error(ex.getLocalizedMessage(), ex);
@@ -38,8 +89,30 @@ public class RESPServer {
         logger.info(".... Server stopped ....");        
     }
 
-    public static void shutdown() {
+    private void refuse(Socket socket) {
+        logger.warn("Refusing client, " + limits.maxClients() + " clients are connected");
+        try (socket) {
+            socket.getOutputStream().write(ConnectionLimits.MAX_CLIENTS_REACHED);
+        } catch (IOException ex) {
+            logger.debug("Failed to refuse client: " + ex.getLocalizedMessage());
+        }
+    }
+
+    /** Port the server listens on, 0 until it is bound. Useful when started on port 0. */
+    public int getPort() {
+        return boundPort;
+    }
+
+    public void shutdown() {
         logger.info(".... Shutting down server ....");
         running = false;
+        ServerSocket socket = serverSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                logger.error(ex.getLocalizedMessage(), ex);
+            }
+        }
     }
 }
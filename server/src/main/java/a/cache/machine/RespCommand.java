@@ -0,0 +1,126 @@
+package a.cache.machine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import a.cache.machine.engine.ByteKey;
+
+/**
+ * Arguments of one parsed RESP command, kept as slices of the connection's
+ * input buffer instead of being copied out.
+ * <p>
+ * Only valid until the parser is called again or the buffer is compacted;
+ * whatever has to outlive the command must be copied with {@link #bytes(int)}
+ * or {@link #key(int)}, or decoded with {@link #string(int)}. One instance is reused by the
+ * {@link RespParser} for every command it parses.
+ */
+final class RespCommand {
+    private ByteBuffer buffer;
+    private int base;
+    private int size;
+    private int[] offsets = new int[8];
+    private int[] lengths = new int[8];
+
+    // Called by the parser as arguments arrive, offsets are relative to the
+    // first byte of the command so they survive a compaction of the buffer
+    void reset(int size) {
+        if (size > offsets.length) {
+            offsets = Arrays.copyOf(offsets, size);
+            lengths = Arrays.copyOf(lengths, size);
+        }
+        this.size = size;
+    }
+
+    void set(int index, int offset, int length) {
+        offsets[index] = offset;
+        lengths[index] = length;
+    }
+
+    void bind(ByteBuffer buffer, int base) {
+        this.buffer = buffer;
+        this.base = base;
+    }
+
+    /** Number of arguments, the command name included. */
+    int size() {
+        return size;
+    }
+
+    int length(int index) {
+        return lengths[index];
+    }
+
+    /** Compares an argument with an upper case ASCII name, ignoring the argument's case. */
+    boolean equalsIgnoreCase(int index, byte[] upperCaseName) {
+        if (lengths[index] != upperCaseName.length) {
+            return false;
+        }
+        int from = base + offsets[index];
+        for (int i = 0; i < upperCaseName.length; i++) {
+            byte b = buffer.get(from + i);
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            }
+            if (b != upperCaseName[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Decodes an argument as UTF-8. */
+    String string(int index) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + base + offsets[index], lengths[index],
+                    StandardCharsets.UTF_8);
+        }
+        return new String(bytes(index), StandardCharsets.UTF_8);
+    }
+
+    /** Copies an argument out of the buffer. */
+    byte[] bytes(int index) {
+        byte[] bytes = new byte[lengths[index]];
+        buffer.get(base + offsets[index], bytes);
+        return bytes;
+    }
+
+    /** Array backing the buffer, null for a direct buffer. Arguments start at {@link #offset(int)}. */
+    byte[] array() {
+        return buffer.hasArray() ? buffer.array() : null;
+    }
+
+    /** Offset of an argument in {@link #array()}. */
+    int offset(int index) {
+        return buffer.arrayOffset() + base + offsets[index];
+    }
+
+    /** Copies an argument out of the buffer as a cache key. */
+    ByteKey key(int index) {
+        if (buffer.hasArray()) {
+            return ByteKey.copyOf(buffer.array(), buffer.arrayOffset() + base + offsets[index], lengths[index]);
+        }
+        byte[] bytes = bytes(index);
+        return ByteKey.copyOf(bytes, 0, bytes.length);
+    }
+
+    /** Parses an argument as a decimal integer without decoding it first. */
+    long parseLong(int index) {
+        int from = base + offsets[index];
+        int to = from + lengths[index];
+        boolean negative = from < to && buffer.get(from) == '-';
+        int i = negative ? from + 1 : from;
+        if (i == to || to - i > 18) {
+            throw new NumberFormatException("not an integer");
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            byte digit = buffer.get(i);
+            if (digit < '0' || digit > '9') {
+                throw new NumberFormatException("not an integer");
+            }
+            value = value * 10 + (digit - '0');
+        }
+        return negative ? -value : value;
+    }
+}
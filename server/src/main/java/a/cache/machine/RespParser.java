@@ -0,0 +1,114 @@
+package a.cache.machine;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental RESP2 request parser, one per connection.
+ * <p>
+ * Reads arrays of bulk strings from a buffer in read mode. Bulk strings are
+ * read by their declared length, so they may contain any byte, including
+ * CRLF. Arguments are not copied: the returned {@link RespCommand} points
+ * into the buffer. If the buffer does not hold a complete command yet,
+ * nothing is consumed; the parser remembers how far it got, relative to the
+ * start of the command, and continues from there once more bytes arrived.
+ * The caller may compact the buffer in between, as long as the unconsumed
+ * bytes stay in order.
+ */
+final class RespParser {
+    static final int MAX_ARGUMENTS = 1024 * 1024;
+    static final int MAX_BULK_LENGTH = 512 * 1024 * 1024;
+
+    private final RespCommand command = new RespCommand();
+    // Progress through a partially received command, relative to its first byte
+    private int expected = -1;
+    private int parsed;
+    private int resume;
+
+    /**
+     * Parses the next command and moves the buffer position past it.
+     *
+     * @return the command, or null if it is not complete yet
+     * @throws ProtocolException if the bytes are not a valid RESP request
+     */
+    RespCommand parse(ByteBuffer buffer) throws ProtocolException {
+        int start = buffer.position();
+        if (expected < 0) {
+            while (true) {
+                int lineEnd = findLineEnd(buffer, start);
+                if (lineEnd < 0) {
+                    return null;
+                }
+                if (buffer.get(start) == '*') {
+                    expected = (int) parseLength(buffer, start + 1, lineEnd, MAX_ARGUMENTS);
+                    command.reset(expected);
+                    parsed = 0;
+                    resume = lineEnd + 2 - start;
+                    break;
+                }
+                // Not an array header, skipped like the blocking handler always did
+                start = lineEnd + 2;
+                buffer.position(start);
+            }
+        }
+        int position = start + resume;
+        while (parsed < expected) {
+            int lineEnd = findLineEnd(buffer, position);
+            if (lineEnd < 0) {
+                resume = position - start;
+                return null;
+            }
+            if (buffer.get(position) != '$') {
+                throw new ProtocolException("expected '$', got '" + printable(buffer.get(position)) + "'");
+            }
+            int length = (int) parseLength(buffer, position + 1, lineEnd, MAX_BULK_LENGTH);
+            int data = lineEnd + 2;
+            if (buffer.limit() - data < length + 2) {
+                resume = position - start;
+                return null;
+            }
+            if (buffer.get(data + length) != '\r' || buffer.get(data + length + 1) != '\n') {
+                throw new ProtocolException("bulk string longer than its declared length");
+            }
+            command.set(parsed++, data - start, length);
+            position = data + length + 2;
+        }
+        expected = -1;
+        command.bind(buffer, start);
+        buffer.position(position);
+        return command;
+    }
+
+    // Index of the '\r' of the next CRLF at or after from, -1 if there is none yet
+    private static int findLineEnd(ByteBuffer buffer, int from) {
+        for (int i = from; i < buffer.limit() - 1; i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseLength(ByteBuffer buffer, int from, int to, int max) throws ProtocolException {
+        if (from == to) {
+            throw new ProtocolException("missing length");
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            byte digit = buffer.get(i);
+            if (digit < '0' || digit > '9') {
+                throw new ProtocolException("invalid length");
+            }
+            value = value * 10 + (digit - '0');
+            if (value > max) {
+                throw new ProtocolException("length exceeds " + max);
+            }
+        }
+        return value;
+    }
+
+    // Control and non-ASCII bytes as escapes, they must not reach a reply line as they are
+    private static String printable(byte b) {
+        return b >= 0x20 && b < 0x7f ? String.valueOf((char) b) : String.format("\\x%02x", b & 0xff);
+    }
+}
@@ -0,0 +1,213 @@
+package a.cache.machine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes RESP replies straight into a connection's output buffer, which
+ * grows when a reply does not fit. Small integer replies are preencoded,
+ * other numbers and lengths are written digit by digit and byte values are
+ * copied as they are, so replies need no intermediate strings.
+ * <p>
+ * The buffer never grows past its maximum capacity, a reply that would not
+ * fit throws {@link BufferOverflowException} and the connection is dropped.
+ * Once everything was sent, {@link #shrink()} gives back what an unusually
+ * large reply made it grow to.
+ */
+final class RespWriter {
+    /** Pending replies are sent once they reach this size, even in the middle of a pipelined batch. */
+    static final int HIGH_WATER_MARK = 64 * 1024;
+    // Pipelined batches grow the buffer up to about the high-water mark all
+    // the time, only capacity beyond this is given back
+    private static final int SHRINK_THRESHOLD = 2 * HIGH_WATER_MARK;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] NULL_BULK = "$-1\r\n".getBytes(StandardCharsets.US_ASCII);
+    // Status and error lines echo client input, longer ones are cut
+    static final int MAX_LINE_LENGTH = 512;
+    // Integer replies from -2 (TTL of a missing key) to 1023, which covers the
+    // TTL statuses, the 0/1 flags and most counts
+    private static final int MIN_PREENCODED = -2;
+    private static final byte[][] INTEGERS = new byte[1026][];
+
+    static {
+        for (int i = 0; i < INTEGERS.length; i++) {
+            INTEGERS[i] = (":" + (i + MIN_PREENCODED) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final int initialCapacity;
+    private final int maxCapacity;
+    // Kept in write mode (filling)
+    private ByteBuffer buffer;
+
+    RespWriter(int initialCapacity) {
+        this(initialCapacity, Integer.MAX_VALUE);
+    }
+
+    RespWriter(int initialCapacity, int maxCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.maxCapacity = maxCapacity;
+        this.buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /** Writes an already encoded reply. */
+    void raw(byte[] reply) {
+        ensureRemaining(reply.length);
+        buffer.put(reply);
+    }
+
+    void raw(byte[] bytes, int offset, int length) {
+        ensureRemaining(length);
+        buffer.put(bytes, offset, length);
+    }
+
+    void simple(String status) {
+        line('+', status);
+    }
+
+    /**
+     * Writes an error reply, {@code message} starts with the error kind, e.g.
+     * {@code ERR}. Line breaks become spaces, so echoed input cannot end the
+     * line early and forge another reply.
+     */
+    void error(String message) {
+        line('-', message);
+    }
+
+    void integer(long value) {
+        if (value >= MIN_PREENCODED && value < MIN_PREENCODED + INTEGERS.length) {
+            raw(INTEGERS[(int) value - MIN_PREENCODED]);
+            return;
+        }
+        ensureRemaining(22);
+        buffer.put((byte) ':');
+        putDecimal(value);
+        buffer.put(CRLF);
+    }
+
+    void bulk(byte[] value) {
+        ensureRemaining(value.length + 15);
+        buffer.put((byte) '$');
+        putDecimal(value.length);
+        buffer.put(CRLF);
+        buffer.put(value);
+        buffer.put(CRLF);
+    }
+
+    /** Writes an argument of a parsed command, straight from the input buffer when it has an array. */
+    void bulk(RespCommand command, int index) {
+        byte[] array = command.array();
+        if (array == null) {
+            bulk(command.bytes(index));
+            return;
+        }
+        int length = command.length(index);
+        ensureRemaining(length + 15);
+        buffer.put((byte) '$');
+        putDecimal(length);
+        buffer.put(CRLF);
+        buffer.put(array, command.offset(index), length);
+        buffer.put(CRLF);
+    }
+
+    void bulk(String value) {
+        // The header needs the encoded length, not the number of chars
+        bulk(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Starts an array reply, the {@code size} elements are written next. */
+    void arrayHeader(int size) {
+        ensureRemaining(14);
+        buffer.put((byte) '*');
+        putDecimal(size);
+        buffer.put(CRLF);
+    }
+
+    void nullBulk() {
+        raw(NULL_BULK);
+    }
+
+    private void line(char type, String text) {
+        if (text.length() > MAX_LINE_LENGTH) {
+            text = text.substring(0, MAX_LINE_LENGTH);
+        }
+        if (text.indexOf('\r') >= 0 || text.indexOf('\n') >= 0) {
+            text = text.replace('\r', ' ').replace('\n', ' ');
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ensureRemaining(bytes.length + 3);
+        buffer.put((byte) type);
+        buffer.put(bytes);
+        buffer.put(CRLF);
+    }
+
+    private void putDecimal(long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                // Has no positive counterpart
+                buffer.put("9223372036854775808".getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            value = -value;
+        }
+        long divisor = 1;
+        while (divisor <= value / 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    private void ensureRemaining(int length) {
+        if (buffer.remaining() < length) {
+            long needed = (long) buffer.position() + length;
+            if (needed > maxCapacity) {
+                throw new BufferOverflowException();
+            }
+            int capacity = (int) Math.min(maxCapacity, Math.max((long) buffer.capacity() * 2, needed));
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    /** Returns to the initial capacity if nothing is pending and the buffer grew large. */
+    void shrink() {
+        if (buffer.position() == 0 && buffer.capacity() > SHRINK_THRESHOLD) {
+            buffer = ByteBuffer.allocate(initialCapacity);
+        }
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    int maxCapacity() {
+        return maxCapacity;
+    }
+
+    /** Bytes waiting to be sent. */
+    int pending() {
+        return buffer.position();
+    }
+
+    /** The buffer in write mode, flip it to send and compact it afterwards. */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /** Sends everything that is pending to a blocking stream. */
+    void writeTo(OutputStream output) throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        output.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        buffer.clear();
+    }
+}
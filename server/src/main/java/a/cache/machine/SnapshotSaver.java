@@ -0,0 +1,124 @@
+package a.cache.machine;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import a.cache.machine.engine.CacheException;
+import a.cache.machine.engine.ICache;
+import a.cache.machine.engine.Snapshot;
+
+/**
+ * Saves snapshots of the cache to one file, for SAVE and BGSAVE.
+ * <p>
+ * Both capture a {@link Snapshot} on the calling thread. The engine locks
+ * one segment or one batch of entries at a time while it copies them, so
+ * the gets and puts that reach that segment or batch wait for the copy;
+ * {@link a.cache.machine.engine.CompactByteCache} only marks its tables
+ * copy-on-write. SAVE then writes it on the calling thread too; BGSAVE hands it to
+ * a background thread and returns, so gets and puts go on while the file is
+ * written. Only one save runs at a time.
+ */
+public class SnapshotSaver {
+    private static final Logger logger = LoggerFactory.getLogger(SnapshotSaver.class);
+
+    private final ICache<?, ?> cache;
+    private final Path path;
+    private final AtomicBoolean saving;
+    private volatile long lastSaveMillis;
+    private volatile boolean lastSaveFailed;
+
+    public SnapshotSaver(ICache<?, ?> cache, Path path) {
+        this.cache = cache;
+        this.path = path;
+        this.saving = new AtomicBoolean();
+    }
+
+    /**
+     * Captures and writes a snapshot on the calling thread.
+     *
+     * @return the number of entries written
+     */
+    public long save() throws CacheException {
+        if (!saving.compareAndSet(false, true)) {
+            throw new CacheException("Background save already in progress");
+        }
+        try {
+            return write(cache.snapshot());
+        } finally {
+            saving.set(false);
+        }
+    }
+
+    /**
+     * Captures a snapshot and writes it on a background thread.
+     *
+     * @return false if a save is already running
+     */
+    public boolean backgroundSave() throws CacheException {
+        if (!saving.compareAndSet(false, true)) {
+            return false;
+        }
+        Snapshot snapshot;
+        try {
+            snapshot = cache.snapshot();
+        } catch (CacheException | RuntimeException e) {
+            saving.set(false);
+            throw e;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                write(snapshot);
+            } catch (CacheException | RuntimeException e) {
+                logger.error("Background save failed: " + e.getLocalizedMessage(), e);
+            } finally {
+                saving.set(false);
+            }
+        }, "snapshot-writer");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    private long write(Snapshot snapshot) throws CacheException {
+        try {
+            long entries = snapshot.writeTo(path);
+            lastSaveFailed = false;
+            lastSaveMillis = System.currentTimeMillis();
+            logger.info("Saved " + entries + " entries to " + path + ", writers stalled "
+                    + snapshot.stallNanos() / 1000 + " us");
+            return entries;
+        } catch (CacheException | RuntimeException e) {
+            lastSaveFailed = true;
+            throw e;
+        }
+    }
+
+    /** Loads the snapshot file into the cache if there is one, returns the number of entries. */
+    public long load() throws CacheException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        return cache.loadSnapshot(path);
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public boolean inProgress() {
+        return saving.get();
+    }
+
+    /** When the last save completed, in milliseconds since the epoch, 0 if none did. */
+    public long lastSaveMillis() {
+        return lastSaveMillis;
+    }
+
+    public boolean lastSaveFailed() {
+        return lastSaveFailed;
+    }
+}
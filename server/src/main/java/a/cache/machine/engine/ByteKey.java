@@ -0,0 +1,95 @@
+package a.cache.machine.engine;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Immutable cache key made of raw bytes, as they arrive on the wire.
+ * <p>
+ * The hash is computed once, when the key is created, so looking it up in
+ * any engine costs no rehashing. Keys compare by content; {@link #toString()}
+ * decodes them as UTF-8 for logs and listeners.
+ */
+public final class ByteKey implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] bytes;
+    private final int hash;
+
+    private ByteKey(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = hash(bytes, 0, bytes.length);
+    }
+
+    public static ByteKey of(String key) {
+        return new ByteKey(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Copies {@code length} bytes of {@code array} from {@code offset}. */
+    public static ByteKey copyOf(byte[] array, int offset, int length) {
+        return new ByteKey(Arrays.copyOfRange(array, offset, offset + length));
+    }
+
+    /** Takes ownership of {@code bytes}, the caller must not change them afterwards. */
+    static ByteKey wrap(byte[] bytes) {
+        return new ByteKey(bytes);
+    }
+
+    /**
+     * Hash of a byte range, equal to {@link #hashCode()} of a key holding the
+     * same bytes. Lets engines look a key up without creating one.
+     */
+    public static int hash(byte[] array, int offset, int length) {
+        int h = 1;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            h = 31 * h + array[i];
+        }
+        // Spread the polynomial hash, engines index tables with both its high and low bits
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    public int length() {
+        return bytes.length;
+    }
+
+    /** Copy of the key's bytes. */
+    public byte[] toByteArray() {
+        return bytes.clone();
+    }
+
+    // Engines in this package read the bytes without copying
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /** True if the key holds exactly the given byte range. */
+    public boolean contentEquals(byte[] array, int offset, int length) {
+        return Arrays.equals(bytes, 0, bytes.length, array, offset, offset + length);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ByteKey)) {
+            return false;
+        }
+        ByteKey key = (ByteKey) other;
+        return hash == key.hash && Arrays.equals(bytes, key.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,12 +1,14 @@
 package a.cache.machine.engine;
 
+import java.nio.charset.StandardCharsets;
+
 public class CacheEvent {
     private String key;
     private Object value;
     private EventType type;
 
     public enum EventType {
-        HIT, MISS, EVICTION
+        HIT, MISS, EVICTION, EXPIRATION
     }
     // Constructor, getters, and setters
 
@@ -27,4 +29,12 @@ public class CacheEvent {
     public EventType getType() {
         return type;
     }
+
+    /** Printable form of a cached value, values stored as {@code byte[]} are shown as UTF-8 text. */
+    public static String describe(Object value) {
+        if (value instanceof byte[]) {
+            return new String((byte[]) value, StandardCharsets.UTF_8);
+        }
+        return String.valueOf(value);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,282 @@
+package a.cache.machine.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Feeds cache events to listeners off the caller's thread.
+ * <p>
+ * Engines publish raw keys and values into a bounded ring buffer, a single
+ * daemon thread drains it, turns the entries into {@link CacheEvent}s and
+ * hands them to every listener in batches through
+ * {@link ICacheEventListener#onEvents(List)}, so a slow listener only delays
+ * other listeners, never a client. What happens when the ring is full is set
+ * by the {@link OverflowPolicy}. While no listener is registered publishing
+ * is a single volatile read and the thread is not running. An idle thread
+ * parks until the next event is published.
+ * <p>
+ * Defaults can be changed with the {@code cache.events.bufferSize},
+ * {@code cache.events.overflow} and {@code cache.events.sampleRate} system
+ * properties.
+ */
+public class CacheEventDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(CacheEventDispatcher.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final int DEFAULT_SAMPLE_RATE = 10;
+    private static final int MAX_BATCH = 256;
+    private static final long FLUSH_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    public enum OverflowPolicy {
+        /** Drop events published while the buffer is full. */
+        DROP,
+        /** Past half full keep only one in {@code sampleRate} hits and misses, drop when full. */
+        SAMPLE,
+        /** Make the publishing thread wait for room, listeners see every event. */
+        BLOCK
+    }
+
+    private final OverflowPolicy overflowPolicy;
+    private final int sampleRate;
+    private final List<ICacheEventListener> listeners;
+
+    // Bounded multi-producer, single-consumer ring. A slot is free for the
+    // producer claiming position p when its sequence is p, and readable for
+    // the consumer at position p when its sequence is p + 1.
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final Object[] keys;
+    private final Object[] values;
+    private final CacheEvent.EventType[] types;
+    private final AtomicLong tail;
+    private volatile long head;
+
+    private final LongAdder dropped;
+    private volatile long delivered;
+    private volatile boolean running;
+    private volatile Thread thread;
+    // Set by the consumer before it parks on an empty ring
+    private volatile boolean idle;
+
+    public CacheEventDispatcher() {
+        this(Integer.getInteger("cache.events.bufferSize", DEFAULT_BUFFER_SIZE),
+                OverflowPolicy.valueOf(System.getProperty("cache.events.overflow", OverflowPolicy.DROP.name())
+                        .toUpperCase()),
+                Integer.getInteger("cache.events.sampleRate", DEFAULT_SAMPLE_RATE));
+    }
+
+    public CacheEventDispatcher(int bufferSize, OverflowPolicy overflowPolicy, int sampleRate) {
+        if (bufferSize <= 0 || sampleRate <= 0) {
+            throw new IllegalArgumentException("Buffer size and sample rate must be positive");
+        }
+        // Round up to a power of two so the slot can be picked with a mask
+        int capacity = Integer.highestOneBit(bufferSize);
+        if (capacity < bufferSize) {
+            capacity <<= 1;
+        }
+        this.overflowPolicy = overflowPolicy;
+        this.sampleRate = sampleRate;
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.mask = capacity - 1;
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.keys = new Object[capacity];
+        this.values = new Object[capacity];
+        this.types = new CacheEvent.EventType[capacity];
+        this.tail = new AtomicLong();
+        this.dropped = new LongAdder();
+    }
+
+    public void hit(Object key) {
+        if (!listeners.isEmpty()) {
+            publish(CacheEvent.EventType.HIT, key, null);
+        }
+    }
+
+    public void miss(Object key) {
+        if (!listeners.isEmpty()) {
+            publish(CacheEvent.EventType.MISS, key, null);
+        }
+    }
+
+    public void eviction(Object key, Object value) {
+        if (!listeners.isEmpty()) {
+            publish(CacheEvent.EventType.EVICTION, key, value);
+        }
+    }
+
+    public void expiration(Object key, Object value) {
+        if (!listeners.isEmpty()) {
+            publish(CacheEvent.EventType.EXPIRATION, key, value);
+        }
+    }
+
+    /** True while at least one listener is registered, lets engines skip work only listeners need. */
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    private void publish(CacheEvent.EventType type, Object key, Object value) {
+        if (overflowPolicy == OverflowPolicy.SAMPLE
+                && (type == CacheEvent.EventType.HIT || type == CacheEvent.EventType.MISS)
+                && tail.get() - head > mask / 2
+                && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            dropped.increment();
+            return;
+        }
+        while (!offer(type, key, value)) {
+            if (overflowPolicy != OverflowPolicy.BLOCK || !running) {
+                dropped.increment();
+                return;
+            }
+            LockSupport.parkNanos(1000);
+        }
+        if (idle) {
+            idle = false;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private boolean offer(CacheEvent.EventType type, Object key, Object value) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long available = sequences.get(index) - position;
+            if (available < 0) {
+                // The consumer has not freed this slot yet, the ring is full
+                return false;
+            }
+            if (available == 0 && tail.compareAndSet(position, position + 1)) {
+                keys[index] = key;
+                values[index] = value;
+                types[index] = type;
+                sequences.set(index, position + 1);
+                return true;
+            }
+        }
+    }
+
+    private int drainTo(List<CacheEvent> batch) {
+        long position = head;
+        int drained = 0;
+        while (drained < MAX_BATCH) {
+            int index = (int) (position & mask);
+            if (sequences.get(index) != position + 1) {
+                break;
+            }
+            // Keys are turned into strings here, off the publishing thread
+            batch.add(new CacheEvent(keys[index].toString(), values[index], types[index]));
+            keys[index] = null;
+            values[index] = null;
+            sequences.set(index, position + mask + 1);
+            position++;
+            drained++;
+        }
+        head = position;
+        return drained;
+    }
+
+    public synchronized void addListener(ICacheEventListener listener) {
+        listeners.add(listener);
+        if (thread == null) {
+            running = true;
+            thread = new Thread(this::dispatch, "cache-events");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void removeListener(ICacheEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void dispatch() {
+        List<CacheEvent> batch = new ArrayList<>(MAX_BATCH);
+        List<CacheEvent> view = Collections.unmodifiableList(batch);
+        while (running || head != tail.get()) {
+            int drained = drainTo(batch);
+            if (drained == 0) {
+                awaitEvents();
+                continue;
+            }
+            for (ICacheEventListener listener : listeners) {
+                try {
+                    listener.onEvents(view);
+                } catch (RuntimeException e) {
+                    logger.error("Cache event listener failed: " + e.getLocalizedMessage(), e);
+                }
+            }
+            batch.clear();
+            delivered += drained;
+        }
+    }
+
+    // The flag is set before the ring is checked again and read by producers
+    // after they published, so either this sees the event or they unpark it
+    private void awaitEvents() {
+        idle = true;
+        if (running && sequences.get((int) (head & mask)) != head + 1) {
+            LockSupport.park(this);
+        }
+        idle = false;
+    }
+
+    /**
+     * Waits until every event published before the call has reached the
+     * listeners.
+     *
+     * @return false if that did not happen within {@code timeoutMillis}
+     */
+    public boolean flush(long timeoutMillis) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (delivered < target) {
+            if (thread == null || System.nanoTime() > deadline) {
+                return false;
+            }
+            LockSupport.parkNanos(FLUSH_PARK_NANOS);
+        }
+        return true;
+    }
+
+    /** Delivers what is still buffered and stops the dispatcher thread. */
+    public void shutdown() {
+        Thread stopping;
+        synchronized (this) {
+            stopping = thread;
+            if (stopping == null) {
+                return;
+            }
+            running = false;
+            thread = null;
+        }
+        LockSupport.unpark(stopping);
+        try {
+            stopping.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Events lost to the overflow policy so far. */
+    public long droppedEvents() {
+        return dropped.sum();
+    }
+
+    public OverflowPolicy overflowPolicy() {
+        return overflowPolicy;
+    }
+}
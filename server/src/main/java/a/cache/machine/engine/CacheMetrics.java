@@ -1,19 +1,101 @@
 package a.cache.machine.engine;
 
 import java.io.Serializable;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Counters and latency histograms of one cache.
+ * <p>
+ * Counters are {@link LongAdder}s, so threads hitting the cache at the same
+ * time update separate cells instead of one contended field; reading sums
+ * the cells up and is meant for the admin page and monitoring, not the hot
+ * path. Latencies are in nanoseconds.
+ */
 public class CacheMetrics implements Serializable {
-    private static final long serialVersionUID = 1L;
-    private final AtomicLong hits = new AtomicLong(0);
-    private final AtomicLong misses = new AtomicLong(0);
-    private final AtomicLong evictions = new AtomicLong(0);
-
-    public void incrementHits() { hits.incrementAndGet(); }
-    public void incrementMisses() { misses.incrementAndGet(); }
-    public void incrementEvictions() { evictions.incrementAndGet(); }
-
-    public long getHits() { return hits.get(); }
-    public long getMisses() { return misses.get(); }
-    public long getEvictions() { return evictions.get(); }
-}
\ No newline at end of file
+    private static final long serialVersionUID = 3L;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictedBytes = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder removes = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadTimeNanos = new LongAdder();
+    private final LongAdder snapshots = new LongAdder();
+    private final LongAdder spills = new LongAdder();
+    private final LongAdder promotions = new LongAdder();
+    private volatile long lastSnapshotNanos;
+    private volatile long lastSnapshotStallNanos;
+    private final LatencyHistogram getLatency = new LatencyHistogram();
+    private final LatencyHistogram putLatency = new LatencyHistogram();
+    private final LatencyHistogram removeLatency = new LatencyHistogram();
+
+    public void incrementHits() { hits.increment(); }
+    public void incrementMisses() { misses.increment(); }
+    public void incrementEvictions() { evictions.increment(); }
+    public void incrementExpirations() { expirations.increment(); }
+    /** An evicted entry written to the disk tier. */
+    public void incrementSpills() { spills.increment(); }
+    /** A memory miss served from the disk tier and moved back into memory, it counts as a hit. */
+    public void recordPromotion() {
+        misses.decrement();
+        hits.increment();
+        promotions.increment();
+    }
+
+    public void recordEviction(long bytes) {
+        evictions.increment();
+        evictedBytes.add(bytes);
+    }
+
+    public void recordGet(long nanos) { getLatency.record(nanos); }
+
+    public void recordPut(long nanos) {
+        puts.increment();
+        putLatency.record(nanos);
+    }
+
+    /** A bulk write, counted as {@code count} puts but a single latency sample. */
+    public void recordPuts(int count, long nanos) {
+        puts.add(count);
+        putLatency.record(nanos);
+    }
+
+    public void recordRemove(long nanos) {
+        removes.increment();
+        removeLatency.record(nanos);
+    }
+
+    /** Time spent filling the cache from disk. */
+    public void recordLoad(long nanos) {
+        loads.increment();
+        loadTimeNanos.add(nanos);
+    }
+
+    /** A snapshot written to disk: how long writers were blocked capturing it and how long writing took. */
+    public void recordSnapshot(long stallNanos, long nanos) {
+        snapshots.increment();
+        lastSnapshotStallNanos = stallNanos;
+        lastSnapshotNanos = nanos;
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getEvictions() { return evictions.sum(); }
+    public long getEvictedBytes() { return evictedBytes.sum(); }
+    public long getExpirations() { return expirations.sum(); }
+    public long getPuts() { return puts.sum(); }
+    public long getRemoves() { return removes.sum(); }
+    public long getLoads() { return loads.sum(); }
+    public long getLoadTimeNanos() { return loadTimeNanos.sum(); }
+    public long getSnapshots() { return snapshots.sum(); }
+    public long getLastSnapshotNanos() { return lastSnapshotNanos; }
+    public long getLastSnapshotStallNanos() { return lastSnapshotStallNanos; }
+    public long getSpills() { return spills.sum(); }
+    public long getPromotions() { return promotions.sum(); }
+
+    public LatencyHistogram getGetLatency() { return getLatency; }
+    public LatencyHistogram getPutLatency() { return putLatency; }
+    public LatencyHistogram getRemoveLatency() { return removeLatency; }
+}
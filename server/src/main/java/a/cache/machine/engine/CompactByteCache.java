@@ -0,0 +1,603 @@
+package a.cache.machine.engine;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Cache specialized for byte keys and byte values, the way RESP clients
+ * send them.
+ * <p>
+ * Like {@link SegmentedLRUCache} the keys are spread over independently
+ * locked segments, each owning an equal share of {@code maxCapacityInBytes},
+ * and small budgets get fewer segments.
+ * A segment is an open addressing table of parallel arrays: the key hashes,
+ * the key bytes, the values and a reference bit per slot. Apart from the
+ * key and value arrays themselves an entry allocates nothing, there are no
+ * map nodes, strings or boxed weights to pay for.
+ * <p>
+ * Eviction is CLOCK within a segment: a hand sweeps the slots, clearing
+ * reference bits and evicting the first entry found without one. New and
+ * read entries get a second chance, which approximates LRU without
+ * reordering anything on reads.
+ * <p>
+ * Values are stored and returned as they are, without copying; callers
+ * must not change an array after handing it to {@link #put} or getting it
+ * from {@link #get}. Entries are charged their key and value length plus
+ * {@link #ENTRY_OVERHEAD}. Keys can also be looked up from a slice of a
+ * buffer, which allocates nothing unless listeners need the key.
+ */
+public class CompactByteCache implements ICache<ByteKey, byte[]>, SliceLookup<byte[]> {
+
+    public static final int DEFAULT_SEGMENTS = 16;
+    /** Bytes charged per entry on top of its key and value: two array headers and its table slot. */
+    public static final int ENTRY_OVERHEAD = 48;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final long maxCapacityInBytes;
+    private final Segment[] segments;
+    // Segments are picked with the high bits of the hash, tables index with the low ones
+    private final int segmentShift;
+    private final AtomicLong currentSizeInBytes;
+    private final CacheEventDispatcher events;
+    private final CacheMetrics metrics;
+    private volatile BiConsumer<? super ByteKey, ? super byte[]> evictionSink;
+
+    public CompactByteCache(long maxCapacityInBytes) {
+        this(maxCapacityInBytes, DEFAULT_SEGMENTS);
+    }
+
+    public CompactByteCache(long maxCapacityInBytes, int segmentCount) {
+        int count = Segments.count(segmentCount, maxCapacityInBytes);
+        this.maxCapacityInBytes = maxCapacityInBytes;
+        this.segments = new Segment[count];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+        // Spread the remainder over the first segments so budgets sum up exactly
+        long share = maxCapacityInBytes / count;
+        long remainder = maxCapacityInBytes % count;
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(share + (i < remainder ? 1 : 0));
+        }
+        this.currentSizeInBytes = new AtomicLong(0);
+        this.events = new CacheEventDispatcher();
+        this.metrics = new CacheMetrics();
+    }
+
+    @Override
+    public byte[] get(ByteKey key) {
+        long start = System.nanoTime();
+        try {
+            return doGet(key);
+        } finally {
+            metrics.recordGet(System.nanoTime() - start);
+        }
+    }
+
+    private byte[] doGet(ByteKey key) {
+        int hash = key.hashCode();
+        byte[] bytes = key.bytes();
+        Segment segment = segmentFor(hash);
+        byte[] value;
+        segment.lock.lock();
+        try {
+            value = segment.get(bytes, 0, bytes.length, hash);
+        } finally {
+            segment.lock.unlock();
+        }
+        if (value != null) {
+            events.hit(key);
+            metrics.incrementHits();
+        } else {
+            events.miss(key);
+            metrics.incrementMisses();
+        }
+        return value;
+    }
+
+    @Override
+    public byte[] get(byte[] array, int offset, int length) {
+        long start = System.nanoTime();
+        try {
+            return doGet(array, offset, length);
+        } finally {
+            metrics.recordGet(System.nanoTime() - start);
+        }
+    }
+
+    private byte[] doGet(byte[] array, int offset, int length) {
+        int hash = ByteKey.hash(array, offset, length);
+        Segment segment = segmentFor(hash);
+        byte[] value;
+        segment.lock.lock();
+        try {
+            value = segment.get(array, offset, length, hash);
+        } finally {
+            segment.lock.unlock();
+        }
+        // Only pay for the key object when someone listens
+        if (events.hasListeners()) {
+            ByteKey key = ByteKey.copyOf(array, offset, length);
+            if (value != null) {
+                events.hit(key);
+            } else {
+                events.miss(key);
+            }
+        }
+        if (value != null) {
+            metrics.incrementHits();
+        } else {
+            metrics.incrementMisses();
+        }
+        return value;
+    }
+
+    @Override
+    public byte[] put(ByteKey key, byte[] value) {
+        long start = System.nanoTime();
+        try {
+            return doPut(key, value);
+        } finally {
+            metrics.recordPut(System.nanoTime() - start);
+        }
+    }
+
+    private byte[] doPut(ByteKey key, byte[] value) {
+        return doPut(key, value, true);
+    }
+
+    private byte[] doPut(ByteKey key, byte[] value, boolean referenced) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Key or value cannot be null");
+        }
+        int hash = key.hashCode();
+        // The key's array is immutable, the table can share it
+        byte[] bytes = key.bytes();
+        Segment segment = segmentFor(hash);
+        List<Map.Entry<ByteKey, byte[]>> evicted;
+        byte[] previous;
+        segment.lock.lock();
+        try {
+            previous = segment.put(bytes, hash, value, referenced);
+            long delta = previous != null ? value.length - previous.length : weigh(bytes, value);
+            segment.sizeInBytes += delta;
+            currentSizeInBytes.addAndGet(delta);
+            evicted = evict(segment);
+        } finally {
+            segment.lock.unlock();
+        }
+        if (evicted != null) {
+            for (Map.Entry<ByteKey, byte[]> entry : evicted) {
+                events.eviction(entry.getKey(), entry.getValue());
+            }
+        }
+        return previous;
+    }
+
+    // Sweeps the clock hand until the segment fits its budget again, sparing
+    // the entry just written unless it is all that is left. Must be called
+    // while holding the segment lock.
+    private List<Map.Entry<ByteKey, byte[]>> evict(Segment segment) {
+        List<Map.Entry<ByteKey, byte[]>> evicted = null;
+        BiConsumer<? super ByteKey, ? super byte[]> sink = evictionSink;
+        while (segment.sizeInBytes > segment.maxSizeInBytes && segment.size > 0) {
+            int slot = segment.hand;
+            byte[] key = segment.keys[slot];
+            if (key == null || segment.referenced[slot] || (slot == segment.written && segment.size > 1)) {
+                segment.referenced[slot] = false;
+                segment.hand = (slot + 1) & (segment.keys.length - 1);
+                continue;
+            }
+            byte[] value = segment.values[slot];
+            long objectSize = weigh(key, value);
+            segment.sizeInBytes -= objectSize;
+            currentSizeInBytes.addAndGet(-objectSize);
+            metrics.recordEviction(objectSize);
+            // Only pay for the key object when someone listens
+            if (events.hasListeners()) {
+                if (evicted == null) {
+                    evicted = new ArrayList<>();
+                }
+                evicted.add(Map.entry(ByteKey.wrap(key), value));
+            }
+            if (sink != null) {
+                sink.accept(ByteKey.wrap(key), value);
+            }
+            // The hand stays, removing may shift the next entry into this slot
+            segment.removeAt(slot);
+        }
+        return evicted;
+    }
+
+    @Override
+    public byte[] remove(ByteKey key) {
+        long start = System.nanoTime();
+        try {
+            return doRemove(key);
+        } finally {
+            metrics.recordRemove(System.nanoTime() - start);
+        }
+    }
+
+    private byte[] doRemove(ByteKey key) {
+        int hash = key.hashCode();
+        byte[] bytes = key.bytes();
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.indexOf(bytes, 0, bytes.length, hash);
+            if (slot < 0) {
+                return null;
+            }
+            byte[] previous = segment.values[slot];
+            long objectSize = weigh(bytes, previous);
+            segment.removeAt(slot);
+            segment.sizeInBytes -= objectSize;
+            currentSizeInBytes.addAndGet(-objectSize);
+            return previous;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(ByteKey key) {
+        int hash = key.hashCode();
+        byte[] bytes = key.bytes();
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            return segment.indexOf(bytes, 0, bytes.length, hash) >= 0;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                currentSizeInBytes.addAndGet(-segment.sizeInBytes);
+                segment.sizeInBytes = 0;
+                segment.clear();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super ByteKey, ? super byte[]> action) {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                for (int i = 0; i < segment.keys.length; i++) {
+                    if (segment.keys[i] != null) {
+                        action.accept(ByteKey.wrap(segment.keys[i]), segment.values[i]);
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void setEvictionSink(BiConsumer<? super ByteKey, ? super byte[]> sink) {
+        this.evictionSink = sink;
+    }
+
+    public long currentSizeInBytes() {
+        return currentSizeInBytes.get();
+    }
+
+    public long maxCapacityInBytes() {
+        return maxCapacityInBytes;
+    }
+
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    private static long weigh(byte[] key, byte[] value) {
+        return (long) key.length + value.length + ENTRY_OVERHEAD;
+    }
+
+    private Segment segmentFor(int hash) {
+        // A shift by 32 would be a shift by 0 in Java
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    @Override
+    public void shutdown() throws CacheException {
+        events.shutdown();
+        snapshot().writeTo(SnapshotFile.DEFAULT_PATH);
+    }
+
+    /**
+     * Takes the tables of all segments as they are and marks them
+     * copy-on-write, which blocks writers for as long as it takes to lock
+     * every segment once. The first write to a segment while the snapshot
+     * holds its table copies the table; keys and values themselves are
+     * never changed, so the snapshot reads them without locking. Reads set
+     * reference bits in place, so those are copied right away.
+     */
+    @Override
+    public Snapshot snapshot() {
+        long start = System.nanoTime();
+        byte[][][] keys = new byte[segments.length][][];
+        byte[][][] values = new byte[segments.length][][];
+        boolean[][] referenced = new boolean[segments.length][];
+        for (Segment segment : segments) {
+            segment.lock.lock();
+        }
+        try {
+            for (int i = 0; i < segments.length; i++) {
+                keys[i] = segments[i].keys;
+                values[i] = segments[i].values;
+                referenced[i] = segments[i].referenced.clone();
+                segments[i].shares++;
+            }
+        } finally {
+            for (Segment segment : segments) {
+                segment.lock.unlock();
+            }
+        }
+        return new TableSnapshot(keys, values, referenced).captured(start);
+    }
+
+    // The segment tables as they were when the snapshot was taken, the
+    // reference bit of an entry is its policy
+    private final class TableSnapshot extends Snapshot {
+        private final byte[][][] keys;
+        private final byte[][][] values;
+        private final boolean[][] referenced;
+
+        TableSnapshot(byte[][][] keys, byte[][][] values, boolean[][] referenced) {
+            super(SnapshotFile.BYTES, metrics);
+            this.keys = keys;
+            this.values = values;
+            this.referenced = referenced;
+        }
+
+        @Override
+        long write(SnapshotFile.Writer writer, Predicate<Object> keep) throws CacheException {
+            long written = 0;
+            for (int s = 0; s < keys.length; s++) {
+                for (int i = 0; i < keys[s].length; i++) {
+                    byte[] key = keys[s][i];
+                    if (key == null || (keep != ALL && !keep.test(ByteKey.wrap(key)))) {
+                        continue;
+                    }
+                    writer.write(key, values[s][i], weigh(key, values[s][i]), referenced[s][i] ? 1 : 0);
+                    written++;
+                }
+                writer.endSegment();
+            }
+            return written;
+        }
+
+        // A segment whose table was copied meanwhile no longer shares it
+        @Override
+        void release() {
+            for (int s = 0; s < keys.length; s++) {
+                Segment segment = segments[s];
+                segment.lock.lock();
+                try {
+                    if (segment.keys == keys[s]) {
+                        segment.shares--;
+                    }
+                } finally {
+                    segment.lock.unlock();
+                }
+            }
+        }
+    }
+
+    public void loadFromDisk() throws CacheException {
+        loadSnapshot(SnapshotFile.DEFAULT_PATH);
+    }
+
+    @Override
+    public long loadSnapshot(Path path) throws CacheException {
+        long start = System.nanoTime();
+        long loaded = doLoadSnapshot(path);
+        metrics.recordLoad(System.nanoTime() - start);
+        return loaded;
+    }
+
+    // Segments are loaded in parallel, each takes the locks of the cache
+    // segments its keys belong to. Weights are recomputed, they only
+    // depend on the lengths. Entries keep their reference bits; where the
+    // clock hand stood is not kept, slots are placed by hash anyway.
+    private long doLoadSnapshot(Path path) throws CacheException {
+        return SnapshotFile.load(path, SnapshotFile.BYTES, (segment, key, value, weight, policy) ->
+                doPut(ByteKey.wrap(key), value, policy != 0));
+    }
+
+    @Override
+    public void addEventListener(ICacheEventListener listener) {
+        events.addListener(listener);
+    }
+
+    @Override
+    public void removeEventListener(ICacheEventListener listener) {
+        events.removeListener(listener);
+    }
+
+    // Lets tests wait for asynchronously delivered events
+    CacheEventDispatcher events() {
+        return events;
+    }
+
+    @Override
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Linear probing table over parallel arrays. A slot is empty while its
+     * key is null; deletion shifts the following entries back instead of
+     * leaving tombstones, so probes stop at the first empty slot.
+     */
+    private static final class Segment {
+        private final long maxSizeInBytes;
+        private final ReentrantLock lock = new ReentrantLock();
+        private long sizeInBytes;
+        private int size;
+        private int hand;
+        // Slot of the entry written last, kept up to date when removals shift it
+        private int written;
+        // Snapshots still reading the current keys and values arrays
+        private int shares;
+        private int[] hashes;
+        private byte[][] keys;
+        private byte[][] values;
+        private boolean[] referenced;
+
+        Segment(long maxSizeInBytes) {
+            this.maxSizeInBytes = maxSizeInBytes;
+            allocate(INITIAL_CAPACITY);
+        }
+
+        private void allocate(int capacity) {
+            shares = 0;
+            hashes = new int[capacity];
+            keys = new byte[capacity][];
+            values = new byte[capacity][];
+            referenced = new boolean[capacity];
+            size = 0;
+            hand = 0;
+            written = -1;
+        }
+
+        int indexOf(byte[] array, int offset, int length, int hash) {
+            int mask = keys.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                byte[] key = keys[i];
+                if (key == null) {
+                    return -1;
+                }
+                if (hashes[i] == hash && Arrays.equals(key, 0, key.length, array, offset, offset + length)) {
+                    return i;
+                }
+            }
+        }
+
+        byte[] get(byte[] array, int offset, int length, int hash) {
+            int slot = indexOf(array, offset, length, hash);
+            if (slot < 0) {
+                return null;
+            }
+            referenced[slot] = true;
+            return values[slot];
+        }
+
+        // Copies the arrays a snapshot is reading before they are changed
+        private void copyOnWrite() {
+            if (shares > 0) {
+                keys = keys.clone();
+                values = values.clone();
+                shares = 0;
+            }
+        }
+
+        /** Stores the entry, returns the value it replaced or null. */
+        byte[] put(byte[] key, int hash, byte[] value, boolean referenced) {
+            copyOnWrite();
+            int slot = indexOf(key, 0, key.length, hash);
+            if (slot >= 0) {
+                byte[] previous = values[slot];
+                values[slot] = value;
+                this.referenced[slot] = referenced;
+                written = slot;
+                return previous;
+            }
+            // Keep the load factor at 3/4 so probe sequences stay short
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(keys.length * 2);
+            }
+            insert(key, hash, value, referenced);
+            return null;
+        }
+
+        private void insert(byte[] key, int hash, byte[] value, boolean referenced) {
+            int mask = keys.length - 1;
+            int slot = hash & mask;
+            while (keys[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = hash;
+            keys[slot] = key;
+            values[slot] = value;
+            this.referenced[slot] = referenced;
+            written = slot;
+            size++;
+        }
+
+        private void resize(int capacity) {
+            int[] oldHashes = hashes;
+            byte[][] oldKeys = keys;
+            byte[][] oldValues = values;
+            boolean[] oldReferenced = referenced;
+            allocate(capacity);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    insert(oldKeys[i], oldHashes[i], oldValues[i], oldReferenced[i]);
+                }
+            }
+        }
+
+        void removeAt(int slot) {
+            copyOnWrite();
+            int mask = keys.length - 1;
+            int hole = slot;
+            for (int i = (hole + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+                int home = hashes[i] & mask;
+                // The entry may move back if the hole lies between its home slot and where it is
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    hashes[hole] = hashes[i];
+                    keys[hole] = keys[i];
+                    values[hole] = values[i];
+                    referenced[hole] = referenced[i];
+                    if (written == i) {
+                        written = hole;
+                    }
+                    hole = i;
+                }
+            }
+            hashes[hole] = 0;
+            keys[hole] = null;
+            values[hole] = null;
+            referenced[hole] = false;
+            if (written == hole) {
+                written = -1;
+            }
+            size--;
+        }
+
+        void clear() {
+            allocate(INITIAL_CAPACITY);
+        }
+    }
+}
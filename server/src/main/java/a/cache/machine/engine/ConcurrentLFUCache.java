@@ -0,0 +1,273 @@
+package a.cache.machine.engine;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import a.cache.machine.engine.weigher.SerializedWeigher;
+
+/**
+ * LFU cache that scales across cores.
+ * <p>
+ * Keys are spread over independently locked {@link LFUCache} segments, each
+ * with its own frequency buckets, minimum frequency and an equal share of the
+ * byte budget; budgets too small to share get fewer segments. A get or put only locks the segment that owns the key, so the
+ * O(1) bucket maintenance of different segments runs in parallel. Eviction
+ * picks the least frequently used entry of the segment being written to.
+ * Bulk operations split the batch by segment and lock each segment once.
+ */
+public class ConcurrentLFUCache<K, V> implements ICache<K, V> {
+
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    private final long maxSizeInBytes;
+    private final LFUCache<K, V>[] segments;
+    private final int segmentMask;
+    private final CacheEventDispatcher events;
+    private final CacheMetrics metrics;
+
+    public ConcurrentLFUCache(long maxSizeInBytes) {
+        this(maxSizeInBytes, DEFAULT_SEGMENTS);
+    }
+
+    public ConcurrentLFUCache(long maxSizeInBytes, int segmentCount) {
+        this(maxSizeInBytes, segmentCount, new SerializedWeigher());
+    }
+
+    public ConcurrentLFUCache(long maxSizeInBytes, int segmentCount, Weigher<? super K, ? super V> weigher) {
+        // A power of two so the segment can be picked with a mask, and no more
+        // than the budget can give a useful share
+        int count = Segments.count(segmentCount, maxSizeInBytes);
+        @SuppressWarnings("unchecked")
+        LFUCache<K, V>[] segments = (LFUCache<K, V>[]) new LFUCache<?, ?>[count];
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.segments = segments;
+        this.segmentMask = count - 1;
+        this.events = new CacheEventDispatcher();
+        this.metrics = new CacheMetrics();
+        long share = maxSizeInBytes / count;
+        long remainder = maxSizeInBytes % count;
+        for (int i = 0; i < count; i++) {
+            segments[i] = new LFUCache<>(share + (i < remainder ? 1 : 0), weigher, events, metrics);
+        }
+    }
+
+    @Override
+    public V get(K key) {
+        return segmentFor(key).get(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Key or value cannot be null");
+        }
+        return segmentFor(key).put(key, value);
+    }
+
+    @Override
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        List<List<K>> bySegment = new ArrayList<>(segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            bySegment.add(new ArrayList<>());
+        }
+        for (K key : keys) {
+            bySegment.get(segmentIndex(key)).add(key);
+        }
+        Map<K, V> found = new HashMap<>();
+        for (int i = 0; i < segments.length; i++) {
+            if (!bySegment.get(i).isEmpty()) {
+                found.putAll(segments[i].getAll(bySegment.get(i)));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        List<Map<K, V>> bySegment = splitBySegment(entries);
+        for (int i = 0; i < segments.length; i++) {
+            if (!bySegment.get(i).isEmpty()) {
+                segments[i].putAll(bySegment.get(i));
+            }
+        }
+    }
+
+    @Override
+    public boolean putAllIfAbsent(Map<? extends K, ? extends V> entries) {
+        List<Map<K, V>> bySegment = splitBySegment(entries);
+        // Hold every segment involved, always in index order so two batches cannot deadlock
+        int locked = 0;
+        try {
+            for (; locked < segments.length; locked++) {
+                if (!bySegment.get(locked).isEmpty()) {
+                    segments[locked].lock().lock();
+                }
+            }
+            for (K key : entries.keySet()) {
+                if (segmentFor(key).containsKey(key)) {
+                    return false;
+                }
+            }
+            putAll(entries);
+            return true;
+        } finally {
+            for (int i = 0; i < locked; i++) {
+                if (!bySegment.get(i).isEmpty()) {
+                    segments[i].lock().unlock();
+                }
+            }
+        }
+    }
+
+    private List<Map<K, V>> splitBySegment(Map<? extends K, ? extends V> entries) {
+        List<Map<K, V>> bySegment = new ArrayList<>(segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            bySegment.add(new HashMap<>());
+        }
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                throw new IllegalArgumentException("Key or value cannot be null");
+            }
+            bySegment.get(segmentIndex(entry.getKey())).put(entry.getKey(), entry.getValue());
+        }
+        return bySegment;
+    }
+
+    @Override
+    public V remove(K key) throws CacheException {
+        return segmentFor(key).remove(key);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return segmentFor(key).containsKey(key);
+    }
+
+    @Override
+    public void clear() throws CacheException {
+        for (LFUCache<K, V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (LFUCache<K, V> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (LFUCache<K, V> segment : segments) {
+            segment.forEach(action);
+        }
+    }
+
+    @Override
+    public void setEvictionSink(BiConsumer<? super K, ? super V> sink) {
+        for (LFUCache<K, V> segment : segments) {
+            segment.setEvictionSink(sink);
+        }
+    }
+
+    public long currentSizeInBytes() {
+        long size = 0;
+        for (LFUCache<K, V> segment : segments) {
+            size += segment.currentSizeInBytes();
+        }
+        return size;
+    }
+
+    public long maxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    private LFUCache<K, V> segmentFor(Object key) {
+        return segments[segmentIndex(key)];
+    }
+
+    private int segmentIndex(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & segmentMask;
+    }
+
+    @Override
+    public void shutdown() throws CacheException {
+        events.shutdown();
+        snapshot().writeTo(SnapshotFile.DEFAULT_PATH);
+    }
+
+    // One segment is held at a time, so only the gets and puts of that
+    // segment wait, and each segment is consistent in itself, though not
+    // with the others. One snapshot segment per cache segment.
+    @Override
+    public Snapshot snapshot() {
+        Snapshot.Copied snapshot = new Snapshot.Copied(SnapshotFile.OBJECTS, metrics, size());
+        for (LFUCache<K, V> segment : segments) {
+            long start = System.nanoTime();
+            segment.lock().lock();
+            try {
+                segment.copyTo(snapshot);
+            } finally {
+                segment.lock().unlock();
+                snapshot.held(start);
+            }
+            snapshot.endSegment();
+        }
+        return snapshot;
+    }
+
+    public void loadFromDisk() throws CacheException {
+        loadSnapshot(SnapshotFile.DEFAULT_PATH);
+    }
+
+    @Override
+    public long loadSnapshot(Path path) throws CacheException {
+        long start = System.nanoTime();
+        long loaded = doLoadSnapshot(path);
+        metrics.recordLoad(System.nanoTime() - start);
+        return loaded;
+    }
+
+    // Nodes keep their frequencies and, within a segment, their order
+    private long doLoadSnapshot(Path path) throws CacheException {
+        SnapshotFile.Contents<LFUNode<K, V>> contents = SnapshotFile.read(path, SnapshotFile.OBJECTS, LFUCache::decode);
+        for (LFUNode<K, V> node : contents.entries) {
+            segmentFor(node.key).restore(node);
+        }
+        return contents.entries.size();
+    }
+
+    @Override
+    public void addEventListener(ICacheEventListener listener) {
+        events.addListener(listener);
+    }
+
+    @Override
+    public void removeEventListener(ICacheEventListener listener) {
+        events.removeListener(listener);
+    }
+
+    // Lets tests wait for asynchronously delivered events
+    CacheEventDispatcher events() {
+        return events;
+    }
+
+    @Override
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,563 @@
+package a.cache.machine.engine;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Log-structured store of byte keys and values on local disk, the second
+ * tier behind a memory engine in {@link TieredCache}.
+ * <p>
+ * Entries are appended to the active segment, a file of fixed size mapped
+ * with {@link FileChannel#map}; a record is its key length, value length,
+ * key and value. When the active segment is full it is sealed and a new one
+ * is started. An in-memory index maps every key to its latest record, so a
+ * lookup costs one hash lookup and one copy out of the mapping, and reads
+ * never lock. Overwritten and removed records are dead space: a background
+ * thread compacts a sealed segment once at least half of it is dead, copying
+ * its live records to the active segment. Once the tier holds as many
+ * segments as {@code maxSizeInBytes} allows, a full active segment is
+ * followed by the oldest one, dropping whatever it still holds, so the tier
+ * evicts first in, first out.
+ * <p>
+ * Segments are never unmapped, Java only does that when the mapping is
+ * garbage collected. Compacted and dropped segments are reused instead, so
+ * the tier never has more than {@code maxSizeInBytes} mapped. A reused
+ * segment gets a new generation, and a read that raced with the reuse sees
+ * the generation change and looks the key up again.
+ * <p>
+ * The index is not persisted, the tier starts empty and deletes leftover
+ * segments in its directory.
+ */
+public final class DiskTier implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(DiskTier.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_COMPACTION_MILLIS = 1000;
+    private static final int RECORD_HEADER_SIZE = 8;
+    // A sealed segment is compacted once this share of its records is dead
+    private static final int DEAD_PERCENT = 50;
+    private static final String SUFFIX = ".seg";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final ConcurrentHashMap<ByteKey, Location> index;
+    // Oldest first, the last one is active
+    private final List<Segment> segments;
+    // Compacted or cleared, ready to be reused
+    private final Queue<Segment> free;
+    // Guards appends, the segment lists and the segment count
+    private final ReentrantLock lock;
+    // Compaction runs on one thread at a time
+    private final ReentrantLock compactionLock;
+    private final AtomicLong liveBytes;
+    private final LongAdder compactions;
+    private final LongAdder drops;
+    private final ScheduledExecutorService compactor;
+    private volatile BiConsumer<byte[], byte[]> dropSink;
+    // Segment files, in use, free or being compacted
+    private int segmentCount;
+    private boolean closed;
+
+    public DiskTier(Path directory, long maxSizeInBytes) throws CacheException {
+        this(directory, maxSizeInBytes, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_MILLIS);
+    }
+
+    /**
+     * @param compactionMillis how often the background thread looks for
+     *        segments to compact, 0 to leave it to {@link #compact()}
+     */
+    public DiskTier(Path directory, long maxSizeInBytes, int segmentSize, long compactionMillis)
+            throws CacheException {
+        if (segmentSize <= RECORD_HEADER_SIZE || maxSizeInBytes < 2L * segmentSize) {
+            throw new IllegalArgumentException("Disk tier of " + maxSizeInBytes
+                    + " bytes cannot hold two segments of " + segmentSize + " bytes");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.min(Integer.MAX_VALUE, maxSizeInBytes / segmentSize);
+        this.index = new ConcurrentHashMap<>();
+        this.segments = new ArrayList<>();
+        this.free = new ArrayDeque<>();
+        this.lock = new ReentrantLock();
+        this.compactionLock = new ReentrantLock();
+        this.liveBytes = new AtomicLong();
+        this.compactions = new LongAdder();
+        this.drops = new LongAdder();
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+                for (Path leftover : leftovers) {
+                    Files.delete(leftover);
+                }
+            }
+        } catch (IOException e) {
+            throw new CacheException("Failed to prepare disk tier in " + directory, e);
+        }
+        segments.add(openSegment());
+        if (compactionMillis > 0) {
+            this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "disk-tier-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(this::compactQuietly, compactionMillis, compactionMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            this.compactor = null;
+        }
+    }
+
+    /**
+     * Appends an entry, replacing an older record of the same key. The tier
+     * owns both arrays afterwards.
+     *
+     * @return false if the entry is larger than a segment, or there is no
+     *         segment to drop for it, and was not stored, an older record of
+     *         the key is dropped then
+     */
+    public boolean put(byte[] key, byte[] value) throws CacheException {
+        int length = RECORD_HEADER_SIZE + key.length + value.length;
+        if (length > segmentSize) {
+            remove(key);
+            return false;
+        }
+        lock.lock();
+        try {
+            Location location = append(key, value, length);
+            if (location == null) {
+                remove(key);
+                return false;
+            }
+            Location previous = index.put(ByteKey.wrap(key), location);
+            if (previous != null) {
+                release(previous);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The value of {@code key}, or null. Does not lock. */
+    public byte[] get(byte[] key) {
+        return read(ByteKey.wrap(key));
+    }
+
+    private byte[] read(ByteKey key) {
+        while (true) {
+            Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            byte[] value = location.value();
+            if (value != null) {
+                return value;
+            }
+            // The record moved or was dropped and its segment reused, look again
+        }
+    }
+
+    /** Removes {@code key} and returns its value, or null. Does not lock. */
+    public byte[] take(byte[] key) {
+        ByteKey indexed = ByteKey.wrap(key);
+        while (true) {
+            Location location = index.get(indexed);
+            if (location == null) {
+                return null;
+            }
+            // Read before the record is given up, its segment may be reused right after
+            byte[] value = location.value();
+            if (value != null && index.remove(indexed, location)) {
+                release(location);
+                return value;
+            }
+        }
+    }
+
+    public boolean remove(byte[] key) {
+        Location location = index.remove(ByteKey.wrap(key));
+        if (location == null) {
+            return false;
+        }
+        release(location);
+        return true;
+    }
+
+    public boolean containsKey(byte[] key) {
+        return index.containsKey(ByteKey.wrap(key));
+    }
+
+    /** Visits every entry, entries that change meanwhile may or may not be seen. */
+    public void forEach(BiConsumer<byte[], byte[]> action) {
+        for (Map.Entry<ByteKey, Location> entry : index.entrySet()) {
+            byte[] value = entry.getValue().value();
+            if (value == null) {
+                value = read(entry.getKey());
+            }
+            if (value != null) {
+                action.accept(entry.getKey().bytes(), value);
+            }
+        }
+    }
+
+    /**
+     * Hands every entry dropped with the oldest segment, or lost by a
+     * compaction that had no room left, to {@code sink}; null stops it. The
+     * sink runs while the tier holds its lock.
+     */
+    public void setDropSink(BiConsumer<byte[], byte[]> sink) {
+        this.dropSink = sink;
+    }
+
+    public void clear() {
+        compactionLock.lock();
+        lock.lock();
+        try {
+            index.clear();
+            liveBytes.set(0);
+            // Records of all segments are dead now, the files are kept for reuse
+            for (Segment segment : segments) {
+                recycle(segment);
+            }
+            segments.clear();
+            segments.add(free.poll());
+        } finally {
+            lock.unlock();
+            compactionLock.unlock();
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /** Bytes of the records the index points to. */
+    public long liveBytes() {
+        return liveBytes.get();
+    }
+
+    /** Bytes of disk taken by segment files. */
+    public long diskSizeInBytes() {
+        lock.lock();
+        try {
+            return (long) segmentCount * segmentSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Segments compacted or cleared and not reused yet. */
+    public int freeSegments() {
+        lock.lock();
+        try {
+            return free.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    /** Entries dropped over the budget. */
+    public long getDrops() {
+        return drops.sum();
+    }
+
+    /**
+     * Compacts the sealed segment with the most dead space, if at least half
+     * of it is dead, and keeps it for reuse.
+     *
+     * @return the number of segments freed, 0 or 1
+     */
+    public int compact() throws CacheException {
+        compactionLock.lock();
+        try {
+            Segment victim = takeVictim();
+            if (victim == null) {
+                return 0;
+            }
+            evacuate(victim);
+            lock.lock();
+            try {
+                recycle(victim);
+            } finally {
+                lock.unlock();
+            }
+            compactions.increment();
+            return 1;
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (CacheException | RuntimeException e) {
+            logger.error("Disk tier compaction failed: " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    // The sealed segment with the least live bytes, if enough of it is dead. Taken
+    // out of the list, so appends cannot drop it while its records are moved.
+    private Segment takeVictim() {
+        lock.lock();
+        try {
+            Segment victim = null;
+            for (int i = 0; i < segments.size() - 1; i++) {
+                Segment segment = segments.get(i);
+                long live = segment.live.get();
+                if (live * 100 <= (long) segment.written * (100 - DEAD_PERCENT)
+                        && (victim == null || live < victim.live.get())) {
+                    victim = segment;
+                }
+            }
+            if (victim != null) {
+                segments.remove(victim);
+            }
+            return victim;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves the records the index still points to out of the segment to the active segment
+    private void evacuate(Segment segment) throws CacheException {
+        MappedByteBuffer buffer = segment.buffer;
+        for (int offset = 0; offset < segment.written; ) {
+            int keyLength = buffer.getInt(offset);
+            int valueLength = buffer.getInt(offset + 4);
+            int length = RECORD_HEADER_SIZE + keyLength + valueLength;
+            byte[] key = new byte[keyLength];
+            buffer.get(offset + RECORD_HEADER_SIZE, key);
+            ByteKey indexed = ByteKey.wrap(key);
+            Location location = index.get(indexed);
+            if (location != null && location.isAt(segment, offset)) {
+                lock.lock();
+                try {
+                    byte[] value = location.value();
+                    Location moved = append(key, value, length);
+                    if (moved == null) {
+                        // Every other segment is in use, the record goes like a dropped one
+                        if (index.remove(indexed, location)) {
+                            release(location);
+                            dropped(key, value);
+                        }
+                    } else if (index.replace(indexed, location, moved)) {
+                        release(location);
+                    } else {
+                        // A put or take in the meantime wins, the copy is dead then
+                        release(moved);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            offset += length;
+        }
+    }
+
+    // Must be called while holding the lock, null if there is no room for the record
+    private Location append(byte[] key, byte[] value, int length) throws CacheException {
+        if (closed) {
+            throw new CacheException("Disk tier is closed");
+        }
+        Segment active = segments.get(segments.size() - 1);
+        if (segmentSize - active.written < length) {
+            active = nextSegment();
+            if (active == null) {
+                return null;
+            }
+            segments.add(active);
+        }
+        int offset = active.written;
+        MappedByteBuffer buffer = active.buffer;
+        buffer.putInt(offset, key.length);
+        buffer.putInt(offset + 4, value.length);
+        buffer.put(offset + RECORD_HEADER_SIZE, key);
+        buffer.put(offset + RECORD_HEADER_SIZE + key.length, value);
+        active.written += length;
+        active.live.addAndGet(length);
+        liveBytes.addAndGet(length);
+        return new Location(active, offset, key.length, length);
+    }
+
+    // A free segment, a new one within the budget, or else the oldest one with its records dropped
+    private Segment nextSegment() throws CacheException {
+        Segment next = free.poll();
+        if (next != null) {
+            return next;
+        }
+        if (segmentCount < maxSegments) {
+            return openSegment();
+        }
+        // The only sealed segment is being compacted
+        if (segments.size() < 2) {
+            return null;
+        }
+        Segment oldest = segments.remove(0);
+        drop(oldest);
+        recycle(oldest);
+        return free.poll();
+    }
+
+    // Must be called while holding the lock
+    private void drop(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        for (int offset = 0; offset < segment.written; ) {
+            int keyLength = buffer.getInt(offset);
+            int length = RECORD_HEADER_SIZE + keyLength + buffer.getInt(offset + 4);
+            byte[] key = new byte[keyLength];
+            buffer.get(offset + RECORD_HEADER_SIZE, key);
+            ByteKey indexed = ByteKey.wrap(key);
+            Location location = index.get(indexed);
+            // A take in the meantime wins
+            if (location != null && location.isAt(segment, offset) && index.remove(indexed, location)) {
+                release(location);
+                dropped(key, location.value());
+            }
+            offset += length;
+        }
+    }
+
+    private void dropped(byte[] key, byte[] value) {
+        drops.increment();
+        BiConsumer<byte[], byte[]> sink = dropSink;
+        if (sink != null) {
+            sink.accept(key, value);
+        }
+    }
+
+    // Must be called while holding the lock and once the index no longer points into the segment
+    private void recycle(Segment segment) {
+        // Readers still holding a location see the new generation and look again
+        segment.generation++;
+        VarHandle.storeStoreFence();
+        segment.written = 0;
+        segment.live.set(0);
+        free.add(segment);
+    }
+
+    private void release(Location location) {
+        location.segment.live.addAndGet(-location.length);
+        liveBytes.addAndGet(-location.length);
+    }
+
+    private Segment openSegment() throws CacheException {
+        Path path = directory.resolve(String.format("tier-%08d%s", segmentCount, SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping outlives the channel
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            segmentCount++;
+            return new Segment(path, buffer);
+        } catch (IOException e) {
+            throw new CacheException("Failed to create disk tier segment " + path, e);
+        }
+    }
+
+    // The mapping stays valid after the file is gone, until it is garbage collected
+    private void delete(Segment segment) {
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            logger.warn("Failed to delete disk tier segment " + segment.path + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    /** Stops compacting and deletes the segment files, the tier cannot be used afterwards. */
+    @Override
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        compactionLock.lock();
+        lock.lock();
+        try {
+            closed = true;
+            index.clear();
+            liveBytes.set(0);
+            segments.forEach(this::delete);
+            free.forEach(this::delete);
+            segments.clear();
+            free.clear();
+        } finally {
+            lock.unlock();
+            compactionLock.unlock();
+        }
+    }
+
+    private static final class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+        // Only changed by the lock holder, the records below it are immutable until the segment is reused
+        int written;
+        final AtomicLong live;
+        // Bumped by the lock holder whenever the segment is reused
+        volatile int generation;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+            this.live = new AtomicLong();
+        }
+    }
+
+    // Where the latest record of a key is, in one generation of a segment
+    private static final class Location {
+        final Segment segment;
+        final int generation;
+        final int offset;
+        final int keyLength;
+        final int length;
+
+        Location(Segment segment, int offset, int keyLength, int length) {
+            this.segment = segment;
+            this.generation = segment.generation;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.length = length;
+        }
+
+        boolean isAt(Segment segment, int offset) {
+            return this.segment == segment && this.generation == segment.generation && this.offset == offset;
+        }
+
+        // Null if the segment was reused, the copy may then hold another record
+        byte[] value() {
+            if (segment.generation != generation) {
+                return null;
+            }
+            byte[] value = new byte[length - RECORD_HEADER_SIZE - keyLength];
+            segment.buffer.get(offset + RECORD_HEADER_SIZE + keyLength, value);
+            VarHandle.loadLoadFence();
+            return segment.generation == generation ? value : null;
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package a.cache.machine.engine;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Adds per-key time to live to any {@link ICache} engine.
+ * <p>
+ * Deadlines are kept next to the engine in a {@link TimerWheel}, which a
+ * background thread advances every tick, removing whatever came due and
+ * reporting it to listeners as an expiration. Reads also check the deadline,
+ * so an expired key is never served even if the wheel has not reached it yet.
+ * Keys without a time to live cost a single map lookup on write and none of
+ * the wheel's bookkeeping. Writes to the same key are serialized on a lock
+ * stripe so the value and its deadline always change together.
+ * <p>
+ * Keys the engine evicts drop their deadline through the engine's eviction
+ * sink, so the wheel does not fill up with timers of keys that are gone.
+ * Engines without an eviction sink leave such timers until they come due.
+ * <p>
+ * {@link #snapshot()} stores the absolute deadline of every key that has
+ * one along with the engine's entries, and {@link #loadSnapshot(Path)} arms
+ * them again, dropping the keys whose deadline passed while the cache was
+ * down. The engine's own {@link #shutdown()} snapshot has no room for
+ * deadlines, so the keys that have a time to live are removed before it is
+ * written rather than brought back as keys that never expire.
+ * <p>
+ * Slice lookups are passed through to an engine that supports them while no
+ * key has a time to live; otherwise the key is created to check its deadline,
+ * which requires the cache to be keyed by {@link ByteKey}.
+ */
+public final class ExpiringCache<K, V> implements ICache<K, V>, SliceLookup<V> {
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    private static final int LOCK_STRIPES = 64;
+
+    private final ICache<K, V> delegate;
+    private final LongSupplier clock;
+    private final TimerWheel<K> wheel;
+    private final ConcurrentHashMap<K, TimerWheel.Timer<K>> timers;
+    private final ReentrantLock[] locks;
+    private final ReentrantLock wheelLock;
+    private final CacheEventDispatcher events;
+    private final ScheduledExecutorService ticker;
+
+    public ExpiringCache(ICache<K, V> delegate) {
+        this(delegate, DEFAULT_TICK_MILLIS, System::currentTimeMillis, true);
+    }
+
+    ExpiringCache(ICache<K, V> delegate, long tickMillis, LongSupplier clock, boolean startTicker) {
+        this.delegate = delegate;
+        this.clock = clock;
+        this.wheel = new TimerWheel<>(tickMillis, clock.getAsLong());
+        this.timers = new ConcurrentHashMap<>();
+        this.locks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.wheelLock = new ReentrantLock();
+        this.events = new CacheEventDispatcher();
+        if (startTicker) {
+            this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cache-expiry");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ticker.scheduleAtFixedRate(this::expireEntries, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.ticker = null;
+        }
+        try {
+            delegate.setEvictionSink((key, value) -> evicted(key));
+        } catch (CacheException e) {
+            // Timers of evicted keys stay until their deadline
+        }
+    }
+
+    // Called by the engine, possibly under its lock, so only the wheel lock is taken
+    private void evicted(K key) {
+        if (!timers.isEmpty()) {
+            cancel(timers.remove(key));
+        }
+    }
+
+    @Override
+    public V get(K key) throws CacheException {
+        TimerWheel.Timer<K> timer = timers.get(key);
+        if (timer != null && timer.deadline <= clock.getAsLong()) {
+            expire(key, timer);
+            events.miss(key);
+            delegate.getMetrics().incrementMisses();
+            return null;
+        }
+        return delegate.get(key);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(byte[] array, int offset, int length) throws CacheException {
+        if (timers.isEmpty() && delegate instanceof SliceLookup) {
+            return ((SliceLookup<V>) delegate).get(array, offset, length);
+        }
+        return get((K) ByteKey.copyOf(array, offset, length));
+    }
+
+    @Override
+    public V put(K key, V value) throws CacheException {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            V previous = delegate.put(key, value);
+            // Skip the lookup while no key has a time to live
+            if (!timers.isEmpty()) {
+                cancel(timers.remove(key));
+            }
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<K, V> getAll(Collection<? extends K> keys) throws CacheException {
+        if (!timers.isEmpty()) {
+            long now = clock.getAsLong();
+            for (K key : keys) {
+                TimerWheel.Timer<K> timer = timers.get(key);
+                if (timer != null && timer.deadline <= now) {
+                    // Gone before the engine is asked, so it counts the miss
+                    expire(key, timer);
+                }
+            }
+        }
+        return delegate.getAll(keys);
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) throws CacheException {
+        boolean[] stripes = lockAll(entries.keySet());
+        try {
+            delegate.putAll(entries);
+            cancelAll(entries.keySet());
+        } finally {
+            unlockAll(stripes);
+        }
+    }
+
+    @Override
+    public boolean putAllIfAbsent(Map<? extends K, ? extends V> entries) throws CacheException {
+        boolean[] stripes = lockAll(entries.keySet());
+        try {
+            long now = clock.getAsLong();
+            for (K key : entries.keySet()) {
+                TimerWheel.Timer<K> timer = timers.get(key);
+                if (timer != null && timer.deadline <= now) {
+                    // An expired key must not block the write
+                    expire(key, timer);
+                }
+            }
+            if (!delegate.putAllIfAbsent(entries)) {
+                return false;
+            }
+            cancelAll(entries.keySet());
+            return true;
+        } finally {
+            unlockAll(stripes);
+        }
+    }
+
+    // Must be called while holding the keys' lock stripes
+    private void cancelAll(Collection<? extends K> keys) {
+        if (!timers.isEmpty()) {
+            for (K key : keys) {
+                cancel(timers.remove(key));
+            }
+        }
+    }
+
+    // Takes the stripes of all keys in index order, so two batches cannot deadlock
+    private boolean[] lockAll(Collection<?> keys) {
+        boolean[] stripes = new boolean[LOCK_STRIPES];
+        for (Object key : keys) {
+            stripes[stripe(key)] = true;
+        }
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            if (stripes[i]) {
+                locks[i].lock();
+            }
+        }
+        return stripes;
+    }
+
+    private void unlockAll(boolean[] stripes) {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            if (stripes[i]) {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    @Override
+    public V put(K key, V value, long ttlMillis) throws CacheException {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive");
+        }
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            V previous = delegate.put(key, value);
+            schedule(key, ttlMillis);
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean expire(K key, long ttlMillis) throws CacheException {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (!containsKey(key)) {
+                return false;
+            }
+            if (ttlMillis <= 0) {
+                // Already past its deadline, same as deleting the key
+                cancel(timers.remove(key));
+                delegate.remove(key);
+            } else {
+                schedule(key, ttlMillis);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long ttl(K key) throws CacheException {
+        if (!containsKey(key)) {
+            return NO_KEY;
+        }
+        TimerWheel.Timer<K> timer = timers.get(key);
+        if (timer == null) {
+            return NO_EXPIRY;
+        }
+        return Math.max(0, timer.deadline - clock.getAsLong());
+    }
+
+    @Override
+    public boolean persist(K key) throws CacheException {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (!containsKey(key)) {
+                return false;
+            }
+            TimerWheel.Timer<K> timer = timers.remove(key);
+            cancel(timer);
+            return timer != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public V remove(K key) throws CacheException {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (!timers.isEmpty()) {
+                cancel(timers.remove(key));
+            }
+            return delegate.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        TimerWheel.Timer<K> timer = timers.get(key);
+        if (timer != null && timer.deadline <= clock.getAsLong()) {
+            return false;
+        }
+        return delegate.containsKey(key);
+    }
+
+    @Override
+    public void clear() throws CacheException {
+        wheelLock.lock();
+        try {
+            timers.clear();
+            wheel.clear();
+        } finally {
+            wheelLock.unlock();
+        }
+        delegate.clear();
+    }
+
+    /** Number of entries in the engine, expired keys the wheel has not reached yet included. */
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    /** Visits the entries of the engine, skipping keys whose deadline has passed. */
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) throws CacheException {
+        long now = clock.getAsLong();
+        delegate.forEach((k, v) -> {
+            TimerWheel.Timer<K> timer = timers.get(k);
+            if (timer == null || timer.deadline > now) {
+                action.accept(k, v);
+            }
+        });
+    }
+
+    // Deadlines are looked up as the entries are written, under the key's
+    // stripe so they match the value. A key that expired or left the engine
+    // since the capture is left out, rather than written without a deadline.
+    @Override
+    public Snapshot snapshot() throws CacheException {
+        Snapshot captured = delegate.snapshot();
+        return new Snapshot(captured) {
+            @Override
+            long write(SnapshotFile.Writer writer, Predicate<Object> keep) throws CacheException {
+                Map<Object, Long> deadlines = new HashMap<>();
+                long now = clock.getAsLong();
+                long written = captured.write(writer, keep.and(key -> deadline(key, now, deadlines)));
+                writer.deadlines(SnapshotFile.encodeDeadlines(deadlines));
+                return written;
+            }
+
+            @Override
+            void release() {
+                captured.release();
+            }
+        };
+    }
+
+    // Whether the key is still live, its deadline if any goes into deadlines
+    @SuppressWarnings("unchecked")
+    private boolean deadline(Object key, long now, Map<Object, Long> deadlines) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            TimerWheel.Timer<K> timer = timers.get(key);
+            if (timer == null) {
+                return delegate.containsKey((K) key);
+            }
+            if (timer.deadline <= now) {
+                return false;
+            }
+            deadlines.put(key, timer.deadline);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Loads the engine's entries, then arms the deadlines stored with them. */
+    @Override
+    public long loadSnapshot(Path path) throws CacheException {
+        long loaded = delegate.loadSnapshot(path);
+        long now = clock.getAsLong();
+        for (Map.Entry<K, Long> deadline : SnapshotFile.<K>readDeadlines(path).entrySet()) {
+            K key = deadline.getKey();
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                if (deadline.getValue() > now) {
+                    // A key the engine could not keep has no timer to arm
+                    if (delegate.containsKey(key)) {
+                        scheduleAt(key, deadline.getValue());
+                    }
+                } else if (delegate.remove(key) != null) {
+                    // Expired while the cache was down
+                    loaded--;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return loaded;
+    }
+
+    /** Number of keys with a time to live. */
+    public int expiringSize() {
+        return timers.size();
+    }
+
+    /** Removes every entry whose deadline has passed, called by the ticker on every tick. */
+    void expireEntries() {
+        List<TimerWheel.Timer<K>> due = new ArrayList<>();
+        wheelLock.lock();
+        try {
+            wheel.advance(clock.getAsLong(), due::add);
+        } finally {
+            wheelLock.unlock();
+        }
+        for (TimerWheel.Timer<K> timer : due) {
+            try {
+                expire(timer.key, timer);
+            } catch (CacheException | RuntimeException e) {
+                // Keep the ticker alive, the key is retried on its next read
+            }
+        }
+    }
+
+    // Removes the entry if the timer still belongs to it, a newer write may
+    // have replaced or dropped the deadline since the timer came due
+    private void expire(K key, TimerWheel.Timer<K> timer) throws CacheException {
+        V value;
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (!timers.remove(key, timer)) {
+                return;
+            }
+            cancel(timer);
+            value = delegate.remove(key);
+        } finally {
+            lock.unlock();
+        }
+        if (value != null) {
+            delegate.getMetrics().incrementExpirations();
+            events.expiration(key, value);
+        }
+    }
+
+    // Must be called while holding the key's lock stripe
+    private void schedule(K key, long ttlMillis) {
+        scheduleAt(key, clock.getAsLong() + ttlMillis);
+    }
+
+    private void scheduleAt(K key, long deadline) {
+        TimerWheel.Timer<K> timer = new TimerWheel.Timer<>(key, deadline);
+        TimerWheel.Timer<K> previous = timers.put(key, timer);
+        wheelLock.lock();
+        try {
+            if (previous != null) {
+                wheel.cancel(previous);
+            }
+            wheel.schedule(timer);
+        } finally {
+            wheelLock.unlock();
+        }
+    }
+
+    private void cancel(TimerWheel.Timer<K> timer) {
+        if (timer != null) {
+            wheelLock.lock();
+            try {
+                wheel.cancel(timer);
+            } finally {
+                wheelLock.unlock();
+            }
+        }
+    }
+
+    private ReentrantLock lockFor(Object key) {
+        return locks[stripe(key)];
+    }
+
+    private static int stripe(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (LOCK_STRIPES - 1);
+    }
+
+    @Override
+    public void shutdown() throws CacheException {
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+        events.shutdown();
+        for (K key : timers.keySet()) {
+            delegate.remove(key);
+        }
+        delegate.shutdown();
+    }
+
+    @Override
+    public void addEventListener(ICacheEventListener listener) {
+        events.addListener(listener);
+        delegate.addEventListener(listener);
+    }
+
+    @Override
+    public void removeEventListener(ICacheEventListener listener) {
+        events.removeListener(listener);
+        delegate.removeEventListener(listener);
+    }
+
+    // Lets tests wait for asynchronously delivered events
+    CacheEventDispatcher events() {
+        return events;
+    }
+
+    @Override
+    public CacheMetrics getMetrics() {
+        return delegate.getMetrics();
+    }
+}
@@ -0,0 +1,161 @@
+package a.cache.machine.engine;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Count-min sketch of 4-bit counters used by {@link TinyLfuCache} to estimate
+ * how often a key was requested recently.
+ * <p>
+ * Each {@code long} in the table holds sixteen counters, a key is mapped to
+ * four of them (one per row) and its frequency is the smallest of the four.
+ * After {@code sampleSize} increments every counter is halved, so popularity
+ * fades out instead of sticking forever. Not thread-safe, the owning cache
+ * guards it.
+ */
+final class FrequencySketch<K> {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_COUNT = 15;
+    private static final int MAX_TABLE_SIZE = 1 << 30;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int additions;
+
+    FrequencySketch(long expectedEntries) {
+        ensureCapacity(expectedEntries);
+    }
+
+    /**
+     * Grows the table so it can track {@code expectedEntries} keys. Growing
+     * forgets the collected counts, so callers should grow in large steps.
+     */
+    void ensureCapacity(long expectedEntries) {
+        ensureCapacity(expectedEntries, null);
+    }
+
+    /**
+     * Grows the table like {@link #ensureCapacity(long)} but carries the
+     * counts of the given keys (usually the resident ones) over to the new
+     * table, so a growing cache does not forget what is hot.
+     */
+    void ensureCapacity(long expectedEntries, Iterable<K> carryOver) {
+        int size = (int) Math.min(Math.max(expectedEntries, 16), MAX_TABLE_SIZE);
+        size = Integer.highestOneBit(size - 1) << 1;
+        if (table != null && table.length >= size) {
+            return;
+        }
+        long[] oldTable = table;
+        int oldMask = tableMask;
+        table = new long[size];
+        tableMask = size - 1;
+        sampleSize = 10 * size;
+        additions = 0;
+        if (oldTable == null || carryOver == null) {
+            return;
+        }
+        for (K key : carryOver) {
+            int frequency = frequency(oldTable, oldMask, key);
+            for (int i = 0; i < frequency; i++) {
+                increment(key);
+            }
+        }
+    }
+
+    int capacity() {
+        return table.length;
+    }
+
+    int frequency(K key) {
+        return frequency(table, tableMask, key);
+    }
+
+    private static <K> int frequency(long[] table, int tableMask, K key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i, tableMask);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(K key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i, tableMask), start + i);
+        }
+        if (added && (++additions == sampleSize)) {
+            reset();
+        }
+    }
+
+    void clear() {
+        Arrays.fill(table, 0L);
+        additions = 0;
+    }
+
+    /** The counters and the number of additions since the last reset, for a snapshot. */
+    byte[] state() {
+        ByteBuffer state = ByteBuffer.allocate(4 + table.length * 8);
+        state.putInt(additions);
+        state.asLongBuffer().put(table);
+        return state.array();
+    }
+
+    /** Takes over the counters of {@link #state()}, the table size comes with them. */
+    void restore(byte[] state) {
+        ByteBuffer buffer = ByteBuffer.wrap(state);
+        int restoredAdditions = buffer.getInt();
+        int size = buffer.remaining() / 8;
+        if (size == 0 || Integer.bitCount(size) != 1 || size > MAX_TABLE_SIZE) {
+            throw new IllegalArgumentException("Invalid sketch state of " + state.length + " bytes");
+        }
+        table = new long[size];
+        buffer.asLongBuffer().get(table);
+        tableMask = size - 1;
+        sampleSize = 10 * size;
+        additions = restoredAdditions;
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    // Halves every counter, the odd ones lose their lowest bit so the running
+    // number of additions is corrected accordingly
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions = (additions - (odd >>> 2)) >>> 1;
+    }
+
+    private static int indexOf(int hash, int row, int tableMask) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += (h >>> 32);
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
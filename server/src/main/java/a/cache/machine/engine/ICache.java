@@ -1,13 +1,117 @@
 package a.cache.machine.engine;
 
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
 public interface ICache<K, V> {
+	long NO_EXPIRY = -1;
+	long NO_KEY = -2;
+
 	V get(K key) throws CacheException;
 	V put(K key, V value) throws CacheException;
 	V remove(K key) throws CacheException;
+	boolean containsKey(K key);
 	void clear() throws CacheException;
 	int size();
 	void shutdown() throws CacheException;
 	void addEventListener(ICacheEventListener listener);
 	void removeEventListener(ICacheEventListener listener);
 	CacheMetrics getMetrics();
-}
\ No newline at end of file
+
+	/**
+	 * Visits every entry. Engines hold their lock, or the lock of one segment
+	 * at a time, while visiting, so the action should be quick; entries that
+	 * change meanwhile may or may not be seen.
+	 */
+	default void forEach(BiConsumer<? super K, ? super V> action) throws CacheException {
+		throw new CacheException("Iteration is not supported by " + getClass().getSimpleName());
+	}
+
+	/**
+	 * Captures a view of the entries, to be written with
+	 * {@link Snapshot#writeTo(Path)} while the cache keeps serving. The
+	 * engine locks a segment or a batch of entries at a time to copy them.
+	 */
+	default Snapshot snapshot() throws CacheException {
+		throw new CacheException("Snapshots are not supported by " + getClass().getSimpleName());
+	}
+
+	/**
+	 * Adds the entries of a snapshot written by the same kind of engine.
+	 *
+	 * @return the number of entries loaded
+	 */
+	default long loadSnapshot(Path path) throws CacheException {
+		throw new CacheException("Snapshots are not supported by " + getClass().getSimpleName());
+	}
+
+	/**
+	 * Hands every entry the engine evicts to {@code sink}, replacing the
+	 * previous one; null stops it. The sink runs while the engine holds the
+	 * lock that also guards removing the entry, so a concurrent remove of
+	 * the key waits until the sink has it. Used by {@link TieredCache} and
+	 * {@link ExpiringCache}.
+	 */
+	default void setEvictionSink(BiConsumer<? super K, ? super V> sink) throws CacheException {
+		throw new CacheException("Eviction sinks are not supported by " + getClass().getSimpleName());
+	}
+
+	// Bulk operations, engines override them to take their lock once per batch
+
+	/** Looks up several keys at once, keys that are not cached are left out of the result. */
+	default Map<K, V> getAll(Collection<? extends K> keys) throws CacheException {
+		Map<K, V> found = new HashMap<>();
+		for (K key : keys) {
+			V value = get(key);
+			if (value != null) {
+				found.put(key, value);
+			}
+		}
+		return found;
+	}
+
+	default void putAll(Map<? extends K, ? extends V> entries) throws CacheException {
+		for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Stores all entries if none of the keys is cached, false if at least one
+	 * is. Engines that take a single lock do the check and the writes
+	 * atomically, this default does not.
+	 */
+	default boolean putAllIfAbsent(Map<? extends K, ? extends V> entries) throws CacheException {
+		for (K key : entries.keySet()) {
+			if (containsKey(key)) {
+				return false;
+			}
+		}
+		putAll(entries);
+		return true;
+	}
+
+	// Expiry, supported by wrapping an engine in ExpiringCache
+
+	default V put(K key, V value, long ttlMillis) throws CacheException {
+		throw new CacheException("Expiry is not supported by " + getClass().getSimpleName());
+	}
+
+	/** Sets a time to live on an existing key, false if the key does not exist. */
+	default boolean expire(K key, long ttlMillis) throws CacheException {
+		throw new CacheException("Expiry is not supported by " + getClass().getSimpleName());
+	}
+
+	/** Remaining time to live in milliseconds, {@link #NO_EXPIRY} or {@link #NO_KEY}. */
+	default long ttl(K key) throws CacheException {
+		return containsKey(key) ? NO_EXPIRY : NO_KEY;
+	}
+
+	/** Drops the time to live of a key, false if it had none. */
+	default boolean persist(K key) throws CacheException {
+		return false;
+	}
+}
@@ -1,7 +1,37 @@
 package a.cache.machine.engine;
 
+import java.util.List;
+
 public interface ICacheEventListener {
     void onHit(String key);
     void onMiss(String key);
     void onEviction(String key, Object value);
+
+    default void onExpiration(String key, Object value) {
+    }
+
+    /**
+     * Receives events in the order they were published, on the dispatcher
+     * thread. The list is only valid for the duration of the call. Override
+     * to handle a whole batch at once, by default every event goes to its
+     * single event method.
+     */
+    default void onEvents(List<CacheEvent> events) {
+        for (CacheEvent event : events) {
+            switch (event.getType()) {
+                case HIT:
+                    onHit(event.getKey());
+                    break;
+                case MISS:
+                    onMiss(event.getKey());
+                    break;
+                case EVICTION:
+                    onEviction(event.getKey(), event.getValue());
+                    break;
+                case EXPIRATION:
+                    onExpiration(event.getKey(), event.getValue());
+                    break;
+            }
+        }
+    }
 }
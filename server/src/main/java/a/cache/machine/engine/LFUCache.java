@@ -1,16 +1,15 @@
 package a.cache.machine.engine;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.List;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import a.cache.machine.engine.weigher.SerializedWeigher;
 
 public class LFUCache<K,V> implements ICache<K,V> {
 
@@ -21,102 +20,210 @@ public class LFUCache<K,V> implements ICache<K,V> {
     //(head, tail) of Nodes with that frequency
     private Map<Integer, LFUFrequencyPair<LFUNode<K,V>, LFUNode<K,V>> > frequencyMap;
 
-    // Tracks the minimum frequency
-    private int minFrequency;
+    // The list with the minimum frequency, each list links to the next
+    // higher one so a list that empties hands over in O(1)
+    private LFUFrequencyPair<LFUNode<K,V>, LFUNode<K,V>> lowest;
 
     // Capacity of the LFU cache
     // private int capacity;
     private final long maxSizeInBytes;
+    private final Weigher<? super K, ? super V> weigher;
     private final AtomicLong currentSizeInBytes;
-    private final List<ICacheEventListener> listeners;
+    private final CacheEventDispatcher events;
     private final CacheMetrics metrics;    
+    // Not a monitor, so waiting on it does not pin a virtual thread's carrier
+    private final ReentrantLock lock;
+    private volatile BiConsumer<? super K, ? super V> evictionSink;
 
     // Constructor to initialize LFUCache with a given capacity
     public LFUCache(long maxSizeInBytes) {
+        this(maxSizeInBytes, new SerializedWeigher());
+    }
+
+    public LFUCache(long maxSizeInBytes, Weigher<? super K, ? super V> weigher) {
+        this(maxSizeInBytes, weigher, new CacheEventDispatcher(), new CacheMetrics());
+    }
+
+    // Used by ConcurrentLFUCache, whose segments share the event dispatcher and metrics
+    LFUCache(long maxSizeInBytes, Weigher<? super K, ? super V> weigher,
+            CacheEventDispatcher events, CacheMetrics metrics) {
         // this.capacity = capacity;
 
-        // Initial minimum frequency is 0
-        minFrequency = 0;
         cache = new ConcurrentHashMap<>();
         frequencyMap = new ConcurrentHashMap<>();
         this.maxSizeInBytes = maxSizeInBytes;
+        this.weigher = weigher;
         this.currentSizeInBytes = new AtomicLong(0);
-        this.listeners = new CopyOnWriteArrayList<>();
-        this.metrics = new CacheMetrics();        
+        this.events = events;
+        this.metrics = metrics;
+        this.lock = new ReentrantLock();
     }
 
     @Override
     public V get(K key) {
-        if (!cache.containsKey(key)) {
-            listeners.forEach(listener -> listener.onMiss(key.toString()));
-            metrics.incrementMisses();            
-            return null;
+        long start = System.nanoTime();
+        try {
+            return doGet(key);
+        } finally {
+            metrics.recordGet(System.nanoTime() - start);
+        }
+    }
+
+    private V doGet(K key) {
+        lock.lock();
+        try {
+            if (!cache.containsKey(key)) {
+                events.miss(key);
+                metrics.incrementMisses();            
+                return null;
+            }
+            LFUNode<K,V> node = cache.get(key);
+            V res = node.value;
+            updateFreq(node);
+            events.hit(key);
+            metrics.incrementHits();        
+            return res;
+        } finally {
+            lock.unlock();
         }
-        LFUNode<K,V> node = cache.get(key);
-        V res = node.value;
-        updateFreq(node);
-        listeners.forEach(listener -> listener.onHit(key.toString()));
-        metrics.incrementHits();        
-        return res;
     }
 
     // Function to put a key-value pair into the cache
     @Override
     public V put(K key, V value) {
+        long start = System.nanoTime();
+        try {
+            return doPut(key, value);
+        } finally {
+            metrics.recordPut(System.nanoTime() - start);
+        }
+    }
 
+    private V doPut(K key, V value) {
         if (key == null || value == null) {
             throw new IllegalArgumentException("Key or value cannot be null");
         }
-        if (cache.containsKey(key)) {
+        return doPut(key, value, weigher.weigh(key, value));
+    }
+
+    private V doPut(K key, V value, long weight) {
+        lock.lock();
+        try {
             LFUNode<K,V> node = cache.get(key);
-            currentSizeInBytes.addAndGet(-estimateSize(node.value));
-            node.value = value;
-            updateFreq(node);
-            currentSizeInBytes.addAndGet(estimateSize(value));
-            return value;
-        } else {
-            if (currentSizeInBytes.get() >= maxSizeInBytes) {
-                LFUNode<K,V> node = frequencyMap.get(minFrequency).second.prev;
-                cache.remove(node.key);
-                currentSizeInBytes.addAndGet(-estimateSize(node.value));
-                listeners.forEach(listener -> listener.onEviction(key.toString(), value));
-                metrics.incrementEvictions();                
-                remove(node);
-                // Remove the frequency list if it's empty
-                if (frequencyMap.get(minFrequency).first.next == frequencyMap.get(minFrequency).second) {
-                    frequencyMap.remove(minFrequency);
-                }
+            if (node != null) {
+                V previous = node.value;
+                currentSizeInBytes.addAndGet(weight - node.weight);
+                node.value = value;
+                node.weight = weight;
+                updateFreq(node);
+                // A larger value may have pushed the cache over its budget
+                makeRoom(0);
+                return previous;
+            }
+            if (weight > maxSizeInBytes) {
+                // Can never fit, so it is evicted on arrival instead of emptying the cache
+                evicted(key, value, weight);
+                return null;
             }
+            makeRoom(weight);
 
             // Create a new node for the key-value pair
-            LFUNode<K,V> node = new LFUNode<>(key, value);
+            node = new LFUNode<>(key, value);
+            node.weight = weight;
             cache.put(key, node);
-            currentSizeInBytes.addAndGet(estimateSize(value));
-            // Reset minimum frequency to 1
-            minFrequency = 1;
-            add(node, 1);
-            return value;
+            currentSizeInBytes.addAndGet(node.weight);
+            add(node, 1, null);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Evicts the least frequently used entries until the incoming weight fits
+    private void makeRoom(long incoming) {
+        while (currentSizeInBytes.get() + incoming > maxSizeInBytes && lowest != null) {
+            LFUNode<K,V> node = lowest.second.prev;
+            cache.remove(node.key);
+            detach(node);
+            evicted(node.key, node.value, node.weight);
         }
     }
 
-    // Add a node right after the head
-    void add(LFUNode<K,V> node, int freq) {
+    private void evicted(K key, V value, long weight) {
+        events.eviction(key, value);
+        metrics.recordEviction(weight);
+        BiConsumer<? super K, ? super V> sink = evictionSink;
+        if (sink != null) {
+            sink.accept(key, value);
+        }
+    }
+
+    // The bulk operations hold the lock across the batch, the per-key
+    // methods they call only re-enter it
+
+    @Override
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        long start = System.nanoTime();
+        Map<K, V> found = new HashMap<>();
+        lock.lock();
+        try {
+            for (K key : keys) {
+                V value = doGet(key);
+                if (value != null) {
+                    found.put(key, value);
+                }
+            }
+        } finally {
+            lock.unlock();
+            metrics.recordGet(System.nanoTime() - start);
+        }
+        return found;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            entries.forEach(this::doPut);
+        } finally {
+            lock.unlock();
+        }
+        metrics.recordPuts(entries.size(), System.nanoTime() - start);
+    }
 
-        // Initialize the frequency list if it doesn't exist
-        if (!frequencyMap.containsKey(freq)) {
+    @Override
+    public boolean putAllIfAbsent(Map<? extends K, ? extends V> entries) {
+        lock.lock();
+        try {
+            for (K key : entries.keySet()) {
+                if (cache.containsKey(key)) {
+                    return false;
+                }
+            }
+            putAll(entries);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            // Dummy head node
-            LFUNode<K,V> head = new LFUNode<>(null,null);
+    // Lets ConcurrentLFUCache hold several segments for an atomic bulk write
+    ReentrantLock lock() {
+        return lock;
+    }
 
-            // Dummy tail node
-            LFUNode<K,V> tail = new LFUNode<>(null,null);
-            head.next = tail;
-            tail.prev = head;
-            frequencyMap.put(freq, new LFUFrequencyPair<>(head, tail));
+    // Add a node right after the head of its frequency list. A missing list
+    // is linked in after lower, a list of smaller frequency, or from the
+    // lowest list when lower is null.
+    void add(LFUNode<K,V> node, int freq, LFUFrequencyPair<LFUNode<K,V>, LFUNode<K,V>> lower) {
+        LFUFrequencyPair<LFUNode<K,V>, LFUNode<K,V>> list = frequencyMap.get(freq);
+        if (list == null) {
+            list = link(freq, lower);
         }
 
         // Insert the node right after the head
-        LFUNode<K,V> head = frequencyMap.get(freq).first;
+        LFUNode<K,V> head = list.first;
         LFUNode<K,V> temp = head.next;
         node.next = temp;
         node.prev = head;
@@ -124,6 +231,56 @@ public class LFUCache<K,V> implements ICache<K,V> {
         temp.prev = node;
     }
 
+    // Creates the list of a frequency and links it in order. Only a restore
+    // walks past lower, a new key or a hit always starts right before its slot.
+    private LFUFrequencyPair<LFUNode<K,V>, LFUNode<K,V>> link(int freq,
+            LFUFrequencyPair<LFUNode<K,V>, LFUNode<K,V>> lower) {
+
+        // Dummy head node
+        LFUNode<K,V> head = new LFUNode<>(null,null);
+
+        // Dummy tail node
+        LFUNode<K,V> tail = new LFUNode<>(null,null);
+        head.next = tail;
+        tail.prev = head;
+        LFUFrequencyPair<LFUNode<K,V>, LFUNode<K,V>> list = new LFUFrequencyPair<>(head, tail);
+        list.frequency = freq;
+
+        LFUFrequencyPair<LFUNode<K,V>, LFUNode<K,V>> higher = lower == null ? lowest : lower.higher;
+        while (higher != null && higher.frequency < freq) {
+            lower = higher;
+            higher = higher.higher;
+        }
+        list.lower = lower;
+        list.higher = higher;
+        if (lower == null) {
+            lowest = list;
+        } else {
+            lower.higher = list;
+        }
+        if (higher != null) {
+            higher.lower = list;
+        }
+        frequencyMap.put(freq, list);
+        return list;
+    }
+
+    // Drops a frequency list once its last node has left
+    private void unlinkIfEmpty(LFUFrequencyPair<LFUNode<K,V>, LFUNode<K,V>> list) {
+        if (list.first.next != list.second) {
+            return;
+        }
+        if (list.lower == null) {
+            lowest = list.higher;
+        } else {
+            list.lower.higher = list.higher;
+        }
+        if (list.higher != null) {
+            list.higher.lower = list.lower;
+        }
+        frequencyMap.remove(list.frequency);
+    }
+
     // Remove a node from the list
     void remove(LFUNode<K,V> node) {
 
@@ -137,71 +294,147 @@ public class LFUCache<K,V> implements ICache<K,V> {
     // Update the frequency of a node
     void updateFreq(LFUNode<K,V> node) {
 
-        // Get the current frequency
-        int oldFreq = node.frequencyCount;
+        // Remove the node from the current frequency list
+        LFUFrequencyPair<LFUNode<K,V>, LFUNode<K,V>> list = frequencyMap.get(node.frequencyCount);
+        remove(node);
 
-        // Increment the frequency
+        // Increment the frequency and add the node to the next list, which
+        // goes right after the current one
         node.frequencyCount++;
+        add(node, node.frequencyCount, list);
+        unlinkIfEmpty(list);
+    }
 
-        // Remove the node from the current frequency list
-        remove(node);
-        if (frequencyMap.get(oldFreq).first.next == frequencyMap.get(oldFreq).second) {
-            frequencyMap.remove(oldFreq);
+    // Other methods (remove, clear, shutdown, etc.)
+
+    @Override
+    public void shutdown() throws CacheException {
+        events.shutdown();
+        snapshot().writeTo(SnapshotFile.DEFAULT_PATH);
+    }
+
+    @Override
+    public Snapshot snapshot() {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            Snapshot.Copied snapshot = new Snapshot.Copied(SnapshotFile.OBJECTS, metrics, cache.size());
+            copyTo(snapshot);
+            return snapshot.captured(start);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            // Update minimum frequency if needed
-            if (minFrequency == oldFreq) {
-                minFrequency++;
+    // Nodes change in place, so their fields are copied rather than the
+    // nodes. Every frequency list goes from its next victim to its newest
+    // entry, with the frequency as policy. Must be called while holding the lock.
+    void copyTo(Snapshot.Copied snapshot) {
+        for (LFUFrequencyPair<LFUNode<K,V>, LFUNode<K,V>> list : frequencyMap.values()) {
+            for (LFUNode<K,V> node = list.second.prev; node != list.first; node = node.prev) {
+                snapshot.add(node.key, node.value, node.weight, node.frequencyCount);
             }
         }
+    }
 
-        // Add the node to the updated frequency list
-        add(node, node.frequencyCount);
+    // Puts a node back as it was when the snapshot was taken, after the
+    // newer entries of its frequency
+    void restore(LFUNode<K,V> node) {
+        lock.lock();
+        try {
+            LFUNode<K,V> previous = cache.remove(node.key);
+            if (previous != null) {
+                detach(previous);
+            }
+            makeRoom(node.weight);
+            cache.put(node.key, node);
+            currentSizeInBytes.addAndGet(node.weight);
+            add(node, node.frequencyCount, null);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private long estimateSize(V value) {
-        try (
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ObjectOutputStream oos = new ObjectOutputStream(baos);) {
-            oos.writeObject(value);
-            return baos.size();
-        } catch (IOException e) {
-            // Fallback to a rough estimation if serialization fails
-            return value.toString().length() * 2; // Rough estimate assuming String chars are 2 bytes
+    // Decodes a snapshot entry into a node with its stored frequency
+    static <K,V> LFUNode<K,V> decode(byte[] key, byte[] value, long weight, int frequency) throws CacheException {
+        LFUNode<K,V> node = new LFUNode<>(SnapshotFile.decode(key), SnapshotFile.decode(value));
+        node.weight = weight;
+        // Version 1 snapshots have no frequencies
+        node.frequencyCount = Math.max(1, frequency);
+        return node;
+    }
+
+    public void loadFromDisk() throws CacheException {
+        loadSnapshot(SnapshotFile.DEFAULT_PATH);
+    }
+
+    @Override
+    public long loadSnapshot(Path path) throws CacheException {
+        long start = System.nanoTime();
+        long loaded = doLoadSnapshot(path);
+        metrics.recordLoad(System.nanoTime() - start);
+        return loaded;
+    }
+
+    // Segments are decoded in parallel, the nodes are restored in file order
+    private long doLoadSnapshot(Path path) throws CacheException {
+        SnapshotFile.Contents<LFUNode<K,V>> contents = SnapshotFile.read(path, SnapshotFile.OBJECTS, LFUCache::decode);
+        lock.lock();
+        try {
+            contents.entries.forEach(this::restore);
+        } finally {
+            lock.unlock();
         }
+        return contents.entries.size();
     }
-    // Other methods (remove, clear, shutdown, etc.)
 
     @Override
-    public synchronized void shutdown() throws CacheException {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("cache.dat"))) {
-            oos.writeObject(cache);
-        } catch (IOException e) {
-            throw new CacheException("Failed to persist cache to disk", e);
+    public V remove(K key) throws CacheException {
+        long start = System.nanoTime();
+        try {
+            return doRemove(key);
+        } finally {
+            metrics.recordRemove(System.nanoTime() - start);
         }
     }
 
-    @SuppressWarnings({ "rawtypes", "unchecked" })
-    public synchronized void loadFromDisk() throws CacheException {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream("cache.dat"))) {
-            ConcurrentHashMap<K, V> cacheFromDisk = (ConcurrentHashMap<K, V>) ois.readObject();
-            cacheFromDisk.forEach((k, v) -> {
-                this.put(k, (V) ((LFUNode)v).value);
-            });
-        } catch (IOException | ClassNotFoundException e) {
-            throw new CacheException("Failed to load cache from disk", (Throwable) e);
+    private V doRemove(K key) throws CacheException {
+        lock.lock();
+        try {
+            LFUNode<K,V> node = cache.remove(key);
+            if (node == null) {
+                return null;
+            }
+            detach(node);
+            return node.value;
+        } finally {
+            lock.unlock();
         }
     }
 
+    // Takes a node that left the map out of its frequency list and the size
+    private void detach(LFUNode<K,V> node) {
+        remove(node);
+        unlinkIfEmpty(frequencyMap.get(node.frequencyCount));
+        currentSizeInBytes.addAndGet(-node.weight);
+    }
+
     @Override
-    public V remove(K key) throws CacheException {
-        frequencyMap.remove(key);
-        return cache.remove(key).value;
+    public boolean containsKey(K key) {
+        return cache.containsKey(key);
     }
 
     @Override
     public void clear() throws CacheException {
-        frequencyMap.clear();
-        cache.clear();
+        lock.lock();
+        try {
+            frequencyMap.clear();
+            lowest = null;
+            cache.clear();
+            currentSizeInBytes.set(0);
+        } finally {
+            lock.unlock();
+        }
     }
     @Override
     public int size() {
@@ -212,14 +445,34 @@ public class LFUCache<K,V> implements ICache<K,V> {
         return currentSizeInBytes.get();
     }
 
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        lock.lock();
+        try {
+            cache.forEach((k, node) -> action.accept(k, node.value));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setEvictionSink(BiConsumer<? super K, ? super V> sink) {
+        this.evictionSink = sink;
+    }
+
     @Override
     public void addEventListener(ICacheEventListener listener) {
-        listeners.add(listener);
+        events.addListener(listener);
     }
 
     @Override
     public void removeEventListener(ICacheEventListener listener) {
-        listeners.remove(listener);
+        events.removeListener(listener);
+    }
+
+    // Lets tests wait for asynchronously delivered events
+    CacheEventDispatcher events() {
+        return events;
     }
 
     @Override
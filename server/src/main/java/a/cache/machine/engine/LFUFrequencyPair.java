@@ -6,6 +6,11 @@ public class LFUFrequencyPair<F, S>implements Serializable {
     private static final long serialVersionUID = 321L;
     F first;
     S second;
+    // The lists are linked in increasing order of frequency, so the next
+    // minimum is a pointer away
+    int frequency;
+    LFUFrequencyPair<F, S> lower;
+    LFUFrequencyPair<F, S> higher;
 
     LFUFrequencyPair(F first, S second) {
         this.first = first;
@@ -7,6 +7,8 @@ public class LFUNode<K,V> implements Serializable {
     K key;
     V value;
     int frequencyCount;
+    // Bytes charged against the cache budget when the value was stored
+    long weight;
     LFUNode<K,V> next;
     LFUNode<K,V> prev;
 
@@ -1,124 +1,452 @@
 package a.cache.machine.engine;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.LinkedHashMap;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
-public class LRUCache<K, V> extends LinkedHashMap<K, V> implements ICache<K, V> {
+import a.cache.machine.engine.weigher.SerializedWeigher;
+
+/**
+ * LRU cache whose reads never wait for the eviction lock.
+ * <p>
+ * Entries live in a {@link ConcurrentHashMap}, so lookups are lock free. The
+ * access order is a separate list guarded by {@code evictionLock}; instead of
+ * taking that lock on every hit, reads record the entry in one of several
+ * striped ring buffers and the buffered accesses are replayed in a batch by
+ * whichever thread gets the lock with a {@code tryLock} (BP-Wrapper). The
+ * buffers are lossy: when one is full further accesses are dropped, which
+ * only costs a little recency precision under heavy load. Writes take the
+ * lock, replay pending accesses first and then evict from the head of the
+ * list. Bulk reads and writes take the lock once for the whole batch.
+ */
+public class LRUCache<K, V> implements ICache<K, V> {
 
     private final int maxCapacityInBytes;
+    private final ConcurrentHashMap<K, Node<K, V>> data;
+    // Sentinel of the access ordered list, head.next is the least recently used entry
+    private final Node<K, V> head;
+    // Stamps nodes as they are linked at the tail, guarded by the eviction lock
+    private long linked;
+    private final ReentrantLock evictionLock;
+    private final ReadBuffer<K, V>[] readBuffers;
+    private final Weigher<? super K, ? super V> weigher;
     private final AtomicLong currentSizeInBytes;
-    private final List<ICacheEventListener> listeners;
+    private final CacheEventDispatcher events;
     private final CacheMetrics metrics;
+    private volatile BiConsumer<? super K, ? super V> evictionSink;
 
     public LRUCache(int maxCapacityInBytes) {
-        super(16, 0.75f, true);
+        this(maxCapacityInBytes, new SerializedWeigher());
+    }
+
+    public LRUCache(int maxCapacityInBytes, Weigher<? super K, ? super V> weigher) {
         this.maxCapacityInBytes = maxCapacityInBytes;
+        this.data = new ConcurrentHashMap<>();
+        this.head = new Node<>(null, null, 0);
+        head.prev = head;
+        head.next = head;
+        this.evictionLock = new ReentrantLock();
+        // One buffer per core is enough to keep readers from colliding
+        int stripes = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+        @SuppressWarnings("unchecked")
+        ReadBuffer<K, V>[] readBuffers = (ReadBuffer<K, V>[]) new ReadBuffer<?, ?>[stripes];
+        this.readBuffers = readBuffers;
+        for (int i = 0; i < stripes; i++) {
+            readBuffers[i] = new ReadBuffer<>();
+        }
+        this.weigher = weigher;
         this.currentSizeInBytes = new AtomicLong(0);
-        this.listeners = new CopyOnWriteArrayList<>();
+        this.events = new CacheEventDispatcher();
         this.metrics = new CacheMetrics();
     }
 
     @Override
-    public synchronized V get(Object key) {
-        @SuppressWarnings("unchecked")
-        K typedKey = (K) key;
-        if (super.containsKey(typedKey)) {
-            listeners.forEach(listener -> listener.onHit(typedKey.toString()));
+    public V get(K key) {
+        long start = System.nanoTime();
+        try {
+            return doGet(key);
+        } finally {
+            metrics.recordGet(System.nanoTime() - start);
+        }
+    }
+
+    private V doGet(K key) {
+        Node<K, V> node = data.get(key);
+        if (node != null) {
+            recordRead(node);
+            events.hit(key);
             metrics.incrementHits();
-            return super.get(typedKey);
+            return node.value;
         } else {
-            listeners.forEach(listener -> listener.onMiss(key.toString()));
+            events.miss(key);
             metrics.incrementMisses();
             return null;
         }
     }
 
+    private void recordRead(Node<K, V> node) {
+        ReadBuffer<K, V> buffer = readBuffers[stripe()];
+        if (buffer.offer(node) >= ReadBuffer.DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().threadId();
+        int h = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+        return h & (readBuffers.length - 1);
+    }
+
+    // Must be called while holding the eviction lock
+    private void drainReadBuffers() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            buffer.drainTo(this::moveToTail);
+        }
+    }
+
+    private void moveToTail(Node<K, V> node) {
+        // Removed or replaced since the read was recorded
+        if (node.next == null) {
+            return;
+        }
+        unlink(node);
+        linkLast(node);
+    }
+
+    @Override
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        long start = System.nanoTime();
+        try {
+            return doGetAll(keys);
+        } finally {
+            metrics.recordGet(System.nanoTime() - start);
+        }
+    }
+
+    private Map<K, V> doGetAll(Collection<? extends K> keys) {
+        Map<K, V> found = new HashMap<>();
+        List<Node<K, V>> hits = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            Node<K, V> node = data.get(key);
+            if (node != null) {
+                hits.add(node);
+                found.put(key, node.value);
+                events.hit(key);
+                metrics.incrementHits();
+            } else {
+                events.miss(key);
+                metrics.incrementMisses();
+            }
+        }
+        if (!hits.isEmpty()) {
+            // A whole batch would overflow the read buffers, replay it directly
+            evictionLock.lock();
+            try {
+                drainReadBuffers();
+                hits.forEach(this::moveToTail);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        return found;
+    }
+
     @Override
-    public synchronized V put(K key, V value) {
+    public V put(K key, V value) {
+        long start = System.nanoTime();
+        try {
+            return doPut(key, value);
+        } finally {
+            metrics.recordPut(System.nanoTime() - start);
+        }
+    }
+
+    private V doPut(K key, V value) {
         if (key == null || value == null) {
             throw new IllegalArgumentException("Key or value cannot be null");
         }
-        long objectSize = estimateSize(value);
-        currentSizeInBytes.addAndGet(objectSize);
-        return super.put(key, value);
+        long objectSize = weigher.weigh(key, value);
+        Node<K, V> node = new Node<>(key, value, objectSize);
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            Node<K, V> previous = data.put(key, node);
+            if (previous != null) {
+                unlink(previous);
+            }
+            linkLast(node);
+            currentSizeInBytes.addAndGet(objectSize - (previous != null ? previous.weight : 0));
+            evict();
+            return previous != null ? previous.value : null;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        long start = System.nanoTime();
+        doPutAll(entries, false);
+        metrics.recordPuts(entries.size(), System.nanoTime() - start);
     }
 
     @Override
-    public synchronized V remove(Object key) {
-        return super.remove(key);
+    public boolean putAllIfAbsent(Map<? extends K, ? extends V> entries) {
+        long start = System.nanoTime();
+        if (!doPutAll(entries, true)) {
+            return false;
+        }
+        metrics.recordPuts(entries.size(), System.nanoTime() - start);
+        return true;
+    }
+
+    private boolean doPutAll(Map<? extends K, ? extends V> entries, boolean onlyIfAbsent) {
+        // Weigh outside the lock, like a single put
+        List<Node<K, V>> nodes = new ArrayList<>(entries.size());
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                throw new IllegalArgumentException("Key or value cannot be null");
+            }
+            nodes.add(new Node<>(entry.getKey(), entry.getValue(), weigher.weigh(entry.getKey(), entry.getValue())));
+        }
+        evictionLock.lock();
+        try {
+            if (onlyIfAbsent) {
+                for (Node<K, V> node : nodes) {
+                    if (data.containsKey(node.key)) {
+                        return false;
+                    }
+                }
+            }
+            drainReadBuffers();
+            for (Node<K, V> node : nodes) {
+                Node<K, V> previous = data.put(node.key, node);
+                if (previous != null) {
+                    unlink(previous);
+                }
+                linkLast(node);
+                currentSizeInBytes.addAndGet(node.weight - (previous != null ? previous.weight : 0));
+            }
+            evict();
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // Must be called while holding the eviction lock
+    private void evict() {
+        while (currentSizeInBytes() > maxCapacityInBytes && head.next != head) {
+            Node<K, V> eldest = head.next;
+            unlink(eldest);
+            data.remove(eldest.key, eldest);
+            currentSizeInBytes.addAndGet(-eldest.weight);
+            events.eviction(eldest.key, eldest.value);
+            metrics.recordEviction(eldest.weight);
+            BiConsumer<? super K, ? super V> sink = evictionSink;
+            if (sink != null) {
+                sink.accept(eldest.key, eldest.value);
+            }
+        }
     }
 
     @Override
-    public synchronized void clear() {
-        super.clear();
+    public void setEvictionSink(BiConsumer<? super K, ? super V> sink) {
+        this.evictionSink = sink;
+    }
+
+    @Override
+    public V remove(K key) {
+        long start = System.nanoTime();
+        try {
+            return doRemove(key);
+        } finally {
+            metrics.recordRemove(System.nanoTime() - start);
+        }
+    }
+
+    private V doRemove(K key) {
+        evictionLock.lock();
+        try {
+            Node<K, V> previous = data.remove(key);
+            if (previous == null) {
+                return null;
+            }
+            unlink(previous);
+            currentSizeInBytes.addAndGet(-previous.weight);
+            return previous.value;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return data.containsKey(key);
+    }
+
+    @Override
+    public void clear() {
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            data.clear();
+            while (head.next != head) {
+                unlink(head.next);
+            }
+            currentSizeInBytes.set(0);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return data.size();
     }
 
     public long currentSizeInBytes() {
         return currentSizeInBytes.get();
     }
 
+    // The map is concurrent, visiting it needs no lock
     @Override
-    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-        if (currentSizeInBytes() > maxCapacityInBytes) {
-            currentSizeInBytes.addAndGet(-estimateSize(eldest.getValue()));
-            listeners.forEach(listener -> listener.onEviction(eldest.getKey().toString(), eldest.getValue()));
-            metrics.incrementEvictions();
-            return true;
-        }
-        return false;
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        data.forEach((k, node) -> action.accept(k, node.value));
     }
 
-    private long estimateSize(V value) {
-        try (
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ObjectOutputStream oos = new ObjectOutputStream(baos);) {
-            oos.writeObject(value);
-            return baos.size();
-        } catch (IOException e) {
-            // Fallback to a rough estimation if serialization fails
-            return value.toString().length() * 2; // Rough estimate assuming String chars are 2 bytes
+    private void linkLast(Node<K, V> node) {
+        node.order = ++linked;
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    private void unlink(Node<K, V> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    @Override
+    public void shutdown() throws CacheException {
+        events.shutdown();
+        snapshot().writeTo(SnapshotFile.DEFAULT_PATH);
+    }
+
+    // Nodes are found in the map without the eviction lock and copied with
+    // their place in the access list a batch at a time, then sorted eldest
+    // first, so loading restores the recency order. Readers are not blocked.
+    @Override
+    public Snapshot snapshot() {
+        Snapshot.Copied snapshot = new Snapshot.Copied(SnapshotFile.OBJECTS, metrics, data.size());
+        long start = System.nanoTime();
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+        } finally {
+            evictionLock.unlock();
+            snapshot.held(start);
         }
+        snapshot.copyInBatches(data.values().iterator(), evictionLock, node -> {
+            // Evicted, removed or replaced since it was found
+            if (node.next != null) {
+                snapshot.add(node.key, node.value, node.weight, 0, node.order);
+            }
+        });
+        return snapshot.sortByOrder();
+    }
+
+    public void loadFromDisk() throws CacheException {
+        loadSnapshot(SnapshotFile.DEFAULT_PATH);
     }
 
     @Override
-    public synchronized void shutdown() throws CacheException {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("cache.dat"))) {
-            oos.writeObject(this);
-        } catch (IOException e) {
-            throw new CacheException("Failed to persist cache to disk", e);
+    public long loadSnapshot(Path path) throws CacheException {
+        long start = System.nanoTime();
+        long loaded = doLoadSnapshot(path);
+        metrics.recordLoad(System.nanoTime() - start);
+        return loaded;
+    }
+
+    // Segments fill the map in parallel, the access list is linked once all
+    // are in, in file order. Writers wait for the load, readers do not. A key
+    // that appears twice in the file ends up with its later entry.
+    private long doLoadSnapshot(Path path) throws CacheException {
+        Map<Integer, List<Node<K, V>>> loaded = new ConcurrentHashMap<>();
+        Queue<Node<K, V>> replaced = new ConcurrentLinkedQueue<>();
+        evictionLock.lock();
+        try {
+            try {
+                return SnapshotFile.load(path, SnapshotFile.OBJECTS, (segment, key, value, weight, policy) -> {
+                    Node<K, V> node = new Node<>(SnapshotFile.decode(key), SnapshotFile.decode(value), weight);
+                    Node<K, V> previous = data.put(node.key, node);
+                    if (previous != null) {
+                        replaced.add(previous);
+                    }
+                    currentSizeInBytes.addAndGet(weight - (previous != null ? previous.weight : 0));
+                    loaded.computeIfAbsent(segment, s -> new ArrayList<>()).add(node);
+                });
+            } finally {
+                drainReadBuffers();
+                // Only entries that were cached before the load are linked
+                for (Node<K, V> previous : replaced) {
+                    if (previous.next != null) {
+                        unlink(previous);
+                    }
+                }
+                new TreeMap<>(loaded).values().forEach(nodes -> nodes.forEach(this::linkLoaded));
+                evict();
+            }
+        } finally {
+            evictionLock.unlock();
         }
     }
 
-    public synchronized void loadFromDisk() throws CacheException {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream("cache.dat"))) {
-            @SuppressWarnings("unchecked")
-            LRUCache<K, V> cacheFromDisk = (LRUCache<K, V>) ois.readObject();
-            cacheFromDisk.forEach((k, v) -> {
-                this.put(k, v);
-                // currentSizeInBytes.addAndGet(estimateSize(v));
-            });
-        } catch (IOException | ClassNotFoundException e) {
-            throw new CacheException("Failed to load cache from disk", (Throwable) e);
+    // Must be called while holding the eviction lock, in file order
+    private void linkLoaded(Node<K, V> node) {
+        Node<K, V> mapped = data.put(node.key, node);
+        if (mapped != node) {
+            // A duplicate, the size counts whichever node the parallel pass left mapped
+            if (mapped.next != null) {
+                unlink(mapped);
+            }
+            currentSizeInBytes.addAndGet(node.weight - mapped.weight);
         }
+        linkLast(node);
     }
 
     @Override
-    public synchronized void addEventListener(ICacheEventListener listener) {
-        listeners.add(listener);
+    public void addEventListener(ICacheEventListener listener) {
+        events.addListener(listener);
     }
 
     @Override
-    public synchronized void removeEventListener(ICacheEventListener listener) {
-        listeners.remove(listener);
+    public void removeEventListener(ICacheEventListener listener) {
+        events.removeListener(listener);
+    }
+
+    // Lets tests wait for asynchronously delivered events
+    CacheEventDispatcher events() {
+        return events;
     }
 
     @Override
@@ -126,4 +454,63 @@ public class LRUCache<K, V> extends LinkedHashMap<K, V> implements ICache<K, V>
         return metrics;
     }
 
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final long weight;
+        // Guarded by the eviction lock, null once the node left the list
+        Node<K, V> prev;
+        Node<K, V> next;
+        long order;
+
+        Node(K key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Bounded ring of recorded reads, filled by any number of readers and
+     * drained by the eviction lock holder. Slots are claimed with a CAS on
+     * the write counter; a reader that loses the race or finds the ring full
+     * simply drops its read.
+     */
+    private static final class ReadBuffer<K, V> {
+        static final int SIZE = 16;
+        static final int MASK = SIZE - 1;
+        static final int DRAIN_THRESHOLD = SIZE / 2;
+
+        private final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<>(SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        // Only advanced by the eviction lock holder
+        private volatile long readCounter;
+
+        /** Records the read, returns the number of reads waiting to be replayed. */
+        int offer(Node<K, V> node) {
+            long write = writeCounter.get();
+            long pending = write - readCounter;
+            if (pending < SIZE && writeCounter.compareAndSet(write, write + 1)) {
+                slots.lazySet((int) (write & MASK), node);
+                return (int) pending + 1;
+            }
+            return (int) pending;
+        }
+
+        void drainTo(Consumer<Node<K, V>> action) {
+            long read = readCounter;
+            long write = writeCounter.get();
+            for (; read < write; read++) {
+                int index = (int) (read & MASK);
+                Node<K, V> node = slots.get(index);
+                if (node == null) {
+                    // Slot claimed but not published yet, pick it up next time
+                    break;
+                }
+                slots.lazySet(index, null);
+                action.accept(node);
+            }
+            readCounter = read;
+        }
+    }
 }
@@ -0,0 +1,392 @@
+package a.cache.machine.engine;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import a.cache.machine.engine.codec.ObjectCodec;
+
+/**
+ * LRU cache that keeps its values outside the Java heap.
+ * <p>
+ * Values are encoded with a {@link ValueCodec} and copied into chunks handed
+ * out by a {@link SlabAllocator}, the heap only holds the keys and the chunk
+ * addresses, in an index and an access ordered list. {@code maxCapacityInBytes} is the
+ * native memory the slabs may reserve, so the budget maps to real memory;
+ * entries are charged the size of their chunk. The JVM has to allow that much
+ * direct memory ({@code -XX:MaxDirectMemorySize}).
+ */
+public class OffHeapLRUCache<K, V> implements ICache<K, V> {
+
+    private final long maxCapacityInBytes;
+    private final ConcurrentHashMap<K, Slot<K>> index;
+    // Sentinel of the access ordered list, head.next is the least recently used entry
+    private final Slot<K> head;
+    // Stamps slots as they are linked at the tail
+    private long linked;
+    private final SlabAllocator allocator;
+    private final ValueCodec<V> codec;
+    private final CacheEventDispatcher events;
+    private final CacheMetrics metrics;
+    // Guards the index, the list and the allocator, only a snapshot reads the index without it
+    private final ReentrantLock lock;
+    private volatile BiConsumer<? super K, ? super V> evictionSink;
+
+    @SuppressWarnings("unchecked")
+    public OffHeapLRUCache(long maxCapacityInBytes) {
+        this(maxCapacityInBytes, (ValueCodec<V>) new ObjectCodec());
+    }
+
+    public OffHeapLRUCache(long maxCapacityInBytes, ValueCodec<V> codec) {
+        this.maxCapacityInBytes = maxCapacityInBytes;
+        this.index = new ConcurrentHashMap<>();
+        this.head = new Slot<>(null, 0, 0);
+        head.prev = head;
+        head.next = head;
+        this.allocator = new SlabAllocator(maxCapacityInBytes);
+        this.codec = codec;
+        this.events = new CacheEventDispatcher();
+        this.metrics = new CacheMetrics();
+        this.lock = new ReentrantLock();
+    }
+
+    @Override
+    public V get(K key) throws CacheException {
+        long start = System.nanoTime();
+        try {
+            return doGet(key);
+        } finally {
+            metrics.recordGet(System.nanoTime() - start);
+        }
+    }
+
+    private V doGet(K key) throws CacheException {
+        byte[] bytes = null;
+        lock.lock();
+        try {
+            Slot<K> slot = index.get(key);
+            if (slot != null) {
+                // Copy out under the lock, the chunk may be reused right after
+                bytes = new byte[slot.length];
+                allocator.read(slot.address, bytes);
+                unlink(slot);
+                linkLast(slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (bytes == null) {
+            events.miss(key);
+            metrics.incrementMisses();
+            return null;
+        }
+        events.hit(key);
+        metrics.incrementHits();
+        return decode(bytes);
+    }
+
+    @Override
+    public V put(K key, V value) throws CacheException {
+        long start = System.nanoTime();
+        try {
+            return doPut(key, value);
+        } finally {
+            metrics.recordPut(System.nanoTime() - start);
+        }
+    }
+
+    private V doPut(K key, V value) throws CacheException {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Key or value cannot be null");
+        }
+        byte[] bytes;
+        try {
+            bytes = codec.encode(value);
+        } catch (IOException e) {
+            throw new CacheException("Failed to encode value for key " + key, e);
+        }
+        byte[] previous = store(key, bytes);
+        return previous != null ? decode(previous) : null;
+    }
+
+    // Copies an encoded value into a chunk, returns the encoded value it replaced
+    private byte[] store(K key, byte[] bytes) throws CacheException {
+        if (bytes.length > allocator.maxChunkSize()) {
+            throw new CacheException("Value of " + bytes.length + " bytes exceeds the largest chunk of "
+                    + allocator.maxChunkSize() + " bytes");
+        }
+        List<Map.Entry<K, byte[]>> evicted = new ArrayList<>();
+        byte[] previous = null;
+        lock.lock();
+        try {
+            Slot<K> old = index.remove(key);
+            if (old != null) {
+                previous = new byte[old.length];
+                allocator.read(old.address, previous);
+                allocator.free(old.address);
+                unlink(old);
+            }
+            long address = allocator.allocate(bytes.length);
+            // Out of slabs for this size class, free LRU entries until a chunk
+            // of the right class or a whole slab comes back
+            while (address < 0 && head.next != head) {
+                Slot<K> eldest = head.next;
+                unlink(eldest);
+                index.remove(eldest.key);
+                evicted.add(new AbstractMap.SimpleImmutableEntry<>(eldest.key, readForListeners(eldest)));
+                metrics.recordEviction(allocator.chunkSize(eldest.address));
+                BiConsumer<? super K, ? super V> sink = evictionSink;
+                if (sink != null) {
+                    byte[] evictedBytes = new byte[eldest.length];
+                    allocator.read(eldest.address, evictedBytes);
+                    sink.accept(eldest.key, decode(evictedBytes));
+                }
+                allocator.free(eldest.address);
+                address = allocator.allocate(bytes.length);
+            }
+            allocator.write(address, bytes);
+            Slot<K> slot = new Slot<>(key, address, bytes.length);
+            index.put(key, slot);
+            linkLast(slot);
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<K, byte[]> entry : evicted) {
+            if (events.hasListeners()) {
+                V evictedValue = decode(entry.getValue());
+                events.eviction(entry.getKey(), evictedValue);
+            }
+        }
+        return previous;
+    }
+
+    // Evicted values are only decoded when someone listens for them
+    private byte[] readForListeners(Slot<K> slot) {
+        if (!events.hasListeners()) {
+            return null;
+        }
+        byte[] bytes = new byte[slot.length];
+        allocator.read(slot.address, bytes);
+        return bytes;
+    }
+
+    @Override
+    public V remove(K key) throws CacheException {
+        long start = System.nanoTime();
+        try {
+            return doRemove(key);
+        } finally {
+            metrics.recordRemove(System.nanoTime() - start);
+        }
+    }
+
+    private V doRemove(K key) throws CacheException {
+        byte[] bytes;
+        lock.lock();
+        try {
+            Slot<K> slot = index.remove(key);
+            if (slot == null) {
+                return null;
+            }
+            bytes = new byte[slot.length];
+            allocator.read(slot.address, bytes);
+            allocator.free(slot.address);
+            unlink(slot);
+        } finally {
+            lock.unlock();
+        }
+        return decode(bytes);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        lock.lock();
+        try {
+            return index.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            index.clear();
+            head.prev = head;
+            head.next = head;
+            allocator.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Values are decoded while the lock is held
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) throws CacheException {
+        lock.lock();
+        try {
+            for (Slot<K> slot = head.next; slot != head; slot = slot.next) {
+                byte[] bytes = new byte[slot.length];
+                allocator.read(slot.address, bytes);
+                action.accept(slot.key, decode(bytes));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Bytes of native memory taken by the chunks of live entries. */
+    public long currentSizeInBytes() {
+        lock.lock();
+        try {
+            return allocator.usedBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Bytes of native memory reserved by slabs so far. */
+    public long reservedSizeInBytes() {
+        lock.lock();
+        try {
+            return allocator.reservedBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setEvictionSink(BiConsumer<? super K, ? super V> sink) {
+        this.evictionSink = sink;
+    }
+
+    public long maxCapacityInBytes() {
+        return maxCapacityInBytes;
+    }
+
+    private V decode(byte[] bytes) throws CacheException {
+        try {
+            return codec.decode(bytes);
+        } catch (IOException e) {
+            throw new CacheException("Failed to decode cached value", e);
+        }
+    }
+
+    @Override
+    public void shutdown() throws CacheException {
+        events.shutdown();
+        snapshot().writeTo(SnapshotFile.DEFAULT_PATH);
+    }
+
+    // Chunks are reused as soon as the lock is released, so the values are
+    // copied out of native memory as they are encoded, a batch at a time
+    // under the lock after finding the slots without it. Sorted by place in
+    // the access list, eldest first.
+    @Override
+    public Snapshot snapshot() {
+        Snapshot.Copied snapshot = new Snapshot.Copied(SnapshotFile.CODEC, metrics, index.size());
+        snapshot.copyInBatches(index.values().iterator(), lock, slot -> {
+            // Evicted, removed or replaced since it was found, the chunk may hold another value
+            if (slot.next != null) {
+                byte[] bytes = new byte[slot.length];
+                allocator.read(slot.address, bytes);
+                snapshot.add(slot.key, bytes, allocator.chunkSize(slot.address), 0, slot.order);
+            }
+        });
+        return snapshot.sortByOrder();
+    }
+
+    public void loadFromDisk() throws CacheException {
+        loadSnapshot(SnapshotFile.DEFAULT_PATH);
+    }
+
+    @Override
+    public long loadSnapshot(Path path) throws CacheException {
+        long start = System.nanoTime();
+        long loaded = doLoadSnapshot(path);
+        metrics.recordLoad(System.nanoTime() - start);
+        return loaded;
+    }
+
+    // Keys are decoded in parallel, the encoded values go straight back
+    // into chunks in file order, least recently used first. Chunks are
+    // charged by the allocator rather than by the stored weight.
+    private long doLoadSnapshot(Path path) throws CacheException {
+        SnapshotFile.Contents<Map.Entry<K, byte[]>> contents = SnapshotFile.read(path, SnapshotFile.CODEC,
+                (key, value, weight, policy) -> Map.entry(SnapshotFile.decode(key), value));
+        for (Map.Entry<K, byte[]> entry : contents.entries) {
+            store(entry.getKey(), entry.getValue());
+        }
+        return contents.entries.size();
+    }
+
+    @Override
+    public void addEventListener(ICacheEventListener listener) {
+        events.addListener(listener);
+    }
+
+    @Override
+    public void removeEventListener(ICacheEventListener listener) {
+        events.removeListener(listener);
+    }
+
+    // Lets tests wait for asynchronously delivered events
+    CacheEventDispatcher events() {
+        return events;
+    }
+
+    @Override
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Where a value lives in native memory, the only per-entry heap state
+    // Must be called while holding the lock
+    private void linkLast(Slot<K> slot) {
+        slot.order = ++linked;
+        slot.prev = head.prev;
+        slot.next = head;
+        head.prev.next = slot;
+        head.prev = slot;
+    }
+
+    private void unlink(Slot<K> slot) {
+        slot.prev.next = slot.next;
+        slot.next.prev = slot.prev;
+        slot.prev = null;
+        slot.next = null;
+    }
+
+    private static final class Slot<K> {
+        final K key;
+        final long address;
+        final int length;
+        // Guarded by the lock, null once the slot left the list
+        Slot<K> prev;
+        Slot<K> next;
+        long order;
+
+        Slot(K key, long address, int length) {
+            this.key = key;
+            this.address = address;
+            this.length = length;
+        }
+    }
+}
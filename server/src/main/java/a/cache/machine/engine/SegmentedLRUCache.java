@@ -0,0 +1,349 @@
+package a.cache.machine.engine;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import a.cache.machine.engine.weigher.SerializedWeigher;
+
+/**
+ * LRU cache split into independently locked segments.
+ * <p>
+ * Every key is mapped to one segment by its hash. Each segment is an access
+ * ordered {@link LinkedHashMap} guarded by its own lock and owns an equal
+ * share of {@code maxCapacityInBytes}, so threads working on different
+ * segments never contend. Since the segment budgets add up to the global
+ * budget, the cache as a whole never grows past {@code maxCapacityInBytes}.
+ * Eviction is LRU within a segment, which approximates global LRU as long as
+ * each segment holds a reasonable number of entries. Budgets too small to
+ * give every segment {@link #MIN_SEGMENT_CAPACITY} bytes get fewer segments,
+ * so an entry that fits the budget is not evicted by its own segment.
+ */
+public class SegmentedLRUCache<K, V> implements ICache<K, V> {
+
+    public static final int DEFAULT_SEGMENTS = 16;
+    public static final long MIN_SEGMENT_CAPACITY = Segments.MIN_CAPACITY;
+
+    private final long maxCapacityInBytes;
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
+    private final Weigher<? super K, ? super V> weigher;
+    private final AtomicLong currentSizeInBytes;
+    private final CacheEventDispatcher events;
+    private final CacheMetrics metrics;
+    private volatile BiConsumer<? super K, ? super V> evictionSink;
+
+    public SegmentedLRUCache(long maxCapacityInBytes) {
+        this(maxCapacityInBytes, DEFAULT_SEGMENTS);
+    }
+
+    public SegmentedLRUCache(long maxCapacityInBytes, int segmentCount) {
+        this(maxCapacityInBytes, segmentCount, new SerializedWeigher());
+    }
+
+    public SegmentedLRUCache(long maxCapacityInBytes, int segmentCount, Weigher<? super K, ? super V> weigher) {
+        int count = Segments.count(segmentCount, maxCapacityInBytes);
+        @SuppressWarnings("unchecked")
+        Segment<K, V>[] segments = (Segment<K, V>[]) new Segment<?, ?>[count];
+        this.maxCapacityInBytes = maxCapacityInBytes;
+        this.segments = segments;
+        this.segmentMask = count - 1;
+        this.weigher = weigher;
+        // Spread the remainder over the first segments so budgets sum up exactly
+        long share = maxCapacityInBytes / count;
+        long remainder = maxCapacityInBytes % count;
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<>(share + (i < remainder ? 1 : 0));
+        }
+        this.currentSizeInBytes = new AtomicLong(0);
+        this.events = new CacheEventDispatcher();
+        this.metrics = new CacheMetrics();
+    }
+
+    @Override
+    public V get(K key) {
+        long start = System.nanoTime();
+        try {
+            return doGet(key);
+        } finally {
+            metrics.recordGet(System.nanoTime() - start);
+        }
+    }
+
+    private V doGet(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        Weighted<V> entry;
+        segment.lock.lock();
+        try {
+            entry = segment.get(key);
+        } finally {
+            segment.lock.unlock();
+        }
+        V value = entry != null ? entry.value : null;
+        if (value != null) {
+            events.hit(key);
+            metrics.incrementHits();
+        } else {
+            events.miss(key);
+            metrics.incrementMisses();
+        }
+        return value;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        long start = System.nanoTime();
+        try {
+            return doPut(key, value);
+        } finally {
+            metrics.recordPut(System.nanoTime() - start);
+        }
+    }
+
+    private V doPut(K key, V value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Key or value cannot be null");
+        }
+        return doPut(key, value, weigher.weigh(key, value));
+    }
+
+    private V doPut(K key, V value, long objectSize) {
+        Segment<K, V> segment = segmentFor(key);
+        List<Map.Entry<K, V>> evicted;
+        Weighted<V> previous;
+        segment.lock.lock();
+        try {
+            previous = segment.put(key, new Weighted<>(value, objectSize));
+            long delta = objectSize - (previous != null ? previous.weight : 0);
+            segment.sizeInBytes += delta;
+            currentSizeInBytes.addAndGet(delta);
+            evicted = evict(segment);
+        } finally {
+            segment.lock.unlock();
+        }
+        notifyEvictions(evicted);
+        return previous != null ? previous.value : null;
+    }
+
+    // Drops eldest entries until the segment fits its budget again. Must be
+    // called while holding the segment lock.
+    private List<Map.Entry<K, V>> evict(Segment<K, V> segment) {
+        List<Map.Entry<K, V>> evicted = null;
+        BiConsumer<? super K, ? super V> sink = evictionSink;
+        Iterator<Map.Entry<K, Weighted<V>>> iterator = segment.entrySet().iterator();
+        while (segment.sizeInBytes > segment.maxSizeInBytes && iterator.hasNext()) {
+            Map.Entry<K, Weighted<V>> eldest = iterator.next();
+            long objectSize = eldest.getValue().weight;
+            segment.sizeInBytes -= objectSize;
+            currentSizeInBytes.addAndGet(-objectSize);
+            metrics.recordEviction(objectSize);
+            if (evicted == null) {
+                evicted = new ArrayList<>();
+            }
+            evicted.add(Map.entry(eldest.getKey(), eldest.getValue().value));
+            iterator.remove();
+            if (sink != null) {
+                sink.accept(eldest.getKey(), eldest.getValue().value);
+            }
+        }
+        return evicted;
+    }
+
+    private void notifyEvictions(List<Map.Entry<K, V>> evicted) {
+        if (evicted == null) {
+            return;
+        }
+        for (Map.Entry<K, V> eldest : evicted) {
+            events.eviction(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    @Override
+    public V remove(K key) {
+        long start = System.nanoTime();
+        try {
+            return doRemove(key);
+        } finally {
+            metrics.recordRemove(System.nanoTime() - start);
+        }
+    }
+
+    private V doRemove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Weighted<V> previous = segment.remove(key);
+            if (previous == null) {
+                return null;
+            }
+            segment.sizeInBytes -= previous.weight;
+            currentSizeInBytes.addAndGet(-previous.weight);
+            return previous.value;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            return segment.containsKey(key);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            segment.lock.lock();
+            try {
+                currentSizeInBytes.addAndGet(-segment.sizeInBytes);
+                segment.sizeInBytes = 0;
+                segment.clear();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (Segment<K, V> segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.forEach((k, entry) -> action.accept(k, entry.value));
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void setEvictionSink(BiConsumer<? super K, ? super V> sink) {
+        this.evictionSink = sink;
+    }
+
+    public long currentSizeInBytes() {
+        return currentSizeInBytes.get();
+    }
+
+    public long maxCapacityInBytes() {
+        return maxCapacityInBytes;
+    }
+
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        int h = key.hashCode();
+        // Mix the high bits in, LinkedHashMap uses the low ones for its buckets
+        h ^= (h >>> 16);
+        return segments[h & segmentMask];
+    }
+
+    @Override
+    public void shutdown() throws CacheException {
+        events.shutdown();
+        snapshot().writeTo(SnapshotFile.DEFAULT_PATH);
+    }
+
+    // One segment is held at a time, so writers only wait for the segment they
+    // write to and each segment is consistent in itself, though not with the
+    // others. One snapshot segment per cache segment, eldest first.
+    @Override
+    public Snapshot snapshot() {
+        Snapshot.Copied snapshot = new Snapshot.Copied(SnapshotFile.OBJECTS, metrics, size());
+        for (Segment<K, V> segment : segments) {
+            long start = System.nanoTime();
+            segment.lock.lock();
+            try {
+                segment.forEach((k, entry) -> snapshot.add(k, entry.value, entry.weight));
+            } finally {
+                segment.lock.unlock();
+                snapshot.held(start);
+            }
+            snapshot.endSegment();
+        }
+        return snapshot;
+    }
+
+    public void loadFromDisk() throws CacheException {
+        loadSnapshot(SnapshotFile.DEFAULT_PATH);
+    }
+
+    @Override
+    public long loadSnapshot(Path path) throws CacheException {
+        long start = System.nanoTime();
+        long loaded = doLoadSnapshot(path);
+        metrics.recordLoad(System.nanoTime() - start);
+        return loaded;
+    }
+
+    // Segments are decoded in parallel, entries are put back in file order,
+    // which is least recently used first within each cache segment
+    private long doLoadSnapshot(Path path) throws CacheException {
+        SnapshotFile.Contents<Map.Entry<K, Weighted<V>>> contents = SnapshotFile.read(path, SnapshotFile.OBJECTS,
+                (key, value, weight, policy) -> Map.entry(SnapshotFile.decode(key),
+                        new Weighted<>(SnapshotFile.decode(value), weight)));
+        for (Map.Entry<K, Weighted<V>> entry : contents.entries) {
+            doPut(entry.getKey(), entry.getValue().value, entry.getValue().weight);
+        }
+        return contents.entries.size();
+    }
+
+    @Override
+    public void addEventListener(ICacheEventListener listener) {
+        events.addListener(listener);
+    }
+
+    @Override
+    public void removeEventListener(ICacheEventListener listener) {
+        events.removeListener(listener);
+    }
+
+    // Lets tests wait for asynchronously delivered events
+    CacheEventDispatcher events() {
+        return events;
+    }
+
+    @Override
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static class Segment<K, V> extends LinkedHashMap<K, Weighted<V>> {
+        private static final long serialVersionUID = 1L;
+        private final long maxSizeInBytes;
+        private final ReentrantLock lock = new ReentrantLock();
+        private long sizeInBytes;
+
+        Segment(long maxSizeInBytes) {
+            super(16, 0.75f, true);
+            this.maxSizeInBytes = maxSizeInBytes;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package a.cache.machine.engine;
+
+/**
+ * Sizing shared by the engines that split their budget over independently
+ * locked segments. Each segment owns an equal share of the budget, so a
+ * budget split into too many segments leaves every share smaller than the
+ * entries it is meant to hold.
+ */
+final class Segments {
+    /** Budgets too small to give every segment this many bytes get fewer segments. */
+    static final long MIN_CAPACITY = 1024;
+
+    private Segments() {
+    }
+
+    /**
+     * The requested count rounded up to a power of two, so the segment can
+     * be picked with a mask or shift, then halved until every segment gets
+     * {@link #MIN_CAPACITY} bytes or only one is left.
+     */
+    static int count(int requested, long maxCapacityInBytes) {
+        if (requested <= 0) {
+            throw new IllegalArgumentException("Segment count must be positive");
+        }
+        int count = Integer.highestOneBit(requested);
+        if (count < requested) {
+            count <<= 1;
+        }
+        while (count > 1 && maxCapacityInBytes / count < MIN_CAPACITY) {
+            count >>= 1;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,208 @@
+package a.cache.machine.engine;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Hands out chunks of native memory carved from fixed size slabs of direct
+ * {@link ByteBuffer}s, memcached style.
+ * <p>
+ * Chunk sizes come in classes growing by {@link #GROWTH_FACTOR}, a request is
+ * served from the smallest class that fits. A slab is dedicated to one class
+ * while it holds live chunks and goes back to a shared pool once its last
+ * chunk is freed, so memory can move between classes. No more than
+ * {@code capacityInBytes} of slabs is ever reserved. Addresses pack the slab
+ * index in the high and the chunk offset in the low 32 bits. Not thread-safe,
+ * the owning cache guards it.
+ */
+final class SlabAllocator {
+    static final int DEFAULT_SLAB_SIZE = 1 << 20;
+    static final int MIN_CHUNK_SIZE = 16;
+    static final double GROWTH_FACTOR = 1.25;
+
+    private final int slabSize;
+    private final int[] chunkSizes;
+    private final Slab[] slabs;
+    private final ArrayDeque<Slab> freeSlabs;
+    private final List<LinkedHashSet<Slab>> partialSlabs;
+    private int allocatedSlabs;
+    private long usedBytes;
+
+    SlabAllocator(long capacityInBytes) {
+        // Small capacities still get a few slabs, so size classes can coexist
+        this(capacityInBytes, (int) Math.min(DEFAULT_SLAB_SIZE,
+                Math.max(capacityInBytes / 8, Math.min(capacityInBytes, 1024))));
+    }
+
+    SlabAllocator(long capacityInBytes, int slabSize) {
+        if (slabSize < MIN_CHUNK_SIZE || capacityInBytes < slabSize) {
+            throw new IllegalArgumentException("Capacity of " + capacityInBytes
+                    + " bytes cannot hold a single slab of " + slabSize + " bytes");
+        }
+        this.slabSize = slabSize;
+        this.chunkSizes = chunkSizes(slabSize);
+        this.slabs = new Slab[(int) Math.min(Integer.MAX_VALUE, capacityInBytes / slabSize)];
+        this.freeSlabs = new ArrayDeque<>();
+        this.partialSlabs = new ArrayList<>(chunkSizes.length);
+        for (int i = 0; i < chunkSizes.length; i++) {
+            partialSlabs.add(new LinkedHashSet<>());
+        }
+    }
+
+    private static int[] chunkSizes(int slabSize) {
+        List<Integer> sizes = new ArrayList<>();
+        double size = MIN_CHUNK_SIZE;
+        while (size < slabSize) {
+            // Keep chunks 8 byte aligned
+            int aligned = ((int) size + 7) & ~7;
+            if (sizes.isEmpty() || aligned > sizes.get(sizes.size() - 1)) {
+                sizes.add(Math.min(aligned, slabSize));
+            }
+            size *= GROWTH_FACTOR;
+        }
+        if (sizes.get(sizes.size() - 1) != slabSize) {
+            sizes.add(slabSize);
+        }
+        return sizes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /** Largest value a single chunk can hold. */
+    int maxChunkSize() {
+        return slabSize;
+    }
+
+    /**
+     * Reserves a chunk of at least {@code size} bytes.
+     *
+     * @return the chunk address, or -1 if every slab is taken and none of
+     *         them has a free chunk of the right class
+     */
+    long allocate(int size) {
+        int sizeClass = sizeClassFor(size);
+        LinkedHashSet<Slab> partial = partialSlabs.get(sizeClass);
+        Slab slab;
+        if (partial.isEmpty()) {
+            slab = takeSlab();
+            if (slab == null) {
+                return -1;
+            }
+            slab.assign(sizeClass, chunkSizes[sizeClass]);
+            partial.add(slab);
+        } else {
+            slab = partial.iterator().next();
+        }
+        int offset = slab.freeOffsets[--slab.freeCount];
+        if (slab.freeCount == 0) {
+            partial.remove(slab);
+        }
+        usedBytes += slab.chunkSize;
+        return ((long) slab.index << 32) | offset;
+    }
+
+    void free(long address) {
+        Slab slab = slabs[(int) (address >>> 32)];
+        LinkedHashSet<Slab> partial = partialSlabs.get(slab.sizeClass);
+        if (slab.freeCount == 0) {
+            partial.add(slab);
+        }
+        slab.freeOffsets[slab.freeCount++] = (int) address;
+        usedBytes -= slab.chunkSize;
+        if (slab.freeCount == slab.freeOffsets.length) {
+            // Last chunk gone, let any size class reuse the slab
+            partial.remove(slab);
+            slab.sizeClass = -1;
+            freeSlabs.push(slab);
+        }
+    }
+
+    void write(long address, byte[] source) {
+        slabs[(int) (address >>> 32)].buffer.put((int) address, source);
+    }
+
+    void read(long address, byte[] target) {
+        slabs[(int) (address >>> 32)].buffer.get((int) address, target);
+    }
+
+    int chunkSize(long address) {
+        return slabs[(int) (address >>> 32)].chunkSize;
+    }
+
+    /** Bytes handed out in chunks, including the unused tail of each chunk. */
+    long usedBytes() {
+        return usedBytes;
+    }
+
+    /** Native memory held by slabs, whether carved into chunks or pooled. */
+    long reservedBytes() {
+        return (long) allocatedSlabs * slabSize;
+    }
+
+    /** Returns every slab to the pool, the native memory stays reserved. */
+    void clear() {
+        for (LinkedHashSet<Slab> partial : partialSlabs) {
+            partial.clear();
+        }
+        freeSlabs.clear();
+        for (int i = 0; i < allocatedSlabs; i++) {
+            slabs[i].sizeClass = -1;
+            freeSlabs.push(slabs[i]);
+        }
+        usedBytes = 0;
+    }
+
+    private int sizeClassFor(int size) {
+        if (size > slabSize) {
+            throw new IllegalArgumentException("Value of " + size
+                    + " bytes does not fit in a " + slabSize + " byte slab");
+        }
+        for (int i = 0; i < chunkSizes.length; i++) {
+            if (chunkSizes[i] >= size) {
+                return i;
+            }
+        }
+        return chunkSizes.length - 1;
+    }
+
+    private Slab takeSlab() {
+        if (!freeSlabs.isEmpty()) {
+            return freeSlabs.pop();
+        }
+        if (allocatedSlabs == slabs.length) {
+            return null;
+        }
+        Slab slab = new Slab(allocatedSlabs, ByteBuffer.allocateDirect(slabSize));
+        slabs[allocatedSlabs++] = slab;
+        return slab;
+    }
+
+    private static final class Slab {
+        final int index;
+        final ByteBuffer buffer;
+        int sizeClass = -1;
+        int chunkSize;
+        int[] freeOffsets;
+        int freeCount;
+
+        Slab(int index, ByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+
+        void assign(int sizeClass, int chunkSize) {
+            this.sizeClass = sizeClass;
+            this.chunkSize = chunkSize;
+            int chunks = buffer.capacity() / chunkSize;
+            if (freeOffsets == null || freeOffsets.length != chunks) {
+                freeOffsets = new int[chunks];
+            }
+            // Pop order hands out the lowest offsets first
+            for (int i = 0; i < chunks; i++) {
+                freeOffsets[i] = (chunks - 1 - i) * chunkSize;
+            }
+            freeCount = chunks;
+        }
+    }
+}
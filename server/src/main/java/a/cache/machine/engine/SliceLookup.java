@@ -0,0 +1,12 @@
+package a.cache.machine.engine;
+
+/**
+ * Implemented by caches keyed by {@link ByteKey} that can look a key up
+ * straight from a slice of a byte array, such as a connection's input
+ * buffer, without creating the key first.
+ */
+public interface SliceLookup<V> {
+
+    /** Same as {@code get(ByteKey.copyOf(array, offset, length))}, ideally without allocating. */
+    V get(byte[] array, int offset, int length) throws CacheException;
+}
@@ -0,0 +1,244 @@
+package a.cache.machine.engine;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Point-in-time view of a cache, taken by {@link ICache#snapshot()} and
+ * written to a {@link SnapshotFile} afterwards.
+ * <p>
+ * No engine holds its lock for the whole capture. {@link CompactByteCache}
+ * marks its segments copy-on-write, the engines with segments copy one
+ * segment at a time, and the others find their entries without the lock
+ * and copy them a batch at a time, each entry with a stamp of its place in
+ * the eviction order that the copy is sorted by. Except for
+ * {@link CompactByteCache} the view is therefore not a single point in
+ * time: an entry written during the capture may or may not be in it. Keys
+ * and values are encoded and written by {@link #writeTo(Path)}, which may
+ * run on any thread while the cache keeps serving gets and puts. The
+ * longest time the engine lock was held and the time writing took are
+ * recorded in the cache's {@link CacheMetrics}.
+ * <p>
+ * A snapshot is written once, writing releases what it pinned.
+ */
+public abstract class Snapshot {
+    static final Predicate<Object> ALL = key -> true;
+
+    private final byte encoding;
+    private final CacheMetrics metrics;
+    private long stallNanos;
+    private boolean written;
+
+    Snapshot(byte encoding, CacheMetrics metrics) {
+        this.encoding = encoding;
+        this.metrics = metrics;
+    }
+
+    // Wraps a captured view to change how it is written
+    Snapshot(Snapshot captured) {
+        this(captured.encoding, captured.metrics);
+        this.stallNanos = captured.stallNanos;
+    }
+
+    // Called by the engine once the view is pinned, start is when it began blocking writers
+    Snapshot captured(long start) {
+        this.stallNanos = System.nanoTime() - start;
+        return this;
+    }
+
+    // Called by the engine after each time it held its lock, start is when it took it
+    void held(long start) {
+        stallNanos = Math.max(stallNanos, System.nanoTime() - start);
+    }
+
+    byte encoding() {
+        return encoding;
+    }
+
+    /** The longest time the engine lock was held at once while the view was captured. */
+    public long stallNanos() {
+        return stallNanos;
+    }
+
+    /**
+     * Writes the captured entries to {@code path}, replacing the file there
+     * once complete.
+     *
+     * @return the number of entries written
+     */
+    public synchronized long writeTo(Path path) throws CacheException {
+        if (written) {
+            throw new IllegalStateException("Snapshot was already written");
+        }
+        written = true;
+        long start = System.nanoTime();
+        try (SnapshotFile.Writer writer = SnapshotFile.create(path, encoding)) {
+            long entries = write(writer, ALL);
+            writer.commit();
+            metrics.recordSnapshot(stallNanos, System.nanoTime() - start);
+            return entries;
+        } finally {
+            release();
+        }
+    }
+
+    /** Writes the entries whose key passes {@code keep}. */
+    abstract long write(SnapshotFile.Writer writer, Predicate<Object> keep) throws CacheException;
+
+    /** Gives back whatever the capture pinned in the engine. */
+    void release() {
+    }
+
+    /**
+     * Entries copied out of an engine a segment or batch at a time, in the
+     * engine's eviction order and split where the engine has segments, with
+     * their policies and the engine state. Keys are encoded with the object codec,
+     * values too unless they are already encoded.
+     */
+    static final class Copied extends Snapshot {
+        /** Entries copied per hold of the lock by {@link #copyInBatches}. */
+        static final int BATCH_SIZE = 1024;
+
+        private Object[] keys;
+        private Object[] values;
+        private long[] weights;
+        private int[] policies;
+        private long[] orders;
+        private int size;
+        // Index of the first entry after each segment
+        private int[] segmentEnds;
+        private int segments;
+        private byte[] state;
+
+        Copied(byte encoding, CacheMetrics metrics, int expectedSize) {
+            super(encoding, metrics);
+            int capacity = Math.max(16, expectedSize);
+            this.keys = new Object[capacity];
+            this.values = new Object[capacity];
+            this.weights = new long[capacity];
+            this.policies = new int[capacity];
+            this.orders = new long[capacity];
+            this.segmentEnds = new int[16];
+        }
+
+        void add(Object key, Object value, long weight) {
+            add(key, value, weight, 0);
+        }
+
+        void add(Object key, Object value, long weight, int policy) {
+            add(key, value, weight, policy, 0);
+        }
+
+        // The order is the entry's place in the engine's eviction order, see sortByOrder
+        void add(Object key, Object value, long weight, int policy, long order) {
+            if (size == keys.length) {
+                int capacity = size * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                values = Arrays.copyOf(values, capacity);
+                weights = Arrays.copyOf(weights, capacity);
+                policies = Arrays.copyOf(policies, capacity);
+                orders = Arrays.copyOf(orders, capacity);
+            }
+            keys[size] = key;
+            values[size] = value;
+            weights[size] = weight;
+            policies[size] = policy;
+            orders[size] = order;
+            size++;
+        }
+
+        /**
+         * Hands the nodes to {@code copy} a batch at a time, each batch under
+         * {@code lock}, so gets and puts wait for one batch rather than for
+         * the whole cache. The nodes are found without the lock, so
+         * {@code copy} has to skip those that left the engine meanwhile.
+         */
+        <N> void copyInBatches(Iterator<N> nodes, Lock lock, Consumer<N> copy) {
+            List<N> batch = new ArrayList<>(BATCH_SIZE);
+            while (nodes.hasNext()) {
+                batch.clear();
+                while (nodes.hasNext() && batch.size() < BATCH_SIZE) {
+                    batch.add(nodes.next());
+                }
+                long start = System.nanoTime();
+                lock.lock();
+                try {
+                    batch.forEach(copy);
+                } finally {
+                    lock.unlock();
+                    held(start);
+                }
+            }
+        }
+
+        /**
+         * Puts the entries in eviction order, by policy and then by order,
+         * for engines whose entries were not copied in that order. Only for
+         * snapshots without segments.
+         */
+        Copied sortByOrder() {
+            Integer[] sorted = new Integer[size];
+            Arrays.setAll(sorted, i -> i);
+            Arrays.sort(sorted, Comparator.<Integer>comparingInt(i -> policies[i]).thenComparingLong(i -> orders[i]));
+            Object[] sortedKeys = new Object[keys.length];
+            Object[] sortedValues = new Object[keys.length];
+            long[] sortedWeights = new long[keys.length];
+            int[] sortedPolicies = new int[keys.length];
+            long[] sortedOrders = new long[keys.length];
+            for (int i = 0; i < size; i++) {
+                sortedKeys[i] = keys[sorted[i]];
+                sortedValues[i] = values[sorted[i]];
+                sortedWeights[i] = weights[sorted[i]];
+                sortedPolicies[i] = policies[sorted[i]];
+                sortedOrders[i] = orders[sorted[i]];
+            }
+            keys = sortedKeys;
+            values = sortedValues;
+            weights = sortedWeights;
+            policies = sortedPolicies;
+            orders = sortedOrders;
+            return this;
+        }
+
+        void state(byte[] state) {
+            this.state = state;
+        }
+
+        void endSegment() {
+            if (segments == segmentEnds.length) {
+                segmentEnds = Arrays.copyOf(segmentEnds, segments * 2);
+            }
+            segmentEnds[segments++] = size;
+        }
+
+        @Override
+        long write(SnapshotFile.Writer writer, Predicate<Object> keep) throws CacheException {
+            boolean encoded = encoding() == SnapshotFile.CODEC;
+            long written = 0;
+            int segment = 0;
+            for (int i = 0; i < size; i++) {
+                while (segment < segments && segmentEnds[segment] == i) {
+                    writer.endSegment();
+                    segment++;
+                }
+                if (!keep.test(keys[i])) {
+                    continue;
+                }
+                byte[] value = encoded ? (byte[]) values[i] : SnapshotFile.encode(values[i]);
+                writer.write(SnapshotFile.encode(keys[i]), value, weights[i], policies[i]);
+                written++;
+            }
+            if (state != null) {
+                writer.state(state);
+            }
+            return written;
+        }
+    }
+}
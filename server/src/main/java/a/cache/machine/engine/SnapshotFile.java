@@ -0,0 +1,573 @@
+package a.cache.machine.engine;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+import a.cache.machine.engine.codec.ObjectCodec;
+
+/**
+ * Binary snapshot of a cache's entries, written on shutdown and loaded back
+ * on start.
+ * <p>
+ * The file starts with a magic number, the format version and the encoding
+ * of keys and values, followed by the entries in segments. An entry is its
+ * key length, value length, weight and policy followed by the key and value
+ * bytes, so loading charges the stored weight instead of weighing every value
+ * again. The policy is whatever the engine keeps per entry to pick victims,
+ * like an access count, and the entries are written in the engine's eviction
+ * order; the engine's own state, like a frequency sketch, follows the last
+ * segment. With both, a restarted cache evicts the same entries the old one
+ * would have. The absolute deadlines of the keys that have a time to live
+ * follow the state; only {@link ExpiringCache} reads them, an engine loading
+ * the file alone brings such keys back without one. The segments are listed
+ * in a directory at the end of the file, with the offset, length, entry
+ * count and CRC32C of each one; a trailer of fixed size points to the
+ * directory.
+ * <p>
+ * Segments are mapped with {@link FileChannel#map} and checked and parsed by
+ * several threads at once, so loading is bound by reading the file rather
+ * than by decoding it. Engines with segments of their own write one snapshot
+ * segment per engine segment, the others have their entries split into
+ * segments of about {@link #SEGMENT_SIZE} bytes. Engines that need the
+ * entries in order {@link #read} them, which decodes in parallel and hands
+ * them back in file order.
+ * <p>
+ * Version 1 files, without policies and state, and version 2 files, without
+ * deadlines, are still loaded.
+ * <p>
+ * The snapshot is written next to the old one and moved over it once
+ * complete, a failed shutdown leaves the previous snapshot in place.
+ */
+final class SnapshotFile {
+    static final Path DEFAULT_PATH = Path.of("cache.dat");
+    static final int MAGIC = 0x41434D53; // "ACMS"
+    static final int VERSION = 3;
+    /** Keys and values encoded with {@link ObjectCodec}. */
+    static final byte OBJECTS = 0;
+    /** Raw {@link ByteKey} bytes and byte array values. */
+    static final byte BYTES = 1;
+    /** Keys encoded with {@link ObjectCodec}, values with the engine's own {@link ValueCodec}. */
+    static final byte CODEC = 2;
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 9;
+    private static final int ENTRY_HEADER_SIZE = 20;
+    private static final int DIRECTORY_ENTRY_SIZE = 24;
+    private static final int TRAILER_SIZE = 28;
+    // Version 1 entries have no policy, its trailer no state length, the
+    // version 2 trailer no deadlines length
+    private static final int V1_ENTRY_HEADER_SIZE = 16;
+    private static final int V1_TRAILER_SIZE = 20;
+    private static final int V2_TRAILER_SIZE = 24;
+    private static final byte[] NO_STATE = new byte[0];
+    private static final ObjectCodec OBJECT_CODEC = new ObjectCodec();
+
+    private SnapshotFile() {
+    }
+
+    /** Receives the entries of a snapshot, from several threads at once. */
+    @FunctionalInterface
+    interface EntryLoader {
+        /**
+         * Called for every entry, in file order within a segment. Different
+         * segments are loaded concurrently.
+         */
+        void load(int segment, byte[] key, byte[] value, long weight, int policy) throws CacheException;
+    }
+
+    /** Receives the engine state stored with {@link Writer#state}, once the entries are loaded. */
+    @FunctionalInterface
+    interface StateLoader {
+        void load(byte[] state) throws CacheException;
+    }
+
+    /** Turns an entry into what the engine stores, on the loader threads. */
+    @FunctionalInterface
+    interface EntryDecoder<E> {
+        E decode(byte[] key, byte[] value, long weight, int policy) throws CacheException;
+    }
+
+    /** Entries of a snapshot in the order they were written, and the engine state. */
+    static final class Contents<E> {
+        final List<E> entries;
+        final byte[] state;
+
+        Contents(List<E> entries, byte[] state) {
+            this.entries = entries;
+            this.state = state;
+        }
+    }
+
+    static byte[] encode(Object object) throws CacheException {
+        try {
+            return OBJECT_CODEC.encode(object);
+        } catch (IOException e) {
+            throw new CacheException("Failed to encode " + object.getClass().getName() + " for the snapshot", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T decode(byte[] bytes) throws CacheException {
+        try {
+            return (T) OBJECT_CODEC.decode(bytes);
+        } catch (IOException e) {
+            throw new CacheException("Failed to decode snapshot entry", e);
+        }
+    }
+
+    static Writer create(Path path, byte encoding) throws CacheException {
+        return new Writer(path, encoding, SEGMENT_SIZE);
+    }
+
+    /**
+     * Loads every entry of the snapshot at {@code path}.
+     *
+     * @return the number of entries loaded
+     * @throws CacheException if the file is missing, was written with another
+     *         encoding or version, or fails its checksums
+     */
+    static long load(Path path, byte encoding, EntryLoader loader) throws CacheException {
+        return load(path, encoding, loader, state -> { });
+    }
+
+    /**
+     * Loads every entry of the snapshot at {@code path}, then hands the
+     * engine state to {@code stateLoader}. The state is empty if the engine
+     * stored none.
+     *
+     * @return the number of entries loaded
+     */
+    static long load(Path path, byte encoding, EntryLoader loader, StateLoader stateLoader) throws CacheException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Layout layout = Layout.read(channel, path);
+            if (layout.encoding != encoding) {
+                throw new CacheException("Snapshot was written with encoding " + layout.encoding
+                        + ", expected " + encoding);
+            }
+            long entries = loadSegments(channel, layout.segments, loader);
+            stateLoader.load(layout.state);
+            return entries;
+        } catch (NoSuchFileException e) {
+            throw new CacheException("No snapshot at " + path, e);
+        } catch (IOException e) {
+            throw new CacheException("Failed to load cache from disk", e);
+        }
+    }
+
+    /**
+     * Reads the deadlines stored with {@link Writer#deadlines} in the
+     * snapshot at {@code path}, empty for files written before there were
+     * any.
+     */
+    static <K> Map<K, Long> readDeadlines(Path path) throws CacheException {
+        byte[] block;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            block = Layout.read(channel, path).deadlines;
+        } catch (NoSuchFileException e) {
+            throw new CacheException("No snapshot at " + path, e);
+        } catch (IOException e) {
+            throw new CacheException("Failed to load cache from disk", e);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        Map<K, Long> deadlines = new HashMap<>();
+        try {
+            while (buffer.hasRemaining()) {
+                byte[] key = new byte[buffer.getInt()];
+                buffer.get(key);
+                deadlines.put(decode(key), buffer.getLong());
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new CacheException("Snapshot deadlines end in the middle of a key", e);
+        }
+        return deadlines;
+    }
+
+    /** Key length, key and deadline of every key, for {@link Writer#deadlines}. */
+    static byte[] encodeDeadlines(Map<?, Long> deadlines) throws CacheException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            for (Map.Entry<?, Long> deadline : deadlines.entrySet()) {
+                byte[] key = encode(deadline.getKey());
+                output.writeInt(key.length);
+                output.write(key);
+                output.writeLong(deadline.getValue());
+            }
+        } catch (IOException e) {
+            throw new CacheException("Failed to persist cache to disk", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes every entry of the snapshot at {@code path} with
+     * {@code decoder}, segments in parallel, and returns them in the order
+     * they were written, for engines whose eviction order is that order.
+     */
+    static <E> Contents<E> read(Path path, byte encoding, EntryDecoder<E> decoder) throws CacheException {
+        Map<Integer, List<E>> segments = new ConcurrentHashMap<>();
+        byte[][] state = { NO_STATE };
+        long count = load(path, encoding, (segment, key, value, weight, policy) ->
+                segments.computeIfAbsent(segment, s -> new ArrayList<>()).add(decoder.decode(key, value, weight, policy)),
+                loaded -> state[0] = loaded);
+        List<E> entries = new ArrayList<>((int) count);
+        new TreeMap<>(segments).values().forEach(entries::addAll);
+        return new Contents<>(entries, state[0]);
+    }
+
+    private static long loadSegments(FileChannel channel, Segment[] segments, EntryLoader loader)
+            throws CacheException, IOException {
+        int threads = Math.min(segments.length, Runtime.getRuntime().availableProcessors());
+        if (threads <= 1) {
+            long entries = 0;
+            for (Segment segment : segments) {
+                entries += segment.load(channel, loader);
+            }
+            return entries;
+        }
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "snapshot-loader");
+            thread.setDaemon(true);
+            return thread;
+        })) {
+            List<Future<Integer>> loaded = new ArrayList<>(segments.length);
+            for (Segment segment : segments) {
+                loaded.add(executor.submit(() -> segment.load(channel, loader)));
+            }
+            long entries = 0;
+            try {
+                for (Future<Integer> future : loaded) {
+                    entries += future.get();
+                }
+            } catch (ExecutionException e) {
+                // Stop what is still queued, one bad segment fails the whole load
+                executor.shutdownNow();
+                if (e.getCause() instanceof CacheException) {
+                    throw (CacheException) e.getCause();
+                }
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new CacheException("Failed to load cache from disk", e.getCause());
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new CacheException("Interrupted while loading the snapshot", e);
+            }
+            return entries;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of snapshot");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static int checksum(ByteBuffer bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    // Header, trailer and directory of a snapshot, checked against each other
+    private static final class Layout {
+        final byte encoding;
+        final byte[] state;
+        final byte[] deadlines;
+        final Segment[] segments;
+
+        Layout(byte encoding, byte[] state, byte[] deadlines, Segment[] segments) {
+            this.encoding = encoding;
+            this.state = state;
+            this.deadlines = deadlines;
+            this.segments = segments;
+        }
+
+        static Layout read(FileChannel channel, Path path) throws CacheException, IOException {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE + V1_TRAILER_SIZE) {
+                throw new CacheException("Snapshot " + path + " is truncated");
+            }
+            ByteBuffer header = SnapshotFile.read(channel, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new CacheException(path + " is not a cache snapshot");
+            }
+            int version = header.getInt();
+            if (version != VERSION && version != 2 && version != 1) {
+                throw new CacheException("Unsupported snapshot version " + version);
+            }
+            byte encoding = header.get();
+            int trailerSize = version == 1 ? V1_TRAILER_SIZE : version == 2 ? V2_TRAILER_SIZE : TRAILER_SIZE;
+            if (fileSize < HEADER_SIZE + trailerSize) {
+                throw new CacheException("Snapshot " + path + " is truncated");
+            }
+            ByteBuffer trailer = SnapshotFile.read(channel, fileSize - trailerSize, trailerSize);
+            long directoryOffset = trailer.getLong();
+            int segmentCount = trailer.getInt();
+            int stateLength = version == 1 ? 0 : trailer.getInt();
+            int deadlinesLength = version < 3 ? 0 : trailer.getInt();
+            int directoryChecksum = trailer.getInt();
+            long stateOffset = directoryOffset - deadlinesLength - stateLength;
+            if (trailer.getInt() != MAGIC || segmentCount < 0 || stateLength < 0 || deadlinesLength < 0
+                    || stateOffset < HEADER_SIZE
+                    || directoryOffset + (long) segmentCount * DIRECTORY_ENTRY_SIZE != fileSize - trailerSize) {
+                throw new CacheException("Snapshot " + path + " is truncated");
+            }
+            // The directory checksum covers the state and deadlines in front of it
+            ByteBuffer directory = SnapshotFile.read(channel, stateOffset,
+                    stateLength + deadlinesLength + segmentCount * DIRECTORY_ENTRY_SIZE);
+            if (checksum(directory.duplicate()) != directoryChecksum) {
+                throw new CacheException("Snapshot directory fails its checksum");
+            }
+            byte[] state = new byte[stateLength];
+            directory.get(state);
+            byte[] deadlines = new byte[deadlinesLength];
+            directory.get(deadlines);
+            int entryHeaderSize = version == 1 ? V1_ENTRY_HEADER_SIZE : ENTRY_HEADER_SIZE;
+            Segment[] segments = new Segment[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                segments[i] = new Segment(i, directory.getLong(), directory.getLong(), directory.getInt(),
+                        directory.getInt(), entryHeaderSize);
+                if (segments[i].offset < HEADER_SIZE || segments[i].length < 0
+                        || segments[i].offset + segments[i].length > stateOffset) {
+                    throw new CacheException("Snapshot segment " + i + " lies outside the file");
+                }
+            }
+            return new Layout(encoding, state, deadlines, segments);
+        }
+    }
+
+    // A range of the file as listed in the directory
+    private static final class Segment {
+        final int index;
+        final long offset;
+        final long length;
+        final int entries;
+        final int checksum;
+        final int entryHeaderSize;
+
+        Segment(int index, long offset, long length, int entries, int checksum, int entryHeaderSize) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+            this.entries = entries;
+            this.checksum = checksum;
+            this.entryHeaderSize = entryHeaderSize;
+        }
+
+        int load(FileChannel channel, EntryLoader loader) throws CacheException, IOException {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            if (SnapshotFile.checksum(mapped.duplicate()) != checksum) {
+                throw new CacheException("Snapshot segment " + index + " fails its checksum");
+            }
+            for (int i = 0; i < entries; i++) {
+                if (mapped.remaining() < entryHeaderSize) {
+                    throw new CacheException("Snapshot segment " + index + " ends in the middle of an entry");
+                }
+                int keyLength = mapped.getInt();
+                int valueLength = mapped.getInt();
+                long weight = mapped.getLong();
+                int policy = entryHeaderSize == ENTRY_HEADER_SIZE ? mapped.getInt() : 0;
+                if (keyLength < 0 || valueLength < 0 || (long) keyLength + valueLength > mapped.remaining()) {
+                    throw new CacheException("Snapshot segment " + index + " ends in the middle of an entry");
+                }
+                byte[] key = new byte[keyLength];
+                byte[] value = new byte[valueLength];
+                mapped.get(key);
+                mapped.get(value);
+                loader.load(index, key, value, weight, policy);
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Writes a snapshot entry by entry. Entries go into the current segment
+     * until it reaches the target size or {@link #endSegment()} is called.
+     */
+    static final class Writer implements Closeable {
+        private final Path path;
+        private final Path temporary;
+        private final int segmentSize;
+        private final CRC32C crc;
+        private final FileChannel channel;
+        private final DataOutputStream output;
+        private final List<Segment> directory;
+        private long position;
+        private long segmentStart;
+        private int segmentEntries;
+        private byte[] state;
+        private byte[] deadlines;
+        private boolean committed;
+
+        Writer(Path path, byte encoding, int segmentSize) throws CacheException {
+            this.path = path;
+            this.temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            this.segmentSize = segmentSize;
+            this.crc = new CRC32C();
+            this.directory = new ArrayList<>();
+            this.state = NO_STATE;
+            this.deadlines = NO_STATE;
+            try {
+                this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                OutputStream file = Channels.newOutputStream(channel);
+                this.output = new DataOutputStream(new BufferedOutputStream(new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        crc.update(b);
+                        file.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] bytes, int offset, int length) throws IOException {
+                        crc.update(bytes, offset, length);
+                        file.write(bytes, offset, length);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        file.close();
+                    }
+                }, 64 * 1024));
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeByte(encoding);
+                position = HEADER_SIZE;
+                segmentStart = position;
+                output.flush();
+                crc.reset();
+            } catch (IOException e) {
+                throw new CacheException("Failed to persist cache to disk", e);
+            }
+        }
+
+        void write(byte[] key, byte[] value, long weight) throws CacheException {
+            write(key, value, weight, 0);
+        }
+
+        void write(byte[] key, byte[] value, long weight, int policy) throws CacheException {
+            try {
+                output.writeInt(key.length);
+                output.writeInt(value.length);
+                output.writeLong(weight);
+                output.writeInt(policy);
+                output.write(key);
+                output.write(value);
+            } catch (IOException e) {
+                throw new CacheException("Failed to persist cache to disk", e);
+            }
+            position += ENTRY_HEADER_SIZE + (long) key.length + value.length;
+            segmentEntries++;
+            if (position - segmentStart >= segmentSize) {
+                endSegment();
+            }
+        }
+
+        /** Closes the current segment, unless it is still empty. */
+        void endSegment() throws CacheException {
+            if (segmentEntries == 0) {
+                return;
+            }
+            try {
+                // The checksum only covers what went through the buffer
+                output.flush();
+            } catch (IOException e) {
+                throw new CacheException("Failed to persist cache to disk", e);
+            }
+            directory.add(new Segment(directory.size(), segmentStart, position - segmentStart, segmentEntries,
+                    (int) crc.getValue(), ENTRY_HEADER_SIZE));
+            crc.reset();
+            segmentStart = position;
+            segmentEntries = 0;
+        }
+
+        /** Engine state stored after the entries, replaces what was set before. */
+        void state(byte[] state) {
+            this.state = state;
+        }
+
+        /** Deadlines from {@link SnapshotFile#encodeDeadlines}, stored after the state. */
+        void deadlines(byte[] deadlines) {
+            this.deadlines = deadlines;
+        }
+
+        /** Writes the state and directory and replaces the previous snapshot with this one. */
+        void commit() throws CacheException {
+            endSegment();
+            try {
+                output.write(state);
+                output.write(deadlines);
+                long directoryOffset = position + state.length + deadlines.length;
+                for (Segment segment : directory) {
+                    output.writeLong(segment.offset);
+                    output.writeLong(segment.length);
+                    output.writeInt(segment.entries);
+                    output.writeInt(segment.checksum);
+                }
+                output.flush();
+                int directoryChecksum = (int) crc.getValue();
+                output.writeLong(directoryOffset);
+                output.writeInt(directory.size());
+                output.writeInt(state.length);
+                output.writeInt(deadlines.length);
+                output.writeInt(directoryChecksum);
+                output.writeInt(MAGIC);
+                output.flush();
+                channel.force(true);
+                output.close();
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                committed = true;
+            } catch (IOException e) {
+                throw new CacheException("Failed to persist cache to disk", e);
+            }
+        }
+
+        /** Drops the snapshot unless it was committed. */
+        @Override
+        public void close() {
+            if (committed) {
+                return;
+            }
+            try {
+                output.close();
+            } catch (IOException e) {
+                // Discarded anyway
+            }
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                // Left behind, overwritten by the next snapshot
+            }
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package a.cache.machine.engine;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import a.cache.machine.engine.codec.ObjectCodec;
+
+/**
+ * Keeps what a memory engine evicts in a {@link DiskTier} and brings it back
+ * on the next read.
+ * <p>
+ * The engine hands every evicted entry to the tier through its eviction
+ * sink, so memory holds the hot entries and disk holds the rest up to its
+ * own budget. The sink runs under the engine's lock, so it only queues the
+ * entry; the operation that caused the eviction writes the queue to disk
+ * once it released its locks. A read that misses in memory looks the key up
+ * in the queue and on disk and, if it is there, moves the entry back into
+ * the engine, which may in turn spill its coldest entries; such a read
+ * counts as a hit. Writes and removes go to memory and drop the key from
+ * the queue and disk, so the tiers never disagree about a value. Reads,
+ * writes and removes of the same key are serialized on a lock stripe, which
+ * keeps a promotion from bringing back a value that was just overwritten.
+ * The bulk operations take the stripes of all their keys.
+ * <p>
+ * Only memory is part of a snapshot, the tier starts empty. Expiry does not
+ * reach the tier, so wrap this cache in {@link ExpiringCache} rather than
+ * the other way around: expired keys are then removed from both tiers.
+ */
+public class TieredCache<K, V> implements ICache<K, V> {
+    private static final Logger logger = LoggerFactory.getLogger(TieredCache.class);
+    private static final int LOCK_STRIPES = 64;
+
+    private final ICache<K, V> delegate;
+    private final DiskTier tier;
+    private final ValueCodec<K> keyCodec;
+    private final ValueCodec<V> valueCodec;
+    private final ReentrantLock[] locks;
+    // Evicted from memory and not yet written to disk
+    private final ConcurrentHashMap<K, V> pending;
+    private volatile BiConsumer<? super K, ? super V> evictionSink;
+
+    @SuppressWarnings("unchecked")
+    public TieredCache(ICache<K, V> delegate, DiskTier tier) throws CacheException {
+        this(delegate, tier, (ValueCodec<K>) new ObjectCodec(), (ValueCodec<V>) new ObjectCodec());
+    }
+
+    public TieredCache(ICache<K, V> delegate, DiskTier tier, ValueCodec<K> keyCodec, ValueCodec<V> valueCodec)
+            throws CacheException {
+        this.delegate = delegate;
+        this.tier = tier;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.locks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        this.pending = new ConcurrentHashMap<>();
+        delegate.setEvictionSink(pending::put);
+        tier.setDropSink(this::dropped);
+    }
+
+    /** Hands every entry that leaves both memory and disk to {@code sink}. */
+    @Override
+    public void setEvictionSink(BiConsumer<? super K, ? super V> sink) {
+        this.evictionSink = sink;
+    }
+
+    // Writes what the engine evicted meanwhile, must be called without holding a stripe
+    private void spillPending() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        for (K key : pending.keySet()) {
+            ReentrantLock lock = lockFor(key);
+            lock.lock();
+            try {
+                V value = pending.get(key);
+                // Written or promoted again meanwhile, memory has the newer value
+                if (value != null && !delegate.containsKey(key)) {
+                    spill(key, value);
+                }
+                // On disk before it leaves the queue, so a read without the stripe finds it in one of them
+                pending.remove(key, value);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // An entry that cannot be written is lost like any eviction
+    private void spill(K key, V value) {
+        try {
+            if (tier.put(keyCodec.encode(key), valueCodec.encode(value))) {
+                delegate.getMetrics().incrementSpills();
+                return;
+            }
+        } catch (IOException | CacheException e) {
+            logger.warn("Failed to spill key " + key + " to the disk tier: " + e.getLocalizedMessage());
+        }
+        evicted(key, value);
+    }
+
+    // Called by the tier under its lock
+    private void dropped(byte[] key, byte[] value) {
+        if (evictionSink == null) {
+            return;
+        }
+        try {
+            evicted(keyCodec.decode(key), valueCodec.decode(value));
+        } catch (IOException e) {
+            logger.warn("Failed to decode an entry dropped by the disk tier: " + e.getLocalizedMessage());
+        }
+    }
+
+    private void evicted(K key, V value) {
+        BiConsumer<? super K, ? super V> sink = evictionSink;
+        if (sink != null) {
+            sink.accept(key, value);
+        }
+    }
+
+    @Override
+    public V get(K key) throws CacheException {
+        V value = delegate.get(key);
+        if (value == null) {
+            value = promote(key);
+        }
+        spillPending();
+        return value;
+    }
+
+    @Override
+    public Map<K, V> getAll(Collection<? extends K> keys) throws CacheException {
+        Map<K, V> found = delegate.getAll(keys);
+        if (found.size() < keys.size()) {
+            for (K key : keys) {
+                if (!found.containsKey(key)) {
+                    V value = promote(key);
+                    if (value != null) {
+                        found.put(key, value);
+                    }
+                }
+            }
+        }
+        spillPending();
+        return found;
+    }
+
+    // Moves a key that missed in memory back from the queue or disk, null if it is on neither
+    private V promote(K key) throws CacheException {
+        byte[] encodedKey = encodeKey(key);
+        // Skip the lock for keys that are on neither tier
+        if (!pending.containsKey(key) && !tier.containsKey(encodedKey)) {
+            return null;
+        }
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            V value = pending.remove(key);
+            if (value == null) {
+                byte[] bytes = tier.take(encodedKey);
+                if (bytes == null) {
+                    // Promoted by another reader meanwhile
+                    return delegate.get(key);
+                }
+                value = decodeValue(bytes);
+            }
+            delegate.put(key, value);
+            delegate.getMetrics().recordPromotion();
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public V put(K key, V value) throws CacheException {
+        V previous;
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            // Dropped first, the engine may evict the new value right away
+            V evicted = pending.remove(key);
+            byte[] bytes = tier.take(encodeKey(key));
+            previous = delegate.put(key, value);
+            if (previous == null) {
+                previous = evicted != null ? evicted : bytes != null ? decodeValue(bytes) : null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        spillPending();
+        return previous;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) throws CacheException {
+        boolean[] stripes = lockAll(entries.keySet());
+        try {
+            for (K key : entries.keySet()) {
+                pending.remove(key);
+                tier.remove(encodeKey(key));
+            }
+            delegate.putAll(entries);
+        } finally {
+            unlockAll(stripes);
+        }
+        spillPending();
+    }
+
+    /** Atomic like the engine's, a key evicted to the queue or disk counts as present. */
+    @Override
+    public boolean putAllIfAbsent(Map<? extends K, ? extends V> entries) throws CacheException {
+        boolean stored = true;
+        boolean[] stripes = lockAll(entries.keySet());
+        try {
+            for (K key : entries.keySet()) {
+                if (pending.containsKey(key) || tier.containsKey(encodeKey(key))) {
+                    stored = false;
+                    break;
+                }
+            }
+            stored = stored && delegate.putAllIfAbsent(entries);
+        } finally {
+            unlockAll(stripes);
+        }
+        spillPending();
+        return stored;
+    }
+
+    @Override
+    public V remove(K key) throws CacheException {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            V previous = delegate.remove(key);
+            V evicted = pending.remove(key);
+            byte[] bytes = tier.take(encodeKey(key));
+            if (previous == null) {
+                previous = evicted != null ? evicted : bytes != null ? decodeValue(bytes) : null;
+            }
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        if (delegate.containsKey(key) || pending.containsKey(key)) {
+            return true;
+        }
+        try {
+            return tier.containsKey(keyCodec.encode(key));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void clear() throws CacheException {
+        delegate.clear();
+        pending.clear();
+        tier.clear();
+    }
+
+    /** Entries in memory and on disk, an entry being spilled may be counted twice. */
+    @Override
+    public int size() {
+        return delegate.size() + pending.size() + tier.size();
+    }
+
+    /** Visits the entries in memory, then the ones on their way to disk and the ones on disk. */
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) throws CacheException {
+        delegate.forEach(action);
+        pending.forEach(action);
+        try {
+            tier.forEach((key, value) -> {
+                try {
+                    action.accept(keyCodec.decode(key), valueCodec.decode(value));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            throw new CacheException("Failed to decode an entry of the disk tier", e.getCause());
+        }
+    }
+
+    @Override
+    public Snapshot snapshot() throws CacheException {
+        return delegate.snapshot();
+    }
+
+    @Override
+    public long loadSnapshot(Path path) throws CacheException {
+        return delegate.loadSnapshot(path);
+    }
+
+    public DiskTier tier() {
+        return tier;
+    }
+
+    private byte[] encodeKey(K key) throws CacheException {
+        try {
+            return keyCodec.encode(key);
+        } catch (IOException e) {
+            throw new CacheException("Failed to encode key " + key, e);
+        }
+    }
+
+    private V decodeValue(byte[] bytes) throws CacheException {
+        try {
+            return valueCodec.decode(bytes);
+        } catch (IOException e) {
+            throw new CacheException("Failed to decode a value of the disk tier", e);
+        }
+    }
+
+    private ReentrantLock lockFor(Object key) {
+        return locks[stripe(key)];
+    }
+
+    private static int stripe(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (LOCK_STRIPES - 1);
+    }
+
+    // Takes the stripes of all keys in index order, so two batches cannot deadlock
+    private boolean[] lockAll(Collection<?> keys) {
+        boolean[] stripes = new boolean[LOCK_STRIPES];
+        for (Object key : keys) {
+            stripes[stripe(key)] = true;
+        }
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            if (stripes[i]) {
+                locks[i].lock();
+            }
+        }
+        return stripes;
+    }
+
+    private void unlockAll(boolean[] stripes) {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            if (stripes[i]) {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() throws CacheException {
+        try {
+            delegate.shutdown();
+        } finally {
+            tier.close();
+        }
+    }
+
+    @Override
+    public void addEventListener(ICacheEventListener listener) {
+        delegate.addEventListener(listener);
+    }
+
+    @Override
+    public void removeEventListener(ICacheEventListener listener) {
+        delegate.removeEventListener(listener);
+    }
+
+    @Override
+    public CacheMetrics getMetrics() {
+        return delegate.getMetrics();
+    }
+}
@@ -0,0 +1,163 @@
+package a.cache.machine.engine;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel for entry expiration.
+ * <p>
+ * Four wheels of 64 slots each; a slot of the first wheel spans one tick,
+ * a slot of every next wheel spans 64 slots of the previous one. A timer goes
+ * into the coarsest wheel whose span still separates it from now and moves
+ * down ("cascades") as time gets closer, so scheduling, cancelling and firing
+ * are all O(1) amortized no matter how many timers are pending. Timers beyond
+ * the top wheel's range are parked in its furthest slot and re-scheduled when
+ * that slot comes due. Not thread-safe, the owner guards it.
+ */
+final class TimerWheel<K> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final Timer<K>[][] wheels;
+    private long currentTick;
+    private int size;
+
+    TimerWheel(long tickMillis, long nowMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        @SuppressWarnings("unchecked")
+        Timer<K>[][] wheels = (Timer<K>[][]) new Timer<?>[LEVELS][SLOTS];
+        this.wheels = wheels;
+        for (Timer<K>[] wheel : wheels) {
+            for (int i = 0; i < SLOTS; i++) {
+                wheel[i] = Timer.sentinel();
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void schedule(Timer<K> timer) {
+        // The current tick was already processed, anything due fires on the next one
+        schedule(timer, currentTick + 1);
+    }
+
+    private void schedule(Timer<K> timer, long earliestTick) {
+        if (timer.next != null) {
+            unlink(timer);
+        }
+        long deadlineTick = Math.max(timer.deadline / tickMillis, earliestTick);
+        long delta = deadlineTick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int index;
+        if (delta >= (1L << (SLOT_BITS * LEVELS))) {
+            // Out of range, park in the furthest slot of the top wheel
+            index = (int) (((currentTick >>> (SLOT_BITS * level)) - 1) & SLOT_MASK);
+        } else {
+            index = (int) ((deadlineTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        }
+        link(wheels[level][index], timer);
+        size++;
+    }
+
+    void cancel(Timer<K> timer) {
+        if (timer.next != null) {
+            unlink(timer);
+        }
+    }
+
+    void clear() {
+        for (Timer<K>[] wheel : wheels) {
+            for (Timer<K> sentinel : wheel) {
+                sentinel.next = sentinel;
+                sentinel.prev = sentinel;
+            }
+        }
+        size = 0;
+    }
+
+    /** Advances the wheel to {@code nowMillis}, handing every timer that came due to {@code expired}. */
+    void advance(long nowMillis, Consumer<Timer<K>> expired) {
+        long targetTick = nowMillis / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+            // Entering a new rotation of a wheel pulls the matching slot of the
+            // next wheel down, coarsest first
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    int index = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                    cascade(wheels[level][index]);
+                }
+            }
+            Timer<K> sentinel = wheels[0][(int) (currentTick & SLOT_MASK)];
+            while (sentinel.next != sentinel) {
+                Timer<K> timer = sentinel.next;
+                unlink(timer);
+                if (timer.deadline / tickMillis <= currentTick) {
+                    expired.accept(timer);
+                } else {
+                    schedule(timer);
+                }
+            }
+        }
+    }
+
+    private void cascade(Timer<K> sentinel) {
+        Timer<K> timer = sentinel.next;
+        sentinel.next = sentinel;
+        sentinel.prev = sentinel;
+        while (timer != sentinel) {
+            Timer<K> next = timer.next;
+            timer.next = null;
+            timer.prev = null;
+            size--;
+            // Runs before the current tick's slot, so due timers can still make it
+            schedule(timer, currentTick);
+            timer = next;
+        }
+    }
+
+    private static <K> void link(Timer<K> sentinel, Timer<K> timer) {
+        timer.prev = sentinel.prev;
+        timer.next = sentinel;
+        sentinel.prev.next = timer;
+        sentinel.prev = timer;
+    }
+
+    private void unlink(Timer<K> timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.next = null;
+        timer.prev = null;
+        size--;
+    }
+
+    static final class Timer<K> {
+        final K key;
+        final long deadline;
+        Timer<K> prev;
+        Timer<K> next;
+
+        Timer(K key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+
+        private static <K> Timer<K> sentinel() {
+            Timer<K> sentinel = new Timer<>(null, Long.MAX_VALUE);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            return sentinel;
+        }
+    }
+}
@@ -0,0 +1,548 @@
+package a.cache.machine.engine;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import a.cache.machine.engine.weigher.SerializedWeigher;
+
+/**
+ * W-TinyLFU cache.
+ * <p>
+ * New entries land in a small LRU admission window (1% of the budget). When
+ * the window overflows, its eldest entries become candidates for the main
+ * region, a segmented LRU made of a probation and a protected (80%) part.
+ * A candidate only gets in if the {@link FrequencySketch} says it was
+ * requested more often than the entry it would push out, so a burst of
+ * one-hit wonders cannot flush the hot keys. The sketch halves its counters
+ * periodically, which lets formerly popular keys age out.
+ */
+public class TinyLfuCache<K, V> implements ICache<K, V> {
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private enum Region { WINDOW, PROBATION, PROTECTED }
+    private static final Region[] REGIONS = Region.values();
+
+    private final long maxSizeInBytes;
+    private final long windowMaxSizeInBytes;
+    private final long protectedMaxSizeInBytes;
+    private final Map<K, Node<K, V>> data;
+    private final FrequencySketch<K> sketch;
+    private final Weigher<? super K, ? super V> weigher;
+    private final Queue<K, V> window;
+    private final Queue<K, V> probation;
+    private final Queue<K, V> protectedQueue;
+    private long windowSizeInBytes;
+    private long protectedSizeInBytes;
+    private long mainSizeInBytes;
+    private final AtomicLong currentSizeInBytes;
+    private final CacheEventDispatcher events;
+    private final CacheMetrics metrics;
+    // Guards everything above except the atomics
+    private final ReentrantLock lock;
+    private volatile BiConsumer<? super K, ? super V> evictionSink;
+
+    public TinyLfuCache(long maxSizeInBytes) {
+        this(maxSizeInBytes, new SerializedWeigher());
+    }
+
+    public TinyLfuCache(long maxSizeInBytes, Weigher<? super K, ? super V> weigher) {
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.windowMaxSizeInBytes = Math.max(1, maxSizeInBytes * WINDOW_PERCENT / 100);
+        this.protectedMaxSizeInBytes = (maxSizeInBytes - windowMaxSizeInBytes) * PROTECTED_PERCENT / 100;
+        // Only a snapshot reads it without the lock
+        this.data = new ConcurrentHashMap<>();
+        this.sketch = new FrequencySketch<>(16);
+        this.weigher = weigher;
+        this.window = new Queue<>();
+        this.probation = new Queue<>();
+        this.protectedQueue = new Queue<>();
+        this.currentSizeInBytes = new AtomicLong(0);
+        this.events = new CacheEventDispatcher();
+        this.metrics = new CacheMetrics();
+        this.lock = new ReentrantLock();
+    }
+
+    @Override
+    public V get(K key) {
+        long start = System.nanoTime();
+        try {
+            return doGet(key);
+        } finally {
+            metrics.recordGet(System.nanoTime() - start);
+        }
+    }
+
+    private V doGet(K key) {
+        V value = null;
+        lock.lock();
+        try {
+            sketch.increment(key);
+            Node<K, V> node = data.get(key);
+            if (node != null) {
+                onAccess(node);
+                value = node.value;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (value != null) {
+            events.hit(key);
+            metrics.incrementHits();
+        } else {
+            events.miss(key);
+            metrics.incrementMisses();
+        }
+        return value;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        long start = System.nanoTime();
+        try {
+            return doPut(key, value);
+        } finally {
+            metrics.recordPut(System.nanoTime() - start);
+        }
+    }
+
+    private V doPut(K key, V value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Key or value cannot be null");
+        }
+        return doPut(key, value, weigher.weigh(key, value));
+    }
+
+    private V doPut(K key, V value, long weight) {
+        List<Node<K, V>> evicted = new ArrayList<>();
+        V previous = null;
+        lock.lock();
+        try {
+            sketch.increment(key);
+            Node<K, V> node = data.get(key);
+            if (node != null) {
+                previous = node.value;
+                node.value = value;
+                addWeight(node, weight - node.weight);
+                node.weight = weight;
+                onAccess(node);
+            } else {
+                node = new Node<>(key, value, weight);
+                data.put(key, node);
+                if (data.size() > sketch.capacity()) {
+                    sketch.ensureCapacity(2L * data.size(), data.keySet());
+                }
+                node.region = Region.WINDOW;
+                window.addLast(node);
+                windowSizeInBytes += weight;
+                currentSizeInBytes.addAndGet(weight);
+            }
+            evictEntries(evicted);
+        } finally {
+            lock.unlock();
+        }
+        for (Node<K, V> node : evicted) {
+            events.eviction(node.key, node.value);
+            metrics.recordEviction(node.weight);
+        }
+        return previous;
+    }
+
+    @Override
+    public V remove(K key) {
+        long start = System.nanoTime();
+        try {
+            return doRemove(key);
+        } finally {
+            metrics.recordRemove(System.nanoTime() - start);
+        }
+    }
+
+    private V doRemove(K key) {
+        lock.lock();
+        try {
+            Node<K, V> node = data.remove(key);
+            if (node == null) {
+                return null;
+            }
+            unlink(node);
+            return node.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        lock.lock();
+        try {
+            return data.containsKey(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            data.clear();
+            window.clear();
+            probation.clear();
+            protectedQueue.clear();
+            sketch.clear();
+            windowSizeInBytes = 0;
+            protectedSizeInBytes = 0;
+            mainSizeInBytes = 0;
+            currentSizeInBytes.set(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return data.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        lock.lock();
+        try {
+            data.forEach((k, node) -> action.accept(k, node.value));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setEvictionSink(BiConsumer<? super K, ? super V> sink) {
+        this.evictionSink = sink;
+    }
+
+    public long currentSizeInBytes() {
+        return currentSizeInBytes.get();
+    }
+
+    /** Estimated access frequency of a key, as seen by the admission policy. */
+    public int frequency(K key) {
+        lock.lock();
+        try {
+            return sketch.frequency(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onAccess(Node<K, V> node) {
+        switch (node.region) {
+            case WINDOW:
+                window.moveToEnd(node);
+                break;
+            case PROBATION:
+                // Second hit in the main region, promote to protected
+                probation.remove(node);
+                node.region = Region.PROTECTED;
+                protectedQueue.addLast(node);
+                protectedSizeInBytes += node.weight;
+                demoteProtected();
+                break;
+            case PROTECTED:
+                protectedQueue.moveToEnd(node);
+                break;
+        }
+    }
+
+    private void demoteProtected() {
+        while (protectedSizeInBytes > protectedMaxSizeInBytes && protectedQueue.first != null) {
+            Node<K, V> demoted = protectedQueue.pollFirst();
+            protectedSizeInBytes -= demoted.weight;
+            demoted.region = Region.PROBATION;
+            probation.addLast(demoted);
+        }
+    }
+
+    private void addWeight(Node<K, V> node, long delta) {
+        switch (node.region) {
+            case WINDOW:
+                windowSizeInBytes += delta;
+                break;
+            case PROTECTED:
+                protectedSizeInBytes += delta;
+                mainSizeInBytes += delta;
+                break;
+            case PROBATION:
+                mainSizeInBytes += delta;
+                break;
+        }
+        currentSizeInBytes.addAndGet(delta);
+    }
+
+    private void unlink(Node<K, V> node) {
+        switch (node.region) {
+            case WINDOW:
+                window.remove(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            case PROTECTED:
+                protectedQueue.remove(node);
+                break;
+        }
+        addWeight(node, -node.weight);
+    }
+
+    private void evictEntries(List<Node<K, V>> evicted) {
+        // Entries leaving the window are appended to probation, the first
+        // one moved in this round is the first candidate for admission
+        Node<K, V> candidate = null;
+        while (windowSizeInBytes > windowMaxSizeInBytes && window.first != null) {
+            Node<K, V> node = window.pollFirst();
+            windowSizeInBytes -= node.weight;
+            node.region = Region.PROBATION;
+            probation.addLast(node);
+            mainSizeInBytes += node.weight;
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+        demoteProtected();
+
+        while (windowSizeInBytes + mainSizeInBytes > maxSizeInBytes) {
+            if (candidate == null) {
+                // Nothing (or nothing else) left the window in this round,
+                // so its eldest entry competes for the space instead
+                candidate = window.first;
+            }
+            Node<K, V> victim = probation.first;
+            if (victim == candidate) {
+                // Only fresh candidates are left in probation
+                victim = protectedQueue.first;
+            }
+            if (candidate == null) {
+                evict(victim, evicted);
+            } else if (victim == null || !admit(candidate.key, victim.key)) {
+                Node<K, V> next = candidate.next;
+                evict(candidate, evicted);
+                candidate = next;
+            } else {
+                evict(victim, evicted);
+            }
+        }
+    }
+
+    private boolean admit(K candidateKey, K victimKey) {
+        return sketch.frequency(candidateKey) > sketch.frequency(victimKey);
+    }
+
+    private void evict(Node<K, V> node, List<Node<K, V>> evicted) {
+        data.remove(node.key);
+        unlink(node);
+        evicted.add(node);
+        BiConsumer<? super K, ? super V> sink = evictionSink;
+        if (sink != null) {
+            sink.accept(node.key, node.value);
+        }
+    }
+
+    @Override
+    public void shutdown() throws CacheException {
+        events.shutdown();
+        snapshot().writeTo(SnapshotFile.DEFAULT_PATH);
+    }
+
+    // Nodes change in place, so their fields are copied rather than the
+    // nodes, a batch at a time under the lock after finding them without it.
+    // Sorted by region and by place in the region's queue, eldest first, with
+    // the region as policy; the sketch goes along as the engine state.
+    @Override
+    public Snapshot snapshot() {
+        Snapshot.Copied snapshot = new Snapshot.Copied(SnapshotFile.OBJECTS, metrics, data.size());
+        snapshot.copyInBatches(data.values().iterator(), lock, node -> {
+            // Evicted, removed or replaced since it was found
+            if (data.get(node.key) == node) {
+                snapshot.add(node.key, node.value, node.weight, node.region.ordinal(), node.order);
+            }
+        });
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            snapshot.state(sketch.state());
+        } finally {
+            lock.unlock();
+            snapshot.held(start);
+        }
+        return snapshot.sortByOrder();
+    }
+
+    public void loadFromDisk() throws CacheException {
+        loadSnapshot(SnapshotFile.DEFAULT_PATH);
+    }
+
+    @Override
+    public long loadSnapshot(Path path) throws CacheException {
+        long start = System.nanoTime();
+        long loaded = doLoadSnapshot(path);
+        metrics.recordLoad(System.nanoTime() - start);
+        return loaded;
+    }
+
+    // Segments are decoded in parallel, the nodes go back into their regions
+    // in file order and the sketch is taken over, so admission decisions
+    // carry on where they stopped. Snapshots without a sketch start from
+    // an empty one.
+    private long doLoadSnapshot(Path path) throws CacheException {
+        SnapshotFile.Contents<Node<K, V>> contents = SnapshotFile.read(path, SnapshotFile.OBJECTS,
+                (key, value, weight, policy) -> {
+                    Node<K, V> node = new Node<>(SnapshotFile.decode(key), SnapshotFile.decode(value), weight);
+                    node.region = REGIONS[policy];
+                    return node;
+                });
+        List<Node<K, V>> evicted = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Node<K, V> node : contents.entries) {
+                restore(node);
+            }
+            if (contents.state.length > 0) {
+                sketch.restore(contents.state);
+            }
+            if (data.size() > sketch.capacity()) {
+                sketch.ensureCapacity(2L * data.size(), data.keySet());
+            }
+            evictEntries(evicted);
+        } finally {
+            lock.unlock();
+        }
+        for (Node<K, V> node : evicted) {
+            events.eviction(node.key, node.value);
+            metrics.recordEviction(node.weight);
+        }
+        return contents.entries.size();
+    }
+
+    // Appends a node to the region it was in, replacing a cached entry of
+    // the same key. Must be called while holding the lock.
+    private void restore(Node<K, V> node) {
+        Node<K, V> previous = data.put(node.key, node);
+        if (previous != null) {
+            unlink(previous);
+        }
+        switch (node.region) {
+            case WINDOW:
+                window.addLast(node);
+                break;
+            case PROBATION:
+                probation.addLast(node);
+                break;
+            case PROTECTED:
+                protectedQueue.addLast(node);
+                break;
+        }
+        addWeight(node, node.weight);
+    }
+
+    @Override
+    public void addEventListener(ICacheEventListener listener) {
+        events.addListener(listener);
+    }
+
+    @Override
+    public void removeEventListener(ICacheEventListener listener) {
+        events.removeListener(listener);
+    }
+
+    // Lets tests wait for asynchronously delivered events
+    CacheEventDispatcher events() {
+        return events;
+    }
+
+    @Override
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static class Node<K, V> {
+        final K key;
+        V value;
+        long weight;
+        Region region;
+        Node<K, V> prev;
+        Node<K, V> next;
+        // Place in its queue, larger is newer
+        long order;
+
+        Node(K key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    // Intrusive doubly linked list, eldest entry first
+    private static class Queue<K, V> {
+        Node<K, V> first;
+        Node<K, V> last;
+        long added;
+
+        void addLast(Node<K, V> node) {
+            node.order = ++added;
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+        }
+
+        Node<K, V> pollFirst() {
+            Node<K, V> node = first;
+            if (node != null) {
+                remove(node);
+            }
+            return node;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToEnd(Node<K, V> node) {
+            if (node != last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void clear() {
+            first = null;
+            last = null;
+        }
+    }
+}
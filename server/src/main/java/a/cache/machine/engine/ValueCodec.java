@@ -0,0 +1,12 @@
+package a.cache.machine.engine;
+
+import java.io.IOException;
+
+/**
+ * Turns values into bytes and back, for engines that keep values outside the
+ * Java heap.
+ */
+public interface ValueCodec<V> {
+    byte[] encode(V value) throws IOException;
+    V decode(byte[] bytes) throws IOException;
+}
@@ -0,0 +1,13 @@
+package a.cache.machine.engine;
+
+/**
+ * Computes how many bytes an entry counts against a cache's byte budget.
+ * <p>
+ * The weight is computed once when the entry is inserted and stored with it,
+ * so it must not change while the entry is cached. Implementations should be
+ * cheap and thread-safe, they run on every put.
+ */
+@FunctionalInterface
+public interface Weigher<K, V> {
+    long weigh(K key, V value);
+}
@@ -0,0 +1,15 @@
+package a.cache.machine.engine;
+
+import java.io.Serializable;
+
+// A cached value together with the weight it was charged when inserted
+final class Weighted<V> implements Serializable {
+    private static final long serialVersionUID = 1L;
+    final V value;
+    final long weight;
+
+    Weighted(V value, long weight) {
+        this.value = value;
+        this.weight = weight;
+    }
+}
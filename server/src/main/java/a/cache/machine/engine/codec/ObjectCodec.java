@@ -0,0 +1,71 @@
+package a.cache.machine.engine.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import a.cache.machine.engine.ByteKey;
+import a.cache.machine.engine.ValueCodec;
+
+/**
+ * Encodes any value behind a one byte type tag. Strings are stored as UTF-8,
+ * byte arrays and the bytes of a {@link ByteKey} as is, everything else
+ * falls back to Java serialization.
+ */
+public class ObjectCodec implements ValueCodec<Object> {
+    private static final byte STRING = 0;
+    private static final byte BYTES = 1;
+    private static final byte SERIALIZED = 2;
+    private static final byte BYTE_KEY = 3;
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        if (value instanceof String) {
+            return tagged(STRING, ((String) value).getBytes(StandardCharsets.UTF_8));
+        }
+        if (value instanceof byte[]) {
+            return tagged(BYTES, (byte[]) value);
+        }
+        if (value instanceof ByteKey) {
+            return tagged(BYTE_KEY, ((ByteKey) value).toByteArray());
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(SERIALIZED);
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeObject(value);
+        }
+        return baos.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] bytes) throws IOException {
+        switch (bytes[0]) {
+            case STRING:
+                return new String(bytes, 1, bytes.length - 1, StandardCharsets.UTF_8);
+            case BYTES:
+                return Arrays.copyOfRange(bytes, 1, bytes.length);
+            case BYTE_KEY:
+                return ByteKey.copyOf(bytes, 1, bytes.length - 1);
+            case SERIALIZED:
+                try (ObjectInputStream ois = new ObjectInputStream(
+                        new ByteArrayInputStream(bytes, 1, bytes.length - 1))) {
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unknown class of cached value", e);
+                }
+            default:
+                throw new IOException("Unknown value tag " + bytes[0]);
+        }
+    }
+
+    private static byte[] tagged(byte tag, byte[] payload) {
+        byte[] bytes = new byte[payload.length + 1];
+        bytes[0] = tag;
+        System.arraycopy(payload, 0, bytes, 1, payload.length);
+        return bytes;
+    }
+}
@@ -1,8 +1,11 @@
 package a.cache.machine.engine.listener;
 
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import a.cache.machine.engine.CacheEvent;
 import a.cache.machine.engine.ICacheEventListener;
 
 public class SimpleCacheEventLogger implements ICacheEventListener {
@@ -10,6 +13,7 @@ public class SimpleCacheEventLogger implements ICacheEventListener {
     private int hitCount = 0;
     private int missCount = 0;
     private int evictionCount = 0;
+    private int expirationCount = 0;
 
     @Override
     public void onHit(String key) {
@@ -26,7 +30,43 @@ public class SimpleCacheEventLogger implements ICacheEventListener {
     @Override
     public void onEviction(String key, Object value) {
         evictionCount++;
-        logger.info("Eviction for key: " + key + ", value: " + value);
+        logger.info("Eviction for key: " + key + ", value: " + CacheEvent.describe(value));
+    }
+
+    @Override
+    public void onExpiration(String key, Object value) {
+        expirationCount++;
+        logger.info("Expiration for key: " + key + ", value: " + CacheEvent.describe(value));
+    }
+
+    // Hits and misses are too frequent for a line each, a batch gets one summary line
+    @Override
+    public void onEvents(List<CacheEvent> events) {
+        int hits = 0;
+        int misses = 0;
+        for (CacheEvent event : events) {
+            switch (event.getType()) {
+                case HIT:
+                    hits++;
+                    logger.debug("Cache hit for key: " + event.getKey());
+                    break;
+                case MISS:
+                    misses++;
+                    logger.debug("Cache miss for key: " + event.getKey());
+                    break;
+                case EVICTION:
+                    onEviction(event.getKey(), event.getValue());
+                    break;
+                case EXPIRATION:
+                    onExpiration(event.getKey(), event.getValue());
+                    break;
+            }
+        }
+        hitCount += hits;
+        missCount += misses;
+        if (hits + misses > 0) {
+            logger.info("Cache hits: " + hits + ", misses: " + misses);
+        }
     }
 
     public int getHitCount() {
@@ -40,4 +80,8 @@ public class SimpleCacheEventLogger implements ICacheEventListener {
     public int getEvictionCount() {
         return evictionCount;
     }
+
+    public int getExpirationCount() {
+        return expirationCount;
+    }
 }
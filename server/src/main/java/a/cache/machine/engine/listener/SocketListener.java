@@ -1,5 +1,6 @@
 package a.cache.machine.engine.listener;
 
+import a.cache.machine.engine.CacheEvent;
 import a.cache.machine.engine.ICacheEventListener;
 import javax.websocket.OnOpen;
 import javax.websocket.OnClose;
@@ -9,6 +10,7 @@ import javax.websocket.server.ServerEndpoint;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -48,6 +50,37 @@ public class SocketListener implements ICacheEventListener {
         }
     }
 
+    // One socket write per batch instead of one per event
+    @Override
+    public void onEvents(List<CacheEvent> events) {
+        if (clients.isEmpty()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        for (CacheEvent event : events) {
+            if (message.length() > 0) {
+                message.append('\n');
+            }
+            switch (event.getType()) {
+                case HIT:
+                    message.append("Cache hit for key: ").append(event.getKey());
+                    break;
+                case MISS:
+                    message.append("Cache miss for key: ").append(event.getKey());
+                    break;
+                case EVICTION:
+                    message.append("Eviction for key: ").append(event.getKey())
+                            .append(", value: ").append(CacheEvent.describe(event.getValue()));
+                    break;
+                case EXPIRATION:
+                    message.append("Expiration for key: ").append(event.getKey())
+                            .append(", value: ").append(CacheEvent.describe(event.getValue()));
+                    break;
+            }
+        }
+        broadcast(message.toString());
+    }
+
     @Override
     public void onHit(String key) {
         String message = "Cache hit for key: " + key;
@@ -62,7 +95,13 @@ public class SocketListener implements ICacheEventListener {
 
     @Override
     public void onEviction(String key, Object value) {
-        String message = "Eviction for key: " + key + ", value: " + value;
+        String message = "Eviction for key: " + key + ", value: " + CacheEvent.describe(value);
+        broadcast(message);
+    }
+
+    @Override
+    public void onExpiration(String key, Object value) {
+        String message = "Expiration for key: " + key + ", value: " + CacheEvent.describe(value);
         broadcast(message);
     }
 }
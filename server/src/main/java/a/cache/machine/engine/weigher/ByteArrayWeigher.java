@@ -0,0 +1,30 @@
+package a.cache.machine.engine.weigher;
+
+import a.cache.machine.engine.ByteKey;
+import a.cache.machine.engine.Weigher;
+
+/**
+ * Weighs {@code byte[]} and {@link ByteKey} keys and values by their length. String keys count
+ * their UTF-8 length, anything else falls back to {@link ObjectSizeWeigher}.
+ */
+public class ByteArrayWeigher implements Weigher<Object, Object> {
+    private final ObjectSizeWeigher fallback = new ObjectSizeWeigher();
+
+    @Override
+    public long weigh(Object key, Object value) {
+        return weigh(key) + weigh(value);
+    }
+
+    private long weigh(Object object) {
+        if (object instanceof byte[]) {
+            return ((byte[]) object).length;
+        }
+        if (object instanceof ByteKey) {
+            return ((ByteKey) object).length();
+        }
+        if (object instanceof CharSequence) {
+            return StringWeigher.utf8Length(object);
+        }
+        return fallback.sizeOf(object);
+    }
+}
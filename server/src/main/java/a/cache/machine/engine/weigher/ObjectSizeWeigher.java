@@ -0,0 +1,194 @@
+package a.cache.machine.engine.weigher;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import a.cache.machine.engine.Weigher;
+
+/**
+ * Estimates the retained heap size of keys and values: the shallow size of
+ * every object reachable from them, each counted once. Sizes assume a 64-bit
+ * JVM with compressed oops (12 byte headers, 4 byte references, 8 byte
+ * alignment).
+ * <p>
+ * Strings, arrays and boxed primitives are sized directly. JDK collections
+ * and maps are walked through their public API, since their fields are not
+ * accessible; other JDK objects only count their shallow size. Per-class
+ * layouts are computed once and cached.
+ */
+public class ObjectSizeWeigher implements Weigher<Object, Object> {
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final int ALIGNMENT = 8;
+    // HashMap.Node and friends: header, hash, key, value and next
+    private static final int MAP_ENTRY = 32;
+
+    private static final ClassValue<Layout> LAYOUTS = new ClassValue<>() {
+        @Override
+        protected Layout computeValue(Class<?> type) {
+            return Layout.of(type);
+        }
+    };
+
+    @Override
+    public long weigh(Object key, Object value) {
+        return sizeOf(key) + sizeOf(value);
+    }
+
+    public long sizeOf(Object root) {
+        if (root == null) {
+            return 0;
+        }
+        // Fast paths for the common leaf values, no graph walk needed
+        if (root instanceof String) {
+            return stringSize((String) root);
+        }
+        if (root instanceof byte[]) {
+            return align(ARRAY_HEADER + ((byte[]) root).length);
+        }
+
+        IdentityHashMap<Object, Boolean> visited = new IdentityHashMap<>();
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(root);
+        long size = 0;
+        while (!pending.isEmpty()) {
+            Object object = pending.pop();
+            if (visited.put(object, Boolean.TRUE) != null) {
+                continue;
+            }
+            size += shallowSizeAndPush(object, pending);
+        }
+        return size;
+    }
+
+    private long shallowSizeAndPush(Object object, ArrayDeque<Object> pending) {
+        Class<?> type = object.getClass();
+        if (object instanceof String) {
+            return stringSize((String) object);
+        }
+        if (type.isArray()) {
+            Class<?> component = type.getComponentType();
+            int length = Array.getLength(object);
+            if (component.isPrimitive()) {
+                return align(ARRAY_HEADER + (long) length * primitiveSize(component));
+            }
+            for (Object element : (Object[]) object) {
+                push(element, pending);
+            }
+            return align(ARRAY_HEADER + (long) length * REFERENCE);
+        }
+
+        Layout layout = LAYOUTS.get(type);
+        long size = layout.shallowSize;
+        if (object instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) object;
+            if (!layout.walkable) {
+                // Bucket table at the default load factor plus one node per entry
+                size += align(ARRAY_HEADER + (long) (map.size() * 4 / 3) * REFERENCE) + (long) map.size() * MAP_ENTRY;
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    push(entry.getKey(), pending);
+                    push(entry.getValue(), pending);
+                }
+                return size;
+            }
+        } else if (object instanceof Collection) {
+            Collection<?> collection = (Collection<?>) object;
+            if (!layout.walkable) {
+                size += align(ARRAY_HEADER + (long) collection.size() * REFERENCE);
+                for (Object element : collection) {
+                    push(element, pending);
+                }
+                return size;
+            }
+        }
+        for (Field field : layout.references) {
+            try {
+                push(field.get(object), pending);
+            } catch (IllegalAccessException e) {
+                // Layout only keeps accessible fields, nothing to count here
+            }
+        }
+        return size;
+    }
+
+    private static void push(Object object, ArrayDeque<Object> pending) {
+        if (object != null) {
+            pending.push(object);
+        }
+    }
+
+    static long stringSize(String value) {
+        // String object itself: header, value reference, hash, coder and hashIsZero
+        long shallow = align(OBJECT_HEADER + REFERENCE + 4 + 1 + 1);
+        boolean latin1 = true;
+        for (int i = 0, n = value.length(); i < n && latin1; i++) {
+            latin1 = value.charAt(i) < 0x100;
+        }
+        return shallow + align(ARRAY_HEADER + (long) value.length() * (latin1 ? 1 : 2));
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private static final class Layout {
+        final long shallowSize;
+        final List<Field> references;
+        // False for JDK classes, whose private fields cannot be read
+        final boolean walkable;
+
+        private Layout(long shallowSize, List<Field> references, boolean walkable) {
+            this.shallowSize = shallowSize;
+            this.references = references;
+            this.walkable = walkable;
+        }
+
+        static Layout of(Class<?> type) {
+            long size = OBJECT_HEADER;
+            List<Field> references = new ArrayList<>();
+            boolean walkable = true;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    Class<?> fieldType = field.getType();
+                    if (fieldType.isPrimitive()) {
+                        size += primitiveSize(fieldType);
+                        continue;
+                    }
+                    size += REFERENCE;
+                    try {
+                        field.setAccessible(true);
+                        references.add(field);
+                    } catch (RuntimeException e) {
+                        // Encapsulated by its module, count the reference only
+                        walkable = false;
+                    }
+                }
+            }
+            return new Layout(align(size), references, walkable);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package a.cache.machine.engine.weigher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+import a.cache.machine.engine.Weigher;
+
+/**
+ * Weighs a value by the length of its Java serialized form, the key is not
+ * counted. This is how the engines have always sized their entries, and it is
+ * still their default, but it allocates a stream per call and is by far the
+ * slowest weigher.
+ */
+public class SerializedWeigher implements Weigher<Object, Object> {
+
+    @Override
+    public long weigh(Object key, Object value) {
+        try (
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(baos);) {
+            oos.writeObject(value);
+            return baos.size();
+        } catch (IOException e) {
+            // Fallback to a rough estimation if serialization fails
+            return value.toString().length() * 2; // Rough estimate assuming String chars are 2 bytes
+        }
+    }
+}
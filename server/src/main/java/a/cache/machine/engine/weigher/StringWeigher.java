@@ -0,0 +1,43 @@
+package a.cache.machine.engine.weigher;
+
+import a.cache.machine.engine.ByteKey;
+import a.cache.machine.engine.Weigher;
+
+/**
+ * Weighs keys and values by their UTF-8 encoded length, which is what they
+ * cost on the wire. The length is counted without encoding, so no garbage is
+ * produced. {@code byte[]} values and {@link ByteKey}s are weighed by their
+ * length, anything else by its {@code toString()}.
+ */
+public class StringWeigher implements Weigher<Object, Object> {
+
+    @Override
+    public long weigh(Object key, Object value) {
+        return utf8Length(key) + utf8Length(value);
+    }
+
+    static long utf8Length(Object object) {
+        if (object instanceof byte[]) {
+            return ((byte[]) object).length;
+        }
+        if (object instanceof ByteKey) {
+            return ((ByteKey) object).length();
+        }
+        CharSequence chars = object instanceof CharSequence ? (CharSequence) object : String.valueOf(object);
+        long length = 0;
+        for (int i = 0, n = chars.length(); i < n; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
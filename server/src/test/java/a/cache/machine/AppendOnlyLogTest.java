@@ -0,0 +1,282 @@
+package a.cache.machine;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import a.cache.machine.engine.ByteKey;
+import a.cache.machine.engine.CompactByteCache;
+import a.cache.machine.engine.ExpiringCache;
+import a.cache.machine.engine.ICache;
+
+class AppendOnlyLogTest {
+    private Path directory;
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("aof");
+        file = directory.resolve("appendonly.aof");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static ICache<ByteKey, byte[]> newCache() {
+        return new ExpiringCache<>(new CompactByteCache(1 << 20));
+    }
+
+    private static String command(String... args) {
+        StringBuilder resp = new StringBuilder("*").append(args.length).append("\r\n");
+        for (String arg : args) {
+            resp.append('$').append(arg.getBytes(StandardCharsets.UTF_8).length).append("\r\n").append(arg).append("\r\n");
+        }
+        return resp.toString();
+    }
+
+    private static String run(CommandProcessor processor, String... args) throws ProtocolException {
+        RespWriter writer = new RespWriter(1024);
+        ByteBuffer input = ByteBuffer.wrap(command(args).getBytes(StandardCharsets.UTF_8));
+        processor.process(new RespParser().parse(input), writer);
+        return new String(writer.buffer().array(), 0, writer.pending(), StandardCharsets.UTF_8);
+    }
+
+    private static String get(ICache<ByteKey, byte[]> cache, String key) throws Exception {
+        byte[] value = cache.get(ByteKey.of(key));
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testReplayRestoresWrites() throws Exception {
+        AppendOnlyLog log = new AppendOnlyLog(file, AppendOnlyLog.Fsync.EVERYSEC);
+        ICache<ByteKey, byte[]> cache = newCache();
+        log.start(cache);
+        CommandProcessor processor = new CommandProcessor(cache, log);
+
+        run(processor, "SET", "kept", "v1");
+        run(processor, "SET", "kept", "v2");
+        run(processor, "SET", "deleted", "v");
+        run(processor, "DEL", "deleted", "missing");
+        run(processor, "SET", "expiring", "v", "EX", "100");
+        run(processor, "SET", "persisted", "v", "PX", "100000");
+        run(processor, "PERSIST", "persisted");
+        run(processor, "MSETNX", "a", "1", "b", "2");
+        assertEquals(":0\r\n", run(processor, "MSETNX", "a", "x", "c", "3"));
+        run(processor, "SET", "expired", "v");
+        run(processor, "PEXPIRE", "expired", "0");
+        log.close();
+
+        ICache<ByteKey, byte[]> restored = newCache();
+        assertEquals(10, new AppendOnlyLog(file, AppendOnlyLog.Fsync.EVERYSEC).replay(restored));
+        assertEquals("v2", get(restored, "kept"));
+        assertNull(get(restored, "deleted"));
+        assertEquals("1", get(restored, "a"));
+        assertNull(get(restored, "c"));
+        assertNull(get(restored, "expired"));
+        // Deadlines are absolute, the time to live keeps running across the restart
+        long ttl = restored.ttl(ByteKey.of("expiring"));
+        assertTrue(ttl > 90_000 && ttl <= 100_000, "ttl " + ttl);
+        assertEquals(ICache.NO_EXPIRY, restored.ttl(ByteKey.of("persisted")));
+    }
+
+    @Test
+    void testLoggedExpirationsAreAbsolute() throws Exception {
+        AppendOnlyLog log = new AppendOnlyLog(file, AppendOnlyLog.Fsync.NO);
+        ICache<ByteKey, byte[]> cache = newCache();
+        log.start(cache);
+        CommandProcessor processor = new CommandProcessor(cache, log);
+        run(processor, "SET", "key", "value", "PX", "5000");
+        run(processor, "EXPIRE", "key", "60");
+        log.close();
+
+        String logged = Files.readString(file);
+        assertTrue(logged.startsWith("*5\r\n$3\r\nSET\r\n$3\r\nkey\r\n$5\r\nvalue\r\n$4\r\nPXAT\r\n$13\r\n"), logged);
+        assertTrue(logged.contains("*3\r\n$9\r\nPEXPIREAT\r\n$3\r\nkey\r\n$13\r\n"), logged);
+    }
+
+    @Test
+    void testAlwaysWritesBeforeReplying() throws Exception {
+        AppendOnlyLog log = new AppendOnlyLog(file, AppendOnlyLog.Fsync.ALWAYS);
+        ICache<ByteKey, byte[]> cache = newCache();
+        log.start(cache);
+        CommandProcessor processor = new CommandProcessor(cache, log);
+        try {
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                int thread = t;
+                threads[t] = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 100; i++) {
+                            run(processor, "SET", "key" + thread + ":" + i, "value");
+                            // Answered only once the command is in the file
+                            assertTrue(Files.readString(file).contains("key" + thread + ":" + i));
+                        }
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            log.close();
+        }
+        assertEquals(400, new AppendOnlyLog(file, AppendOnlyLog.Fsync.ALWAYS).replay(newCache()));
+    }
+
+    @Test
+    void testWritesAreRefusedOnceClosed() throws Exception {
+        AppendOnlyLog log = new AppendOnlyLog(file, AppendOnlyLog.Fsync.EVERYSEC);
+        ICache<ByteKey, byte[]> cache = newCache();
+        log.start(cache);
+        CommandProcessor processor = new CommandProcessor(cache, log);
+        log.close();
+
+        assertEquals("-ERR Append-only log is closed\r\n", run(processor, "SET", "key", "value"));
+        assertNull(get(cache, "key"));
+        // Reads do not need the log
+        assertEquals("$-1\r\n", run(processor, "GET", "key"));
+    }
+
+    @Test
+    void testIncompleteCommandAtTheEndIsTruncated() throws Exception {
+        String complete = command("SET", "a", "1") + command("SET", "b", "2");
+        Files.writeString(file, complete + command("SET", "c", "3").substring(0, 15));
+
+        ICache<ByteKey, byte[]> cache = newCache();
+        assertEquals(2, new AppendOnlyLog(file, AppendOnlyLog.Fsync.EVERYSEC).replay(cache));
+        assertEquals("2", get(cache, "b"));
+        assertNull(get(cache, "c"));
+        assertEquals(complete.length(), Files.size(file));
+    }
+
+    @Test
+    void testCorruptLogFailsToReplay() throws Exception {
+        Files.writeString(file, command("SET", "a", "1") + "*1\r\n+PING\r\n");
+
+        assertThrows(IOException.class, () -> new AppendOnlyLog(file, AppendOnlyLog.Fsync.EVERYSEC).replay(newCache()));
+    }
+
+    @Test
+    void testRewriteKeepsOnlyTheCurrentState() throws Exception {
+        AppendOnlyLog log = new AppendOnlyLog(file, AppendOnlyLog.Fsync.EVERYSEC, 1 << 20);
+        ICache<ByteKey, byte[]> cache = newCache();
+        log.start(cache);
+        CommandProcessor processor = new CommandProcessor(cache, log);
+        for (int i = 0; i < 1000; i++) {
+            run(processor, "SET", "key" + i % 10, "value" + i);
+        }
+        run(processor, "SET", "expiring", "value", "EX", "100");
+
+        assertTrue(log.rewrite());
+        // Commands keep being logged while the snapshot is written
+        for (int i = 0; i < 100; i++) {
+            run(processor, "SET", "during" + i, "value" + i);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (log.rewrites() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, log.rewrites());
+        run(processor, "SET", "after", "value");
+        log.close();
+
+        ICache<ByteKey, byte[]> restored = newCache();
+        long replayed = new AppendOnlyLog(file, AppendOnlyLog.Fsync.EVERYSEC).replay(restored);
+        assertTrue(replayed < 1000, "replayed " + replayed);
+        for (int i = 990; i < 1000; i++) {
+            assertEquals("value" + i, get(restored, "key" + i % 10));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, get(restored, "during" + i));
+        }
+        assertEquals("value", get(restored, "after"));
+        assertTrue(restored.ttl(ByteKey.of("expiring")) > 90_000);
+        assertFalse(Files.exists(directory.resolve("appendonly.aof.rewrite")));
+    }
+
+    @Test
+    void testRewriteStartsOnceTheLogGrows() throws Exception {
+        AppendOnlyLog log = new AppendOnlyLog(file, AppendOnlyLog.Fsync.NO, 16 * 1024);
+        ICache<ByteKey, byte[]> cache = newCache();
+        log.start(cache);
+        CommandProcessor processor = new CommandProcessor(cache, log);
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            for (int i = 0; log.rewrites() == 0 && System.currentTimeMillis() < deadline; i++) {
+                run(processor, "SET", "key", "value" + i);
+            }
+            assertTrue(log.rewrites() > 0);
+        } finally {
+            log.close();
+        }
+        assertTrue(Files.size(file) < 16 * 1024 * 2);
+    }
+
+    @Test
+    void testFailedRewriteWaitsForTheLogToGrow() throws Exception {
+        // A non-empty directory where the rewrite goes can neither be written nor deleted
+        Path temp = directory.resolve("appendonly.aof.rewrite");
+        Files.createDirectory(temp);
+        Files.write(temp.resolve("blocker"), new byte[0]);
+        // Every command is a batch of its own
+        AppendOnlyLog log = new AppendOnlyLog(file, AppendOnlyLog.Fsync.ALWAYS, 1024);
+        ICache<ByteKey, byte[]> cache = newCache();
+        log.start(cache);
+        CommandProcessor processor = new CommandProcessor(cache, log);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                run(processor, "SET", "key", "value" + i);
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (log.failedRewrites() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, log.rewrites());
+            // About one attempt per doubling of the log, not one per batch
+            long failed = log.failedRewrites();
+            assertTrue(failed > 0 && failed <= 10, failed + " failed rewrites");
+        } finally {
+            log.close();
+        }
+        assertTrue(Files.size(file) > 1000 * command("SET", "key", "value0").length());
+    }
+
+    @Test
+    void testParsesFsyncPolicies() {
+        assertEquals(AppendOnlyLog.Fsync.ALWAYS, AppendOnlyLog.Fsync.parse("always"));
+        assertEquals(AppendOnlyLog.Fsync.EVERYSEC, AppendOnlyLog.Fsync.parse("everysec"));
+        assertEquals(AppendOnlyLog.Fsync.NO, AppendOnlyLog.Fsync.parse("no"));
+        assertThrows(IllegalArgumentException.class, () -> AppendOnlyLog.Fsync.parse("sometimes"));
+    }
+
+    @Test
+    void testMissingLogReplaysNothing() throws Exception {
+        assertEquals(0, new AppendOnlyLog(file, AppendOnlyLog.Fsync.EVERYSEC).replay(newCache()));
+        // Opening creates it
+        AppendOnlyLog log = new AppendOnlyLog(file, AppendOnlyLog.Fsync.EVERYSEC);
+        log.start(newCache());
+        log.close();
+        assertTrue(Files.exists(file));
+        assertEquals(0, Files.size(file));
+    }
+}
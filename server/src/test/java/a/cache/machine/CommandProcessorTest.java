@@ -0,0 +1,199 @@
+package a.cache.machine;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.management.ManagementFactory;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import a.cache.machine.engine.ByteKey;
+import a.cache.machine.engine.CompactByteCache;
+import a.cache.machine.engine.ExpiringCache;
+import a.cache.machine.engine.ICache;
+import a.cache.machine.engine.LRUCache;
+
+class CommandProcessorTest {
+    private RespParser parser;
+    private RespWriter writer;
+
+    @BeforeEach
+    void setUp() {
+        parser = new RespParser();
+        writer = new RespWriter(1024);
+    }
+
+    private static ByteBuffer command(String... args) {
+        StringBuilder resp = new StringBuilder("*").append(args.length).append("\r\n");
+        for (String arg : args) {
+            resp.append('$').append(arg.getBytes(StandardCharsets.UTF_8).length).append("\r\n").append(arg).append("\r\n");
+        }
+        return ByteBuffer.wrap(resp.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String run(CommandProcessor processor, String... args) throws ProtocolException {
+        processor.process(parser.parse(command(args)), writer);
+        ByteBuffer buffer = writer.buffer();
+        String reply = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+        buffer.clear();
+        return reply;
+    }
+
+    @Test
+    void testGetRepliesWithEncodedLength() throws ProtocolException {
+        CommandProcessor processor = new CommandProcessor(new ExpiringCache<>(new CompactByteCache(1 << 20)));
+
+        assertEquals("+OK\r\n", run(processor, "SET", "ключ", "значение"));
+        assertEquals("$16\r\nзначение\r\n", run(processor, "GET", "ключ"));
+        assertEquals("$-1\r\n", run(processor, "GET", "missing"));
+    }
+
+    @Test
+    void testExpireTimesThatOverflowAreRejected() throws ProtocolException {
+        CommandProcessor processor = new CommandProcessor(new ExpiringCache<>(new CompactByteCache(1 << 20)));
+        // Fits a long, but not once turned into milliseconds
+        String seconds = String.valueOf(Long.MAX_VALUE / 1000 + 1);
+
+        assertEquals("-ERR invalid expire time in 'set' command\r\n", run(processor, "SET", "key1", "value1", "EX", seconds));
+        assertEquals("$-1\r\n", run(processor, "GET", "key1"));
+
+        run(processor, "SET", "key1", "value1");
+        assertEquals("-ERR invalid expire time in 'expire' command\r\n", run(processor, "EXPIRE", "key1", seconds));
+        assertEquals(":-1\r\n", run(processor, "TTL", "key1"));
+        assertEquals("$6\r\nvalue1\r\n", run(processor, "GET", "key1"));
+
+        // Large but representable times still work
+        assertEquals(":1\r\n", run(processor, "EXPIRE", "key1", String.valueOf(Long.MAX_VALUE / 10_000)));
+        assertEquals("$6\r\nvalue1\r\n", run(processor, "GET", "key1"));
+    }
+
+    @Test
+    void testSliceLookupSeesKeysWithTimeToLive() throws ProtocolException {
+        CommandProcessor processor = new CommandProcessor(new ExpiringCache<>(new CompactByteCache(1 << 20)));
+
+        run(processor, "SET", "key1", "value1", "PX", "60000");
+        run(processor, "SET", "key2", "value2");
+        assertEquals("$6\r\nvalue1\r\n", run(processor, "GET", "key1"));
+        assertEquals("$6\r\nvalue2\r\n", run(processor, "GET", "key2"));
+    }
+
+    @Test
+    void testGetWithoutSliceLookup() throws ProtocolException {
+        CommandProcessor processor = new CommandProcessor(new LRUCache<>(1 << 20));
+
+        run(processor, "SET", "key1", "value1");
+        assertEquals("$6\r\nvalue1\r\n", run(processor, "GET", "key1"));
+    }
+
+    @Test
+    void testIntegerReplies() throws ProtocolException {
+        CommandProcessor processor = new CommandProcessor(new ExpiringCache<>(new CompactByteCache(1 << 20)));
+
+        assertEquals(":-2\r\n", run(processor, "TTL", "missing"));
+        run(processor, "SET", "key1", "value1");
+        assertEquals(":-1\r\n", run(processor, "TTL", "key1"));
+        assertEquals(":1\r\n", run(processor, "DEL", "key1", "key2"));
+        assertEquals(":0\r\n", run(processor, "DEL", "key1"));
+
+        writer.integer(1023);
+        writer.integer(1024);
+        writer.integer(-3);
+        writer.integer(Long.MIN_VALUE);
+        ByteBuffer buffer = writer.buffer();
+        assertEquals(":1023\r\n:1024\r\n:-3\r\n:-9223372036854775808\r\n",
+                new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void testEchoedInputCannotForgeReplies() throws ProtocolException {
+        CommandProcessor processor = new CommandProcessor(new LRUCache<>(1 << 20));
+
+        assertEquals("-ERR Unknown command 'X  $5  HELLO'\r\n", run(processor, "X\r\n$5\r\nHELLO"));
+        String reply = run(processor, "X".repeat(10_000));
+        assertEquals(RespWriter.MAX_LINE_LENGTH + 3, reply.length());
+        assertTrue(reply.endsWith("\r\n"));
+    }
+
+    @Test
+    void testDbsizeAndFlushall() throws ProtocolException {
+        CommandProcessor processor = new CommandProcessor(new ExpiringCache<>(new CompactByteCache(1 << 20)));
+        run(processor, "SET", "key1", "value1");
+        run(processor, "SET", "key2", "value2", "EX", "100");
+
+        assertEquals(":2\r\n", run(processor, "DBSIZE"));
+        assertEquals("+OK\r\n", run(processor, "FLUSHALL"));
+        assertEquals(":0\r\n", run(processor, "DBSIZE"));
+        assertEquals("$-1\r\n", run(processor, "GET", "key1"));
+        assertEquals("-ERR Wrong number of arguments for 'FLUSHALL'\r\n", run(processor, "FLUSHALL", "ASYNC"));
+    }
+
+    @Test
+    void testSaveAndBackgroundSave() throws Exception {
+        Path directory = Files.createTempDirectory("snapshot");
+        Path file = directory.resolve("dump.dat");
+        try {
+            ICache<ByteKey, byte[]> cache = new ExpiringCache<>(new CompactByteCache(1 << 20));
+            SnapshotSaver saver = new SnapshotSaver(cache, file);
+            CommandProcessor processor = new CommandProcessor(cache, null, saver);
+            run(processor, "SET", "key1", "value1");
+
+            assertEquals(":0\r\n", run(processor, "LASTSAVE"));
+            assertEquals("+OK\r\n", run(processor, "SAVE"));
+            assertNotEquals(":0\r\n", run(processor, "LASTSAVE"));
+
+            run(processor, "SET", "key2", "value2");
+            assertEquals("+Background saving started\r\n", run(processor, "BGSAVE"));
+            while (saver.inProgress()) {
+                Thread.sleep(1);
+            }
+            assertFalse(saver.lastSaveFailed());
+
+            ICache<ByteKey, byte[]> loaded = new CompactByteCache(1 << 20);
+            assertEquals(2, new SnapshotSaver(loaded, file).load());
+            assertArrayEquals("value2".getBytes(StandardCharsets.UTF_8), loaded.get(ByteKey.of("key2")));
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    void testSaveWithoutSaver() throws ProtocolException {
+        CommandProcessor processor = new CommandProcessor(new LRUCache<>(1 << 20));
+
+        assertEquals("-ERR Snapshots are disabled\r\n", run(processor, "BGSAVE"));
+    }
+
+    @Test
+    void testGetHitAllocatesNothing() throws ProtocolException {
+        ICache<ByteKey, byte[]> cache = new ExpiringCache<>(new CompactByteCache(1 << 20));
+        CommandProcessor processor = new CommandProcessor(cache);
+        run(processor, "SET", "key:1", "value-0123456789");
+        ByteBuffer get = command("GET", "key:1");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().threadId();
+
+        // Warm up until the path is compiled, then measure the steady state
+        serve(processor, get, 200_000);
+        long before = threads.getThreadAllocatedBytes(thread);
+        serve(processor, get, 100_000);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        // Leaves room for the measurement itself, a single allocation per request would be 1.6MB
+        assertTrue(allocated < 16 * 1024, allocated + " bytes allocated by 100000 GETs");
+        assertEquals(300_000, cache.getMetrics().getHits());
+    }
+
+    private void serve(CommandProcessor processor, ByteBuffer get, int requests) throws ProtocolException {
+        for (int i = 0; i < requests; i++) {
+            get.rewind();
+            processor.process(parser.parse(get), writer);
+            writer.buffer().clear();
+        }
+    }
+}
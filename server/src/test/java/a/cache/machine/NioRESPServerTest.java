@@ -0,0 +1,340 @@
+package a.cache.machine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import a.cache.machine.engine.ByteKey;
+import a.cache.machine.engine.ICache;
+import a.cache.machine.engine.LRUCache;
+
+class NioRESPServerTest {
+    private NioRESPServer server;
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        server = start(new ConnectionLimits());
+    }
+
+    private static NioRESPServer start(ConnectionLimits limits) throws InterruptedException {
+        NioRESPServer server = new NioRESPServer(new LRUCache<>(4 * 1024 * 1024), 0, 2, limits);
+        Thread thread = new Thread(server::start);
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getPort() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return server;
+    }
+
+    // Connections are counted out by the event loops, shortly after the client closed
+    private static void awaitClients(ConnectionLimits limits, int clients) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (limits.getConnectedClients() != clients && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(clients, limits.getConnectedClients());
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.shutdown();
+    }
+
+    private static String command(String... args) {
+        StringBuilder resp = new StringBuilder("*").append(args.length).append("\r\n");
+        for (String arg : args) {
+            resp.append('$').append(arg.getBytes(StandardCharsets.UTF_8).length).append("\r\n").append(arg).append("\r\n");
+        }
+        return resp.toString();
+    }
+
+    // Reads until exactly the expected reply arrived
+    private static String read(InputStream input, int length) throws IOException {
+        byte[] bytes = input.readNBytes(length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testSetAndGet() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+
+            output.write(command("SET", "key", "value").getBytes(StandardCharsets.UTF_8));
+            assertEquals("+OK\r\n", read(input, 5));
+            output.write(command("GET", "key").getBytes(StandardCharsets.UTF_8));
+            assertEquals("$5\r\nvalue\r\n", read(input, 11));
+            output.write(command("GET", "missing").getBytes(StandardCharsets.UTF_8));
+            assertEquals("$-1\r\n", read(input, 5));
+        }
+    }
+
+    @Test
+    void testPipelinedAndSplitCommands() throws Exception {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+
+            String pipeline = command("PING") + command("SET", "k", "v") + command("DEL", "k", "x");
+            output.write(pipeline.getBytes(StandardCharsets.UTF_8));
+            assertEquals("+PONG\r\n+OK\r\n:1\r\n", read(input, 16));
+
+            // A command arriving in pieces is only run once complete
+            byte[] ping = command("PING").getBytes(StandardCharsets.UTF_8);
+            output.write(ping, 0, 5);
+            output.flush();
+            Thread.sleep(50);
+            assertEquals(0, input.available());
+            output.write(ping, 5, ping.length - 5);
+            assertEquals("+PONG\r\n", read(input, 7));
+        }
+    }
+
+    @Test
+    void testDeepPipelinePastTheHighWaterMark() throws Exception {
+        String value = "v".repeat(1000);
+        int depth = 2000;
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+            output.write(command("SET", "key", value).getBytes(StandardCharsets.UTF_8));
+            assertEquals("+OK\r\n", read(input, 5));
+
+            // Replies add up to many times the high-water mark, sent while the client is still writing
+            byte[] get = command("GET", "key").getBytes(StandardCharsets.UTF_8);
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < depth; i++) {
+                        output.write(get);
+                    }
+                } catch (IOException e) {
+                    // Shows up as missing replies
+                }
+            });
+            writer.start();
+            String reply = "$1000\r\n" + value + "\r\n";
+            for (int i = 0; i < depth; i++) {
+                assertEquals(reply, read(input, reply.length()));
+            }
+            writer.join();
+        }
+    }
+
+    @Test
+    void testLargeValueSpanningManyReads() throws IOException {
+        String value = "x".repeat(NioRESPServer.INITIAL_BUFFER_SIZE * 4);
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+
+            output.write(command("SET", "big", value).getBytes(StandardCharsets.UTF_8));
+            assertEquals("+OK\r\n", read(input, 5));
+            output.write(command("GET", "big").getBytes(StandardCharsets.UTF_8));
+            String header = "$" + value.length() + "\r\n";
+            assertEquals(header + value + "\r\n", read(input, header.length() + value.length() + 2));
+        }
+    }
+
+    @Test
+    void testValuesAreBinarySafe() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+
+            // CRLF inside a value and a multi-byte character, lengths are in bytes
+            String value = "a\r\nb €";
+            output.write(command("SET", "key", value).getBytes(StandardCharsets.UTF_8));
+            assertEquals("+OK\r\n", read(input, 5));
+            output.write(command("GET", "key").getBytes(StandardCharsets.UTF_8));
+            assertEquals("$8\r\n" + value + "\r\n", read(input, 14));
+        }
+    }
+
+    @Test
+    void testMultiKeyCommands() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+
+            output.write(command("MSET", "a", "1", "b", "22").getBytes(StandardCharsets.UTF_8));
+            assertEquals("+OK\r\n", read(input, 5));
+            output.write(command("MGET", "a", "missing", "b").getBytes(StandardCharsets.UTF_8));
+            String reply = "*3\r\n$1\r\n1\r\n$-1\r\n$2\r\n22\r\n";
+            assertEquals(reply, read(input, reply.length()));
+            output.write(command("MSETNX", "b", "x", "c", "y").getBytes(StandardCharsets.UTF_8));
+            assertEquals(":0\r\n", read(input, 4));
+            output.write(command("MSETNX", "c", "y", "d", "z").getBytes(StandardCharsets.UTF_8));
+            assertEquals(":1\r\n", read(input, 4));
+            output.write(command("MSET", "a").getBytes(StandardCharsets.UTF_8));
+            String error = "-ERR Wrong number of arguments for 'MSET'\r\n";
+            assertEquals(error, read(input, error.length()));
+        }
+    }
+
+    @Test
+    void testManyConnectionsShareTheEventLoops() throws IOException {
+        Socket[] sockets = new Socket[200];
+        try {
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i] = new Socket("localhost", server.getPort());
+                sockets[i].getOutputStream().write(command("SET", "key" + i, "value" + i).getBytes(StandardCharsets.UTF_8));
+            }
+            for (int i = 0; i < sockets.length; i++) {
+                assertEquals("+OK\r\n", read(sockets[i].getInputStream(), 5));
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    void testProtocolErrorClosesConnection() throws IOException {
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.getOutputStream().write("*1\r\n+PING\r\n".getBytes(StandardCharsets.UTF_8));
+            String reply = new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(reply.startsWith("-ERR Protocol error"), reply);
+        }
+    }
+
+    @Test
+    void testClientsBeyondTheLimitAreRefused() throws Exception {
+        ConnectionLimits limits = new ConnectionLimits(2, ConnectionLimits.DEFAULT_MAX_INPUT_BUFFER,
+                ConnectionLimits.DEFAULT_MAX_OUTPUT_BUFFER);
+        NioRESPServer limited = start(limits);
+        try (Socket first = new Socket("localhost", limited.getPort());
+                Socket second = new Socket("localhost", limited.getPort())) {
+            first.getOutputStream().write(command("PING").getBytes(StandardCharsets.UTF_8));
+            assertEquals("+PONG\r\n", read(first.getInputStream(), 7));
+
+            try (Socket third = new Socket("localhost", limited.getPort())) {
+                String reply = new String(third.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+                assertEquals("-ERR max number of clients reached\r\n", reply);
+            }
+            assertEquals(1, limits.getRejectedClients());
+            assertEquals(2, limits.getConnectedClients());
+            assertTrue(limits.getBufferBytes() >= 2 * 2 * NioRESPServer.INITIAL_BUFFER_SIZE);
+        } finally {
+            limited.shutdown();
+        }
+    }
+
+    @Test
+    void testCommandBeyondTheInputLimitDisconnects() throws Exception {
+        ConnectionLimits limits = new ConnectionLimits(10, 64 * 1024, ConnectionLimits.DEFAULT_MAX_OUTPUT_BUFFER);
+        NioRESPServer limited = start(limits);
+        try (Socket socket = new Socket("localhost", limited.getPort())) {
+            // Values up to the limit still fit
+            socket.getOutputStream().write(command("SET", "fits", "x".repeat(32 * 1024)).getBytes(StandardCharsets.UTF_8));
+            assertEquals("+OK\r\n", read(socket.getInputStream(), 5));
+
+            // Exactly fills the input buffer, so the server closes with nothing left unread
+            String header = "*3\r\n$3\r\nSET\r\n$3\r\nbig\r\n$" + (100 * 1024) + "\r\n";
+            socket.getOutputStream().write((header + "x".repeat(64 * 1024 - header.length())).getBytes(StandardCharsets.UTF_8));
+            String reply = new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            assertEquals("-ERR Protocol error: query buffer limit of 65536 bytes exceeded\r\n", reply);
+            assertEquals(1, limits.getLimitDisconnects());
+        } finally {
+            limited.shutdown();
+        }
+    }
+
+    @Test
+    void testReplyBeyondTheOutputLimitDisconnects() throws Exception {
+        ConnectionLimits limits = new ConnectionLimits(10, ConnectionLimits.DEFAULT_MAX_INPUT_BUFFER, 64 * 1024);
+        NioRESPServer limited = start(limits);
+        String value = "v".repeat(40 * 1024);
+        try (Socket socket = new Socket("localhost", limited.getPort())) {
+            OutputStream output = socket.getOutputStream();
+            output.write(command("MSET", "a", value, "b", value).getBytes(StandardCharsets.UTF_8));
+            assertEquals("+OK\r\n", read(socket.getInputStream(), 5));
+
+            // Each value fits on its own, both together do not
+            output.write(command("GET", "a").getBytes(StandardCharsets.UTF_8));
+            String reply = "$" + value.length() + "\r\n" + value + "\r\n";
+            assertEquals(reply, read(socket.getInputStream(), reply.length()));
+            output.write(command("MGET", "a", "b").getBytes(StandardCharsets.UTF_8));
+            assertEquals(0, socket.getInputStream().readAllBytes().length);
+            assertEquals(1, limits.getLimitDisconnects());
+        } finally {
+            limited.shutdown();
+        }
+    }
+
+    @Test
+    void testRepliesWaitForTheLog() throws Exception {
+        Path file = Files.createTempFile("nio", ".aof");
+        AppendOnlyLog log = new AppendOnlyLog(file, AppendOnlyLog.Fsync.ALWAYS);
+        ICache<ByteKey, byte[]> cache = new LRUCache<>(4 * 1024 * 1024);
+        log.start(cache);
+        // One loop serves both clients, neither waits for the other's syncs
+        NioRESPServer logged = new NioRESPServer(cache, 0, 1, new ConnectionLimits(), log);
+        Thread thread = new Thread(logged::start);
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (logged.getPort() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        try (Socket first = new Socket("localhost", logged.getPort());
+                Socket second = new Socket("localhost", logged.getPort())) {
+            for (int i = 0; i < 50; i++) {
+                StringBuilder pipeline = new StringBuilder();
+                for (int j = 0; j < 20; j++) {
+                    pipeline.append(command("SET", "key" + i + ":" + j, "value"));
+                }
+                pipeline.append(command("GET", "key" + i + ":0"));
+                first.getOutputStream().write(pipeline.toString().getBytes(StandardCharsets.UTF_8));
+                second.getOutputStream().write(command("PING").getBytes(StandardCharsets.UTF_8));
+
+                assertEquals("+OK\r\n".repeat(20) + "$5\r\nvalue\r\n", read(first.getInputStream(), 5 * 20 + 11));
+                // Answered only once the batch is in the file
+                assertTrue(Files.readString(file).contains("key" + i + ":19"));
+                assertEquals("+PONG\r\n", read(second.getInputStream(), 7));
+            }
+        } finally {
+            logged.shutdown();
+            log.close();
+        }
+        try {
+            assertEquals(1000, new AppendOnlyLog(file, AppendOnlyLog.Fsync.ALWAYS).replay(new LRUCache<>(4 * 1024 * 1024)));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void testBufferBytesAreReleasedWithTheirConnections() throws Exception {
+        ConnectionLimits limits = new ConnectionLimits();
+        NioRESPServer limited = start(limits);
+        try {
+            try (Socket socket = new Socket("localhost", limited.getPort())) {
+                // Grows both buffers well past their initial size
+                socket.getOutputStream().write(command("SET", "big", "x".repeat(1024 * 1024)).getBytes(StandardCharsets.UTF_8));
+                assertEquals("+OK\r\n", read(socket.getInputStream(), 5));
+                socket.getOutputStream().write(command("GET", "big").getBytes(StandardCharsets.UTF_8));
+                socket.getInputStream().readNBytes(("$" + 1024 * 1024 + "\r\n").length() + 1024 * 1024 + 2);
+                awaitClients(limits, 1);
+                assertTrue(limits.getBufferBytes() > 0);
+            }
+            awaitClients(limits, 0);
+            assertEquals(0, limits.getBufferBytes());
+        } finally {
+            limited.shutdown();
+        }
+    }
+}
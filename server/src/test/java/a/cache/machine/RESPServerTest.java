@@ -0,0 +1,131 @@
+package a.cache.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import a.cache.machine.engine.LRUCache;
+
+class RESPServerTest {
+
+    private static RESPServer start(boolean virtualThreads) throws InterruptedException {
+        return start(virtualThreads, new ConnectionLimits());
+    }
+
+    private static RESPServer start(boolean virtualThreads, ConnectionLimits limits) throws InterruptedException {
+        RESPServer server = new RESPServer(new LRUCache<>(1024 * 1024), 0, virtualThreads, limits);
+        Thread thread = new Thread(server::start);
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getPort() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return server;
+    }
+
+    private static byte[] command(String... args) {
+        StringBuilder resp = new StringBuilder("*").append(args.length).append("\r\n");
+        for (String arg : args) {
+            resp.append('$').append(arg.length()).append("\r\n").append(arg).append("\r\n");
+        }
+        return resp.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void serveManyConnections(boolean virtualThreads) throws Exception {
+        RESPServer server = start(virtualThreads);
+        Socket[] sockets = new Socket[200];
+        try {
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i] = new Socket("localhost", server.getPort());
+                sockets[i].getOutputStream().write(command("SET", "key" + i, "value" + i));
+            }
+            for (int i = 0; i < sockets.length; i++) {
+                assertEquals("+OK\r\n", new String(sockets[i].getInputStream().readNBytes(5), StandardCharsets.UTF_8));
+            }
+            sockets[7].getOutputStream().write(command("GET", "key42"));
+            assertEquals("$7\r\nvalue42\r\n",
+                    new String(sockets[7].getInputStream().readNBytes(13), StandardCharsets.UTF_8));
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+            server.shutdown();
+        }
+    }
+
+    @Test
+    void testPlatformThreads() throws Exception {
+        serveManyConnections(false);
+    }
+
+    @Test
+    void testVirtualThreads() throws Exception {
+        serveManyConnections(true);
+    }
+
+    @Test
+    void testPipelinedCommandsAreAnsweredInOrder() throws Exception {
+        RESPServer server = start(false);
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            ByteArrayOutputStream pipeline = new ByteArrayOutputStream();
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 128; i++) {
+                pipeline.write(command("SET", "key" + i, "value" + i));
+                pipeline.write(command("GET", "key" + i));
+                expected.append("+OK\r\n$").append(("value" + i).length()).append("\r\nvalue").append(i).append("\r\n");
+            }
+            socket.getOutputStream().write(pipeline.toByteArray());
+            byte[] replies = socket.getInputStream().readNBytes(expected.length());
+            assertEquals(expected.toString(), new String(replies, StandardCharsets.UTF_8));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    void testClientsBeyondTheLimitAreRefused() throws Exception {
+        ConnectionLimits limits = new ConnectionLimits(1, ConnectionLimits.DEFAULT_MAX_INPUT_BUFFER,
+                ConnectionLimits.DEFAULT_MAX_OUTPUT_BUFFER);
+        RESPServer server = start(true, limits);
+        try {
+            try (Socket first = new Socket("localhost", server.getPort())) {
+                first.getOutputStream().write(command("PING"));
+                assertEquals("+PONG\r\n", new String(first.getInputStream().readNBytes(7), StandardCharsets.UTF_8));
+
+                try (Socket second = new Socket("localhost", server.getPort())) {
+                    assertEquals("-ERR max number of clients reached\r\n",
+                            new String(second.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+                }
+                assertEquals(1, limits.getRejectedClients());
+            }
+
+            // The slot and the buffers are given back once the first client leaves
+            long deadline = System.currentTimeMillis() + 5000;
+            while (limits.getConnectedClients() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(0, limits.getBufferBytes());
+            try (Socket third = new Socket("localhost", server.getPort())) {
+                third.getOutputStream().write(command("PING"));
+                assertEquals("+PONG\r\n", new String(third.getInputStream().readNBytes(7), StandardCharsets.UTF_8));
+            }
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    void testShutdownStopsAccepting() throws Exception {
+        RESPServer server = start(true);
+        int port = server.getPort();
+        server.shutdown();
+        assertThrows(IOException.class, () -> new Socket("localhost", port).close());
+    }
+}
@@ -0,0 +1,115 @@
+package a.cache.machine;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RespParserTest {
+
+    private static ByteBuffer buffer(String content) {
+        return ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String[] strings(RespCommand command) {
+        String[] args = new String[command.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = command.string(i);
+        }
+        return args;
+    }
+
+    @Test
+    void testParsesCommand() throws ProtocolException {
+        ByteBuffer buffer = buffer("*3\r\n$3\r\nSET\r\n$3\r\nkey\r\n$5\r\nvalue\r\n");
+        RespCommand command = new RespParser().parse(buffer);
+        assertArrayEquals(new String[] { "SET", "key", "value" }, strings(command));
+        assertArrayEquals("value".getBytes(StandardCharsets.UTF_8), command.bytes(2));
+        assertTrue(command.equalsIgnoreCase(0, new byte[] { 'S', 'E', 'T' }));
+        assertFalse(command.equalsIgnoreCase(1, new byte[] { 'S', 'E', 'T' }));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void testProtocolErrorEscapesTheUnexpectedByte() {
+        ProtocolException error = assertThrows(ProtocolException.class,
+                () -> new RespParser().parse(buffer("*1\r\n\r\n")));
+        assertEquals("expected '$', got '\\x0d'", error.getMessage());
+    }
+
+    @Test
+    void testCommandNamesMatchInAnyCase() throws ProtocolException {
+        RespCommand command = new RespParser().parse(buffer("*1\r\n$4\r\npInG\r\n"));
+        assertTrue(command.equalsIgnoreCase(0, new byte[] { 'P', 'I', 'N', 'G' }));
+    }
+
+    @Test
+    void testIncompleteCommandConsumesNothing() throws ProtocolException {
+        String command = "*2\r\n$3\r\nGET\r\n$3\r\nkey\r\n";
+        for (int length = 0; length < command.length(); length++) {
+            ByteBuffer buffer = buffer(command.substring(0, length));
+            assertNull(new RespParser().parse(buffer), "parsed from " + length + " bytes");
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    void testResumesAcrossReadsAndCompaction() throws ProtocolException {
+        byte[] request = "+noise\r\n*3\r\n$3\r\nSET\r\n$1\r\nk\r\n$5\r\nvalue\r\n".getBytes(StandardCharsets.UTF_8);
+        RespParser parser = new RespParser();
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        // Feed one byte at a time, compacting in between like the connections do
+        RespCommand command = null;
+        for (byte b : request) {
+            assertNull(command);
+            buffer.put(b);
+            buffer.flip();
+            command = parser.parse(buffer);
+            if (command == null) {
+                buffer.compact();
+            }
+        }
+        assertArrayEquals(new String[] { "SET", "k", "value" }, strings(command));
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void testParsesPipelinedCommands() throws ProtocolException {
+        ByteBuffer buffer = buffer("*1\r\n$4\r\nPING\r\n*2\r\n$3\r\nGET\r\n$1\r\nk\r\n*1\r\n$4\r\nPI");
+        RespParser parser = new RespParser();
+        assertArrayEquals(new String[] { "PING" }, strings(parser.parse(buffer)));
+        assertArrayEquals(new String[] { "GET", "k" }, strings(parser.parse(buffer)));
+        int position = buffer.position();
+        assertNull(parser.parse(buffer));
+        assertEquals(position, buffer.position());
+    }
+
+    @Test
+    void testBulkStringsAreReadByLength() throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put("*3\r\n$3\r\nSET\r\n$1\r\nk\r\n$4\r\n".getBytes(StandardCharsets.UTF_8));
+        buffer.put(new byte[] { '\r', '\n', 0, (byte) 0xFF });
+        buffer.put("\r\n".getBytes(StandardCharsets.UTF_8));
+        buffer.flip();
+        RespCommand command = new RespParser().parse(buffer);
+        assertArrayEquals(new byte[] { '\r', '\n', 0, (byte) 0xFF }, command.bytes(2));
+    }
+
+    @Test
+    void testParsesIntegers() throws ProtocolException {
+        RespCommand command = new RespParser().parse(buffer("*4\r\n$6\r\nEXPIRE\r\n$3\r\n-15\r\n$2\r\n1x\r\n$0\r\n\r\n"));
+        assertEquals(-15, command.parseLong(1));
+        assertThrows(NumberFormatException.class, () -> command.parseLong(2));
+        assertThrows(NumberFormatException.class, () -> command.parseLong(3));
+    }
+
+    @Test
+    void testMalformedInput() {
+        assertThrows(ProtocolException.class, () -> new RespParser().parse(buffer("*x\r\n")));
+        assertThrows(ProtocolException.class, () -> new RespParser().parse(buffer("*1\r\n+PING\r\n")));
+        assertThrows(ProtocolException.class, () -> new RespParser().parse(buffer("*1\r\n$2\r\nPING\r\n")));
+        assertThrows(ProtocolException.class, () -> new RespParser().parse(buffer("*1\r\n$99999999999\r\n")));
+    }
+}
@@ -0,0 +1,48 @@
+package a.cache.machine.engine;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+
+class ByteKeyTest {
+
+    @Test
+    void testEqualsByContent() {
+        byte[] wire = "*2\r\nkey1\r\n".getBytes(StandardCharsets.US_ASCII);
+        ByteKey copied = ByteKey.copyOf(wire, 4, 4);
+
+        assertEquals(ByteKey.of("key1"), copied);
+        assertEquals(ByteKey.of("key1").hashCode(), copied.hashCode());
+        assertNotEquals(ByteKey.of("key2"), copied);
+        assertEquals("key1", copied.toString());
+    }
+
+    @Test
+    void testCopyIsIndependentOfSource() {
+        byte[] source = "key1".getBytes(StandardCharsets.US_ASCII);
+        ByteKey key = ByteKey.copyOf(source, 0, source.length);
+        source[0] = 'x';
+
+        assertEquals(ByteKey.of("key1"), key);
+        key.toByteArray()[0] = 'x';
+        assertEquals(ByteKey.of("key1"), key);
+    }
+
+    @Test
+    void testHashOfRangeMatchesKey() {
+        byte[] wire = "GET key1".getBytes(StandardCharsets.US_ASCII);
+
+        assertEquals(ByteKey.of("key1").hashCode(), ByteKey.hash(wire, 4, 4));
+        assertTrue(ByteKey.of("key1").contentEquals(wire, 4, 4));
+        assertFalse(ByteKey.of("key1").contentEquals(wire, 3, 4));
+    }
+
+    @Test
+    void testUtf8Keys() {
+        ByteKey key = ByteKey.of("ключ");
+
+        assertEquals(8, key.length());
+        assertEquals("ключ", key.toString());
+    }
+}
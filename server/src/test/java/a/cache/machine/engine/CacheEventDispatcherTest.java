@@ -0,0 +1,215 @@
+package a.cache.machine.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheEventDispatcherTest {
+
+    // Records every event, optionally holding the dispatcher thread on the first batch
+    private static class RecordingListener implements ICacheEventListener {
+        final List<String> events = new ArrayList<>();
+        final List<Integer> batchSizes = new ArrayList<>();
+        final CountDownLatch release;
+
+        RecordingListener(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void onEvents(List<CacheEvent> batch) {
+            batchSizes.add(batch.size());
+            ICacheEventListener.super.onEvents(batch);
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void onHit(String key) {
+            events.add("hit:" + key);
+        }
+
+        @Override
+        public void onMiss(String key) {
+            events.add("miss:" + key);
+        }
+
+        @Override
+        public void onEviction(String key, Object value) {
+            events.add("eviction:" + key + "=" + value);
+        }
+
+        @Override
+        public void onExpiration(String key, Object value) {
+            events.add("expiration:" + key + "=" + value);
+        }
+    }
+
+    @Test
+    void testEventsArriveInOrder() {
+        CacheEventDispatcher dispatcher = new CacheEventDispatcher(64, CacheEventDispatcher.OverflowPolicy.DROP, 10);
+        RecordingListener listener = new RecordingListener(new CountDownLatch(0));
+        dispatcher.addListener(listener);
+
+        dispatcher.hit("a");
+        dispatcher.miss(42);
+        dispatcher.eviction("b", "1");
+        dispatcher.expiration("c", "2");
+        assertTrue(dispatcher.flush(1000));
+
+        assertEquals(List.of("hit:a", "miss:42", "eviction:b=1", "expiration:c=2"), listener.events);
+        dispatcher.shutdown();
+    }
+
+    @Test
+    void testIdleThreadParksUntilTheNextEvent() throws InterruptedException {
+        CacheEventDispatcher dispatcher = new CacheEventDispatcher(64, CacheEventDispatcher.OverflowPolicy.DROP, 10);
+        RecordingListener listener = new RecordingListener(new CountDownLatch(0));
+        dispatcher.addListener(listener);
+
+        // Parked without a timeout, not polling
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!parkedOn(dispatcher) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(parkedOn(dispatcher));
+
+        dispatcher.hit("a");
+        assertTrue(dispatcher.flush(1000));
+        assertEquals(List.of("hit:a"), listener.events);
+        dispatcher.shutdown();
+    }
+
+    private static boolean parkedOn(CacheEventDispatcher dispatcher) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (LockSupport.getBlocker(thread) == dispatcher && thread.getState() == Thread.State.WAITING) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    void testNothingIsBufferedWithoutListeners() {
+        CacheEventDispatcher dispatcher = new CacheEventDispatcher(4, CacheEventDispatcher.OverflowPolicy.DROP, 10);
+        for (int i = 0; i < 100; i++) {
+            dispatcher.hit("key" + i);
+        }
+        assertFalse(dispatcher.hasListeners());
+        assertEquals(0, dispatcher.droppedEvents());
+
+        RecordingListener listener = new RecordingListener(new CountDownLatch(0));
+        dispatcher.addListener(listener);
+        dispatcher.hit("key");
+        assertTrue(dispatcher.flush(1000));
+        assertEquals(List.of("hit:key"), listener.events);
+        dispatcher.shutdown();
+    }
+
+    @Test
+    void testFullBufferDropsEvents() {
+        CountDownLatch release = new CountDownLatch(1);
+        CacheEventDispatcher dispatcher = new CacheEventDispatcher(8, CacheEventDispatcher.OverflowPolicy.DROP, 10);
+        RecordingListener listener = new RecordingListener(release);
+        dispatcher.addListener(listener);
+
+        // The first event parks the dispatcher thread in the listener
+        dispatcher.hit("first");
+        long deadline = System.currentTimeMillis() + 1000;
+        while (dispatcher.droppedEvents() == 0 && System.currentTimeMillis() < deadline) {
+            for (int i = 0; i < 20; i++) {
+                dispatcher.hit("key" + i);
+            }
+        }
+        release.countDown();
+        assertTrue(dispatcher.flush(1000));
+
+        assertTrue(dispatcher.droppedEvents() > 0);
+        assertTrue(listener.batchSizes.stream().allMatch(size -> size <= 8));
+        dispatcher.shutdown();
+    }
+
+    @Test
+    void testSampleKeepsEvictions() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CacheEventDispatcher dispatcher = new CacheEventDispatcher(64, CacheEventDispatcher.OverflowPolicy.SAMPLE, 1000);
+        RecordingListener listener = new RecordingListener(release);
+        dispatcher.addListener(listener);
+        dispatcher.hit("first");
+        Thread.sleep(50);
+
+        for (int i = 0; i < 200; i++) {
+            dispatcher.hit("key" + i);
+        }
+        dispatcher.eviction("evicted", "value");
+        release.countDown();
+        assertTrue(dispatcher.flush(1000));
+
+        assertTrue(listener.events.contains("eviction:evicted=value"));
+        assertTrue(listener.events.size() < 100);
+        dispatcher.shutdown();
+    }
+
+    @Test
+    void testBlockDeliversEveryEvent() throws InterruptedException {
+        CacheEventDispatcher dispatcher = new CacheEventDispatcher(4, CacheEventDispatcher.OverflowPolicy.BLOCK, 10);
+        RecordingListener listener = new RecordingListener(new CountDownLatch(0));
+        dispatcher.addListener(listener);
+
+        Thread[] producers = new Thread[4];
+        for (int t = 0; t < producers.length; t++) {
+            producers[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    dispatcher.hit("key");
+                }
+            });
+            producers[t].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        assertTrue(dispatcher.flush(5000));
+
+        assertEquals(4000, listener.events.size());
+        assertEquals(0, dispatcher.droppedEvents());
+        dispatcher.shutdown();
+    }
+
+    @Test
+    void testFailingListenerDoesNotStopDelivery() {
+        CacheEventDispatcher dispatcher = new CacheEventDispatcher(64, CacheEventDispatcher.OverflowPolicy.DROP, 10);
+        dispatcher.addListener(new RecordingListener(new CountDownLatch(0)) {
+            @Override
+            public void onHit(String key) {
+                throw new IllegalStateException("boom");
+            }
+        });
+        RecordingListener listener = new RecordingListener(new CountDownLatch(0));
+        dispatcher.addListener(listener);
+
+        dispatcher.hit("a");
+        dispatcher.hit("b");
+        assertTrue(dispatcher.flush(1000));
+        assertEquals(List.of("hit:a", "hit:b"), listener.events);
+        dispatcher.shutdown();
+    }
+
+    @Test
+    void testShutdownDeliversBufferedEvents() {
+        CacheEventDispatcher dispatcher = new CacheEventDispatcher(64, CacheEventDispatcher.OverflowPolicy.DROP, 10);
+        RecordingListener listener = new RecordingListener(new CountDownLatch(0));
+        dispatcher.addListener(listener);
+        for (int i = 0; i < 10; i++) {
+            dispatcher.miss("key" + i);
+        }
+        dispatcher.shutdown();
+        assertEquals(10, listener.events.size());
+    }
+}
@@ -0,0 +1,208 @@
+package a.cache.machine.engine;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+class CompactByteCacheTest {
+    // key1/value1 entries are charged 4 + 6 + ENTRY_OVERHEAD = 58 bytes
+    private static final int ENTRY = 10 + CompactByteCache.ENTRY_OVERHEAD;
+
+    private CompactByteCache cache;
+
+    @BeforeEach
+    void setUp() {
+        // A single segment with room for three entries
+        cache = new CompactByteCache(3 * ENTRY + 10, 1);
+    }
+
+    private static ByteKey key(String key) {
+        return ByteKey.of(key);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testPutAndGet() {
+        cache.put(key("key1"), bytes("value1"));
+        cache.put(key("key2"), bytes("value2"));
+
+        assertArrayEquals(bytes("value1"), cache.get(key("key1")));
+        assertArrayEquals(bytes("value2"), cache.get(key("key2")));
+        assertNull(cache.get(key("nonexistent")));
+    }
+
+    @Test
+    void testGetReturnsStoredArray() {
+        byte[] value = bytes("value1");
+        cache.put(key("key1"), value);
+
+        assertSame(value, cache.get(key("key1")));
+    }
+
+    @Test
+    void testOverwriteReturnsPreviousValue() {
+        assertNull(cache.put(key("key1"), bytes("value1")));
+        assertArrayEquals(bytes("value1"), cache.put(key("key1"), bytes("value2")));
+        assertArrayEquals(bytes("value2"), cache.get(key("key1")));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void testReadEntriesGetASecondChance() {
+        cache.put(key("key1"), bytes("value1"));
+        cache.put(key("key2"), bytes("value2"));
+        cache.put(key("key3"), bytes("value3"));
+        // The sweep clears every reference bit and evicts one of the three
+        cache.put(key("key4"), bytes("value4"));
+        assertEquals(3, cache.size());
+
+        List<String> survivors = new ArrayList<>();
+        for (String k : new String[] { "key1", "key2", "key3" }) {
+            if (cache.containsKey(key(k))) {
+                survivors.add(k);
+            }
+        }
+        assertEquals(2, survivors.size());
+        cache.get(key(survivors.get(0)));
+        // The unread survivor is the only entry without a reference bit
+        cache.put(key("key5"), bytes("value5"));
+
+        assertNotNull(cache.get(key(survivors.get(0))));
+        assertNull(cache.get(key(survivors.get(1))));
+        assertNotNull(cache.get(key("key4")));
+        assertNotNull(cache.get(key("key5")));
+        assertEquals(2, cache.getMetrics().getEvictions());
+    }
+
+    @Test
+    void testOverwrittenEntryIsSparedByItsEviction() {
+        // Whichever key the hand reaches first after clearing the bits, it is not the one evicted
+        for (String overwritten : new String[] { "key1", "key2", "key3" }) {
+            CompactByteCache full = new CompactByteCache(3 * ENTRY + 10, 1);
+            full.put(key("key1"), bytes("value1"));
+            full.put(key("key2"), bytes("value2"));
+            full.put(key("key3"), bytes("value3"));
+            full.put(key(overwritten), bytes("a value long enough to push one out"));
+
+            assertArrayEquals(bytes("a value long enough to push one out"), full.get(key(overwritten)));
+            assertEquals(2, full.size());
+        }
+    }
+
+    @Test
+    void testRemoveKeepsCollidingKeysReachable() {
+        CompactByteCache large = new CompactByteCache(1_000_000, 1);
+        for (int i = 0; i < 1000; i++) {
+            large.put(key("key" + i), bytes("value" + i));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            assertArrayEquals(bytes("value" + i), large.remove(key("key" + i)));
+        }
+
+        assertEquals(500, large.size());
+        for (int i = 0; i < 1000; i++) {
+            if (i % 2 == 0) {
+                assertNull(large.get(key("key" + i)));
+            } else {
+                assertArrayEquals(bytes("value" + i), large.get(key("key" + i)));
+            }
+        }
+    }
+
+    @Test
+    void testSizeAccountingOnOverwriteAndRemove() {
+        cache.put(key("key1"), bytes("value1"));
+        assertEquals(ENTRY, cache.currentSizeInBytes());
+        cache.put(key("key1"), bytes("value22"));
+        assertEquals(ENTRY + 1, cache.currentSizeInBytes());
+
+        cache.remove(key("key1"));
+        assertEquals(0, cache.currentSizeInBytes());
+        assertEquals(0, cache.size());
+        assertNull(cache.remove(key("key1")));
+    }
+
+    @Test
+    void testSegmentCountIsRoundedToPowerOfTwo() {
+        assertEquals(1, new CompactByteCache(1 << 20, 1).segmentCount());
+        assertEquals(8, new CompactByteCache(1 << 20, 5).segmentCount());
+        assertEquals(16, new CompactByteCache(1 << 20).segmentCount());
+        assertThrows(IllegalArgumentException.class, () -> new CompactByteCache(100, 0));
+    }
+
+    @Test
+    void testSmallBudgetsGetFewerSegments() {
+        assertEquals(1, new CompactByteCache(100, 16).segmentCount());
+        assertEquals(4, new CompactByteCache(4 * 1024, 16).segmentCount());
+
+        // Six bytes a segment would not hold a single entry
+        CompactByteCache small = new CompactByteCache(100, 16);
+        small.put(key("key1"), bytes("value1"));
+        assertEquals(1, small.size());
+        assertArrayEquals(bytes("value1"), small.get(key("key1")));
+    }
+
+    @Test
+    void testGlobalCapacityIsEnforcedAcrossSegments() {
+        CompactByteCache segmented = new CompactByteCache(100_000, 8);
+        IntStream.range(0, 10_000)
+                .parallel()
+                .forEach(i -> segmented.put(key("key" + i), bytes("value" + i)));
+
+        assertTrue(segmented.currentSizeInBytes() <= segmented.maxCapacityInBytes());
+        assertTrue(segmented.size() > 0);
+        assertEquals(10_000, segmented.size() + segmented.getMetrics().getEvictions());
+    }
+
+    @Test
+    void testClear() {
+        cache.put(key("key1"), bytes("value1"));
+        cache.put(key("key2"), bytes("value2"));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.currentSizeInBytes());
+        assertNull(cache.get(key("key1")));
+    }
+
+    @Test
+    void testMetrics() {
+        cache.put(key("key1"), bytes("value1"));
+
+        cache.get(key("key1"));
+        cache.get(key("key1"));
+        cache.get(key("nonexistent"));
+
+        CacheMetrics metrics = cache.getMetrics();
+        assertEquals(2, metrics.getHits());
+        assertEquals(1, metrics.getMisses());
+    }
+
+    @Test
+    void testNullKeyOrValue() {
+        assertThrows(IllegalArgumentException.class, () -> cache.put(null, bytes("value")));
+        assertThrows(IllegalArgumentException.class, () -> cache.put(key("key"), null));
+    }
+
+    @Test
+    void testShutdownAndPersistence() throws CacheException {
+        cache.put(key("key1"), bytes("value1"));
+        cache.put(key("key2"), bytes("value2"));
+
+        cache.shutdown();
+
+        CompactByteCache newCache = new CompactByteCache(3 * ENTRY + 10, 1);
+        newCache.loadFromDisk();
+
+        assertArrayEquals(bytes("value1"), newCache.get(key("key1")));
+        assertArrayEquals(bytes("value2"), newCache.get(key("key2")));
+    }
+}
@@ -0,0 +1,154 @@
+package a.cache.machine.engine;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+class ConcurrentLFUCacheTest {
+    private ConcurrentLFUCache<String, Object> cache;
+
+    @BeforeEach
+    void setUp() {
+        // A single segment behaves exactly like LFUCache with 100 bytes
+        cache = new ConcurrentLFUCache<>(100, 1);
+    }
+
+    @Test
+    void testPutAndGet() throws CacheException {
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+
+        assertEquals("value1", cache.get("key1"));
+        assertEquals("value2", cache.get("key2"));
+    }
+
+    @Test
+    void testGetNonExistentKey() {
+        assertNull(cache.get("nonexistent"));
+    }
+
+    @Test
+    void testEvictionPolicy() throws CacheException {
+        for (int i = 1; i <= 7; i++) {
+            cache.put("key" + i, "value" + i); // Assume size = 13
+        }
+        for (int i = 1; i <= 5; i++) {
+            cache.get("key" + i);
+        }
+        // key6 and key7 were never read, key6 is the older one
+        cache.put("key8", "value8");
+
+        assertNull(cache.get("key6"));
+        assertEquals("value7", cache.get("key7"));
+        assertEquals(1, cache.getMetrics().getEvictions());
+    }
+
+    @Test
+    void testSmallBudgetsGetFewerSegments() throws CacheException {
+        assertEquals(1, new ConcurrentLFUCache<String, Object>(100, 16).segmentCount());
+        assertEquals(4, new ConcurrentLFUCache<String, Object>(4 * 1024, 16).segmentCount());
+
+        // Six bytes a segment would not keep a single entry
+        ConcurrentLFUCache<String, Object> small = new ConcurrentLFUCache<>(100, 16);
+        small.put("key1", "value1");
+        assertEquals("value1", small.get("key1"));
+        assertEquals(0, small.getMetrics().getEvictions());
+    }
+
+    @Test
+    void testRemoveAndClear() throws CacheException {
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+
+        assertEquals("value1", cache.remove("key1"));
+        assertNull(cache.remove("key1"));
+        assertEquals(1, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.currentSizeInBytes());
+    }
+
+    @Test
+    void testNullKeyOrValue() {
+        assertThrows(IllegalArgumentException.class, () -> cache.put(null, "value"));
+        assertThrows(IllegalArgumentException.class, () -> cache.put("key", null));
+    }
+
+    @Test
+    void testConcurrentStress() throws Exception {
+        ConcurrentLFUCache<String, Object> stressed = new ConcurrentLFUCache<>(50_000, 8);
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 50_000; i++) {
+                    String key = "key" + random.nextInt(5_000);
+                    int op = random.nextInt(10);
+                    if (op < 6) {
+                        stressed.get(key);
+                    } else if (op < 9) {
+                        stressed.put(key, "value" + key);
+                    } else {
+                        stressed.remove(key);
+                    }
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+        // Any corrupted bucket list surfaces here as an NPE or a timeout
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        // Every resident entry must be reachable and its bytes accounted for
+        int resident = 0;
+        for (int i = 0; i < 5_000; i++) {
+            Object value = stressed.get("key" + i);
+            if (value != null) {
+                assertEquals("valuekey" + i, value);
+                resident++;
+            }
+        }
+        assertEquals(stressed.size(), resident);
+        assertTrue(stressed.currentSizeInBytes() >= 0);
+        // Each segment may overshoot its share by the entry that triggered eviction
+        assertTrue(stressed.currentSizeInBytes() <= stressed.maxSizeInBytes() + 8 * 32);
+    }
+
+    @Test
+    void testBulkOperationsAcrossSegments() throws CacheException {
+        ConcurrentLFUCache<String, Object> cache = new ConcurrentLFUCache<>(100_000, 8);
+        Map<String, Object> entries = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        cache.putAll(entries);
+        assertEquals(50, cache.size());
+        assertEquals(entries, cache.getAll(entries.keySet()));
+
+        Map<String, Object> more = new HashMap<>();
+        for (int i = 45; i < 60; i++) {
+            more.put("key" + i, "other");
+        }
+        assertFalse(cache.putAllIfAbsent(more));
+        assertEquals(50, cache.size());
+        more.keySet().removeIf(key -> entries.containsKey(key));
+        assertTrue(cache.putAllIfAbsent(more));
+        assertEquals(60, cache.size());
+    }
+}
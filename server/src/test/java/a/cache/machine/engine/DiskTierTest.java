@@ -0,0 +1,191 @@
+package a.cache.machine.engine;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DiskTierTest {
+    private static final int SEGMENT_SIZE = 1024;
+
+    private Path directory;
+    private DiskTier tier;
+
+    @BeforeEach
+    void setUp() throws IOException, CacheException {
+        directory = Files.createTempDirectory("tier");
+        tier = new DiskTier(directory, 8 * SEGMENT_SIZE, SEGMENT_SIZE, 0);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        tier.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    void testPutGetTake() throws CacheException {
+        assertTrue(tier.put(bytes("key1"), bytes("value1")));
+        tier.put(bytes("key2"), bytes("value2"));
+        tier.put(bytes("key1"), bytes("changed"));
+
+        assertArrayEquals(bytes("changed"), tier.get(bytes("key1")));
+        assertEquals(2, tier.size());
+        assertArrayEquals(bytes("value2"), tier.take(bytes("key2")));
+        assertNull(tier.get(bytes("key2")));
+        assertFalse(tier.remove(bytes("key2")));
+        assertTrue(tier.remove(bytes("key1")));
+        assertEquals(0, tier.size());
+        assertEquals(0, tier.liveBytes());
+    }
+
+    @Test
+    void testEntryLargerThanSegmentIsRefused() throws CacheException {
+        assertFalse(tier.put(bytes("key"), new byte[SEGMENT_SIZE]));
+        assertFalse(tier.containsKey(bytes("key")));
+    }
+
+    @Test
+    void testLeftoverSegmentsAreDeleted() throws IOException, CacheException {
+        tier.close();
+        Files.write(directory.resolve("tier-00000042.seg"), bytes("leftover"));
+        tier = new DiskTier(directory, 8 * SEGMENT_SIZE, SEGMENT_SIZE, 0);
+
+        assertFalse(Files.exists(directory.resolve("tier-00000042.seg")));
+        assertEquals(1, segmentFiles());
+    }
+
+    @Test
+    void testOldestSegmentsAreDroppedOverBudget() throws IOException, CacheException {
+        List<String> dropped = new ArrayList<>();
+        tier.setDropSink((key, value) -> dropped.add(new String(key, StandardCharsets.UTF_8)));
+        for (int i = 0; i < 1000; i++) {
+            tier.put(bytes("key" + i), new byte[100]);
+        }
+        tier.compact();
+
+        assertEquals(8 * SEGMENT_SIZE, tier.diskSizeInBytes());
+        assertEquals(8, segmentFiles());
+        assertNull(tier.get(bytes("key0")));
+        assertNotNull(tier.get(bytes("key999")));
+        assertTrue(tier.liveBytes() <= tier.diskSizeInBytes());
+        assertEquals(1000, tier.size() + dropped.size());
+        assertEquals(dropped.size(), tier.getDrops());
+        assertEquals("key0", dropped.get(0));
+    }
+
+    @Test
+    void testReadsRacingSegmentReuseSeeTheirOwnRecord() throws Exception {
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger wrong = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            for (int n = 0; !done.get(); n = (n + 1) % 200) {
+                byte[] value = tier.get(bytes("key" + n));
+                if (value != null && !new String(value, StandardCharsets.UTF_8).equals(String.format("%-100s", n))) {
+                    wrong.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+        try {
+            // Segments are dropped and reused many times over
+            for (int round = 0; round < 200; round++) {
+                for (int i = 0; i < 200; i++) {
+                    tier.put(bytes("key" + i), bytes(String.format("%-100s", i)));
+                }
+                tier.compact();
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+        assertEquals(0, wrong.get());
+    }
+
+    @Test
+    void testCompactionKeepsLiveEntries() throws IOException, CacheException {
+        Map<String, byte[]> expected = new HashMap<>();
+        for (int i = 0; i < 40; i++) {
+            byte[] value = bytes(String.format("value%-100d", i));
+            tier.put(bytes("key" + i), value);
+            expected.put("key" + i, value);
+        }
+        long files = segmentFiles();
+        assertTrue(files > 2);
+        // Leaves the first segments mostly dead
+        for (int i = 0; i < 30; i++) {
+            if (i % 5 != 0) {
+                tier.remove(bytes("key" + i));
+                expected.remove("key" + i);
+            }
+        }
+
+        // One sealed segment per round, the copies may start a new one
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, tier.compact());
+        }
+        assertEquals(3, tier.getCompactions());
+        assertTrue(tier.freeSegments() > 0);
+        assertEquals(expected.size(), tier.size());
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            assertArrayEquals(entry.getValue(), tier.get(bytes(entry.getKey())));
+        }
+
+        // Compacted segments are written again before a new file is created
+        files = segmentFiles();
+        int free = tier.freeSegments();
+        for (int i = 40; i < 40 + 8 * free; i++) {
+            tier.put(bytes("key" + i), bytes(String.format("value%-100d", i)));
+        }
+        assertEquals(files, segmentFiles());
+        assertEquals(0, tier.freeSegments());
+        assertEquals(0, tier.getDrops());
+        assertArrayEquals(expected.get("key35"), tier.get(bytes("key35")));
+    }
+
+    @Test
+    void testClearDropsEverything() throws IOException, CacheException {
+        for (int i = 0; i < 100; i++) {
+            tier.put(bytes("key" + i), new byte[50]);
+        }
+        long files = segmentFiles();
+        tier.clear();
+        assertEquals(0, tier.size());
+        assertEquals(0, tier.compact());
+        assertEquals(files - 1, tier.freeSegments());
+
+        // The files are reused
+        for (int i = 0; i < 100; i++) {
+            tier.put(bytes("key" + i), new byte[50]);
+        }
+        assertEquals(files, segmentFiles());
+        assertEquals(100, tier.size());
+    }
+}
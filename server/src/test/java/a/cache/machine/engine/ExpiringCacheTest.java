@@ -0,0 +1,198 @@
+package a.cache.machine.engine;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import a.cache.machine.engine.listener.SimpleCacheEventLogger;
+
+class ExpiringCacheTest {
+
+    private final AtomicLong now = new AtomicLong(1_000);
+
+    private ExpiringCache<String, String> newCache() {
+        return new ExpiringCache<>(new LRUCache<>(1000), 10, now::get, false);
+    }
+
+    @Test
+    void testEntryExpiresAfterTtl() throws CacheException {
+        ExpiringCache<String, String> cache = newCache();
+        SimpleCacheEventLogger logger = new SimpleCacheEventLogger();
+        cache.addEventListener(logger);
+        cache.put("key", "value", 100);
+
+        now.addAndGet(99);
+        cache.expireEntries();
+        assertEquals("value", cache.get("key"));
+
+        now.addAndGet(11);
+        cache.expireEntries();
+        assertEquals(0, cache.size());
+        assertTrue(cache.events().flush(1000));
+        assertEquals(1, logger.getExpirationCount());
+        assertEquals(0, logger.getEvictionCount());
+        assertEquals(1, cache.getMetrics().getExpirations());
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    void testExpiredEntryIsNotServedBeforeTheWheelGetsToIt() throws CacheException {
+        ExpiringCache<String, String> cache = newCache();
+        SimpleCacheEventLogger logger = new SimpleCacheEventLogger();
+        cache.addEventListener(logger);
+        cache.put("key", "value", 100);
+
+        now.addAndGet(100);
+        assertNull(cache.get("key"));
+        assertTrue(cache.events().flush(1000));
+        assertEquals(1, logger.getExpirationCount());
+        assertEquals(1, cache.getMetrics().getMisses());
+        assertEquals(ICache.NO_KEY, cache.ttl("key"));
+    }
+
+    @Test
+    void testForEachSkipsExpiredEntries() throws CacheException {
+        ExpiringCache<String, String> cache = newCache();
+        cache.put("kept", "1");
+        cache.put("expiring", "2", 500);
+        cache.put("expired", "3", 100);
+        now.addAndGet(100);
+
+        Map<String, String> visited = new HashMap<>();
+        cache.forEach(visited::put);
+        assertEquals(Map.of("kept", "1", "expiring", "2"), visited);
+    }
+
+    @Test
+    void testTtlAndPersist() throws CacheException {
+        ExpiringCache<String, String> cache = newCache();
+        assertEquals(ICache.NO_KEY, cache.ttl("key"));
+        cache.put("key", "value");
+        assertEquals(ICache.NO_EXPIRY, cache.ttl("key"));
+
+        assertTrue(cache.expire("key", 5000));
+        now.addAndGet(1000);
+        assertEquals(4000, cache.ttl("key"));
+
+        assertTrue(cache.persist("key"));
+        assertFalse(cache.persist("key"));
+        assertEquals(ICache.NO_EXPIRY, cache.ttl("key"));
+        now.addAndGet(10_000);
+        cache.expireEntries();
+        assertEquals("value", cache.get("key"));
+    }
+
+    @Test
+    void testPutWithoutTtlClearsTheDeadline() throws CacheException {
+        ExpiringCache<String, String> cache = newCache();
+        cache.put("key", "value", 100);
+        cache.put("key", "other");
+        assertEquals(0, cache.expiringSize());
+
+        now.addAndGet(200);
+        cache.expireEntries();
+        assertEquals("other", cache.get("key"));
+    }
+
+    @Test
+    void testExpireOnMissingKeyAndNonPositiveTtl() throws CacheException {
+        ExpiringCache<String, String> cache = newCache();
+        assertFalse(cache.expire("key", 100));
+
+        cache.put("key", "value");
+        assertTrue(cache.expire("key", 0));
+        assertFalse(cache.containsKey("key"));
+        assertThrows(IllegalArgumentException.class, () -> cache.put("key", "value", 0));
+    }
+
+    @Test
+    void testRewriteMovesTheDeadline() throws CacheException {
+        ExpiringCache<String, String> cache = newCache();
+        cache.put("key", "value", 100);
+        now.addAndGet(50);
+        cache.put("key", "value", 100);
+
+        now.addAndGet(60);
+        cache.expireEntries();
+        assertEquals("value", cache.get("key"));
+        now.addAndGet(50);
+        cache.expireEntries();
+        assertFalse(cache.containsKey("key"));
+        assertEquals(0, cache.expiringSize());
+    }
+
+    @Test
+    void testEnginesWithoutWrapperRejectTtl() throws CacheException {
+        LRUCache<String, String> cache = new LRUCache<>(1000);
+        assertThrows(CacheException.class, () -> cache.put("key", "value", 100));
+        assertEquals(ICache.NO_KEY, cache.ttl("key"));
+    }
+
+    @Test
+    void testTickerExpiresEntriesInTheBackground() throws Exception {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(new LRUCache<>(1000));
+        try {
+            cache.put("key", "value", 20);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (cache.size() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(0, cache.size());
+        } finally {
+            cache.shutdown();
+        }
+    }
+
+    @Test
+    void testEvictedKeysDropTheirDeadline() throws CacheException {
+        ExpiringCache<String, String> cache = new ExpiringCache<>(new LRUCache<>(100, (key, value) -> 25), 10,
+                now::get, false);
+        for (int i = 0; i < 4; i++) {
+            cache.put("key" + i, "value" + i, 1000);
+        }
+        assertEquals(4, cache.expiringSize());
+        cache.put("key4", "value4");
+        cache.put("key5", "value5");
+
+        assertFalse(cache.containsKey("key0"));
+        assertFalse(cache.containsKey("key1"));
+        assertEquals(2, cache.expiringSize());
+    }
+
+    @Test
+    void testShutdownDoesNotPersistKeysWithTimeToLive() throws CacheException {
+        ExpiringCache<String, String> cache = newCache();
+        cache.put("kept", "value");
+        cache.put("expiring", "value", 100_000);
+        cache.shutdown();
+
+        LRUCache<String, String> restarted = new LRUCache<>(1000);
+        restarted.loadFromDisk();
+        assertEquals("value", restarted.get("kept"));
+        assertNull(restarted.get("expiring"));
+    }
+
+    @Test
+    void testBulkOperationsRespectDeadlines() throws CacheException {
+        ExpiringCache<String, String> cache = newCache();
+        cache.put("expiring", "old", 100);
+        cache.put("kept", "value");
+
+        now.addAndGet(100);
+        // The wheel has not run, the expired key is neither served nor in the way
+        assertEquals(Map.of("kept", "value"), cache.getAll(Arrays.asList("expiring", "kept")));
+        cache.put("expiring", "old", 100);
+        now.addAndGet(100);
+        assertTrue(cache.putAllIfAbsent(Map.of("expiring", "new")));
+        assertEquals(ICache.NO_EXPIRY, cache.ttl("expiring"));
+
+        cache.expire("kept", 100);
+        cache.putAll(Map.of("kept", "rewritten"));
+        assertEquals(ICache.NO_EXPIRY, cache.ttl("kept"));
+        assertEquals(0, cache.expiringSize());
+    }
+}
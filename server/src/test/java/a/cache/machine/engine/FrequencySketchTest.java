@@ -0,0 +1,49 @@
+package a.cache.machine.engine;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrequencySketchTest {
+
+    @Test
+    void testIncrementAndFrequency() {
+        FrequencySketch<String> sketch = new FrequencySketch<>(64);
+        assertEquals(0, sketch.frequency("key"));
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("key");
+        }
+        assertEquals(5, sketch.frequency("key"));
+    }
+
+    @Test
+    void testCountersSaturate() {
+        FrequencySketch<String> sketch = new FrequencySketch<>(64);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("key");
+        }
+        assertEquals(15, sketch.frequency("key"));
+    }
+
+    @Test
+    void testResetAgesCounts() {
+        FrequencySketch<String> sketch = new FrequencySketch<>(16);
+        for (int i = 0; i < 15; i++) {
+            sketch.increment("hot");
+        }
+        // Enough distinct additions to trigger at least one reset
+        for (int i = 0; i < 10 * sketch.capacity(); i++) {
+            sketch.increment("other" + i);
+        }
+        assertTrue(sketch.frequency("hot") < 15);
+    }
+
+    @Test
+    void testEnsureCapacityGrowsToPowerOfTwo() {
+        FrequencySketch<String> sketch = new FrequencySketch<>(100);
+        assertEquals(128, sketch.capacity());
+        sketch.ensureCapacity(50);
+        assertEquals(128, sketch.capacity());
+        sketch.ensureCapacity(1000);
+        assertEquals(1024, sketch.capacity());
+    }
+}
@@ -1,5 +1,8 @@
 package a.cache.machine.engine;
 
+import java.util.Arrays;
+import java.util.Map;
+
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
@@ -29,37 +32,82 @@ class LFUCacheTest {
 
     @Test
     void testEvictionPolicy() throws CacheException {
-        // Add items until the cache size is exceeded
-        cache.put("key1", "value1"); // Assume size = 13
-        cache.put("key2", "value2"); // Assume size = 13
-        cache.put("key3", "value3"); // Assume size = 13
-        cache.put("key4", "value4"); // Assume size = 13
-        cache.put("key5", "value5"); // Assume size = 13
-        cache.put("key6", "value6"); // Assume size = 13
-        cache.put("key7", "value7"); // Assume size = 13
-        cache.put("key8", "value8");
+        // Seven entries of 13 bytes fill 91 of the 100 bytes
+        for (int i = 1; i <= 7; i++) {
+            cache.put("key" + i, "value" + i);
+        }
 
         // Access keys to update their frequency
         cache.get("key1");
         cache.get("key1");
-        cache.get("key2");
-        cache.get("key3");
-        cache.get("key4");
-        cache.get("key5");
-        cache.get("key6");
-
-        // Add one more item to trigger eviction
-        cache.put("key9", "value9"); // Assume size = 13
+        for (int i = 2; i <= 6; i++) {
+            cache.get("key" + i);
+        }
 
-        // key6 and key7 should be evicted (least frequently used)
+        // key7 is the only one never read, it makes room for key8
+        cache.put("key8", "value8");
         assertNull(cache.get("key7"));
+        assertEquals(7, cache.size());
 
-        // Add one more item to trigger eviction
-        cache.put("key10", "value10"); // Assume size = 13
+        // Now key8 is the least frequently used
+        cache.put("key9", "value9");
         assertNull(cache.get("key8"));
 
         assertEquals("value1", cache.get("key1"));
         assertEquals("value9", cache.get("key9"));
+        assertTrue(cache.currentSizeInBytes() <= 100);
+    }
+
+    @Test
+    void testPutReturnsThePreviousValue() throws CacheException {
+        assertNull(cache.put("key1", "value1"));
+        assertEquals("value1", cache.put("key1", "other1"));
+        assertEquals("other1", cache.get("key1"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void testIncomingEntryIsCountedBeforeItIsStored() throws CacheException {
+        LFUCache<String, Object> small = new LFUCache<>(20);
+        small.put("key1", "value1");
+        // 13 + 13 bytes would not fit in 20
+        small.put("key2", "value2");
+        assertNull(small.get("key1"));
+        assertEquals("value2", small.get("key2"));
+        assertEquals(13, small.currentSizeInBytes());
+
+        // Larger than the whole budget, it is not kept and evicts nothing
+        small.put("big", "a value that is quite a bit larger");
+        assertNull(small.get("big"));
+        assertEquals("value2", small.get("key2"));
+        assertEquals(2, small.getMetrics().getEvictions());
+    }
+
+    @Test
+    void testMinimumFrequencyFollowsTheLists() throws CacheException {
+        for (int i = 1; i <= 7; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        // Frequencies 4, 3 and 2 for key1 to key3, key4 to key7 stay at 1
+        for (int i = 1; i <= 3; i++) {
+            for (int hits = 0; hits <= 3 - i; hits++) {
+                cache.get("key" + i);
+            }
+        }
+        for (int i = 4; i <= 7; i++) {
+            cache.remove("key" + i);
+        }
+
+        cache.put("big", "a value that is quite a bit larger");
+
+        // 75 bytes only fit once the lists of frequency 1, 2 and 3 are gone,
+        // each emptied list hands over to the next higher one
+        cache.put("huge", "x".repeat(68));
+        assertNull(cache.get("big"));
+        assertNull(cache.get("key3"));
+        assertNull(cache.get("key2"));
+        assertEquals("value1", cache.get("key1"));
+        assertEquals(3, cache.getMetrics().getEvictions());
     }
 
     @Test
@@ -81,6 +129,38 @@ class LFUCacheTest {
         assertNull(cache.get("key2"));
     }
 
+    @Test
+    void testRemove() throws CacheException {
+        cache.put("key1", "value1");
+        cache.get("key1");
+
+        assertEquals("value1", cache.remove("key1"));
+        assertNull(cache.remove("key1"));
+        assertNull(cache.get("key1"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.currentSizeInBytes());
+    }
+
+    @Test
+    void testEvictionAfterRemovingMinFrequencyEntries() throws CacheException {
+        for (int i = 1; i <= 6; i++) {
+            cache.put("key" + i, "value" + i); // Assume size = 13
+            cache.get("key" + i);
+        }
+        cache.put("key7", "value7");
+        // Empties the frequency 1 list while the cache is nearly full
+        cache.remove("key7");
+
+        // Must fall back to the frequency 2 entries instead of failing,
+        // evicting until the larger entry fits
+        cache.put("big", "a value that is quite a bit larger");
+        assertNull(cache.get("key1"));
+        assertNull(cache.get("key2"));
+        assertEquals("value3", cache.get("key3"));
+        assertEquals("a value that is quite a bit larger", cache.get("big"));
+        assertEquals(2, cache.getMetrics().getEvictions());
+    }
+
     @Test
     void testMetrics() throws CacheException {
         cache.put("key1", "value1");
@@ -126,6 +206,7 @@ class LFUCacheTest {
         cache.get("key1");
         cache.get("nonexistent");
 
+        assertTrue(cache.events().flush(1000));
         assertEquals(1, listener.getHitCount());
         assertEquals(1, listener.getMissCount());
     }
@@ -158,4 +239,18 @@ class LFUCacheTest {
             return missCount;
         }
     }
+
+    @Test
+    void testBulkOperations() throws CacheException {
+        LFUCache<String, Object> cache = new LFUCache<>(1000);
+        cache.putAll(Map.of("key1", "value1", "key2", "value2"));
+        assertEquals(2, cache.size());
+        assertEquals(Map.of("key1", "value1"), cache.getAll(Arrays.asList("key1", "missing")));
+        assertEquals(1, cache.getMetrics().getMisses());
+
+        assertFalse(cache.putAllIfAbsent(Map.of("key2", "other", "key3", "value3")));
+        assertNull(cache.get("key3"));
+        assertTrue(cache.putAllIfAbsent(Map.of("key3", "value3")));
+        assertEquals("value3", cache.get("key3"));
+    }
 }
@@ -1,5 +1,13 @@
 package a.cache.machine.engine;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import a.cache.machine.engine.weigher.StringWeigher;
+
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
@@ -56,6 +64,68 @@ class LRUCacheTest {
         assertEquals("value8", cache.get("key8"));
     }
 
+    @Test
+    void testWeigherIsCalledOnlyOnInsert() throws CacheException {
+        int[] calls = new int[1];
+        LRUCache<String, Object> weighed = new LRUCache<>(100, (key, value) -> {
+            calls[0]++;
+            return 25;
+        });
+        for (int i = 0; i < 10; i++) {
+            weighed.put("key" + i, "value" + i);
+        }
+        weighed.remove("key9");
+
+        assertEquals(10, calls[0]);
+        assertEquals(3, weighed.size());
+        assertEquals(75, weighed.currentSizeInBytes());
+        assertEquals(6, weighed.getMetrics().getEvictions());
+    }
+
+    @Test
+    void testBufferedReadsStillRefreshRecency() throws CacheException {
+        LRUCache<String, Object> weighed = new LRUCache<>(100, (key, value) -> 25);
+        for (int i = 0; i < 4; i++) {
+            weighed.put("key" + i, "value" + i);
+        }
+        // More reads than a read buffer holds, some get replayed before the put
+        for (int i = 0; i < 40; i++) {
+            weighed.get("key" + (i % 3));
+        }
+        weighed.put("key4", "value4");
+
+        assertNull(weighed.get("key3"));
+        assertEquals("value0", weighed.get("key0"));
+    }
+
+    @Test
+    void testConcurrentReadsAndWritesStayWithinBudget() throws InterruptedException {
+        LRUCache<String, Object> weighed = new LRUCache<>(1000, (key, value) -> 10);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            int seed = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    String key = "key" + ((i * 31 + seed) % 500);
+                    if (i % 20 == 0) {
+                        weighed.put(key, "value");
+                    } else if (i % 97 == 0) {
+                        weighed.remove(key);
+                    } else {
+                        weighed.get(key);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(weighed.currentSizeInBytes() <= 1000);
+        assertEquals(weighed.size() * 10L, weighed.currentSizeInBytes());
+    }
+
     @Test
     void testSize() throws CacheException {
         cache.put("key1", "value1"); // Assume size = 20
@@ -90,6 +160,26 @@ class LRUCacheTest {
         assertEquals(1, metrics.getMisses());
     }
 
+    @Test
+    void testOperationCountersAndLatencies() throws CacheException {
+        LRUCache<String, Object> weighed = new LRUCache<>(100, (key, value) -> 40);
+        weighed.put("key1", "value1");
+        weighed.put("key2", "value2");
+        weighed.put("key3", "value3");
+        weighed.get("key3");
+        weighed.remove("key3");
+
+        CacheMetrics metrics = weighed.getMetrics();
+        assertEquals(3, metrics.getPuts());
+        assertEquals(1, metrics.getRemoves());
+        assertEquals(1, metrics.getEvictions());
+        assertEquals(40, metrics.getEvictedBytes());
+        assertEquals(3, metrics.getPutLatency().count());
+        assertEquals(1, metrics.getGetLatency().count());
+        assertEquals(1, metrics.getRemoveLatency().count());
+        assertTrue(metrics.getPutLatency().percentile(99) > 0);
+    }
+
     @Test
     void testNullKeyOrValue() {
         assertThrows(IllegalArgumentException.class, () -> cache.put(null, "value"));
@@ -111,6 +201,52 @@ class LRUCacheTest {
         assertEquals("value2", newCache.get("key2"));
     }
 
+    @Test
+    void testReloadKeepsRecencyOrder() throws CacheException {
+        LRUCache<String, Object> weighed = new LRUCache<>(100, (key, value) -> 25);
+        for (int i = 0; i < 4; i++) {
+            weighed.put("key" + i, "value" + i);
+        }
+        weighed.get("key0");
+        weighed.shutdown();
+
+        LRUCache<String, Object> reloaded = new LRUCache<>(100, (key, value) -> 25);
+        reloaded.loadFromDisk();
+        assertEquals(100, reloaded.currentSizeInBytes());
+        reloaded.put("key4", "value4");
+
+        assertNull(reloaded.get("key1"));
+        assertEquals("value0", reloaded.get("key0"));
+    }
+
+    @Test
+    void testDuplicateKeyInSnapshotReplacesTheEarlierEntry() throws Exception {
+        Path file = Files.createTempFile("lru", ".dat");
+        try {
+            // The duplicates land in different segments, which are loaded in parallel
+            try (SnapshotFile.Writer writer = new SnapshotFile.Writer(file, SnapshotFile.OBJECTS, 1)) {
+                writer.write(SnapshotFile.encode("key1"), SnapshotFile.encode("old"), 30);
+                writer.write(SnapshotFile.encode("key2"), SnapshotFile.encode("value2"), 30);
+                writer.write(SnapshotFile.encode("key1"), SnapshotFile.encode("new"), 20);
+                writer.commit();
+            }
+            LRUCache<String, Object> loaded = new LRUCache<>(100, (key, value) -> 25);
+            loaded.loadSnapshot(file);
+
+            assertEquals("new", loaded.get("key1"));
+            assertEquals(2, loaded.size());
+            assertEquals(50, loaded.currentSizeInBytes());
+            // Pushes out both loaded entries, the accounting must come back to exactly what is cached
+            for (int i = 0; i < 4; i++) {
+                loaded.put("key" + (i + 3), "value");
+            }
+            assertEquals(4, loaded.size());
+            assertEquals(100, loaded.currentSizeInBytes());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
     @Test
     void testEventListener() throws CacheException {
         TestCacheEventListener listener = new TestCacheEventListener();
@@ -120,6 +256,7 @@ class LRUCacheTest {
         cache.get("key1");
         cache.get("nonexistent");
 
+        assertTrue(cache.events().flush(1000));
         assertEquals(1, listener.getHitCount());
         assertEquals(1, listener.getMissCount());
     }
@@ -152,4 +289,31 @@ class LRUCacheTest {
             return missCount;
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void testBulkOperations() throws CacheException {
+        LRUCache<String, Object> cache = new LRUCache<>(30, new StringWeigher());
+        Map<String, Object> entries = new LinkedHashMap<>();
+        entries.put("k1", "12345678");
+        entries.put("k2", "12345678");
+        entries.put("k3", "12345678");
+        cache.putAll(entries);
+        assertEquals(3, cache.size());
+        assertEquals(3, cache.getMetrics().getPuts());
+
+        Map<String, Object> found = cache.getAll(Arrays.asList("k1", "missing"));
+        assertEquals(Map.of("k1", "12345678"), found);
+        assertEquals(1, cache.getMetrics().getHits());
+        assertEquals(1, cache.getMetrics().getMisses());
+
+        // The bulk read refreshed k1, so k2 is the eldest now
+        cache.put("k4", "12345678");
+        assertNull(cache.get("k2"));
+        assertEquals("12345678", cache.get("k1"));
+
+        assertFalse(cache.putAllIfAbsent(Map.of("k5", "x", "k1", "y")));
+        assertNull(cache.get("k5"));
+        assertTrue(cache.putAllIfAbsent(Map.of("k5", "x")));
+        assertEquals("x", cache.get("k5"));
+    }
+}
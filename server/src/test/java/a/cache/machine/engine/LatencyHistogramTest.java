@@ -0,0 +1,58 @@
+package a.cache.machine.engine;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void testBucketsAreWithinRelativeError() {
+        for (long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 100, 1_000, 12_345, 1_000_000, 987_654_321, Long.MAX_VALUE / 3 }) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            long upper = LatencyHistogram.upperBoundOf(bucket);
+            assertTrue(upper >= value, "upper bound below value " + value);
+            assertTrue(upper - value <= value / 8, "bucket too wide for " + value);
+            if (bucket > 0) {
+                assertTrue(LatencyHistogram.upperBoundOf(bucket - 1) < value, "previous bucket holds " + value);
+            }
+        }
+    }
+
+    @Test
+    void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        assertEquals(1000, histogram.count());
+        long[] percentiles = histogram.percentiles(50, 99, 99.9);
+        assertEquals(500_000, percentiles[0], 500_000 / 8.0);
+        assertEquals(990_000, percentiles[1], 990_000 / 8.0);
+        assertEquals(999_000, percentiles[2], 999_000 / 8.0);
+        assertTrue(percentiles[0] <= percentiles[1] && percentiles[1] <= percentiles[2]);
+
+        histogram.reset();
+        assertEquals(0, histogram.count());
+    }
+
+    @Test
+    void testConcurrentRecording() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.record(250);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40_000, histogram.count());
+        assertEquals(LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(250)), histogram.percentile(50));
+    }
+}
@@ -0,0 +1,145 @@
+package a.cache.machine.engine;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class OffHeapLRUCacheTest {
+    private OffHeapLRUCache<String, Object> cache;
+
+    @BeforeEach
+    void setUp() {
+        // Initialize a cache with a maximum size of 100 bytes for testing
+        cache = new OffHeapLRUCache<>(100);
+    }
+
+    @Test
+    void testPutAndGet() throws CacheException {
+        OffHeapLRUCache<String, Object> roomy = new OffHeapLRUCache<>(4096);
+        roomy.put("key1", "value1");
+        roomy.put("key2", "välue2");
+        roomy.put("key3", new byte[] { 1, 2, 3 });
+        roomy.put("key4", 42L);
+
+        assertEquals("value1", roomy.get("key1"));
+        assertEquals("välue2", roomy.get("key2"));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) roomy.get("key3"));
+        assertEquals(42L, roomy.get("key4"));
+        assertEquals(0, roomy.getMetrics().getEvictions());
+    }
+
+    @Test
+    void testGetNonExistentKey() throws CacheException {
+        assertNull(cache.get("nonexistent"));
+    }
+
+    @Test
+    void testEvictionPolicy() throws CacheException {
+        // "valueN" takes 7 encoded bytes, a 16 byte chunk: 6 fit in 100 bytes
+        for (int i = 1; i <= 6; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        cache.get("key1");
+        cache.put("key7", "value7");
+
+        assertNull(cache.get("key2"));
+        assertEquals("value1", cache.get("key1"));
+        assertEquals("value7", cache.get("key7"));
+        assertEquals(1, cache.getMetrics().getEvictions());
+        assertTrue(cache.reservedSizeInBytes() <= cache.maxCapacityInBytes());
+    }
+
+    @Test
+    void testEvictionSinkGetsDecodedEntries() throws CacheException {
+        List<String> evicted = new ArrayList<>();
+        cache.setEvictionSink((key, value) -> evicted.add(key + "=" + value));
+        for (int i = 1; i <= 7; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+
+        assertEquals(List.of("key1=value1"), evicted);
+    }
+
+    @Test
+    void testLargerValueEvictsUntilItFits() throws CacheException {
+        List<String> evicted = new ArrayList<>();
+        cache.addEventListener(new ICacheEventListener() {
+            @Override
+            public void onHit(String key) {
+            }
+
+            @Override
+            public void onMiss(String key) {
+            }
+
+            @Override
+            public void onEviction(String key, Object value) {
+                evicted.add(key + "=" + value);
+            }
+        });
+        for (int i = 1; i <= 6; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        // Needs a bigger size class, so the whole slab has to be freed first
+        cache.put("big", "a value that does not fit a small chunk");
+
+        assertTrue(cache.events().flush(1000));
+        assertEquals(6, evicted.size());
+        assertEquals("key1=value1", evicted.get(0));
+        assertEquals(1, cache.size());
+        assertEquals("a value that does not fit a small chunk", cache.get("big"));
+    }
+
+    @Test
+    void testValueLargerThanSlabIsRejected() {
+        assertThrows(CacheException.class, () -> cache.put("key", "x".repeat(200)));
+    }
+
+    @Test
+    void testOverwriteAndRemove() throws CacheException {
+        cache.put("key1", "value1");
+        assertEquals("value1", cache.put("key1", "value2"));
+        assertEquals("value2", cache.get("key1"));
+        assertEquals(16, cache.currentSizeInBytes());
+
+        assertEquals("value2", cache.remove("key1"));
+        assertNull(cache.remove("key1"));
+        assertEquals(0, cache.currentSizeInBytes());
+    }
+
+    @Test
+    void testClear() throws CacheException {
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.currentSizeInBytes());
+        assertNull(cache.get("key1"));
+        cache.put("key3", "value3");
+        assertEquals("value3", cache.get("key3"));
+    }
+
+    @Test
+    void testNullKeyOrValue() {
+        assertThrows(IllegalArgumentException.class, () -> cache.put(null, "value"));
+        assertThrows(IllegalArgumentException.class, () -> cache.put("key", null));
+    }
+
+    @Test
+    void testShutdownAndPersistence() throws CacheException {
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+
+        cache.shutdown();
+
+        OffHeapLRUCache<String, Object> newCache = new OffHeapLRUCache<>(100);
+        newCache.loadFromDisk();
+
+        assertEquals("value1", newCache.get("key1"));
+        assertEquals("value2", newCache.get("key2"));
+    }
+}
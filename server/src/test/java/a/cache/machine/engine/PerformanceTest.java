@@ -13,6 +13,7 @@ class PerformanceTest {
     private static final int MAX_ITEMS = 2_000_000;
     private LRUCache<String, Object> lruCache;
     private LFUCache<String, Object> lfuCache;
+    private SegmentedLRUCache<String, Object> segmentedLruCache;
 
     @BeforeEach
     void setUp() {
@@ -20,6 +21,7 @@ class PerformanceTest {
         // for testing
         lruCache = new LRUCache<>(MAX_SIZE_IN_BYTES);
         lfuCache = new LFUCache<>(MAX_SIZE_IN_BYTES);
+        segmentedLruCache = new SegmentedLRUCache<>(MAX_SIZE_IN_BYTES);
     }
 
     @Test
@@ -61,6 +63,45 @@ class PerformanceTest {
                 .getEvictions());
     }
 
+    @Test
+    void testSegmentedLRU_multi_thread() {
+        long startTime = System.nanoTime();
+        IntStream.rangeClosed(0, MAX_ITEMS)
+                .parallel()
+                .forEach((i) -> {
+                    segmentedLruCache.put("key" + i, "value" + i);
+                });
+        long endTime = System.nanoTime();
+        System.out
+                .println("Segmented LRU put execution time for " + MAX_ITEMS
+                        + " items: "
+                        + (endTime - startTime) / 1_000_000
+                        + " ms");
+
+        startTime = System.nanoTime();
+        IntStream.rangeClosed(0, MAX_ITEMS)
+                .parallel()
+                .forEach((i) -> {
+                    segmentedLruCache.get("key" + i);
+                });
+        endTime = System.nanoTime();
+        System.out
+                .println("Segmented LRU get execution time for " + MAX_ITEMS
+                        + " items: "
+                        + (endTime - startTime) / 1_000_000
+                        + " ms");
+        System.out.println("\nSegmented LRU cache metrics:");
+        System.out.println("Current size in bytes: " + segmentedLruCache.currentSizeInBytes());
+        System.out.println("Max size in bytes: " + MAX_SIZE_IN_BYTES);
+        System.out.println("Number of segments: " + segmentedLruCache.segmentCount());
+        System.out.println("Number of items: " + segmentedLruCache.size());
+        System.out.println("Number of hits: " + segmentedLruCache.getMetrics().getHits());
+        System.out.println("Number of misses: " + segmentedLruCache.getMetrics().getMisses());
+        System.out.println("Number of evictions: " + segmentedLruCache.getMetrics()
+                .getEvictions());
+        assertTrue(segmentedLruCache.currentSizeInBytes() <= MAX_SIZE_IN_BYTES);
+    }
+
     @Test
     // @Disabled
     void testLRU() {
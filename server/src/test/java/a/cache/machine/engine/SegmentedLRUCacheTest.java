@@ -0,0 +1,143 @@
+package a.cache.machine.engine;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.stream.IntStream;
+
+class SegmentedLRUCacheTest {
+    private SegmentedLRUCache<String, Object> cache;
+
+    @BeforeEach
+    void setUp() {
+        // A single segment behaves exactly like a plain LRU cache of 100 bytes
+        cache = new SegmentedLRUCache<>(100, 1);
+    }
+
+    @Test
+    void testPutAndGet() throws CacheException {
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+
+        assertEquals("value1", cache.get("key1"));
+        assertEquals("value2", cache.get("key2"));
+    }
+
+    @Test
+    void testGetNonExistentKey() throws CacheException {
+        assertNull(cache.get("nonexistent"));
+    }
+
+    @Test
+    void testEvictionPolicy() throws CacheException {
+        cache.put("key1", "value1"); // Assume size = 13
+        cache.put("key2", "value2");
+        cache.put("key3", "value3");
+        cache.put("key4", "value4");
+        cache.put("key5", "value5");
+        cache.put("key6", "value6");
+        cache.put("key7", "value7");
+        cache.get("key1");
+        cache.get("key2");
+        // Pushes the segment over 100 bytes, key3 is the least recently used
+        cache.put("key8", "value8");
+
+        assertNull(cache.get("key3"));
+        assertEquals("value1", cache.get("key1"));
+        assertEquals("value8", cache.get("key8"));
+        assertEquals(1, cache.getMetrics().getEvictions());
+    }
+
+    @Test
+    void testSegmentCountIsRoundedToPowerOfTwo() {
+        assertEquals(1, new SegmentedLRUCache<String, Object>(1 << 20, 1).segmentCount());
+        assertEquals(8, new SegmentedLRUCache<String, Object>(1 << 20, 5).segmentCount());
+        assertEquals(16, new SegmentedLRUCache<String, Object>(1 << 20).segmentCount());
+        assertThrows(IllegalArgumentException.class, () -> new SegmentedLRUCache<String, Object>(100, 0));
+    }
+
+    @Test
+    void testSmallBudgetsGetFewerSegments() throws CacheException {
+        assertEquals(1, new SegmentedLRUCache<String, Object>(100, 16).segmentCount());
+        assertEquals(4, new SegmentedLRUCache<String, Object>(4 * SegmentedLRUCache.MIN_SEGMENT_CAPACITY, 16)
+                .segmentCount());
+
+        // Six bytes a segment would evict every entry on its way in
+        SegmentedLRUCache<String, Object> small = new SegmentedLRUCache<>(100, 16);
+        small.put("key1", "value1");
+        assertEquals("value1", small.get("key1"));
+        assertEquals(0, small.getMetrics().getEvictions());
+    }
+
+    @Test
+    void testSizeAccountingOnOverwriteAndRemove() throws CacheException {
+        cache.put("key1", "value1");
+        long single = cache.currentSizeInBytes();
+        cache.put("key1", "value2");
+        assertEquals(single, cache.currentSizeInBytes());
+
+        cache.remove("key1");
+        assertEquals(0, cache.currentSizeInBytes());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testGlobalCapacityIsEnforcedAcrossSegments() throws CacheException {
+        SegmentedLRUCache<String, Object> segmented = new SegmentedLRUCache<>(10_000, 8);
+        IntStream.range(0, 10_000)
+                .parallel()
+                .forEach(i -> segmented.put("key" + i, "value" + i));
+
+        assertTrue(segmented.currentSizeInBytes() <= segmented.maxCapacityInBytes());
+        assertTrue(segmented.size() > 0);
+        assertEquals(10_000, segmented.size() + segmented.getMetrics().getEvictions());
+    }
+
+    @Test
+    void testClear() throws CacheException {
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.currentSizeInBytes());
+        assertNull(cache.get("key1"));
+        assertNull(cache.get("key2"));
+    }
+
+    @Test
+    void testMetrics() throws CacheException {
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+
+        cache.get("key1");
+        cache.get("key1");
+        cache.get("key2");
+        cache.get("nonexistent");
+
+        CacheMetrics metrics = cache.getMetrics();
+        assertEquals(3, metrics.getHits());
+        assertEquals(1, metrics.getMisses());
+    }
+
+    @Test
+    void testNullKeyOrValue() {
+        assertThrows(IllegalArgumentException.class, () -> cache.put(null, "value"));
+        assertThrows(IllegalArgumentException.class, () -> cache.put("key", null));
+    }
+
+    @Test
+    void testShutdownAndPersistence() throws CacheException {
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+
+        cache.shutdown();
+
+        SegmentedLRUCache<String, Object> newCache = new SegmentedLRUCache<>(100, 1);
+        newCache.loadFromDisk();
+
+        assertEquals("value1", newCache.get("key1"));
+        assertEquals("value2", newCache.get("key2"));
+    }
+}
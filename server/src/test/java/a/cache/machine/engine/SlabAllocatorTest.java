@@ -0,0 +1,66 @@
+package a.cache.machine.engine;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SlabAllocatorTest {
+
+    @Test
+    void testWriteAndReadBack() {
+        SlabAllocator allocator = new SlabAllocator(4096, 1024);
+        long address = allocator.allocate(5);
+        allocator.write(address, new byte[] { 1, 2, 3, 4, 5 });
+
+        byte[] read = new byte[5];
+        allocator.read(address, read);
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, read);
+        assertEquals(SlabAllocator.MIN_CHUNK_SIZE, allocator.chunkSize(address));
+        assertEquals(SlabAllocator.MIN_CHUNK_SIZE, allocator.usedBytes());
+        assertEquals(1024, allocator.reservedBytes());
+    }
+
+    @Test
+    void testSmallestFittingSizeClassIsUsed() {
+        SlabAllocator allocator = new SlabAllocator(4096, 1024);
+        assertEquals(24, allocator.chunkSize(allocator.allocate(17)));
+        assertEquals(1024, allocator.chunkSize(allocator.allocate(1000)));
+        assertThrows(IllegalArgumentException.class, () -> allocator.allocate(1025));
+    }
+
+    @Test
+    void testCapacityIsNeverExceeded() {
+        SlabAllocator allocator = new SlabAllocator(2048, 1024);
+        // Two slabs of 64 chunks of 16 bytes
+        for (int i = 0; i < 128; i++) {
+            assertTrue(allocator.allocate(16) >= 0);
+        }
+        assertEquals(-1, allocator.allocate(16));
+        assertEquals(-1, allocator.allocate(500));
+        assertEquals(2048, allocator.reservedBytes());
+    }
+
+    @Test
+    void testEmptySlabMovesToAnotherSizeClass() {
+        SlabAllocator allocator = new SlabAllocator(1024, 1024);
+        long[] addresses = new long[64];
+        for (int i = 0; i < 64; i++) {
+            addresses[i] = allocator.allocate(16);
+        }
+        assertEquals(-1, allocator.allocate(1000));
+
+        for (long address : addresses) {
+            allocator.free(address);
+        }
+        assertEquals(0, allocator.usedBytes());
+        assertTrue(allocator.allocate(1000) >= 0);
+    }
+
+    @Test
+    void testFreedChunksAreReused() {
+        SlabAllocator allocator = new SlabAllocator(1024, 1024);
+        long first = allocator.allocate(16);
+        allocator.allocate(16);
+        allocator.free(first);
+        assertEquals(first, allocator.allocate(10));
+    }
+}
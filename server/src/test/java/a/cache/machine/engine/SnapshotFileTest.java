@@ -0,0 +1,221 @@
+package a.cache.machine.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotFileTest {
+    private Path directory;
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("snapshot");
+        file = directory.resolve("cache.dat");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void write(int entries, int segmentSize) throws CacheException {
+        try (SnapshotFile.Writer writer = new SnapshotFile.Writer(file, SnapshotFile.BYTES, segmentSize)) {
+            for (int i = 0; i < entries; i++) {
+                writer.write(bytes("key" + i), bytes("value" + i), i);
+            }
+            writer.commit();
+        }
+    }
+
+    @Test
+    void testEntriesComeBackInOrderPerSegment() throws CacheException {
+        // Every segment fills up after about ten entries
+        write(1000, 256);
+
+        Map<Integer, List<String>> segments = new ConcurrentHashMap<>();
+        long loaded = SnapshotFile.load(file, SnapshotFile.BYTES, (segment, key, value, weight, policy) -> {
+            assertEquals("value" + weight, new String(value, StandardCharsets.UTF_8));
+            segments.computeIfAbsent(segment, s -> new ArrayList<>()).add(new String(key, StandardCharsets.UTF_8));
+        });
+
+        assertEquals(1000, loaded);
+        assertTrue(segments.size() > 50, "segments " + segments.size());
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            keys.addAll(segments.get(i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("key" + i, keys.get(i));
+        }
+    }
+
+    @Test
+    void testEmptySnapshot() throws CacheException {
+        write(0, 256);
+        assertEquals(0, SnapshotFile.load(file, SnapshotFile.BYTES, (segment, key, value, weight, policy) -> fail("no entries")));
+    }
+
+    @Test
+    void testCorruptSegmentFailsItsChecksum() throws Exception {
+        write(100, 256);
+        byte[] content = Files.readAllBytes(file);
+        // Inside the first entry's value
+        content[35] ^= 1;
+        Files.write(file, content);
+
+        CacheException e = assertThrows(CacheException.class,
+                () -> SnapshotFile.load(file, SnapshotFile.BYTES, (segment, key, value, weight, policy) -> { }));
+        assertTrue(e.getMessage().contains("checksum"), e.getMessage());
+    }
+
+    @Test
+    void testTruncatedSnapshotIsRejected() throws Exception {
+        write(100, 256);
+        byte[] content = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(content, content.length - 10));
+
+        assertThrows(CacheException.class,
+                () -> SnapshotFile.load(file, SnapshotFile.BYTES, (segment, key, value, weight, policy) -> { }));
+    }
+
+    @Test
+    void testOtherEncodingOrVersionIsRejected() throws Exception {
+        write(10, 256);
+        CacheException e = assertThrows(CacheException.class,
+                () -> SnapshotFile.load(file, SnapshotFile.OBJECTS, (segment, key, value, weight, policy) -> { }));
+        assertTrue(e.getMessage().contains("encoding"), e.getMessage());
+
+        byte[] content = Files.readAllBytes(file);
+        content[7] = 9;
+        Files.write(file, content);
+        e = assertThrows(CacheException.class,
+                () -> SnapshotFile.load(file, SnapshotFile.BYTES, (segment, key, value, weight, policy) -> { }));
+        assertEquals("Unsupported snapshot version 9", e.getMessage());
+    }
+
+    @Test
+    void testUncommittedSnapshotKeepsThePreviousOne() throws Exception {
+        write(10, 256);
+        try (SnapshotFile.Writer writer = new SnapshotFile.Writer(file, SnapshotFile.BYTES, 256)) {
+            writer.write(bytes("other"), bytes("value"), 0);
+        }
+
+        assertEquals(10, SnapshotFile.load(file, SnapshotFile.BYTES, (segment, key, value, weight, policy) -> { }));
+        assertFalse(Files.exists(directory.resolve("cache.dat.tmp")));
+    }
+
+    @Test
+    void testMissingSnapshot() {
+        assertThrows(CacheException.class,
+                () -> SnapshotFile.load(file, SnapshotFile.BYTES, (segment, key, value, weight, policy) -> { }));
+    }
+
+    @Test
+    void testPoliciesAndStateComeBack() throws CacheException {
+        try (SnapshotFile.Writer writer = new SnapshotFile.Writer(file, SnapshotFile.BYTES, 256)) {
+            for (int i = 0; i < 100; i++) {
+                writer.write(bytes("key" + i), bytes("value" + i), i, i * 3);
+            }
+            writer.state(bytes("state"));
+            writer.commit();
+        }
+
+        SnapshotFile.Contents<String> contents = SnapshotFile.read(file, SnapshotFile.BYTES,
+                (key, value, weight, policy) -> {
+                    assertEquals(weight * 3, policy);
+                    return new String(key, StandardCharsets.UTF_8);
+                });
+        assertEquals(100, contents.entries.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("key" + i, contents.entries.get(i));
+        }
+        assertArrayEquals(bytes("state"), contents.state);
+    }
+
+    @Test
+    void testDeadlinesComeBack() throws CacheException {
+        try (SnapshotFile.Writer writer = new SnapshotFile.Writer(file, SnapshotFile.BYTES, 256)) {
+            for (int i = 0; i < 10; i++) {
+                writer.write(bytes("key" + i), bytes("value" + i), i);
+            }
+            writer.state(bytes("state"));
+            writer.deadlines(SnapshotFile.encodeDeadlines(Map.of("key1", 1_000L, "key2", 2_000L)));
+            writer.commit();
+        }
+
+        assertEquals(Map.of("key1", 1_000L, "key2", 2_000L), SnapshotFile.readDeadlines(file));
+        SnapshotFile.Contents<String> contents = SnapshotFile.read(file, SnapshotFile.BYTES,
+                (key, value, weight, policy) -> new String(key, StandardCharsets.UTF_8));
+        assertEquals(10, contents.entries.size());
+        assertArrayEquals(bytes("state"), contents.state);
+    }
+
+    @Test
+    void testVersionOneSnapshotLoads() throws Exception {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(content);
+        output.writeInt(SnapshotFile.MAGIC);
+        output.writeInt(1);
+        output.writeByte(SnapshotFile.BYTES);
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(segment);
+        for (int i = 0; i < 3; i++) {
+            entries.writeInt(4);
+            entries.writeInt(6);
+            entries.writeLong(i);
+            entries.write(bytes("key" + i));
+            entries.write(bytes("value" + i));
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(segment.toByteArray());
+        output.write(segment.toByteArray());
+        ByteArrayOutputStream directory = new ByteArrayOutputStream();
+        DataOutputStream segments = new DataOutputStream(directory);
+        segments.writeLong(9);
+        segments.writeLong(segment.size());
+        segments.writeInt(3);
+        segments.writeInt((int) crc.getValue());
+        crc.reset();
+        crc.update(directory.toByteArray());
+        output.write(directory.toByteArray());
+        output.writeLong(9 + segment.size());
+        output.writeInt(1);
+        output.writeInt((int) crc.getValue());
+        output.writeInt(SnapshotFile.MAGIC);
+        Files.write(file, content.toByteArray());
+
+        SnapshotFile.Contents<String> contents = SnapshotFile.read(file, SnapshotFile.BYTES,
+                (key, value, weight, policy) -> {
+                    assertEquals(0, policy);
+                    return new String(key, StandardCharsets.UTF_8);
+                });
+        assertEquals(List.of("key0", "key1", "key2"), contents.entries);
+        assertEquals(0, contents.state.length);
+        assertTrue(SnapshotFile.readDeadlines(file).isEmpty());
+    }
+}
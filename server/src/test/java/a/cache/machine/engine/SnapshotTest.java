@@ -0,0 +1,277 @@
+package a.cache.machine.engine;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotTest {
+    private Path directory;
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("snapshot");
+        file = directory.resolve("dump.dat");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static ByteKey key(String key) {
+        return ByteKey.of(key);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testCompactSnapshotIgnoresLaterWrites() throws CacheException {
+        CompactByteCache cache = new CompactByteCache(1 << 20, 2);
+        for (int i = 0; i < 100; i++) {
+            cache.put(key("key" + i), bytes("value" + i));
+        }
+
+        Snapshot snapshot = cache.snapshot();
+        cache.put(key("key0"), bytes("changed"));
+        cache.remove(key("key1"));
+        // Enough new keys to resize the tables
+        for (int i = 100; i < 1000; i++) {
+            cache.put(key("key" + i), bytes("value" + i));
+        }
+        assertEquals(100, snapshot.writeTo(file));
+
+        CompactByteCache loaded = new CompactByteCache(1 << 20, 2);
+        assertEquals(100, loaded.loadSnapshot(file));
+        assertArrayEquals(bytes("value0"), loaded.get(key("key0")));
+        assertArrayEquals(bytes("value1"), loaded.get(key("key1")));
+        assertNull(loaded.get(key("key100")));
+
+        assertArrayEquals(bytes("changed"), cache.get(key("key0")));
+        assertNull(cache.get(key("key1")));
+        assertEquals(999, cache.size());
+    }
+
+    @Test
+    void testCompactWritesAfterReleaseStayInPlace() throws CacheException {
+        CompactByteCache cache = new CompactByteCache(1 << 20, 1);
+        cache.put(key("key1"), bytes("value1"));
+        cache.snapshot().writeTo(file);
+
+        cache.put(key("key1"), bytes("value2"));
+        cache.put(key("key2"), bytes("value2"));
+        Snapshot second = cache.snapshot();
+        cache.remove(key("key1"));
+        assertEquals(2, second.writeTo(file));
+
+        CompactByteCache loaded = new CompactByteCache(1 << 20, 1);
+        loaded.loadSnapshot(file);
+        assertArrayEquals(bytes("value2"), loaded.get(key("key1")));
+        assertArrayEquals(bytes("value2"), loaded.get(key("key2")));
+    }
+
+    @Test
+    void testSegmentedSnapshotIgnoresLaterWrites() throws CacheException {
+        SegmentedLRUCache<String, String> cache = new SegmentedLRUCache<>(1 << 20, 4);
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+
+        Snapshot snapshot = cache.snapshot();
+        cache.put("key1", "changed");
+        cache.put("key3", "value3");
+        snapshot.writeTo(file);
+
+        SegmentedLRUCache<String, String> loaded = new SegmentedLRUCache<>(1 << 20, 4);
+        assertEquals(2, loaded.loadSnapshot(file));
+        assertEquals("value1", loaded.get("key1"));
+        assertEquals("value2", loaded.get("key2"));
+        assertNull(loaded.get("key3"));
+    }
+
+    @Test
+    void testDeadlinesComeBack() throws CacheException {
+        AtomicLong now = new AtomicLong(1_000);
+        ExpiringCache<String, String> cache = new ExpiringCache<>(new LRUCache<>(1000), 10, now::get, false);
+        cache.put("key1", "value1");
+        cache.put("key2", "value2", 100);
+        cache.put("key3", "value3", 1_000);
+        cache.put("key4", "value4", 5);
+        Snapshot snapshot = cache.snapshot();
+        // Expires between the capture and the write
+        now.addAndGet(10);
+
+        assertEquals(3, snapshot.writeTo(file));
+
+        // The deadlines are absolute, key2 expires while the cache is down
+        now.addAndGet(500);
+        ExpiringCache<String, String> loaded = new ExpiringCache<>(new LRUCache<>(1000), 10, now::get, false);
+        assertEquals(2, loaded.loadSnapshot(file));
+        assertEquals("value1", loaded.get("key1"));
+        assertEquals(ICache.NO_EXPIRY, loaded.ttl("key1"));
+        assertNull(loaded.get("key2"));
+        assertEquals("value3", loaded.get("key3"));
+        assertEquals(490, loaded.ttl("key3"));
+        assertNull(loaded.get("key4"));
+        // The timer is armed again
+        now.addAndGet(490);
+        assertNull(loaded.get("key3"));
+    }
+
+    @Test
+    void testWritingIsRecordedOnce() throws CacheException {
+        LRUCache<String, String> cache = new LRUCache<>(1000);
+        cache.put("key1", "value1");
+
+        Snapshot snapshot = cache.snapshot();
+        snapshot.writeTo(file);
+
+        assertEquals(1, cache.getMetrics().getSnapshots());
+        assertTrue(cache.getMetrics().getLastSnapshotNanos() > 0);
+        assertThrows(IllegalStateException.class, () -> snapshot.writeTo(file));
+    }
+
+    // Skewed gets and puts over a few hundred keys, returns the number of hits
+    private static int run(ICache<String, String> cache, long seed, int operations) throws CacheException {
+        return run(cache, seed, operations, 300);
+    }
+
+    private static int run(ICache<String, String> cache, long seed, int operations, int keys) throws CacheException {
+        Random random = new Random(seed);
+        int hits = 0;
+        for (int i = 0; i < operations; i++) {
+            String key = "key" + random.nextInt(random.nextInt(keys) + 1);
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, "value" + key);
+            }
+        }
+        return hits;
+    }
+
+    private static Set<String> keys(ICache<String, String> cache) throws CacheException {
+        Set<String> keys = new TreeSet<>();
+        cache.forEach((key, value) -> keys.add(key));
+        return keys;
+    }
+
+    // After a restart from a snapshot the cache makes the same decisions the old one would have
+    private void assertWarmRestart(Supplier<ICache<String, String>> engine) throws CacheException {
+        assertWarmRestart(engine, 300);
+    }
+
+    private void assertWarmRestart(Supplier<ICache<String, String>> engine, int keys) throws CacheException {
+        ICache<String, String> cache = engine.get();
+        run(cache, 1, 20_000, keys);
+        cache.snapshot().writeTo(file);
+
+        ICache<String, String> restarted = engine.get();
+        restarted.loadSnapshot(file);
+        assertEquals(keys(cache), keys(restarted));
+
+        assertEquals(run(cache, 2, 20_000, keys), run(restarted, 2, 20_000, keys));
+        assertEquals(keys(cache), keys(restarted));
+    }
+
+    // More entries than one batch, so the copy is put back in order from several
+    @Test
+    void testOrderSurvivesCopyingInBatches() throws CacheException {
+        assertTrue(keys(warm(new LRUCache<>(200_000))).size() > Snapshot.Copied.BATCH_SIZE);
+        assertWarmRestart(() -> new LRUCache<>(200_000), 10_000);
+        assertWarmRestart(() -> new OffHeapLRUCache<>(1 << 20), 10_000);
+        assertWarmRestart(() -> new TinyLfuCache<>(200_000), 10_000);
+    }
+
+    private static ICache<String, String> warm(ICache<String, String> cache) throws CacheException {
+        run(cache, 1, 20_000, 10_000);
+        return cache;
+    }
+
+    @Test
+    void testLruWarmRestart() throws CacheException {
+        assertWarmRestart(() -> new LRUCache<>(4000));
+    }
+
+    @Test
+    void testSegmentedLruWarmRestart() throws CacheException {
+        assertWarmRestart(() -> new SegmentedLRUCache<>(16_000, 4));
+    }
+
+    @Test
+    void testLfuWarmRestart() throws CacheException {
+        assertWarmRestart(() -> new LFUCache<>(4000));
+    }
+
+    @Test
+    void testConcurrentLfuWarmRestart() throws CacheException {
+        assertWarmRestart(() -> new ConcurrentLFUCache<>(16_000, 4));
+    }
+
+    @Test
+    void testTinyLfuWarmRestart() throws CacheException {
+        assertWarmRestart(() -> new TinyLfuCache<>(4000));
+    }
+
+    @Test
+    void testTinyLfuKeepsFrequencies() throws CacheException {
+        TinyLfuCache<String, String> cache = new TinyLfuCache<>(4000);
+        run(cache, 1, 20_000);
+        cache.snapshot().writeTo(file);
+
+        TinyLfuCache<String, String> restarted = new TinyLfuCache<>(4000);
+        restarted.loadSnapshot(file);
+        for (int i = 0; i < 300; i++) {
+            assertEquals(cache.frequency("key" + i), restarted.frequency("key" + i));
+        }
+    }
+
+    @Test
+    void testCompactKeepsReferenceBits() throws CacheException {
+        int entry = 8 + CompactByteCache.ENTRY_OVERHEAD;
+        CompactByteCache cache = new CompactByteCache(3 * entry + 10, 1);
+        cache.put(key("key1"), bytes("val1"));
+        cache.put(key("key2"), bytes("val2"));
+        cache.put(key("key3"), bytes("val3"));
+        // Clears every reference bit on the way to evicting one, then all but one entry are read again
+        cache.put(key("key4"), bytes("val4"));
+        List<String> left = new ArrayList<>();
+        for (String name : List.of("key1", "key2", "key3")) {
+            if (cache.containsKey(key(name))) {
+                left.add(name);
+            }
+        }
+        assertEquals(2, left.size());
+        cache.get(key(left.get(0)));
+        cache.get(key("key4"));
+        cache.snapshot().writeTo(file);
+
+        CompactByteCache restarted = new CompactByteCache(3 * entry + 10, 1);
+        restarted.loadSnapshot(file);
+        restarted.put(key("key5"), bytes("val5"));
+
+        assertFalse(restarted.containsKey(key(left.get(1))));
+        assertTrue(restarted.containsKey(key(left.get(0))));
+        assertTrue(restarted.containsKey(key("key4")));
+    }
+}
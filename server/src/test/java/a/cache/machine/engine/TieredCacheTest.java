@@ -0,0 +1,212 @@
+package a.cache.machine.engine;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import a.cache.machine.engine.codec.ObjectCodec;
+import a.cache.machine.engine.weigher.StringWeigher;
+
+class TieredCacheTest {
+    private Path directory;
+    private DiskTier tier;
+
+    @BeforeEach
+    void setUp() throws IOException, CacheException {
+        directory = Files.createTempDirectory("tiered");
+        tier = new DiskTier(directory, 1 << 20, 64 * 1024, 0);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        tier.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    // Memory for about ten of the hundred entries, every one of them is still found
+    private void assertEvictedEntriesComeBack(Supplier<ICache<String, String>> engine) throws CacheException {
+        TieredCache<String, String> cache = new TieredCache<>(engine.get(), tier);
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertEquals(100, cache.size());
+        assertTrue(tier.size() > 50);
+        assertTrue(cache.getMetrics().getSpills() >= tier.size());
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(cache.containsKey("key" + i));
+            assertEquals("value" + i, cache.get("key" + i));
+        }
+        assertTrue(cache.getMetrics().getPromotions() > 50);
+        assertEquals(100, cache.size());
+    }
+
+    @Test
+    void testLruEvictedEntriesComeBack() throws CacheException {
+        assertEvictedEntriesComeBack(() -> new LRUCache<>(200, new StringWeigher()));
+    }
+
+    @Test
+    void testSegmentedLruEvictedEntriesComeBack() throws CacheException {
+        assertEvictedEntriesComeBack(() -> new SegmentedLRUCache<>(200, 2, new StringWeigher()));
+    }
+
+    @Test
+    void testLfuEvictedEntriesComeBack() throws CacheException {
+        assertEvictedEntriesComeBack(() -> new ConcurrentLFUCache<>(200, 2, new StringWeigher()));
+    }
+
+    @Test
+    void testTinyLfuEvictedEntriesComeBack() throws CacheException {
+        assertEvictedEntriesComeBack(() -> new TinyLfuCache<>(200, new StringWeigher()));
+    }
+
+    @Test
+    void testCompactEvictedEntriesComeBack() throws CacheException {
+        TieredCache<ByteKey, byte[]> cache = new TieredCache<>(new CompactByteCache(1000, 1), tier);
+        for (int i = 0; i < 100; i++) {
+            cache.put(ByteKey.of("key" + i), ByteKey.of("value" + i).toByteArray());
+        }
+        assertTrue(tier.size() > 50);
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(ByteKey.of("value" + i).toByteArray(), cache.get(ByteKey.of("key" + i)));
+        }
+    }
+
+    @Test
+    void testWritesAndRemovesReachTheTier() throws CacheException {
+        TieredCache<String, String> cache = new TieredCache<>(new LRUCache<>(200, new StringWeigher()), tier);
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertFalse(cache.getMetrics().getSpills() == 0);
+
+        // key0 was spilled long ago
+        assertEquals("value0", cache.put("key0", "changed"));
+        assertEquals("value1", cache.remove("key1"));
+        assertNull(cache.get("key1"));
+        assertFalse(cache.containsKey("key1"));
+        for (int i = 100; i < 200; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertEquals("changed", cache.get("key0"));
+
+        Set<String> keys = new HashSet<>();
+        cache.forEach((key, value) -> keys.add(key));
+        assertEquals(199, keys.size());
+        assertFalse(keys.contains("key1"));
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get("key0"));
+    }
+
+    @Test
+    void testPromotionCountsAsHit() throws CacheException {
+        TieredCache<String, String> cache = new TieredCache<>(new LRUCache<>(200, new StringWeigher()), tier);
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        long hits = cache.getMetrics().getHits();
+        long misses = cache.getMetrics().getMisses();
+
+        assertEquals("value0", cache.get("key0"));
+        assertNull(cache.get("missing"));
+        assertEquals(hits + 1, cache.getMetrics().getHits());
+        assertEquals(misses + 1, cache.getMetrics().getMisses());
+    }
+
+    @Test
+    void testBulkOperationsReachTheTier() throws CacheException {
+        TieredCache<String, String> cache = new TieredCache<>(new LRUCache<>(200, new StringWeigher()), tier);
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertTrue(tier.containsKey(encode("key0")));
+
+        Map<String, String> found = cache.getAll(Arrays.asList("key0", "key1", "key99", "missing"));
+        assertEquals(Map.of("key0", "value0", "key1", "value1", "key99", "value99"), found);
+
+        // key2 is only on disk, it still blocks the write
+        assertTrue(tier.containsKey(encode("key2")));
+        assertFalse(cache.putAllIfAbsent(Map.of("key2", "changed", "fresh", "value")));
+        assertFalse(cache.containsKey("fresh"));
+        assertTrue(cache.putAllIfAbsent(Map.of("fresh", "value")));
+
+        cache.putAll(Map.of("key3", "changed", "key4", "changed"));
+        assertFalse(tier.containsKey(encode("key3")));
+        for (int i = 100; i < 200; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertEquals("changed", cache.get("key3"));
+        assertEquals("changed", cache.get("key4"));
+        assertEquals("value2", cache.get("key2"));
+    }
+
+    @Test
+    void testEntriesDroppedByTheTierReachTheSink() throws CacheException {
+        tier.close();
+        tier = new DiskTier(directory, 2 * 1024, 1024, 0);
+        AtomicLong now = new AtomicLong(1_000);
+        TieredCache<String, String> tiered = new TieredCache<>(new LRUCache<>(200, new StringWeigher()), tier);
+        ExpiringCache<String, String> cache = new ExpiringCache<>(tiered, 10, now::get, false);
+        for (int i = 0; i < 200; i++) {
+            cache.put("key" + i, "value" + i, 100_000);
+        }
+        assertTrue(tier.getDrops() > 0);
+
+        // The deadlines of dropped keys go with them
+        assertEquals(cache.size(), cache.expiringSize());
+        assertNull(cache.get("key0"));
+    }
+
+    @Test
+    void testExpiryRemovesSpilledKeys() throws CacheException {
+        AtomicLong now = new AtomicLong(1_000);
+        TieredCache<String, String> tiered = new TieredCache<>(new LRUCache<>(200, new StringWeigher()), tier);
+        ExpiringCache<String, String> cache = new ExpiringCache<>(tiered, 10, now::get, false);
+        cache.put("key0", "value0", 100);
+        for (int i = 1; i < 100; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertTrue(tier.containsKey(encode("key0")));
+
+        now.addAndGet(200);
+        cache.expireEntries();
+        assertNull(cache.get("key0"));
+        assertFalse(tier.containsKey(encode("key0")));
+    }
+
+    private static byte[] encode(String key) {
+        try {
+            return new ObjectCodec().encode(key);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    void testEnginesWithoutSinkAreRefused() {
+        // Expiry belongs outside the tier, not inside
+        ExpiringCache<String, String> expiring = new ExpiringCache<>(new LRUCache<>(200), 10, System::currentTimeMillis,
+                false);
+        assertThrows(CacheException.class, () -> new TieredCache<>(expiring, tier));
+    }
+}
@@ -0,0 +1,71 @@
+package a.cache.machine.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimerWheelTest {
+
+    @Test
+    void testTimerFiresOnItsTick() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 0);
+        wheel.schedule(new TimerWheel.Timer<>("key", 55));
+        List<String> expired = new ArrayList<>();
+
+        wheel.advance(49, timer -> expired.add(timer.key));
+        assertTrue(expired.isEmpty());
+        wheel.advance(50, timer -> expired.add(timer.key));
+        assertEquals(List.of("key"), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void testPastDeadlineFiresOnNextTick() {
+        TimerWheel<String> wheel = new TimerWheel<>(10, 1000);
+        wheel.schedule(new TimerWheel.Timer<>("key", 500));
+        List<String> expired = new ArrayList<>();
+
+        wheel.advance(1000, timer -> expired.add(timer.key));
+        assertTrue(expired.isEmpty());
+        wheel.advance(1010, timer -> expired.add(timer.key));
+        assertEquals(List.of("key"), expired);
+    }
+
+    @Test
+    void testTimersCascadeDownFromHigherWheels() {
+        TimerWheel<Long> wheel = new TimerWheel<>(1, 0);
+        // Spread over every level, one beyond the range of the top wheel
+        long[] deadlines = { 3, 63, 64, 100, 4095, 4096, 70_000, 300_000, 16_777_216, 20_000_000 };
+        for (long deadline : deadlines) {
+            wheel.schedule(new TimerWheel.Timer<>(deadline, deadline));
+        }
+        assertEquals(deadlines.length, wheel.size());
+
+        List<Long> fired = new ArrayList<>();
+        for (long deadline : deadlines) {
+            wheel.advance(deadline - 1, timer -> fired.add(timer.key));
+            assertFalse(fired.contains(deadline), "fired early: " + deadline);
+            wheel.advance(deadline, timer -> {
+                assertEquals(deadline, timer.deadline);
+                fired.add(timer.key);
+            });
+            assertTrue(fired.contains(deadline), "not fired: " + deadline);
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void testCancelledTimerDoesNotFire() {
+        TimerWheel<String> wheel = new TimerWheel<>(1, 0);
+        TimerWheel.Timer<String> timer = new TimerWheel.Timer<>("key", 5000);
+        wheel.schedule(timer);
+        wheel.cancel(timer);
+        assertEquals(0, wheel.size());
+
+        List<String> expired = new ArrayList<>();
+        wheel.advance(10_000, t -> expired.add(t.key));
+        assertTrue(expired.isEmpty());
+    }
+}
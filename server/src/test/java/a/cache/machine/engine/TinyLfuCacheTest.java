@@ -0,0 +1,124 @@
+package a.cache.machine.engine;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TinyLfuCacheTest {
+    private TinyLfuCache<String, Object> cache;
+
+    @BeforeEach
+    void setUp() {
+        // Initialize a cache with a maximum size of 100 bytes for testing
+        cache = new TinyLfuCache<>(100);
+    }
+
+    @Test
+    void testPutAndGet() throws CacheException {
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+
+        assertEquals("value1", cache.get("key1"));
+        assertEquals("value2", cache.get("key2"));
+    }
+
+    @Test
+    void testGetNonExistentKey() throws CacheException {
+        assertNull(cache.get("nonexistent"));
+    }
+
+    @Test
+    void testCapacityIsEnforced() throws CacheException {
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, "value" + i);
+            assertTrue(cache.currentSizeInBytes() <= 100);
+        }
+        assertEquals(100, cache.size() + cache.getMetrics().getEvictions());
+    }
+
+    @Test
+    void testHotKeysSurviveOneHitWonders() throws CacheException {
+        TinyLfuCache<String, Object> large = new TinyLfuCache<>(10_000);
+        for (int i = 0; i < 50; i++) {
+            large.put("hot" + i, "value" + i);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 50; i++) {
+                large.get("hot" + i);
+            }
+        }
+        // A long scan of keys that are never requested again
+        for (int i = 0; i < 5_000; i++) {
+            large.put("scan" + i, "value" + i);
+        }
+
+        int survivors = 0;
+        for (int i = 0; i < 50; i++) {
+            if (large.get("hot" + i) != null) {
+                survivors++;
+            }
+        }
+        assertEquals(50, survivors);
+        assertTrue(large.currentSizeInBytes() <= 10_000);
+    }
+
+    @Test
+    void testSizeAccountingOnOverwriteAndRemove() throws CacheException {
+        cache.put("key1", "value1");
+        long single = cache.currentSizeInBytes();
+        cache.put("key1", "value2");
+        assertEquals(single, cache.currentSizeInBytes());
+        assertEquals("value2", cache.get("key1"));
+
+        assertEquals("value2", cache.remove("key1"));
+        assertEquals(0, cache.currentSizeInBytes());
+        assertNull(cache.remove("key1"));
+    }
+
+    @Test
+    void testClear() throws CacheException {
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.currentSizeInBytes());
+        assertNull(cache.get("key1"));
+        assertNull(cache.get("key2"));
+    }
+
+    @Test
+    void testMetrics() throws CacheException {
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+
+        cache.get("key1");
+        cache.get("key1");
+        cache.get("key2");
+        cache.get("nonexistent");
+
+        CacheMetrics metrics = cache.getMetrics();
+        assertEquals(3, metrics.getHits());
+        assertEquals(1, metrics.getMisses());
+    }
+
+    @Test
+    void testNullKeyOrValue() {
+        assertThrows(IllegalArgumentException.class, () -> cache.put(null, "value"));
+        assertThrows(IllegalArgumentException.class, () -> cache.put("key", null));
+    }
+
+    @Test
+    void testShutdownAndPersistence() throws CacheException {
+        cache.put("key1", "value1");
+        cache.put("key2", "value2");
+
+        cache.shutdown();
+
+        TinyLfuCache<String, Object> newCache = new TinyLfuCache<>(100);
+        newCache.loadFromDisk();
+
+        assertEquals("value1", newCache.get("key1"));
+        assertEquals("value2", newCache.get("key2"));
+    }
+}
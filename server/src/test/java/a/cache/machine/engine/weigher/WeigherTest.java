@@ -0,0 +1,86 @@
+package a.cache.machine.engine.weigher;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class WeigherTest {
+
+    @Test
+    void testSerializedWeigherMatchesLegacyEstimate() {
+        // Stream header (4) + TC_STRING (1) + length (2) + 6 chars
+        assertEquals(13, new SerializedWeigher().weigh("key1", "value1"));
+    }
+
+    @Test
+    void testStringWeigherCountsUtf8Bytes() {
+        StringWeigher weigher = new StringWeigher();
+        assertEquals(4 + 6, weigher.weigh("key1", "value1"));
+        // 2 bytes for é, 3 for €, 4 for the surrogate pair
+        assertEquals(1 + 2 + 3 + 4, weigher.weigh("", "aé€😀"));
+        assertEquals(4 + 3, weigher.weigh("key1", 123));
+        assertEquals(4 + 5, weigher.weigh("key1", new byte[5]));
+    }
+
+    @Test
+    void testByteArrayWeigherCountsLengths() {
+        ByteArrayWeigher weigher = new ByteArrayWeigher();
+        assertEquals(3 + 100, weigher.weigh(new byte[3], new byte[100]));
+        assertEquals(4 + 100, weigher.weigh("key1", new byte[100]));
+    }
+
+    @Test
+    void testObjectSizeWeigherLeafValues() {
+        ObjectSizeWeigher weigher = new ObjectSizeWeigher();
+        // 24 byte String plus a 16 byte header + 6 Latin-1 bytes array aligned to 24
+        assertEquals(48, weigher.sizeOf("value1"));
+        assertEquals(16 + 16, weigher.sizeOf(new byte[16]));
+        assertEquals(16, weigher.sizeOf(42));
+        assertEquals(24, weigher.sizeOf(42L));
+        assertEquals(0, weigher.sizeOf(null));
+    }
+
+    @Test
+    void testObjectSizeWeigherWalksTheGraph() {
+        ObjectSizeWeigher weigher = new ObjectSizeWeigher();
+        Pair shared = new Pair("left", null);
+        Pair pair = new Pair("value1", shared);
+        long pairShallow = 24; // header + int + two references
+        assertEquals(pairShallow * 2 + weigher.sizeOf("value1") + weigher.sizeOf("left"), weigher.sizeOf(pair));
+
+        // Cycles and shared objects are only counted once
+        Pair cyclic = new Pair("value1", null);
+        cyclic.next = cyclic;
+        assertEquals(pairShallow + weigher.sizeOf("value1"), weigher.sizeOf(cyclic));
+    }
+
+    @Test
+    void testObjectSizeWeigherCountsCollectionContents() {
+        ObjectSizeWeigher weigher = new ObjectSizeWeigher();
+        List<String> list = new ArrayList<>();
+        Map<String, String> map = new HashMap<>();
+        long emptyList = weigher.sizeOf(list);
+        long emptyMap = weigher.sizeOf(map);
+        for (int i = 0; i < 10; i++) {
+            list.add("value" + i);
+            map.put("key" + i, "value" + i);
+        }
+        assertTrue(weigher.sizeOf(list) >= emptyList + 10 * weigher.sizeOf("value0"));
+        assertTrue(weigher.sizeOf(map) >= emptyMap + 10 * (weigher.sizeOf("key0") + weigher.sizeOf("value0")));
+    }
+
+    private static class Pair {
+        int id;
+        Object value;
+        Pair next;
+
+        Pair(Object value, Pair next) {
+            this.value = value;
+            this.next = next;
+        }
+    }
+}